@@ -50,6 +50,7 @@ import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.backoff.BackoffAlgorithm;
 import com.cloud.utils.backoff.impl.ConstantTimeBackoff;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.script.ScriptExecutor;
 import com.google.common.base.Strings;
 
 public class AgentShell implements IAgentShell, Daemon {
@@ -394,6 +395,9 @@ public class AgentShell implements IAgentShell, Daemon {
             _properties.put(cmdLineProp.getKey(), cmdLineProp.getValue());
         }
 
+        ScriptExecutor.getInstance().configure(_properties);
+        ScriptExecutor.getInstance().registerMBean();
+
         s_logger.info("Defaulting to the constant time backoff algorithm");
         _backoff = new ConstantTimeBackoff();
         _backoff.configure("ConstantTimeBackoff", new HashMap<String, Object>());
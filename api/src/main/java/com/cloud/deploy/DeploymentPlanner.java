@@ -157,6 +157,7 @@ public interface DeploymentPlanner extends Adapter {
                 _poolIds = new HashSet<Long>();
             }
             _poolIds.add(poolId);
+            PlanningTrace.excluded("pool", poolId);
         }
 
         public void addDataCenter(long dataCenterId) {
@@ -164,6 +165,7 @@ public interface DeploymentPlanner extends Adapter {
                 _dcIds = new HashSet<Long>();
             }
             _dcIds.add(dataCenterId);
+            PlanningTrace.excluded("zone", dataCenterId);
         }
 
         public void addPod(long podId) {
@@ -171,6 +173,7 @@ public interface DeploymentPlanner extends Adapter {
                 _podIds = new HashSet<Long>();
             }
             _podIds.add(podId);
+            PlanningTrace.excluded("pod", podId);
         }
 
         public void addPodList(Collection<Long> podList) {
@@ -178,6 +181,7 @@ public interface DeploymentPlanner extends Adapter {
                 _podIds = new HashSet<Long>();
             }
             _podIds.addAll(podList);
+            PlanningTrace.excluded("pod", podList);
         }
 
         public void addCluster(long clusterId) {
@@ -185,6 +189,7 @@ public interface DeploymentPlanner extends Adapter {
                 _clusterIds = new HashSet<Long>();
             }
             _clusterIds.add(clusterId);
+            PlanningTrace.excluded("cluster", clusterId);
         }
 
         public void addClusterList(Collection<Long> clusterList) {
@@ -192,6 +197,7 @@ public interface DeploymentPlanner extends Adapter {
                 _clusterIds = new HashSet<Long>();
             }
             _clusterIds.addAll(clusterList);
+            PlanningTrace.excluded("cluster", clusterList);
         }
 
         public void addHost(long hostId) {
@@ -199,6 +205,7 @@ public interface DeploymentPlanner extends Adapter {
                 _hostIds = new HashSet<Long>();
             }
             _hostIds.add(hostId);
+            PlanningTrace.excluded("host", hostId);
         }
 
         public void addHostList(Collection<Long> hostList) {
@@ -206,6 +213,7 @@ public interface DeploymentPlanner extends Adapter {
                 _hostIds = new HashSet<Long>();
             }
             _hostIds.addAll(hostList);
+            PlanningTrace.excluded("host", hostList);
         }
 
         public boolean shouldAvoid(Host host) {
@@ -0,0 +1,255 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.db.StatementCounter;
+
+/**
+ * Records what the planning of a deployment did, stage by stage: the candidates each stage considered, what it added
+ * to the {@link DeploymentPlanner.ExcludeList}, the statements it issued to the database and how long it took.
+ *
+ * The trace is bound to the planning thread, so the planners and allocators record into it without it being passed
+ * around. Nothing is recorded on a thread without a trace.
+ */
+public class PlanningTrace {
+    private static final ThreadLocal<PlanningTrace> s_current = new ThreadLocal<PlanningTrace>();
+
+    private static final Stage NO_STAGE = new Stage(null, "none");
+
+    /**
+     * A stage of the planning, closing it ends it.
+     */
+    public static class Stage implements AutoCloseable {
+        private final PlanningTrace trace;
+        private final String name;
+        private final long started;
+        private final long startStatements;
+        private long elapsed;
+        private long statements;
+        private final Map<String, List<Long>> candidates = new LinkedHashMap<String, List<Long>>();
+        private final Map<String, List<Long>> excluded = new LinkedHashMap<String, List<Long>>();
+        private final List<String> notes = new ArrayList<String>();
+
+        private Stage(PlanningTrace trace, String name) {
+            this.trace = trace;
+            this.name = name;
+            started = System.nanoTime();
+            startStatements = StatementCounter.getCount();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getElapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsed);
+        }
+
+        public long getElapsedNanos() {
+            return elapsed;
+        }
+
+        /**
+         * @return the statements prepared on the database while the stage was open, including those of nested stages
+         */
+        public long getStatements() {
+            return statements;
+        }
+
+        public Map<String, List<Long>> getCandidates() {
+            return candidates;
+        }
+
+        public Map<String, List<Long>> getExcluded() {
+            return excluded;
+        }
+
+        public List<String> getNotes() {
+            return notes;
+        }
+
+        public void candidates(String kind, Collection<Long> ids) {
+            if (trace != null && ids != null) {
+                candidates.put(kind, new ArrayList<Long>(ids));
+            }
+        }
+
+        private void exclude(String kind, long id) {
+            List<Long> ids = excluded.get(kind);
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                excluded.put(kind, ids);
+            }
+            ids.add(id);
+        }
+
+        @Override
+        public void close() {
+            if (trace == null) {
+                return;
+            }
+            elapsed = System.nanoTime() - started;
+            statements = StatementCounter.getCount() - startStatements;
+            trace.open.remove(this);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name).append(": ").append(getElapsedMs()).append(" ms, ").append(statements).append(" statements");
+            for (Map.Entry<String, List<Long>> entry : candidates.entrySet()) {
+                sb.append(", ").append(entry.getKey()).append(" candidates ").append(entry.getValue());
+            }
+            for (Map.Entry<String, List<Long>> entry : excluded.entrySet()) {
+                sb.append(", excluded ").append(entry.getKey()).append(" ").append(entry.getValue());
+            }
+            for (String note : notes) {
+                sb.append(", ").append(note);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final long vmId;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final Deque<Stage> open = new ArrayDeque<Stage>();
+    private final Stage root;
+    private String outcome;
+
+    private PlanningTrace(long vmId) {
+        this.vmId = vmId;
+        root = new Stage(this, "planDeployment");
+        stages.add(root);
+        open.push(root);
+    }
+
+    /**
+     * Starts tracing the planning on this thread.
+     *
+     * @return the new trace, null if the thread is already tracing a planning the caller is part of
+     */
+    public static PlanningTrace begin(long vmId) {
+        if (s_current.get() != null) {
+            return null;
+        }
+        PlanningTrace trace = new PlanningTrace(vmId);
+        s_current.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the trace of the planning on this thread, null if there is none
+     */
+    public static PlanningTrace current() {
+        return s_current.get();
+    }
+
+    /**
+     * Opens a stage of the planning on this thread, to be closed when the stage is done.
+     */
+    public static Stage stage(String name) {
+        PlanningTrace trace = s_current.get();
+        if (trace == null) {
+            return NO_STAGE;
+        }
+        Stage stage = new Stage(trace, name);
+        trace.stages.add(stage);
+        trace.open.push(stage);
+        return stage;
+    }
+
+    /**
+     * Records an addition to the exclude list against the innermost open stage.
+     */
+    public static void excluded(String kind, long id) {
+        PlanningTrace trace = s_current.get();
+        if (trace != null) {
+            trace.open.peek().exclude(kind, id);
+        }
+    }
+
+    public static void excluded(String kind, Collection<Long> ids) {
+        PlanningTrace trace = s_current.get();
+        if (trace != null && ids != null) {
+            for (Long id : ids) {
+                trace.open.peek().exclude(kind, id);
+            }
+        }
+    }
+
+    /**
+     * Records why the innermost open stage decided what it did.
+     */
+    public static void note(String note) {
+        PlanningTrace trace = s_current.get();
+        if (trace != null) {
+            trace.open.peek().notes.add(note);
+        }
+    }
+
+    /**
+     * Ends the trace and unbinds it from this thread.
+     */
+    public void end(String outcome) {
+        this.outcome = outcome;
+        while (open.size() > 1) {
+            open.peek().close();
+        }
+        root.close();
+        open.clear();
+        if (s_current.get() == this) {
+            s_current.remove();
+        }
+    }
+
+    public long getVmId() {
+        return vmId;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public long getElapsedMs() {
+        return root.getElapsedMs();
+    }
+
+    /**
+     * @return the stages in the order they were opened, the first one covers the whole planning
+     */
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Planning of VM ").append(vmId).append(" ").append(outcome);
+        for (Stage stage : stages) {
+            sb.append("; ").append(stage);
+        }
+        return sb.toString();
+    }
+}
@@ -26,6 +26,11 @@ public class RequestLimitException extends PermissionDeniedException {
 
     private static final long serialVersionUID = SerialVersionUID.AccountLimitException;
 
+    /**
+     * Seconds after which the request may be allowed again, 0 if unknown
+     */
+    private long retryAfter;
+
     protected RequestLimitException() {
         super();
     }
@@ -34,8 +39,16 @@ public class RequestLimitException extends PermissionDeniedException {
         super(msg);
     }
 
+    public RequestLimitException(String msg, long retryAfter) {
+        super(msg);
+        this.retryAfter = retryAfter;
+    }
+
     public RequestLimitException(String msg, Throwable cause) {
         super(msg, cause);
     }
 
+    public long getRetryAfter() {
+        return retryAfter;
+    }
 }
@@ -27,6 +27,11 @@ public interface RoleService {
     ConfigKey<Boolean> EnableDynamicApiChecker = new ConfigKey<>("Advanced", Boolean.class, "dynamic.apichecker.enabled", "false",
             "If set to true, this enables the dynamic role-based api access checker and disables the default static role-based api access checker.", true);
 
+    /**
+     * Published with the role id as argument whenever a role or its permissions change.
+     */
+    String MESSAGE_ROLE_PERMISSIONS_CHANGED_EVENT = "Message.RolePermissionsChanged.Event";
+
     boolean isEnabled();
 
     /**
@@ -57,6 +57,15 @@ public interface AffinityGroupProcessor extends Adapter {
      */
     boolean check(VirtualMachineProfile vm, DeployDestination plannedDestination) throws AffinityConflictException;
 
+    /**
+     * getMaxVmsPerHost() should return the most VMs of a group of this type
+     * that may run on the same host, so that VMs deployed together can be
+     * spread before each of them is checked.
+     *
+     * @return the most VMs of a group per host, 0 if there is no limit
+     */
+    int getMaxVmsPerHost();
+
     /**
      * isAdminControlledGroup() should return true if the affinity/anti-affinity
      * group can only be operated on[create/delete/modify] by the Admin
@@ -46,6 +46,11 @@ public class AffinityProcessorBase extends AdapterBase implements AffinityGroupP
         return true;
     }
 
+    @Override
+    public int getMaxVmsPerHost() {
+        return 0;
+    }
+
     @Override
     public boolean isAdminControlledGroup() {
         return false;
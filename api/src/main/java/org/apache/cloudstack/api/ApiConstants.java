@@ -51,6 +51,7 @@ public class ApiConstants {
     public static final String CERTIFICATE_FINGERPRINT = "fingerprint";
     public static final String CERTIFICATE_ID = "certid";
     public static final String COPY_IMAGE_TAGS = "copyimagetags";
+    public static final String EXPLAIN = "explain";
     public static final String CSR = "csr";
     public static final String PRIVATE_KEY = "privatekey";
     public static final String DOMAIN_SUFFIX = "domainsuffix";
@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a read only command whose serialized response may be served again to the same caller for the same
+ * parameters, until an action event on one of the entities changes them or the time to live passes.
+ */
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({TYPE})
+public @interface CachedResponse {
+
+    /**
+     * The entities the response is built from, as used in {@link com.cloud.event.EventTypes}
+     */
+    Class<?>[] entities();
+
+    /**
+     * Seconds a response is served at most, this bounds how stale the state that changes without action events gets
+     */
+    int ttl() default 60;
+}
@@ -80,6 +80,7 @@ public class DeployVMCmdByAdmin extends DeployVMCmd {
                 }
                 s_logger.info(ex);
                 s_logger.info(message.toString(), ex);
+                appendPlanningTrace(message);
                 throw new ServerApiException(ApiErrorCode.INSUFFICIENT_CAPACITY_ERROR, message.toString());
             }
         } else {
@@ -89,6 +90,7 @@ public class DeployVMCmdByAdmin extends DeployVMCmd {
         if (result != null) {
             UserVmResponse response = _responseGenerator.createUserVmResponse(ResponseView.Full, "virtualmachine", result).get(0);
             response.setResponseName(getCommandName());
+            setPlanningTrace(response);
             setResponseObject(response);
         } else {
             throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to deploy vm");
@@ -39,6 +39,7 @@ import org.apache.cloudstack.api.response.DiskOfferingResponse;
 import org.apache.cloudstack.api.response.DomainResponse;
 import org.apache.cloudstack.api.response.HostResponse;
 import org.apache.cloudstack.api.response.NetworkResponse;
+import org.apache.cloudstack.api.response.PlanningStageResponse;
 import org.apache.cloudstack.api.response.ProjectResponse;
 import org.apache.cloudstack.api.response.SecurityGroupResponse;
 import org.apache.cloudstack.api.response.ServiceOfferingResponse;
@@ -49,6 +50,7 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.commons.collections.MapUtils;
 import org.apache.log4j.Logger;
 
+import com.cloud.deploy.PlanningTrace;
 import com.cloud.event.EventTypes;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
@@ -205,6 +207,10 @@ public class DeployVMCmd extends BaseAsyncCreateCustomIdCmd implements SecurityG
     @Parameter(name = ApiConstants.COPY_IMAGE_TAGS, type = CommandType.BOOLEAN, since = "4.13", description = "if true the image tags (if any) will be copied to the VM, default value is false")
     private Boolean copyImageTags;
 
+    @Parameter(name = ApiConstants.EXPLAIN, type = CommandType.BOOLEAN, description = "if true the stages of the planning of the deployment are returned, or added to the error "
+            + "when no destination is found; default value is false. Available to ROOT admin only", authorized = {RoleType.Admin})
+    private Boolean explain;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -330,6 +336,10 @@ public class DeployVMCmd extends BaseAsyncCreateCustomIdCmd implements SecurityG
         return startVm == null ? true : startVm;
     }
 
+    public boolean isExplain() {
+        return explain == null ? false : explain;
+    }
+
     public Map<Long, IpAddresses> getIpToNetworkMap() {
         if ((networkIds != null || ipAddress != null || getIp6Address() != null) && ipToNetworkList != null) {
             throw new InvalidParameterValueException("NetworkIds and ipAddress can't be specified along with ipToNetworkMap parameter");
@@ -566,6 +576,7 @@ public class DeployVMCmd extends BaseAsyncCreateCustomIdCmd implements SecurityG
                 }
                 s_logger.info(ex);
                 s_logger.info(message.toString(), ex);
+                appendPlanningTrace(message);
                 throw new ServerApiException(ApiErrorCode.INSUFFICIENT_CAPACITY_ERROR, message.toString());
             }
         } else {
@@ -575,12 +586,36 @@ public class DeployVMCmd extends BaseAsyncCreateCustomIdCmd implements SecurityG
         if (result != null) {
             UserVmResponse response = _responseGenerator.createUserVmResponse(ResponseView.Restricted, "virtualmachine", result).get(0);
             response.setResponseName(getCommandName());
+            setPlanningTrace(response);
             setResponseObject(response);
         } else {
             throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to deploy vm uuid:"+getEntityUuid());
         }
     }
 
+    protected void setPlanningTrace(UserVmResponse response) {
+        if (!isExplain()) {
+            return;
+        }
+        List<PlanningStageResponse> stages = new ArrayList<PlanningStageResponse>();
+        int attempt = 0;
+        for (PlanningTrace trace : _userVmService.getPlanningTraces(getEntityId())) {
+            attempt++;
+            for (PlanningTrace.Stage stage : trace.getStages()) {
+                stages.add(new PlanningStageResponse(attempt, trace, stage));
+            }
+        }
+        response.setPlanningTrace(stages);
+    }
+
+    protected void appendPlanningTrace(StringBuilder message) {
+        if (!isExplain()) {
+            return;
+        }
+        for (PlanningTrace trace : _userVmService.getPlanningTraces(getEntityId())) {
+            message.append(". ").append(trace);
+        }
+    }
 
     @Override
     public void create() throws ResourceAllocationException {
@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.response;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.deploy.PlanningTrace;
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class PlanningStageResponse extends BaseResponse {
+    @SerializedName("attempt")
+    @Param(description = "the planning of the deployment the stage is part of, starting at 1")
+    private Integer attempt;
+
+    @SerializedName("outcome")
+    @Param(description = "the outcome of the planning the stage is part of")
+    private String outcome;
+
+    @SerializedName(ApiConstants.NAME)
+    @Param(description = "the name of the stage")
+    private String name;
+
+    @SerializedName("elapsedms")
+    @Param(description = "the time the stage took, in milliseconds")
+    private Long elapsedMs;
+
+    @SerializedName("statements")
+    @Param(description = "the statements the stage prepared on the database, including those of the stages it called")
+    private Long statements;
+
+    @SerializedName("candidates")
+    @Param(description = "the database IDs of the hosts, clusters or pools the stage considered")
+    private String candidates;
+
+    @SerializedName("excluded")
+    @Param(description = "the database IDs of the zones, pods, clusters, hosts or pools the stage excluded from the deployment")
+    private String excluded;
+
+    @SerializedName("notes")
+    @Param(description = "why the stage decided what it did")
+    private String notes;
+
+    public PlanningStageResponse() {
+        setObjectName("planningstage");
+    }
+
+    public PlanningStageResponse(int attempt, PlanningTrace trace, PlanningTrace.Stage stage) {
+        this();
+        this.attempt = attempt;
+        outcome = trace.getOutcome();
+        name = stage.getName();
+        elapsedMs = stage.getElapsedMs();
+        statements = stage.getStatements();
+        candidates = toString(stage.getCandidates());
+        excluded = toString(stage.getExcluded());
+        notes = stage.getNotes().isEmpty() ? null : String.join("; ", stage.getNotes());
+    }
+
+    private static String toString(Map<String, List<Long>> ids) {
+        if (ids.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<Long>> entry : ids.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    public Integer getAttempt() {
+        return attempt;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    public Long getStatements() {
+        return statements;
+    }
+
+    public String getCandidates() {
+        return candidates;
+    }
+
+    public String getExcluded() {
+        return excluded;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.cloudstack.api.response;
 
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -290,6 +291,15 @@ public class UserVmResponse extends BaseResponseWithTagInformation implements Co
     @Param(description = "OS type id of the vm", since = "4.4")
     private String osTypeId;
 
+    @SerializedName("planningtrace")
+    @Param(description = "the stages of the plannings of the deployment of the vm, returned when deployed with explain", responseObject = PlanningStageResponse.class,
+            authorized = {RoleType.Admin})
+    private List<PlanningStageResponse> planningTrace;
+
+    @SerializedName("starterror")
+    @Param(description = "the reason the vm failed to start, returned by startVirtualMachines for the vms it could not start", since = "4.13.0")
+    private String startError;
+
     public UserVmResponse() {
         securityGroupList = new LinkedHashSet<SecurityGroupResponse>();
         nics = new LinkedHashSet<NicResponse>();
@@ -849,4 +859,20 @@ public class UserVmResponse extends BaseResponseWithTagInformation implements Co
     public String getOsTypeId() {
         return osTypeId;
     }
+
+    public List<PlanningStageResponse> getPlanningTrace() {
+        return planningTrace;
+    }
+
+    public void setPlanningTrace(List<PlanningStageResponse> planningTrace) {
+        this.planningTrace = planningTrace;
+    }
+
+    public String getStartError() {
+        return startError;
+    }
+
+    public void setStartError(String startError) {
+        this.startError = startError;
+    }
 }
@@ -29,6 +29,7 @@ public class PingRoutingCommand extends PingCommand {
 
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
+    Map<String, StoragePoolHeartbeatStats> _heartbeatStats;
 
     protected PingRoutingCommand() {
     }
@@ -57,4 +58,15 @@ public class PingRoutingCommand extends PingCommand {
     public void setVnetAccessible(boolean vnetAccessible) {
         _vnetAccessible = vnetAccessible;
     }
+
+    /**
+     * @return the heartbeat writes to the storage pools by pool UUID, null if the host does not write heartbeats
+     */
+    public Map<String, StoragePoolHeartbeatStats> getHeartbeatStats() {
+        return _heartbeatStats;
+    }
+
+    public void setHeartbeatStats(Map<String, StoragePoolHeartbeatStats> heartbeatStats) {
+        _heartbeatStats = heartbeatStats;
+    }
 }
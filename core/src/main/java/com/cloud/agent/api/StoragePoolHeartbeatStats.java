@@ -0,0 +1,94 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+/**
+ * The heartbeat writes of a host to a storage pool since the agent started.
+ */
+public class StoragePoolHeartbeatStats {
+    long writes;
+    long failures;
+    long consecutiveFailures;
+    long lastLatencyMs;
+    long maxLatencyMs;
+    long lastSuccess;
+
+    public StoragePoolHeartbeatStats() {
+    }
+
+    public StoragePoolHeartbeatStats(StoragePoolHeartbeatStats stats) {
+        synchronized (stats) {
+            writes = stats.writes;
+            failures = stats.failures;
+            consecutiveFailures = stats.consecutiveFailures;
+            lastLatencyMs = stats.lastLatencyMs;
+            maxLatencyMs = stats.maxLatencyMs;
+            lastSuccess = stats.lastSuccess;
+        }
+    }
+
+    public synchronized void record(long latencyMs, boolean success) {
+        writes++;
+        if (success) {
+            consecutiveFailures = 0;
+            lastSuccess = System.currentTimeMillis();
+        } else {
+            failures++;
+            consecutiveFailures++;
+        }
+        lastLatencyMs = latencyMs;
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of writes that failed since the last one that succeeded
+     */
+    public synchronized long getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getLastLatencyMs() {
+        return lastLatencyMs;
+    }
+
+    public synchronized long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    /**
+     * @return milliseconds since the epoch of the last write that succeeded, 0 if none did
+     */
+    public synchronized long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return writes + " writes, " + failures + " failed (" + consecutiveFailures + " in a row), last took " + lastLatencyMs + " ms, max " + maxLatencyMs + " ms";
+    }
+}
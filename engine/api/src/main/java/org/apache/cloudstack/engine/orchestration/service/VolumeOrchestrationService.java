@@ -20,6 +20,7 @@ package org.apache.cloudstack.engine.orchestration.service;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BooleanSupplier;
 
 import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStore;
@@ -113,6 +114,15 @@ public interface VolumeOrchestrationService {
 
     void prepare(VirtualMachineProfile vm, DeployDestination dest) throws StorageUnavailableException, InsufficientStorageCapacityException, ConcurrentOperationException;
 
+    /**
+     * Prepares the volumes as prepare(vm, dest) does, asking before it creates or migrates each volume whether the start
+     * still needs them, so that a start failing while its volumes are prepared creates none of those left.
+     *
+     * @param proceed false once the start no longer needs its volumes
+     */
+    void prepare(VirtualMachineProfile vm, DeployDestination dest, BooleanSupplier proceed) throws StorageUnavailableException, InsufficientStorageCapacityException,
+            ConcurrentOperationException;
+
     boolean canVmRestartOnAnotherServer(long vmId);
 
     DiskProfile allocateTemplatedVolume(Type type, String name, DiskOffering offering, Long rootDisksize, Long minIops, Long maxIops, VirtualMachineTemplate template, VirtualMachine vm,
@@ -135,6 +135,11 @@ public interface AgentManager {
 
     boolean isAgentAttached(long hostId);
 
+    /**
+     * @return the storage commands this management server sent to the host that were not answered yet
+     */
+    int getInFlightStorageCommands(long hostId);
+
     void disconnectWithoutInvestigation(long hostId, Status.Event event);
 
     void disconnectWithInvestigation(long hostId, Status.Event event);
@@ -0,0 +1,58 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.List;
+
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.VMTemplateVO;
+
+/**
+ * Keeps what is allocated on the primary storage pools (the size and number of their volumes, the size of their VM
+ * snapshots and templates and their used IOPS) in memory, so the storage pool allocators do not sum up the volumes of
+ * every candidate pool for every volume they place.
+ */
+public interface StoragePoolAllocationIndex {
+
+    /**
+     * @return false if the allocations are calculated from the database on every call
+     */
+    boolean isEnabled();
+
+    /**
+     * Same as {@link CapacityManager#getAllocatedPoolCapacity(StoragePoolVO, VMTemplateVO)}.
+     */
+    long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation);
+
+    /**
+     * Same as {@link CapacityManager#getUsedIops(StoragePoolVO)}.
+     */
+    long getUsedIops(StoragePoolVO pool);
+
+    /**
+     * @return the pools, the one with the largest share of its capacity unallocated first
+     */
+    List<StoragePool> orderPoolsByFreeCapacity(List<StoragePool> pools);
+
+    /**
+     * Has the allocation of the pool calculated again when it is next asked for, once the current transaction has
+     * completed.
+     */
+    void invalidate(long poolId);
+}
@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.deploy;
 
+import java.util.List;
+import java.util.Map;
+
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.exception.InsufficientServerCapacityException;
@@ -46,7 +49,26 @@ public interface DeploymentPlanningManager extends Manager {
             VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
             throws InsufficientServerCapacityException, AffinityConflictException;
 
+    /**
+     * Plans the deployment of many VMs at once and reserves their destinations in a single transaction. The VMs with
+     * the same offering, template and affinity groups are packed onto the hosts the planner and the allocators find for
+     * the first of them, against the capacity of those hosts when the planning starts. The affinity groups are checked
+     * for every VM as its destination is reserved, so the VMs of a batch do not break the groups among themselves.
+     *
+     * @param planner
+     *            the planner to use, null for the planner of the offering or the default one
+     * @return the reservation IDs by VM ID, the VMs without a reservation could not be placed with the others and are
+     *         to be planned one by one
+     */
+    Map<Long, String> planAndReserveDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlanner planner);
+
     void cleanupVMReservations();
 
     DeploymentPlanner getDeploymentPlannerByName(String plannerName);
+
+    /**
+     * @return the traces of the last plannings of the deployment of the VM, the latest last, empty if it was not
+     *         planned since the management server started or its traces were evicted
+     */
+    List<PlanningTrace> getPlanningTraces(long vmId);
 }
@@ -0,0 +1,80 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.affinity;
+
+import java.util.Set;
+
+/**
+ * Keeps the hosts and clusters the VMs of the affinity groups are on in memory, so the affinity group processors do
+ * not look up every VM of a group for every VM of the group they plan.
+ *
+ * A VM is on a host while it is starting, running, migrating or stopping on it, and while it is stopped but still has
+ * capacity reserved on its last host. A VM that is being planned can also claim a host in its groups, which keeps the
+ * host out of reach of the other VMs of the groups planned on this management server at the same time.
+ *
+ * Every reservation made in a group moves the placement version of the group on. The reservations the other management
+ * servers made are known as of the version the group was last looked up at, so a planner refreshes the groups at their
+ * current version before it claims the hosts, and reserves them only if the versions did not move on in between.
+ */
+public interface AffinityGroupHostIndex {
+
+    /**
+     * @return false if the processors are to look up the VMs of the groups in the database
+     */
+    boolean isEnabled();
+
+    /**
+     * @return the hosts the VMs of the group other than the given one are on or have claimed
+     */
+    Set<Long> getOccupiedHosts(long groupId, long vmId);
+
+    /**
+     * @return the clusters of the hosts the VMs of the group other than the given one are on or have claimed
+     */
+    Set<Long> getOccupiedClusters(long groupId, long vmId);
+
+    /**
+     * Claims the host for the VM in the group, unless another VM of the group is on the host or has claimed it. A VM
+     * has one claim per group, claiming a host releases the host it claimed before.
+     *
+     * @return true if the VM holds the claim
+     */
+    boolean claimHost(long groupId, long vmId, long hostId);
+
+    /**
+     * Looks up the VMs of the group and their reservations again, unless they were last looked up at the given placement
+     * version of the group or this management server moved the group on to it.
+     */
+    void refresh(long groupId, long placementVersion);
+
+    /**
+     * Records that this management server moved the group on from the given placement version, with reservations of
+     * VMs that hold their claims, so the group need not be looked up again for them.
+     */
+    void advance(long groupId, long placementVersion);
+
+    /**
+     * Releases the hosts the VM claimed in all groups, claims are also released when the VM is no longer starting.
+     */
+    void releaseClaims(long vmId);
+
+    /**
+     * Has the VMs of the group looked up again when the group is next asked for, the VMs of a group change outside
+     * the VM state machine when VMs are added to or removed from the group.
+     */
+    void invalidate(long groupId);
+}
@@ -32,6 +32,8 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -47,6 +49,7 @@ import org.apache.cloudstack.framework.jobs.AsyncJob;
 import org.apache.cloudstack.framework.jobs.AsyncJobExecutionContext;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.outofbandmanagement.dao.OutOfBandManagementDao;
+import org.apache.cloudstack.storage.command.StorageSubSystemCommand;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.apache.log4j.Logger;
 import org.slf4j.MDC;
@@ -72,6 +75,7 @@ import com.cloud.agent.api.StartupProxyCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
+import com.cloud.agent.api.StoragePoolHeartbeatStats;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
@@ -182,6 +186,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
     private final ConcurrentHashMap<Long, Long> _pingMap = new ConcurrentHashMap<Long, Long>(10007);
+    private final ConcurrentHashMap<Long, AtomicInteger> _inFlightStorageCommands = new ConcurrentHashMap<Long, AtomicInteger>();
 
     @Inject
     ResourceManager _resourceMgr;
@@ -450,7 +455,18 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
-        final Answer[] answers = agent.send(req, timeout);
+        final boolean storage = isStorageCommand(cmds);
+        if (storage) {
+            storageCommandSent(hostId);
+        }
+        final Answer[] answers;
+        try {
+            answers = agent.send(req, timeout);
+        } finally {
+            if (storage) {
+                storageCommandDone(hostId);
+            }
+        }
         notifyAnswersToMonitors(hostId, req.getSequence(), answers);
         commands.setAnswers(answers);
         return answers;
@@ -501,10 +517,130 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
 
-        agent.send(req, listener);
+        if (listener != null && !listener.isRecurring() && isStorageCommand(cmds)) {
+            final InFlightStorageCommandListener inFlight = new InFlightStorageCommandListener(hostId, listener);
+            storageCommandSent(hostId);
+            try {
+                agent.send(req, inFlight);
+            } catch (final AgentUnavailableException e) {
+                inFlight.done();
+                throw e;
+            }
+        } else {
+            agent.send(req, listener);
+        }
         return req.getSequence();
     }
 
+    private static boolean isStorageCommand(final Command[] cmds) {
+        for (final Command cmd : cmds) {
+            if (cmd instanceof StorageSubSystemCommand) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void storageCommandSent(final long hostId) {
+        AtomicInteger count = _inFlightStorageCommands.get(hostId);
+        if (count == null) {
+            _inFlightStorageCommands.putIfAbsent(hostId, new AtomicInteger());
+            count = _inFlightStorageCommands.get(hostId);
+        }
+        count.incrementAndGet();
+    }
+
+    private void storageCommandDone(final long hostId) {
+        final AtomicInteger count = _inFlightStorageCommands.get(hostId);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int getInFlightStorageCommands(final long hostId) {
+        final AtomicInteger count = _inFlightStorageCommands.get(hostId);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Counts an asynchronous storage command as in flight until it is answered, times out or the agent disconnects.
+     */
+    protected class InFlightStorageCommandListener implements Listener {
+        private final long _hostId;
+        private final Listener _listener;
+        private final AtomicBoolean _done = new AtomicBoolean();
+
+        public InFlightStorageCommandListener(final long hostId, final Listener listener) {
+            _hostId = hostId;
+            _listener = listener;
+        }
+
+        void done() {
+            if (_done.compareAndSet(false, true)) {
+                storageCommandDone(_hostId);
+            }
+        }
+
+        @Override
+        public boolean processAnswers(final long agentId, final long seq, final Answer[] answers) {
+            done();
+            return _listener.processAnswers(agentId, seq, answers);
+        }
+
+        @Override
+        public boolean processCommands(final long agentId, final long seq, final Command[] commands) {
+            return _listener.processCommands(agentId, seq, commands);
+        }
+
+        @Override
+        public AgentControlAnswer processControlCommand(final long agentId, final AgentControlCommand cmd) {
+            return _listener.processControlCommand(agentId, cmd);
+        }
+
+        @Override
+        public void processHostAdded(final long hostId) {
+            _listener.processHostAdded(hostId);
+        }
+
+        @Override
+        public void processConnect(final Host host, final StartupCommand cmd, final boolean forRebalance) throws ConnectionException {
+            _listener.processConnect(host, cmd, forRebalance);
+        }
+
+        @Override
+        public boolean processDisconnect(final long agentId, final Status state) {
+            done();
+            return _listener.processDisconnect(agentId, state);
+        }
+
+        @Override
+        public void processHostAboutToBeRemoved(final long hostId) {
+            _listener.processHostAboutToBeRemoved(hostId);
+        }
+
+        @Override
+        public void processHostRemoved(final long hostId, final long clusterId) {
+            _listener.processHostRemoved(hostId, clusterId);
+        }
+
+        @Override
+        public boolean isRecurring() {
+            return false;
+        }
+
+        @Override
+        public int getTimeout() {
+            return _listener.getTimeout();
+        }
+
+        @Override
+        public boolean processTimeout(final long agentId, final long seq) {
+            done();
+            return _listener.processTimeout(agentId, seq);
+        }
+    }
+
     public void removeAgent(final AgentAttache attache, final Status nextState) {
         if (attache == null) {
             return;
@@ -1310,6 +1446,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                                 } else {
                                     s_logger.debug("Not processing " + PingRoutingCommand.class.getSimpleName() + " for agent id=" + cmdHostId + "; can't find the host in the DB");
                                 }
+                                logHeartbeatFailures(cmdHostId, ((PingRoutingCommand)cmd).getHeartbeatStats());
                             }
                             answer = new PingAnswer((PingCommand)cmd);
                         } else if (cmd instanceof ReadyAnswer) {
@@ -1346,6 +1483,19 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             }
         }
 
+        private void logHeartbeatFailures(final long hostId, final Map<String, StoragePoolHeartbeatStats> heartbeatStats) {
+            if (heartbeatStats == null) {
+                return;
+            }
+            for (final Map.Entry<String, StoragePoolHeartbeatStats> entry : heartbeatStats.entrySet()) {
+                if (entry.getValue().getConsecutiveFailures() > 0) {
+                    s_logger.warn("Host " + hostId + " is failing to write its heartbeat to storage pool " + entry.getKey() + ": " + entry.getValue());
+                } else if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Heartbeat of host " + hostId + " to storage pool " + entry.getKey() + ": " + entry.getValue());
+                }
+            }
+        }
+
         protected void processResponse(final Link link, final Response response) {
             final AgentAttache attache = (AgentAttache)link.attachment();
             if (attache == null) {
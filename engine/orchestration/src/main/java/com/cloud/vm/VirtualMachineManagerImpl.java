@@ -32,9 +32,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -360,7 +366,14 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     static final ConfigKey<Boolean> HaVmRestartHostUp = new ConfigKey<Boolean>("Advanced", Boolean.class, "ha.vm.restart.hostup", "true",
             "If an out-of-band stop of a VM is detected and its host is up, then power on the VM", true);
 
+    static final ConfigKey<Boolean> VmStartConcurrentPrepare = new ConfigKey<Boolean>("Advanced", Boolean.class, "vm.start.concurrent.prepare", "true",
+            "Prepare the volumes of a VM being started while its network is prepared, instead of after it", true);
+    static final ConfigKey<Integer> VmStartPrepareWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "vm.start.prepare.workers", "32",
+            "Number of threads preparing the volumes of VMs being started, the volumes are prepared after the network when none is free, 0 to always prepare them after the network",
+            false);
+
     ScheduledExecutorService _executor = null;
+    ExecutorService _startPrepareExecutor = null;
 
     private long _nodeId;
 
@@ -672,9 +685,23 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
     @Override
     public boolean stop() {
+        if (_startPrepareExecutor != null) {
+            _startPrepareExecutor.shutdown();
+        }
         return true;
     }
 
+    /**
+     * @return the executor preparing the volumes of starting VMs, null to prepare them after the network when there are no workers
+     */
+    static ExecutorService createStartPrepareExecutor(final Integer workers) {
+        if (workers == null || workers <= 0) {
+            s_logger.info("No worker prepares the volumes of VMs being started, they are prepared after the network");
+            return null;
+        }
+        return new ThreadPoolExecutor(0, workers, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("Vm-Start-Prepare"));
+    }
+
     @Override
     public boolean configure(final String name, final Map<String, Object> xmlParams) throws ConfigurationException {
         ReservationContextImpl.init(_entityMgr);
@@ -682,6 +709,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         VmWorkMigrate.init(_entityMgr);
 
         _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Vm-Operations-Cleanup"));
+        _startPrepareExecutor = createStartPrepareExecutor(VmStartPrepareWorkers.value());
         _nodeId = ManagementServerNode.getManagementServerId();
 
         _agentMgr.registerForHostEvents(this, true, true, true);
@@ -967,6 +995,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
         boolean canRetry = true;
         ExcludeList avoids = null;
+        final VmStartPhases phases = new VmStartPhases();
         try {
             final Journal journal = start.second().getJournal();
 
@@ -1043,12 +1072,16 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 final Account owner = _entityMgr.findById(Account.class, vm.getAccountId());
                 final VirtualMachineProfileImpl vmProfile = new VirtualMachineProfileImpl(vm, template, offering, owner, params);
                 DeployDestination dest = null;
+                phases.attempt();
+                final long planStarted = System.currentTimeMillis();
                 try {
                     dest = _dpMgr.planDeployment(vmProfile, plan, avoids, planner);
                 } catch (final AffinityConflictException e2) {
                     s_logger.warn("Unable to create deployment, affinity rules associted to the VM conflict", e2);
                     throw new CloudRuntimeException("Unable to create deployment, affinity rules associted to the VM conflict");
 
+                } finally {
+                    phases.record(VmStartPhases.PLAN, planStarted);
                 }
 
                 if (dest == null) {
@@ -1096,10 +1129,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
 
                 try {
-                    _networkMgr.prepare(vmProfile, new DeployDestination(dest.getDataCenter(), dest.getPod(), null, null, dest.getStorageForDisks()), ctx);
-                    if (vm.getHypervisorType() != HypervisorType.BareMetal) {
-                        volumeMgr.prepare(vmProfile, dest);
-                    }
+                    prepareResources(vmProfile, dest, ctx, phases);
 
                     //since StorageMgr succeeded in volume creation, reuse Volume for further tries until current cluster has capacity
                     if (!reuseVolume) {
@@ -1107,6 +1137,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                     }
 
                     Commands cmds = null;
+                    final long finalizeStarted = System.currentTimeMillis();
                     vmGuru.finalizeVirtualMachineProfile(vmProfile, dest, ctx);
 
                     final VirtualMachineTO vmTO = hvGuru.implement(vmProfile);
@@ -1118,6 +1149,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                     cmds.addCommand(new StartCommand(vmTO, dest.getHost(), getExecuteInSequence(vm.getHypervisorType())));
 
                     vmGuru.finalizeDeployment(cmds, vmProfile, dest, ctx);
+                    phases.record(VmStartPhases.FINALIZE, finalizeStarted);
 
                     work = _workDao.findById(work.getId());
                     if (work == null || work.getStep() != Step.Prepare) {
@@ -1126,7 +1158,12 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
                     _workDao.updateStep(work, Step.Starting);
 
-                    _agentMgr.send(destHostId, cmds);
+                    final long startStarted = System.currentTimeMillis();
+                    try {
+                        _agentMgr.send(destHostId, cmds);
+                    } finally {
+                        phases.record(VmStartPhases.START, startStarted);
+                    }
 
                     _workDao.updateStep(work, Step.Started);
 
@@ -1263,6 +1300,8 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
                 }
             }
         } finally {
+            recordStartPhases(vm, phases, startedVm != null);
+
             if (startedVm == null) {
                 if (canRetry) {
                     try {
@@ -1283,6 +1322,180 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         }
     }
 
+    /**
+     * Prepares the network and the volumes of a VM for its destination. Unless disabled, the volumes are prepared by a
+     * worker while the network is prepared by this thread. Both are done when this returns, failed or not, so that the
+     * cleanup of a failed attempt never runs while one of them is still going on. When both fail, the failure of the
+     * network is the one thrown, as it is when they are prepared one after the other. Once preparing the network fails,
+     * the worker creates and migrates no more volumes, only the one it may be creating at that time is left created.
+     */
+    protected void prepareResources(final VirtualMachineProfileImpl vmProfile, final DeployDestination dest, final ReservationContext ctx, final VmStartPhases phases)
+            throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException {
+        final long prepareStarted = System.currentTimeMillis();
+        final boolean prepareVolumes = vmProfile.getHypervisorType() != HypervisorType.BareMetal;
+
+        PrepareVolumesTask volumesTask = null;
+        Future<?> volumesFuture = null;
+        if (prepareVolumes && VmStartConcurrentPrepare.value() && _startPrepareExecutor != null) {
+            // the volumes are prepared against a profile of their own, their disks are added to the VM once both are done
+            final VirtualMachineProfileImpl volumesProfile = new VirtualMachineProfileImpl(vmProfile.getVirtualMachine(), vmProfile.getTemplate(),
+                    vmProfile.getServiceOffering(), vmProfile.getOwner(), new HashMap<VirtualMachineProfile.Param, Object>(vmProfile.getParameters()));
+            volumesTask = new PrepareVolumesTask(volumesProfile, dest, phases);
+            try {
+                volumesFuture = _startPrepareExecutor.submit(volumesTask);
+            } catch (final RejectedExecutionException e) {
+                s_logger.debug("No worker is free to prepare the volumes of " + vmProfile + ", preparing them after its network");
+            }
+        }
+
+        Throwable failure = null;
+        try {
+            long started = System.currentTimeMillis();
+            try {
+                _networkMgr.prepare(vmProfile, new DeployDestination(dest.getDataCenter(), dest.getPod(), null, null, dest.getStorageForDisks()), ctx);
+            } finally {
+                phases.record(VmStartPhases.NETWORK, started);
+            }
+            if (prepareVolumes && volumesFuture == null) {
+                started = System.currentTimeMillis();
+                try {
+                    volumeMgr.prepare(vmProfile, dest);
+                } finally {
+                    phases.record(VmStartPhases.STORAGE, started);
+                }
+            }
+        } catch (final InsufficientCapacityException | ResourceUnavailableException | RuntimeException e) {
+            failure = e;
+            if (volumesTask != null) {
+                volumesTask.abort();
+            }
+        }
+
+        if (volumesFuture != null) {
+            final Throwable volumesFailure = awaitVolumes(volumesFuture, volumesTask);
+            if (volumesFailure == null) {
+                for (final DiskTO disk : volumesTask.getProfile().getDisks()) {
+                    vmProfile.addDisk(disk);
+                }
+            } else if (failure == null) {
+                failure = volumesFailure;
+            } else {
+                s_logger.warn("Unable to prepare the volumes of " + vmProfile + " either", volumesFailure);
+            }
+        }
+        phases.record(VmStartPhases.PREPARE, prepareStarted);
+
+        if (failure instanceof InsufficientCapacityException) {
+            throw (InsufficientCapacityException)failure;
+        } else if (failure instanceof ResourceUnavailableException) {
+            throw (ResourceUnavailableException)failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure instanceof Error) {
+            throw (Error)failure;
+        } else if (failure != null) {
+            throw new CloudRuntimeException("Unable to prepare the volumes of " + vmProfile, failure);
+        }
+    }
+
+    /**
+     * Waits for the volumes to be prepared, even when interrupted, as the VM cannot be cleaned up before that.
+     *
+     * @return why the volumes could not be prepared, null if they were
+     */
+    private Throwable awaitVolumes(final Future<?> volumesFuture, final PrepareVolumesTask volumesTask) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    volumesFuture.get();
+                    return volumesTask.getFailure();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final java.util.concurrent.ExecutionException e) {
+                    return e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records the time the phases of the start took on the job starting the VM.
+     */
+    private void recordStartPhases(final VirtualMachine vm, final VmStartPhases phases, final boolean started) {
+        final String text = (started ? "Started " : "Unable to start ") + vm + ": " + phases;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(text);
+        }
+        final AsyncJobExecutionContext jobContext = AsyncJobExecutionContext.getCurrent();
+        if (jobContext != null && jobContext.getJob() != null) {
+            try {
+                jobContext.logJobJournal(started ? AsyncJob.JournalType.SUCCESS : AsyncJob.JournalType.FAILURE, text, null);
+            } catch (final RuntimeException e) {
+                s_logger.warn("Unable to record the start phases of " + vm + " on job " + jobContext.getJob().getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Prepares the volumes of a VM being started, in the call and job context of the thread starting it.
+     */
+    private class PrepareVolumesTask extends ManagedContextRunnable {
+        private final VirtualMachineProfileImpl _profile;
+        private final DeployDestination _dest;
+        private final VmStartPhases _phases;
+        private final CallContext _callContext = CallContext.current();
+        private final AsyncJobExecutionContext _jobContext = AsyncJobExecutionContext.getCurrent();
+        private volatile Throwable _failure;
+        private volatile boolean _aborted;
+
+        PrepareVolumesTask(final VirtualMachineProfileImpl profile, final DeployDestination dest, final VmStartPhases phases) {
+            _profile = profile;
+            _dest = dest;
+            _phases = phases;
+        }
+
+        VirtualMachineProfileImpl getProfile() {
+            return _profile;
+        }
+
+        Throwable getFailure() {
+            return _failure;
+        }
+
+        /**
+         * Stops the volumes left from being created or migrated, as the start fails anyway.
+         */
+        void abort() {
+            _aborted = true;
+        }
+
+        @Override
+        protected void runInContext() {
+            final long started = System.currentTimeMillis();
+            try {
+                CallContext.register(_callContext.getCallingUser(), _callContext.getCallingAccount(), _callContext.getContextId());
+                AsyncJobExecutionContext.setCurrentExecutionContext(_jobContext);
+                volumeMgr.prepare(_profile, _dest, new BooleanSupplier() {
+                    @Override
+                    public boolean getAsBoolean() {
+                        return !_aborted;
+                    }
+                });
+            } catch (final Throwable t) {
+                _failure = t;
+            } finally {
+                _phases.record(VmStartPhases.STORAGE, started);
+                AsyncJobExecutionContext.setCurrentExecutionContext(null);
+                CallContext.unregister();
+            }
+        }
+    }
+
     // for managed storage on KVM, need to make sure the path field of the volume in question is populated with the IQN
     private void handlePath(final DiskTO[] disks, final HypervisorType hypervisorType) {
         if (hypervisorType != HypervisorType.KVM) {
@@ -4179,7 +4392,8 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {ClusterDeltaSyncInterval, StartRetry, VmDestroyForcestop, VmOpCancelInterval, VmOpCleanupInterval, VmOpCleanupWait,
             VmOpLockStateRetry,
-            VmOpWaitInterval, ExecuteInSequence, VmJobCheckInterval, VmJobTimeout, VmJobStateReportInterval, VmConfigDriveLabel, VmConfigDriveOnPrimaryPool, HaVmRestartHostUp};
+            VmOpWaitInterval, ExecuteInSequence, VmJobCheckInterval, VmJobTimeout, VmJobStateReportInterval, VmConfigDriveLabel, VmConfigDriveOnPrimaryPool, HaVmRestartHostUp,
+            VmStartConcurrentPrepare, VmStartPrepareWorkers};
     }
 
     public List<StoragePoolAllocator> getStoragePoolAllocators() {
@@ -4231,7 +4445,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
             // reset VM power state tracking so that we won't lost signal when VM has
             // been translated to
-            _vmDao.resetVmPowerStateTracking(vmId);
+            _syncMgr.resetVmSyncState(vmId);
         }
     }
 
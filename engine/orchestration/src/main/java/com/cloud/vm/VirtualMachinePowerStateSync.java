@@ -24,6 +24,11 @@ public interface VirtualMachinePowerStateSync {
 
     void resetHostSyncState(long hostId);
 
+    /**
+     * Has the power state reported for the VM written again, even if it did not change.
+     */
+    void resetVmSyncState(long vmId);
+
     void processHostVmStateReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
     // to adapt legacy ping report
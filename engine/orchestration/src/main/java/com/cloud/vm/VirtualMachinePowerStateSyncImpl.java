@@ -16,10 +16,15 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -30,9 +35,18 @@ import org.apache.cloudstack.framework.messagebus.PublishScope;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.utils.DateUtil;
-import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.Pair;
 import com.cloud.vm.dao.VMInstanceDao;
 
+/**
+ * Processes the VM state reports of the hosts in bulk: the VMs a host reports are looked up by instance name in a
+ * single query, and the power states written for them are kept per host, so a VM is only looked up again once its
+ * host stops reporting it. The power states that have to be written, including those of the VMs missing from the
+ * report, are written with one statement per power state and update count.
+ *
+ * The power states kept for a host are replaced before the VMs whose power state was written are published, so a
+ * handler resetting the power state tracking of a VM resets what the next report of the host starts from.
+ */
 public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStateSync {
     private static final Logger s_logger = Logger.getLogger(VirtualMachinePowerStateSyncImpl.class);
 
@@ -41,21 +55,122 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     @Inject VirtualMachineManager _vmMgr;
     @Inject ManagementServiceConfiguration mgmtServiceConf;
 
+    /**
+     * The power state last written for a VM.
+     */
+    static class PowerStateRecord {
+        private final long vmId;
+        private final VirtualMachine.PowerState powerState;
+        private final Long powerHostId;
+        private final int updateCount;
+
+        PowerStateRecord(long vmId, VirtualMachine.PowerState powerState, Long powerHostId, int updateCount) {
+            this.vmId = vmId;
+            this.powerState = powerState;
+            this.powerHostId = powerHostId;
+            this.updateCount = updateCount;
+        }
+
+        PowerStateRecord(VMInstanceVO vm) {
+            this(vm.getId(), vm.getPowerState(), vm.getPowerHostId(), vm.getPowerStateUpdateCount());
+        }
+
+        boolean isSame(VirtualMachine.PowerState powerState, long hostId) {
+            return this.powerState == powerState && powerHostId != null && powerHostId.longValue() == hostId;
+        }
+    }
+
+    /**
+     * The power states to write for the VMs of a report, by power state and update count.
+     */
+    private class PowerStateWrites {
+        private final long hostId;
+        private final Map<Pair<VirtualMachine.PowerState, Integer>, List<Long>> writes = new HashMap<Pair<VirtualMachine.PowerState, Integer>, List<Long>>();
+
+        PowerStateWrites(long hostId) {
+            this.hostId = hostId;
+        }
+
+        /**
+         * Writes the power state the same way {@link VMInstanceDao#updatePowerState} does, a power state that did not
+         * change is written until it was written often enough in a row.
+         *
+         * @return the power state of the VM once written
+         */
+        PowerStateRecord add(PowerStateRecord record, VirtualMachine.PowerState powerState) {
+            int updateCount;
+            if (!record.isSame(powerState, hostId)) {
+                updateCount = 1;
+            } else if (record.updateCount < VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+                updateCount = record.updateCount + 1;
+            } else {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("VM power state does not change, skip DB writing. vm id: " + record.vmId);
+                }
+                _unchangedVms.incrementAndGet();
+                return record;
+            }
+            Pair<VirtualMachine.PowerState, Integer> key = new Pair<VirtualMachine.PowerState, Integer>(powerState, updateCount);
+            List<Long> vmIds = writes.get(key);
+            if (vmIds == null) {
+                vmIds = new ArrayList<Long>();
+                writes.put(key, vmIds);
+            }
+            vmIds.add(record.vmId);
+            return new PowerStateRecord(record.vmId, powerState, hostId, updateCount);
+        }
+
+        /**
+         * @return the VMs the power state was written for
+         */
+        List<Long> write() {
+            List<Long> written = new ArrayList<Long>();
+            for (Map.Entry<Pair<VirtualMachine.PowerState, Integer>, List<Long>> write : writes.entrySet()) {
+                _instanceDao.updatePowerStates(write.getValue(), hostId, write.getKey().first(), write.getKey().second());
+                written.addAll(write.getValue());
+            }
+            _updatedVms.addAndGet(written.size());
+            return written;
+        }
+    }
+
+    // host id -> instance name -> the power state last written for the VM, replaced with every report of the host
+    private final ConcurrentMap<Long, Map<String, PowerStateRecord>> _powerStates = new ConcurrentHashMap<Long, Map<String, PowerStateRecord>>();
+    // vm id -> the host and instance name the power state of the VM is kept under
+    private final ConcurrentMap<Long, Pair<Long, String>> _keptVms = new ConcurrentHashMap<Long, Pair<Long, String>>();
+
+    private final AtomicLong _reportedVms = new AtomicLong();
+    private final AtomicLong _lookedUpVms = new AtomicLong();
+    private final AtomicLong _unchangedVms = new AtomicLong();
+    private final AtomicLong _updatedVms = new AtomicLong();
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
     @Override
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
+        dropPowerStates(hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
     }
 
+    @Override
+    public void resetVmSyncState(long vmId) {
+        Pair<Long, String> kept = _keptVms.remove(vmId);
+        if (kept != null) {
+            Map<String, PowerStateRecord> powerStates = _powerStates.get(kept.first());
+            if (powerStates != null) {
+                powerStates.remove(kept.second());
+            }
+        }
+        _instanceDao.resetVmPowerStateTracking(vmId);
+    }
+
     @Override
     public void processHostVmStateReport(long hostId, Map<String, HostVmStateReportEntry> report) {
             s_logger.debug("Process host VM state report. host: " + hostId);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, report);
     }
 
     @Override
@@ -63,30 +178,45 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, report);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    private void processReport(long hostId, Map<String, HostVmStateReportEntry> report) {
+        if (report == null) {
+            report = Collections.emptyMap();
+        }
 
         if (s_logger.isDebugEnabled())
-            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + report.size());
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
+        Map<String, PowerStateRecord> powerStates = getPowerStates(hostId, report);
+        _reportedVms.addAndGet(report.size());
 
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+        PowerStateWrites writes = new PowerStateWrites(hostId);
+        Map<Long, VirtualMachine.PowerState> translatedInfo = new HashMap<Long, VirtualMachine.PowerState>();
+        for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            PowerStateRecord record = powerStates.get(entry.getKey());
+            if (record == null) {
+                continue;
+            }
+            VirtualMachine.PowerState powerState = entry.getValue().getState();
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("VM state report. host: " + hostId + ", vm id: " + record.vmId + ", power state: " + powerState);
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+            translatedInfo.put(record.vmId, powerState);
+            powerStates.put(entry.getKey(), writes.add(record, powerState));
+        }
 
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
-            }
+        List<Long> written;
+        try {
+            written = writes.write();
+        } catch (RuntimeException e) {
+            // what was written is not known, the VMs are looked up again with the next report
+            dropPowerStates(hostId);
+            throw e;
         }
+        keepPowerStates(hostId, powerStates);
+        publishPowerStates(hostId, written);
 
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
@@ -106,17 +236,14 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             // 2 times of sync-update interval for graceful period
             long milliSecondsGracefullPeriod = mgmtServiceConf.getPingInterval() * 2000L;
 
+            List<Long> outdatedVmIds = new ArrayList<Long>();
+            PowerStateWrites missingWrites = new PowerStateWrites(hostId);
             for (VMInstanceVO instance : vmsThatAreMissingReport) {
 
                 // Make sure powerState is up to date for missing VMs
-                try {
-                    if (!_instanceDao.isPowerStateUpToDate(instance.getId())) {
-                        s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
-                        _instanceDao.resetVmPowerStateTracking(instance.getId());
-                        continue;
-                    }
-                } catch (CloudRuntimeException e) {
-                    s_logger.warn("Checked for missing powerstate of a none existing vm", e);
+                if (instance.getPowerStateUpdateCount() >= VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+                    s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
+                    outdatedVmIds.add(instance.getId());
                     continue;
                 }
 
@@ -138,26 +265,97 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
-
-                    if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing)) {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
-
-                        _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, instance.getId());
-                    } else {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM power state does not change, skip DB writing. vm id: " + instance.getId());
-                    }
+                    missingWrites.add(new PowerStateRecord(instance), VirtualMachine.PowerState.PowerReportMissing);
                 } else {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has not passed graceful period yet");
                 }
             }
+            _instanceDao.resetVmPowerStateTracking(outdatedVmIds);
+            publishPowerStates(hostId, missingWrites.write());
         }
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Done with process of VM state report. host: " + hostId);
     }
 
+    /**
+     * @return the power states last written for the VMs in the report, the VMs the host did not report before are
+     * looked up in a single query
+     */
+    private Map<String, PowerStateRecord> getPowerStates(long hostId, Map<String, HostVmStateReportEntry> report) {
+        Map<String, PowerStateRecord> reported = _powerStates.get(hostId);
+        Map<String, PowerStateRecord> powerStates = new ConcurrentHashMap<String, PowerStateRecord>();
+        List<String> unknownNames = new ArrayList<String>();
+        for (String vmName : report.keySet()) {
+            PowerStateRecord record = reported != null ? reported.get(vmName) : null;
+            if (record != null) {
+                powerStates.put(vmName, record);
+            } else {
+                unknownNames.add(vmName);
+            }
+        }
+        if (!unknownNames.isEmpty()) {
+            for (VMInstanceVO vm : _instanceDao.listByInstanceNames(unknownNames)) {
+                powerStates.put(vm.getInstanceName(), new PowerStateRecord(vm));
+            }
+            _lookedUpVms.addAndGet(unknownNames.size());
+            for (String vmName : unknownNames) {
+                if (!powerStates.containsKey(vmName)) {
+                    s_logger.info("Unable to find matched VM in CloudStack DB. name: " + vmName);
+                }
+            }
+        }
+        return powerStates;
+    }
+
+    /**
+     * Replaces the power states kept for the host, a VM reported by the host is no longer kept under the host it was
+     * reported by before.
+     */
+    private void keepPowerStates(long hostId, Map<String, PowerStateRecord> powerStates) {
+        Map<String, PowerStateRecord> previous = _powerStates.put(hostId, powerStates);
+        for (Map.Entry<String, PowerStateRecord> powerState : powerStates.entrySet()) {
+            Pair<Long, String> kept = new Pair<Long, String>(hostId, powerState.getKey());
+            Pair<Long, String> keptBefore = _keptVms.put(powerState.getValue().vmId, kept);
+            if (keptBefore != null && !keptBefore.equals(kept)) {
+                Map<String, PowerStateRecord> powerStatesBefore = _powerStates.get(keptBefore.first());
+                if (powerStatesBefore != null && powerStatesBefore != powerStates) {
+                    powerStatesBefore.remove(keptBefore.second());
+                }
+            }
+        }
+        if (previous != null) {
+            forgetPowerStates(hostId, previous, powerStates);
+        }
+    }
+
+    private void dropPowerStates(long hostId) {
+        Map<String, PowerStateRecord> powerStates = _powerStates.remove(hostId);
+        if (powerStates != null) {
+            forgetPowerStates(hostId, powerStates, Collections.<String, PowerStateRecord>emptyMap());
+        }
+    }
+
+    /**
+     * Forgets where the VMs of the power states no longer kept for the host were kept.
+     */
+    private void forgetPowerStates(long hostId, Map<String, PowerStateRecord> dropped, Map<String, PowerStateRecord> kept) {
+        for (Map.Entry<String, PowerStateRecord> powerState : dropped.entrySet()) {
+            if (!kept.containsKey(powerState.getKey())) {
+                _keptVms.remove(powerState.getValue().vmId, new Pair<Long, String>(hostId, powerState.getKey()));
+            }
+        }
+    }
+
+    private void publishPowerStates(long hostId, List<Long> vmIds) {
+        for (Long vmId : vmIds) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + vmId);
+
+            _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
+        }
+    }
+
     @Override
     public Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states) {
         final HashMap<Long, VirtualMachine.PowerState> map = new HashMap<Long, VirtualMachine.PowerState>();
@@ -165,10 +363,14 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             return map;
         }
 
+        Map<String, Long> vmIds = new HashMap<String, Long>();
+        for (VMInstanceVO vm : _instanceDao.listByInstanceNames(states.keySet())) {
+            vmIds.put(vm.getInstanceName(), vm.getId());
+        }
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
-            if (vm != null) {
-                map.put(vm.getId(), entry.getValue().getState());
+            Long vmId = vmIds.get(entry.getKey());
+            if (vmId != null) {
+                map.put(vmId, entry.getValue().getState());
             } else {
                 s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
             }
@@ -177,7 +379,31 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         return map;
     }
 
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
+    /**
+     * @return the number of VMs reported by the hosts
+     */
+    public long getReportedVms() {
+        return _reportedVms.get();
+    }
+
+    /**
+     * @return the number of reported VMs that were looked up in the database
+     */
+    public long getLookedUpVms() {
+        return _lookedUpVms.get();
+    }
+
+    /**
+     * @return the number of reported VMs of which the power state was not written, as it had not changed
+     */
+    public long getUnchangedVms() {
+        return _unchangedVms.get();
+    }
+
+    /**
+     * @return the number of VMs of which the power state was written
+     */
+    public long getUpdatedVms() {
+        return _updatedVms.get();
     }
 }
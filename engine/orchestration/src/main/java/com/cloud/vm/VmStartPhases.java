@@ -0,0 +1,69 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time the phases of a VM start took, summed over the attempts of the start. The volumes may be prepared by
+ * another thread than the one starting the VM, so the phases are recorded under the lock of the instance.
+ */
+class VmStartPhases {
+    static final String PLAN = "plan";
+    static final String NETWORK = "network";
+    static final String STORAGE = "storage";
+    /**
+     * The preparation of both the network and the storage, less than their sum when they are prepared concurrently.
+     */
+    static final String PREPARE = "prepare";
+    static final String FINALIZE = "finalize";
+    static final String START = "start";
+
+    private final Map<String, Long> _elapsed = new LinkedHashMap<String, Long>();
+    private int _attempts;
+
+    synchronized void attempt() {
+        _attempts++;
+    }
+
+    synchronized void record(String phase, long startedAt) {
+        final long elapsed = System.currentTimeMillis() - startedAt;
+        final Long previous = _elapsed.get(phase);
+        _elapsed.put(phase, previous == null ? elapsed : previous + elapsed);
+    }
+
+    /**
+     * @return the milliseconds the phase took, null if it was never reached
+     */
+    synchronized Long getElapsed(String phase) {
+        return _elapsed.get(phase);
+    }
+
+    synchronized int getAttempts() {
+        return _attempts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder().append(_attempts).append(_attempts == 1 ? " attempt" : " attempts");
+        for (final Map.Entry<String, Long> entry : _elapsed.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append(" ").append(entry.getValue()).append(" ms");
+        }
+        return sb.toString();
+    }
+}
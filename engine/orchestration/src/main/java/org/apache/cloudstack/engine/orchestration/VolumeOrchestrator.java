@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -1356,6 +1357,12 @@ public class VolumeOrchestrator extends ManagerBase implements VolumeOrchestrati
 
     @Override
     public void prepare(VirtualMachineProfile vm, DeployDestination dest) throws StorageUnavailableException, InsufficientStorageCapacityException, ConcurrentOperationException {
+        prepare(vm, dest, null);
+    }
+
+    @Override
+    public void prepare(VirtualMachineProfile vm, DeployDestination dest, BooleanSupplier proceed) throws StorageUnavailableException, InsufficientStorageCapacityException,
+            ConcurrentOperationException {
 
         if (dest == null) {
             if (s_logger.isDebugEnabled()) {
@@ -1375,6 +1382,9 @@ public class VolumeOrchestrator extends ManagerBase implements VolumeOrchestrati
         Volume vol = null;
         StoragePool pool;
         for (VolumeTask task : tasks) {
+            if (task.type != VolumeTaskType.NOP && proceed != null && !proceed.getAsBoolean()) {
+                throw new CloudRuntimeException("Stopped preparing the volumes of " + vm + " before " + task.volume + " as its start failed");
+            }
             if (task.type == VolumeTaskType.NOP) {
                 vol = task.volume;
 
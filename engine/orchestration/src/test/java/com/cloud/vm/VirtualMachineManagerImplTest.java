@@ -30,10 +30,20 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
+import org.apache.cloudstack.engine.orchestration.service.VolumeOrchestrationService;
 import org.apache.cloudstack.engine.subsystem.api.storage.StoragePoolAllocator;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,19 +53,26 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.StopAnswer;
 import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.to.DiskTO;
+import com.cloud.deploy.DeployDestination;
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.deploy.DeploymentPlanner;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.HostVO;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.hypervisor.HypervisorGuru;
 import com.cloud.service.ServiceOfferingVO;
+import com.cloud.network.Network;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.ScopeType;
@@ -66,6 +83,9 @@ import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.DiskOfferingDao;
 import com.cloud.storage.dao.StoragePoolHostDao;
 import com.cloud.storage.dao.VolumeDao;
+import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.user.Account;
+import com.cloud.user.User;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.dao.VMInstanceDao;
@@ -117,6 +137,11 @@ public class VirtualMachineManagerImplTest {
     @Mock
     private DiskOfferingDao diskOfferingDaoMock;
 
+    @Mock
+    private NetworkOrchestrationService networkOrchestrationServiceMock;
+    @Mock
+    private VolumeOrchestrationService volumeOrchestrationServiceMock;
+
     @Before
     public void setup() {
         virtualMachineManagerImpl.setHostAllocators(new ArrayList<>());
@@ -144,6 +169,11 @@ public class VirtualMachineManagerImplTest {
         virtualMachineManagerImpl.setStoragePoolAllocators(storagePoolAllocators);
     }
 
+    @After
+    public void tearDown() {
+        CallContext.unregister();
+    }
+
     @Test(expected = CloudRuntimeException.class)
     public void testScaleVM3() throws Exception {
         when(vmInstanceMock.getHostId()).thenReturn(null);
@@ -623,4 +653,122 @@ public class VirtualMachineManagerImplTest {
         assertTrue(VirtualMachineManagerImpl.matches(tags,three));
         assertTrue(VirtualMachineManagerImpl.matches(others,three));
     }
+
+    private VirtualMachineProfileImpl createStartingVmProfile() {
+        CallContext.register(mock(User.class), mock(Account.class));
+        when(vmInstanceMock.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        return new VirtualMachineProfileImpl(vmInstanceMock, mock(VirtualMachineTemplate.class), serviceOfferingMock, mock(Account.class), null);
+    }
+
+    private static Answer<Void> addDisk(final DiskTO disk, final CountDownLatch started, final CountDownLatch awaited) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                assertTrue("the network and the volumes were not prepared concurrently", awaited.await(10, TimeUnit.SECONDS));
+                ((VirtualMachineProfile)invocation.getArguments()[0]).addDisk(disk);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testPrepareResourcesPreparesNetworkAndVolumesConcurrently() throws Exception {
+        virtualMachineManagerImpl._startPrepareExecutor = Executors.newCachedThreadPool();
+        VirtualMachineProfileImpl vmProfile = createStartingVmProfile();
+        DeployDestination dest = mock(DeployDestination.class);
+        DiskTO configDrive = mock(DiskTO.class);
+        DiskTO rootDisk = mock(DiskTO.class);
+        CountDownLatch networkStarted = new CountDownLatch(1);
+        CountDownLatch volumesStarted = new CountDownLatch(1);
+        Mockito.doAnswer(addDisk(configDrive, networkStarted, volumesStarted)).when(networkOrchestrationServiceMock).prepare(any(VirtualMachineProfile.class),
+                any(DeployDestination.class), any(ReservationContext.class));
+        Mockito.doAnswer(addDisk(rootDisk, volumesStarted, networkStarted)).when(volumeOrchestrationServiceMock).prepare(any(VirtualMachineProfile.class),
+                any(DeployDestination.class), any(BooleanSupplier.class));
+
+        VmStartPhases phases = new VmStartPhases();
+        try {
+            virtualMachineManagerImpl.prepareResources(vmProfile, dest, mock(ReservationContext.class), phases);
+        } finally {
+            virtualMachineManagerImpl._startPrepareExecutor.shutdownNow();
+        }
+
+        // the disks of the volumes follow those added for the network, as when they are prepared one after the other
+        Assert.assertEquals(Arrays.asList(configDrive, rootDisk), vmProfile.getDisks());
+        Assert.assertNotNull(phases.getElapsed(VmStartPhases.NETWORK));
+        Assert.assertNotNull(phases.getElapsed(VmStartPhases.STORAGE));
+        Assert.assertNotNull(phases.getElapsed(VmStartPhases.PREPARE));
+    }
+
+    @Test
+    public void testPrepareResourcesWaitsForVolumesWhenNetworkFails() throws Exception {
+        virtualMachineManagerImpl._startPrepareExecutor = Executors.newCachedThreadPool();
+        VirtualMachineProfileImpl vmProfile = createStartingVmProfile();
+        final AtomicBoolean volumesPrepared = new AtomicBoolean();
+        final AtomicBoolean volumesAborted = new AtomicBoolean();
+        Mockito.doThrow(new ResourceUnavailableException("no router", Network.class, 1L)).when(networkOrchestrationServiceMock).prepare(any(VirtualMachineProfile.class),
+                any(DeployDestination.class), any(ReservationContext.class));
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                BooleanSupplier proceed = (BooleanSupplier)invocation.getArguments()[2];
+                // as before creating the next volume
+                for (int i = 0; i < 100 && proceed.getAsBoolean(); i++) {
+                    Thread.sleep(100);
+                }
+                volumesAborted.set(!proceed.getAsBoolean());
+                volumesPrepared.set(true);
+                return null;
+            }
+        }).when(volumeOrchestrationServiceMock).prepare(any(VirtualMachineProfile.class), any(DeployDestination.class), any(BooleanSupplier.class));
+
+        try {
+            virtualMachineManagerImpl.prepareResources(vmProfile, mock(DeployDestination.class), mock(ReservationContext.class), new VmStartPhases());
+            Assert.fail("the failure to prepare the network was not thrown");
+        } catch (ResourceUnavailableException e) {
+            Assert.assertEquals(Network.class, e.getScope());
+            assertTrue("the VM would be cleaned up while its volumes are prepared", volumesPrepared.get());
+            assertTrue("the volumes left would be created for a start that failed", volumesAborted.get());
+        } finally {
+            virtualMachineManagerImpl._startPrepareExecutor.shutdownNow();
+        }
+    }
+
+    @Test(expected = StorageUnavailableException.class)
+    public void testPrepareResourcesThrowsFailureToPrepareVolumes() throws Exception {
+        virtualMachineManagerImpl._startPrepareExecutor = Executors.newCachedThreadPool();
+        VirtualMachineProfileImpl vmProfile = createStartingVmProfile();
+        Mockito.doThrow(new StorageUnavailableException("pool is down", 1L)).when(volumeOrchestrationServiceMock).prepare(any(VirtualMachineProfile.class),
+                any(DeployDestination.class), any(BooleanSupplier.class));
+
+        try {
+            virtualMachineManagerImpl.prepareResources(vmProfile, mock(DeployDestination.class), mock(ReservationContext.class), new VmStartPhases());
+        } finally {
+            virtualMachineManagerImpl._startPrepareExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrepareResourcesInSequenceWithoutWorkers() throws Exception {
+        VirtualMachineProfileImpl vmProfile = createStartingVmProfile();
+        DeployDestination dest = mock(DeployDestination.class);
+
+        virtualMachineManagerImpl.prepareResources(vmProfile, dest, mock(ReservationContext.class), new VmStartPhases());
+
+        InOrder inOrder = Mockito.inOrder(networkOrchestrationServiceMock, volumeOrchestrationServiceMock);
+        inOrder.verify(networkOrchestrationServiceMock).prepare(Mockito.eq(vmProfile), any(DeployDestination.class), any(ReservationContext.class));
+        inOrder.verify(volumeOrchestrationServiceMock).prepare(vmProfile, dest);
+    }
+
+    @Test
+    public void testNoStartPrepareWorkersPrepareInSequence() {
+        Assert.assertNull(VirtualMachineManagerImpl.createStartPrepareExecutor(0));
+        Assert.assertNull(VirtualMachineManagerImpl.createStartPrepareExecutor(-1));
+        ExecutorService executor = VirtualMachineManagerImpl.createStartPrepareExecutor(2);
+        try {
+            Assert.assertNotNull(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
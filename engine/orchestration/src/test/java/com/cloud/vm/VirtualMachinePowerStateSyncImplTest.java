@@ -0,0 +1,259 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.configuration.ManagementServiceConfiguration;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+    private final VMInstanceDao instanceDao = Mockito.mock(VMInstanceDao.class);
+    private final MessageBus messageBus = Mockito.mock(MessageBus.class);
+    private final ManagementServiceConfiguration mgmtServiceConf = Mockito.mock(ManagementServiceConfiguration.class);
+    private VirtualMachinePowerStateSyncImpl sync;
+
+    private static VMInstanceVO vm(long id, PowerState powerState, Long powerHostId, int updateCount) {
+        VMInstanceVO vm = new VMInstanceVO(id, 1L, "vm-" + id, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1L, HypervisorType.Simulator, 1L, 1L, 2L, 2L, false);
+        vm.setPowerState(powerState);
+        vm.setPowerHostId(powerHostId);
+        vm.setPowerStateUpdateCount(updateCount);
+        return vm;
+    }
+
+    private static Map<String, HostVmStateReportEntry> report(PowerState powerState, long... vmIds) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (long vmId : vmIds) {
+            report.put("i-2-" + vmId + "-VM", new HostVmStateReportEntry(powerState, "host-1"));
+        }
+        return report;
+    }
+
+    /**
+     * Has the DAO find the VMs by instance name.
+     */
+    @SuppressWarnings("unchecked")
+    private void vms(VMInstanceVO... vms) {
+        final Map<String, VMInstanceVO> vmsByName = new HashMap<String, VMInstanceVO>();
+        for (VMInstanceVO vm : vms) {
+            vmsByName.put(vm.getInstanceName(), vm);
+        }
+        Mockito.when(instanceDao.listByInstanceNames(Matchers.anyCollection())).thenAnswer(new Answer<List<VMInstanceVO>>() {
+            @Override
+            public List<VMInstanceVO> answer(InvocationOnMock invocation) {
+                List<VMInstanceVO> found = new ArrayList<VMInstanceVO>();
+                for (String name : (Collection<String>)invocation.getArguments()[0]) {
+                    if (vmsByName.containsKey(name)) {
+                        found.add(vmsByName.get(name));
+                    }
+                }
+                return found;
+            }
+        });
+    }
+
+    @Before
+    public void setup() {
+        sync = new VirtualMachinePowerStateSyncImpl();
+        sync._instanceDao = instanceDao;
+        sync._messageBus = messageBus;
+        sync.mgmtServiceConf = mgmtServiceConf;
+        Mockito.when(mgmtServiceConf.getPingInterval()).thenReturn(60);
+        Mockito.when(instanceDao.findByHostInStates(Matchers.eq(1L), Matchers.<VirtualMachine.State>anyVararg())).thenReturn(new ArrayList<VMInstanceVO>());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Test
+    public void testOnlyChangedPowerStatesAreWrittenAndVmsAreLookedUpOnce() {
+        vms(vm(1L, PowerState.PowerOff, 1L, 3), vm(2L, PowerState.PowerOn, 1L, 3), vm(3L, PowerState.PowerOn, 1L, 1));
+
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L, 2L, 3L, 4L));
+        Mockito.verify(instanceDao).updatePowerStates(Arrays.asList(1L), 1L, PowerState.PowerOn, 1);
+        Mockito.verify(instanceDao).updatePowerStates(Arrays.asList(3L), 1L, PowerState.PowerOn, 2);
+        Mockito.verify(messageBus, Mockito.times(2)).publish(Matchers.isNull(String.class), Matchers.eq(VirtualMachineManager.Topics.VM_POWER_STATE), Matchers.eq(PublishScope.GLOBAL),
+                Matchers.any());
+
+        // the same report until the power states are written often enough in a row
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L, 2L, 3L, 4L));
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L, 2L, 3L, 4L));
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L, 2L, 3L, 4L));
+        Mockito.verify(instanceDao).updatePowerStates(Arrays.asList(1L), 1L, PowerState.PowerOn, 3);
+        Mockito.verify(instanceDao).updatePowerStates(Arrays.asList(3L), 1L, PowerState.PowerOn, 3);
+        Mockito.verify(instanceDao, Mockito.times(5)).updatePowerStates(Matchers.anyCollection(), Matchers.anyLong(), Matchers.any(PowerState.class), Matchers.anyInt());
+        Assert.assertEquals(7, sync.getUnchangedVms());
+
+        // the VM that cannot be found is looked up with every report, the others only once
+        ArgumentCaptor<Collection> names = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(instanceDao, Mockito.times(4)).listByInstanceNames(names.capture());
+        Assert.assertEquals(Arrays.asList("i-2-4-VM"), new ArrayList<String>(names.getValue()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testVmLeavingTheHostIsLookedUpAgain() {
+        vms(vm(1L, PowerState.PowerOn, 1L, 3));
+
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L));
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn));
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L));
+        Mockito.verify(instanceDao, Mockito.times(2)).listByInstanceNames(Matchers.anyCollection());
+
+        sync.resetVmSyncState(1L);
+        sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L));
+        Mockito.verify(instanceDao, Mockito.times(3)).listByInstanceNames(Matchers.anyCollection());
+        Mockito.verify(instanceDao).resetVmPowerStateTracking(1L);
+    }
+
+    /**
+     * The handler of the power state of a VM with a pending job resets its power state tracking while the report is
+     * published, the power state is written again with every report rather than skipped once written often enough.
+     */
+    @Test
+    public void testVmResetWhilePublishedIsWrittenWithTheNextReports() {
+        final VMInstanceVO vm = vm(1L, PowerState.PowerOn, 1L, 0);
+        vms(vm);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                vm.setPowerStateUpdateCount(0);
+                return null;
+            }
+        }).when(instanceDao).resetVmPowerStateTracking(1L);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sync.resetVmSyncState((Long)invocation.getArguments()[3]);
+                return null;
+            }
+        }).when(messageBus).publish(Matchers.isNull(String.class), Matchers.eq(VirtualMachineManager.Topics.VM_POWER_STATE), Matchers.eq(PublishScope.GLOBAL), Matchers.any());
+
+        for (int ping = 1; ping <= VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT + 2; ping++) {
+            sync.processHostVmStatePingReport(1L, report(PowerState.PowerOn, 1L));
+        }
+        Mockito.verify(instanceDao, Mockito.times(VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT + 2)).updatePowerStates(Arrays.asList(1L), 1L, PowerState.PowerOn, 1);
+        Assert.assertEquals(0, sync.getUnchangedVms());
+    }
+
+    @Test
+    public void testMissingVmsAreWrittenInBulk() {
+        VMInstanceVO outdated = vm(4L, PowerState.PowerOn, 1L, 3);
+        VMInstanceVO missing = vm(5L, PowerState.PowerOn, 1L, 1);
+        missing.setPowerStateUpdateTime(new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10)));
+        VMInstanceVO recent = vm(6L, PowerState.PowerOn, 1L, 1);
+        recent.setPowerStateUpdateTime(new Date());
+        Mockito.when(instanceDao.findByHostInStates(Matchers.eq(1L), Matchers.<VirtualMachine.State>anyVararg()))
+                .thenReturn(new ArrayList<VMInstanceVO>(Arrays.asList(outdated, missing, recent)));
+
+        sync.processHostVmStatePingReport(1L, Collections.<String, HostVmStateReportEntry>emptyMap());
+        Mockito.verify(instanceDao).resetVmPowerStateTracking(Arrays.asList(4L));
+        Mockito.verify(instanceDao).updatePowerStates(Arrays.asList(5L), 1L, PowerState.PowerReportMissing, 1);
+        Mockito.verify(messageBus).publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, 5L);
+    }
+
+    /**
+     * Pings of the size the simulator sends for a zone of 1,000 hosts with 50 VMs each, through a DAO that counts the
+     * statements it would issue. Processing the reports one VM at a time looks up every VM by name and reads it again
+     * to update its power state.
+     */
+    @Test
+    public void testPingReportsIssueFewerStatements() {
+        final int hosts = 1000;
+        final int vmsPerHost = 50;
+        final int pings = 5;
+        final Map<String, VMInstanceVO> vms = new HashMap<String, VMInstanceVO>();
+        final Map<Long, VMInstanceVO> vmsById = new HashMap<Long, VMInstanceVO>();
+        for (long vmId = 1; vmId <= hosts * vmsPerHost; vmId++) {
+            VMInstanceVO vm = vm(vmId, PowerState.PowerOff, null, 0);
+            vms.put(vm.getInstanceName(), vm);
+            vmsById.put(vmId, vm);
+        }
+        final long[] statements = new long[1];
+        sync._instanceDao = Mockito.mock(VMInstanceDao.class, Mockito.withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                statements[0]++;
+                String method = invocation.getMethod().getName();
+                if (method.equals("listByInstanceNames")) {
+                    List<VMInstanceVO> found = new ArrayList<VMInstanceVO>();
+                    for (String name : (Collection<String>)invocation.getArguments()[0]) {
+                        found.add(vms.get(name));
+                    }
+                    return found;
+                } else if (method.equals("updatePowerStates")) {
+                    Collection<Long> vmIds = (Collection<Long>)invocation.getArguments()[0];
+                    for (Long vmId : vmIds) {
+                        VMInstanceVO vm = vmsById.get(vmId);
+                        vm.setPowerHostId((Long)invocation.getArguments()[1]);
+                        vm.setPowerState((PowerState)invocation.getArguments()[2]);
+                        vm.setPowerStateUpdateCount((Integer)invocation.getArguments()[3]);
+                    }
+                    return vmIds.size();
+                } else if (method.equals("findByHostInStates")) {
+                    return new ArrayList<VMInstanceVO>();
+                }
+                return null;
+            }
+        }));
+        sync._messageBus = Mockito.mock(MessageBus.class, Mockito.withSettings().stubOnly());
+
+        List<Map<String, HostVmStateReportEntry>> reports = new ArrayList<Map<String, HostVmStateReportEntry>>();
+        for (int host = 0; host < hosts; host++) {
+            long[] vmIds = new long[vmsPerHost];
+            for (int vm = 0; vm < vmsPerHost; vm++) {
+                vmIds[vm] = host * vmsPerHost + vm + 1;
+            }
+            reports.add(report(PowerState.PowerOn, vmIds));
+        }
+
+        for (int ping = 1; ping <= pings; ping++) {
+            statements[0] = 0;
+            for (int host = 0; host < hosts; host++) {
+                sync.processHostVmStatePingReport(host + 1, reports.get(host));
+            }
+            // a lookup by name and a read per VM, plus a write while the power state is written, and the missing report scan
+            long perVmStatements = hosts * vmsPerHost * (ping <= VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT ? 3 : 2) + hosts;
+            Assert.assertTrue(statements[0] + " statements, " + perVmStatements + " one VM at a time", statements[0] < perVmStatements);
+            if (ping > VMInstanceDao.MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+                Assert.assertEquals(hosts, statements[0]);
+            }
+        }
+        Assert.assertEquals(hosts * vmsPerHost, sync.getLookedUpVms());
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.capacity.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -27,6 +28,20 @@ import com.cloud.utils.db.GenericDao;
 public interface CapacityDao extends GenericDao<CapacityVO, Long> {
     CapacityVO findByHostIdType(Long hostId, short capacityType);
 
+    /**
+     * @return the capacities of the types of all the hosts or pools, in a single query
+     */
+    List<CapacityVO> listByCapacityTypes(short... capacityTypes);
+
+    /**
+     * Adds the deltas to the used and the reserved capacity in a single statement, without reading the row first. The
+     * row is only updated when neither capacity ends up negative and the reserved capacity stays within the limit.
+     *
+     * @param reservedLimit the most the reserved capacity may reach, null for no limit
+     * @return true if the row was updated, false if the guard did not hold
+     */
+    boolean updateCapacityDelta(long capacityId, long usedDelta, long reservedDelta, Long reservedLimit);
+
     List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone);
 
     List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, Long clusterId, String hostType);
@@ -41,6 +56,12 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 
     List<SummedCapacity> findCapacityBy(Integer capacityType, Long zoneId, Long podId, Long clusterId);
 
+    /**
+     * @param capacityType the type of the capacities, null for all of them
+     * @return the capacities of the clusters summed by cluster and type, in a single query
+     */
+    List<SummedCapacity> findCapacityByClusterIds(Integer capacityType, Collection<Long> clusterIds);
+
     List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, short capacityType);
 
     Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType);
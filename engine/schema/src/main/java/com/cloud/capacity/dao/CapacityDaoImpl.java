@@ -20,6 +20,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +38,7 @@ import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.storage.Storage;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
@@ -54,6 +57,8 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     private static final String ADD_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity + ? WHERE host_id = ? AND capacity_type = ?";
     private static final String SUBTRACT_ALLOCATED_SQL =
             "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity - ? WHERE host_id = ? AND capacity_type = ?";
+    private static final String UPDATE_CAPACITY_DELTA_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity + ?, reserved_capacity = reserved_capacity + ?, "
+            + "update_time = ? WHERE id = ? AND used_capacity + ? >= 0 AND reserved_capacity + ? >= 0";
 
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART1 =
             "SELECT DISTINCT capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL)   INNER JOIN `cloud`.`cluster_details` cluster_details ON (cluster.id = cluster_details.cluster_id ) WHERE ";
@@ -65,6 +70,7 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     private final SearchBuilder<CapacityVO> _hostIdTypeSearch;
     private final SearchBuilder<CapacityVO> _hostOrPoolIdSearch;
     private final SearchBuilder<CapacityVO> _allFieldsSearch;
+    private final SearchBuilder<CapacityVO> _capacityTypesSearch;
     @Inject
     protected PrimaryDataStoreDao _storagePoolDao;
     @Inject
@@ -204,6 +210,10 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         _hostIdTypeSearch.and("type", _hostIdTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
         _hostIdTypeSearch.done();
 
+        _capacityTypesSearch = createSearchBuilder();
+        _capacityTypesSearch.and("types", _capacityTypesSearch.entity().getCapacityType(), SearchCriteria.Op.IN);
+        _capacityTypesSearch.done();
+
         _hostOrPoolIdSearch = createSearchBuilder();
         _hostOrPoolIdSearch.and("hostId", _hostOrPoolIdSearch.entity().getHostOrPoolId(), SearchCriteria.Op.EQ);
         _hostOrPoolIdSearch.done();
@@ -540,6 +550,46 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         }
     }
 
+    @Override
+    public List<SummedCapacity> findCapacityByClusterIds(Integer capacityType, Collection<Long> clusterIds) {
+        List<SummedCapacity> results = new ArrayList<SummedCapacity>();
+        if (clusterIds.isEmpty()) {
+            return results;
+        }
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        StringBuilder sql = new StringBuilder(LIST_CAPACITY_GROUP_BY_CAPACITY_PART1);
+        List<Long> resourceIdList = new ArrayList<Long>(clusterIds);
+
+        sql.append(" AND capacity.cluster_id IN (");
+        for (int i = 0; i < clusterIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        if (capacityType != null) {
+            sql.append(" AND capacity.capacity_type = ?");
+            resourceIdList.add(capacityType.longValue());
+        }
+        // a cluster is in a single pod and zone, so there is a row by cluster and type
+        sql.append(LIST_CAPACITY_GROUP_BY_CAPACITY_DATA_CENTER_POD_CLUSTER);
+
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+
+            for (int i = 0; i < resourceIdList.size(); i++) {
+                pstmt.setLong(i + 1, resourceIdList.get(i));
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                results.add(new SummedCapacity(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getFloat(4), (short)rs.getLong(5), rs.getLong(6), rs.getLong(7),
+                        rs.getLong(8)));
+            }
+            return results;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
+
     public void updateAllocated(Long hostId, long allocatedAmount, short capacityType, boolean add) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         PreparedStatement pstmt = null;
@@ -563,6 +613,31 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         }
     }
 
+    @Override
+    public boolean updateCapacityDelta(long capacityId, long usedDelta, long reservedDelta, Long reservedLimit) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        StringBuilder sql = new StringBuilder(UPDATE_CAPACITY_DELTA_SQL);
+        if (reservedLimit != null) {
+            sql.append(" AND reserved_capacity + ? <= ?");
+        }
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            pstmt.setLong(1, usedDelta);
+            pstmt.setLong(2, reservedDelta);
+            pstmt.setString(3, DateUtil.getDateDisplayString(DateUtil.GMT_TIMEZONE, new Date()));
+            pstmt.setLong(4, capacityId);
+            pstmt.setLong(5, usedDelta);
+            pstmt.setLong(6, reservedDelta);
+            if (reservedLimit != null) {
+                pstmt.setLong(7, reservedDelta);
+                pstmt.setLong(8, reservedLimit);
+            }
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update capacity " + capacityId + " by used " + usedDelta + ", reserved " + reservedDelta, e);
+        }
+    }
+
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
         SearchCriteria<CapacityVO> sc = _hostIdTypeSearch.create();
@@ -571,6 +646,17 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         return findOneBy(sc);
     }
 
+    @Override
+    public List<CapacityVO> listByCapacityTypes(short... capacityTypes) {
+        Object[] types = new Object[capacityTypes.length];
+        for (int i = 0; i < capacityTypes.length; i++) {
+            types[i] = capacityTypes[i];
+        }
+        SearchCriteria<CapacityVO> sc = _capacityTypesSearch.create();
+        sc.setParameters("types", types);
+        return listBy(sc);
+    }
+
     @Override
     public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.dc;
 
+import java.util.Collection;
 import java.util.Map;
 
 import com.cloud.utils.db.GenericDao;
@@ -23,6 +24,11 @@ import com.cloud.utils.db.GenericDao;
 public interface ClusterDetailsDao extends GenericDao<ClusterDetailsVO, Long> {
     Map<String, String> findDetails(long clusterId);
 
+    /**
+     * @return the details of the clusters by cluster id, fetched in a single query
+     */
+    Map<Long, Map<String, String>> findDetailsByClusterIds(Collection<Long> clusterIds);
+
     void persist(long clusterId, Map<String, String> details);
 
     void persist(long clusterId, String name, String value);
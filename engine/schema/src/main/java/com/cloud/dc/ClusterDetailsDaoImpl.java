@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.dc;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +35,7 @@ import com.cloud.utils.db.TransactionLegacy;
 public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long> implements ClusterDetailsDao, ScopedConfigStorage {
     protected final SearchBuilder<ClusterDetailsVO> ClusterSearch;
     protected final SearchBuilder<ClusterDetailsVO> DetailSearch;
+    protected final SearchBuilder<ClusterDetailsVO> ClustersSearch;
 
     protected ClusterDetailsDaoImpl() {
         ClusterSearch = createSearchBuilder();
@@ -44,6 +46,10 @@ public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long
         DetailSearch.and("clusterId", DetailSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
         DetailSearch.and("name", DetailSearch.entity().getName(), SearchCriteria.Op.EQ);
         DetailSearch.done();
+
+        ClustersSearch = createSearchBuilder();
+        ClustersSearch.and("clusterIds", ClustersSearch.entity().getClusterId(), SearchCriteria.Op.IN);
+        ClustersSearch.done();
     }
 
     @Override
@@ -83,6 +89,30 @@ public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long
         return details;
     }
 
+    @Override
+    public Map<Long, Map<String, String>> findDetailsByClusterIds(Collection<Long> clusterIds) {
+        Map<Long, Map<String, String>> detailsByCluster = new HashMap<Long, Map<String, String>>();
+        if (clusterIds.isEmpty()) {
+            return detailsByCluster;
+        }
+        SearchCriteria<ClusterDetailsVO> sc = ClustersSearch.create();
+        sc.setParameters("clusterIds", clusterIds.toArray());
+
+        for (ClusterDetailsVO result : search(sc, null)) {
+            Map<String, String> details = detailsByCluster.get(result.getClusterId());
+            if (details == null) {
+                details = new HashMap<String, String>();
+                detailsByCluster.put(result.getClusterId(), details);
+            }
+            if ("password".equals(result.getName())) {
+                details.put(result.getName(), DBEncryptionUtil.decrypt(result.getValue()));
+            } else {
+                details.put(result.getName(), result.getValue());
+            }
+        }
+        return detailsByCluster;
+    }
+
     @Override
     public void deleteDetails(long clusterId) {
         SearchCriteria<ClusterDetailsVO> sc = ClusterSearch.create();
@@ -20,6 +20,7 @@ import com.cloud.dc.ClusterVO;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.utils.db.GenericDao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,8 @@ public interface ClusterDao extends GenericDao<ClusterVO, Long> {
 
     List<ClusterVO> listByZoneId(long zoneId);
 
+    List<ClusterVO> listByUuids(Collection<String> uuids);
+
     List<HypervisorType> getAvailableHypervisorInZone(Long zoneId);
 
     List<ClusterVO> listByDcHyType(long dcId, String hyType);
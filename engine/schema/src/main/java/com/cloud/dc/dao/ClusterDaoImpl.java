@@ -38,6 +38,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,6 +52,7 @@ public class ClusterDaoImpl extends GenericDaoBase<ClusterVO, Long> implements C
     protected final SearchBuilder<ClusterVO> ZoneSearch;
     protected final SearchBuilder<ClusterVO> ZoneHyTypeSearch;
     protected final SearchBuilder<ClusterVO> ZoneClusterSearch;
+    protected final SearchBuilder<ClusterVO> UuidsSearch;
 
     protected GenericSearchBuilder<ClusterVO, Long> ClusterIdSearch;
 
@@ -93,6 +95,10 @@ public class ClusterDaoImpl extends GenericDaoBase<ClusterVO, Long> implements C
         ZoneClusterSearch.and("dataCenterId", ZoneClusterSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         ZoneClusterSearch.done();
 
+        UuidsSearch = createSearchBuilder();
+        UuidsSearch.and("uuids", UuidsSearch.entity().getUuid(), Op.IN);
+        UuidsSearch.done();
+
         ClusterIdSearch = createSearchBuilder(Long.class);
         ClusterIdSearch.selectFields(ClusterIdSearch.entity().getId());
         ClusterIdSearch.and("dataCenterId", ClusterIdSearch.entity().getDataCenterId(), Op.EQ);
@@ -106,6 +112,16 @@ public class ClusterDaoImpl extends GenericDaoBase<ClusterVO, Long> implements C
         return listBy(sc);
     }
 
+    @Override
+    public List<ClusterVO> listByUuids(Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<ClusterVO>();
+        }
+        SearchCriteria<ClusterVO> sc = UuidsSearch.create();
+        sc.setParameters("uuids", uuids.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<ClusterVO> listByPodId(long podId) {
         SearchCriteria<ClusterVO> sc = PodSearch.create();
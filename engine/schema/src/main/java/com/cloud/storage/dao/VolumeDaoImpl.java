@@ -40,6 +40,7 @@ import com.cloud.storage.Volume.Type;
 import com.cloud.storage.VolumeVO;
 import com.cloud.tags.dao.ResourceTagDao;
 import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
@@ -76,6 +77,8 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
     protected static final String SELECT_HYPERTYPE_FROM_ZONE_VOLUME = "SELECT s.hypervisor from volumes v, storage_pool s where v.pool_id = s.id and v.id = ?";
     protected static final String SELECT_POOLSCOPE = "SELECT s.scope from storage_pool s, volumes v where s.id = v.pool_id and v.id = ?";
 
+    private static final String COUNT_BY_ZONE_AND_STATE = "SELECT data_center_id, state, COUNT(*) FROM `cloud`.`volumes` WHERE removed IS NULL GROUP BY data_center_id, state";
+
     private static final String ORDER_POOLS_NUMBER_OF_VOLUMES_FOR_ACCOUNT = "SELECT pool.id, SUM(IF(vol.state='Ready' AND vol.account_id = ?, 1, 0)) FROM `cloud`.`storage_pool` pool LEFT JOIN `cloud`.`volumes` vol ON pool.id = vol.pool_id WHERE pool.data_center_id = ? "
             + " AND pool.pod_id = ? AND pool.cluster_id = ? " + " GROUP BY pool.id ORDER BY 2 ASC ";
     private static final String ORDER_ZONE_WIDE_POOLS_NUMBER_OF_VOLUMES_FOR_ACCOUNT = "SELECT pool.id, SUM(IF(vol.state='Ready' AND vol.account_id = ?, 1, 0)) FROM `cloud`.`storage_pool` pool LEFT JOIN `cloud`.`volumes` vol ON pool.id = vol.pool_id WHERE pool.data_center_id = ? "
@@ -562,6 +565,20 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         }
     }
 
+    @Override
+    public List<Ternary<Long, Volume.State, Long>> countByZoneAndState() {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        List<Ternary<Long, Volume.State, Long>> result = new ArrayList<Ternary<Long, Volume.State, Long>>();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(COUNT_BY_ZONE_AND_STATE); ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                result.add(new Ternary<Long, Volume.State, Long>(rs.getLong(1), Volume.State.valueOf(rs.getString(2)), rs.getLong(3)));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + COUNT_BY_ZONE_AND_STATE, e);
+        }
+    }
+
     @Override
     public List<Long> listZoneWidePoolIdsByVolumeCount(long dcId, long accountId) {
 
@@ -17,6 +17,7 @@
 package com.cloud.user;
 
 import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.exception.CloudRuntimeException;
 import org.apache.cloudstack.acl.RoleType;
 
 import javax.persistence.Column;
@@ -32,7 +33,7 @@ import java.util.UUID;
 
 @Entity
 @Table(name = "account")
-public class AccountVO implements Account {
+public class AccountVO implements Account, Cloneable {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "id")
@@ -210,4 +211,13 @@ public class AccountVO implements Account {
     public Class<?> getEntityType() {
         return Account.class;
     }
+
+    @Override
+    public AccountVO clone() {
+        try {
+            return (AccountVO)super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
 }
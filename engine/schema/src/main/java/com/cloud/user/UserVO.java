@@ -34,6 +34,7 @@ import org.apache.cloudstack.api.InternalIdentity;
 import com.cloud.user.Account.State;
 import com.cloud.utils.db.Encrypt;
 import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.google.common.base.Strings;
 
 /**
@@ -42,7 +43,7 @@ import com.google.common.base.Strings;
  */
 @Entity
 @Table(name = "user")
-public class UserVO implements User, Identity, InternalIdentity {
+public class UserVO implements User, Identity, InternalIdentity, Cloneable {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "id")
@@ -315,4 +316,13 @@ public class UserVO implements User, Identity, InternalIdentity {
     public void setExternalEntity(String externalEntity) {
         this.externalEntity = externalEntity;
     }
+
+    @Override
+    public UserVO clone() {
+        try {
+            return (UserVO)super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
 }
@@ -16,12 +16,14 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.fsm.StateDao;
 import com.cloud.vm.VMInstanceVO;
@@ -86,6 +88,16 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     VMInstanceVO findVMByInstanceName(String name);
 
+    /**
+     * @return the VMs with the instance names, in a single query
+     */
+    List<VMInstanceVO> listByInstanceNames(Collection<String> names);
+
+    /**
+     * @return the VMs with the uuids, in a single query
+     */
+    List<VMInstanceVO> listByUuids(Collection<String> uuids);
+
     VMInstanceVO findVMByHostName(String hostName);
 
     void updateProxyId(long id, Long proxyId, Date time);
@@ -139,10 +151,28 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     List<VMInstanceVO> listStartingWithNoHostId();
 
+    /**
+     * The number of times the same power state is written in a row, after that the power state is only written again
+     * once it changes.
+     */
+    int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
+
     boolean updatePowerState(long instanceId, long powerHostId, VirtualMachine.PowerState powerState);
 
+    /**
+     * Writes the power state reported by the host for the VMs, in a single statement.
+     *
+     * @return the number of VMs updated
+     */
+    int updatePowerStates(Collection<Long> instanceIds, long powerHostId, VirtualMachine.PowerState powerState, int powerStateUpdateCount);
+
     void resetVmPowerStateTracking(long instanceId);
 
+    /**
+     * Same as {@link #resetVmPowerStateTracking(long)} for the VMs, in a single statement.
+     */
+    void resetVmPowerStateTracking(Collection<Long> instanceIds);
+
     void resetHostPowerStateTracking(long hostId);
 
     HashMap<String, Long> countVgpuVMs(Long dcId, Long podId, Long clusterId);
@@ -152,4 +182,21 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
     boolean isPowerStateUpToDate(long instanceId);
 
     List<VMInstanceVO> listNonMigratingVmsByHostEqualsLastHost(long hostId);
+
+    /**
+     * @return the number of VMs by host id of every host with VMs, in a single grouped query
+     */
+    Map<Long, Long> countByHost();
+
+    /**
+     * @return the number of VMs by zone and state, in a single grouped query
+     */
+    List<Ternary<Long, State, Long>> countByZoneAndState();
+
+    /**
+     * @return the number of VMs of the type by host id and state, of the hosts only
+     */
+    List<Ternary<Long, State, Long>> countByHostAndState(VirtualMachine.Type type, List<Long> hostIds);
+
+    Long countByTypes(VirtualMachine.Type... types);
 }
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +38,7 @@ import com.cloud.server.ResourceTag.ResourceObjectType;
 import com.cloud.tags.dao.ResourceTagDao;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.db.Attribute;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
@@ -65,7 +67,6 @@ import com.cloud.vm.VirtualMachine.Type;
 public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implements VMInstanceDao {
 
     public static final Logger s_logger = Logger.getLogger(VMInstanceDaoImpl.class);
-    private static final int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
 
     protected SearchBuilder<VMInstanceVO> VMClusterSearch;
     protected SearchBuilder<VMInstanceVO> LHVMClusterSearch;
@@ -83,12 +84,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
+    protected SearchBuilder<VMInstanceVO> InstanceNamesSearch;
+    protected SearchBuilder<VMInstanceVO> UuidsSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
     protected GenericSearchBuilder<VMInstanceVO, Long> CountActiveByHost;
     protected GenericSearchBuilder<VMInstanceVO, Long> CountRunningAndStartingByAccount;
     protected GenericSearchBuilder<VMInstanceVO, Long> CountByZoneAndState;
+    protected GenericSearchBuilder<VMInstanceVO, Long> CountByTypes;
     protected SearchBuilder<VMInstanceVO> NetworkTypeSearch;
     protected GenericSearchBuilder<VMInstanceVO, String> DistinctHostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostAndStateSearch;
@@ -124,6 +129,12 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     private static final String COUNT_VMS_BASED_ON_VGPU_TYPES2 =
             "GROUP BY offering.service_offering_id) results GROUP BY pci, type";
 
+    private static final String COUNT_BY_HOST = "SELECT host_id, COUNT(*) FROM `cloud`.`vm_instance` WHERE host_id IS NOT NULL AND removed IS NULL GROUP BY host_id";
+
+    private static final String COUNT_BY_ZONE_AND_STATE = "SELECT data_center_id, state, COUNT(*) FROM `cloud`.`vm_instance` WHERE removed IS NULL GROUP BY data_center_id, state";
+
+    private static final String COUNT_BY_HOST_AND_STATE = "SELECT host_id, state, COUNT(*) FROM `cloud`.`vm_instance` WHERE type = ? AND removed IS NULL AND host_id IN (%s) GROUP BY host_id, state";
+
     @Inject
     protected HostDao _hostDao;
 
@@ -223,6 +234,18 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("instanceNames", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
+        UuidsSearch = createSearchBuilder();
+        UuidsSearch.and("uuids", UuidsSearch.entity().getUuid(), Op.IN);
+        UuidsSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
         HostNameSearch = createSearchBuilder();
         HostNameSearch.and("hostName", HostNameSearch.entity().getHostName(), Op.EQ);
         HostNameSearch.done();
@@ -257,6 +280,11 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         CountByZoneAndState.and("state", CountByZoneAndState.entity().getState(), SearchCriteria.Op.EQ);
         CountByZoneAndState.done();
 
+        CountByTypes = createSearchBuilder(Long.class);
+        CountByTypes.select(null, Func.COUNT, null);
+        CountByTypes.and("types", CountByTypes.entity().getType(), SearchCriteria.Op.IN);
+        CountByTypes.done();
+
         HostAndStateSearch = createSearchBuilder();
         HostAndStateSearch.and("host", HostAndStateSearch.entity().getHostId(), Op.EQ);
         HostAndStateSearch.and("states", HostAndStateSearch.entity().getState(), Op.IN);
@@ -319,6 +347,69 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return listBy(sc);
     }
 
+    @Override
+    public Map<Long, Long> countByHost() {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(COUNT_BY_HOST); ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                result.put(rs.getLong(1), rs.getLong(2));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + COUNT_BY_HOST, e);
+        }
+    }
+
+    @Override
+    public List<Ternary<Long, State, Long>> countByZoneAndState() {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        List<Ternary<Long, State, Long>> result = new ArrayList<Ternary<Long, State, Long>>();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(COUNT_BY_ZONE_AND_STATE); ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                result.add(new Ternary<Long, State, Long>(rs.getLong(1), State.valueOf(rs.getString(2)), rs.getLong(3)));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + COUNT_BY_ZONE_AND_STATE, e);
+        }
+    }
+
+    @Override
+    public List<Ternary<Long, State, Long>> countByHostAndState(Type type, List<Long> hostIds) {
+        List<Ternary<Long, State, Long>> result = new ArrayList<Ternary<Long, State, Long>>();
+        if (hostIds.isEmpty()) {
+            return result;
+        }
+        StringBuilder placeholders = new StringBuilder("?");
+        for (int i = 1; i < hostIds.size(); i++) {
+            placeholders.append(", ?");
+        }
+        String sql = String.format(COUNT_BY_HOST_AND_STATE, placeholders);
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql)) {
+            pstmt.setString(1, type.toString());
+            for (int i = 0; i < hostIds.size(); i++) {
+                pstmt.setLong(i + 2, hostIds.get(i));
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    result.add(new Ternary<Long, State, Long>(rs.getLong(1), State.valueOf(rs.getString(2)), rs.getLong(3)));
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
+
+    @Override
+    public Long countByTypes(Type... types) {
+        SearchCriteria<Long> sc = CountByTypes.create();
+        sc.setParameters("types", (Object[])types);
+        return customSearch(sc, null).get(0);
+    }
+
     @Override
     public List<VMInstanceVO> listByZoneId(long zoneId) {
         SearchCriteria<VMInstanceVO> sc = AllFieldsSearch.create();
@@ -450,6 +541,26 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return findOneBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        if (names.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("instanceNames", names.toArray());
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByUuids(Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = UuidsSearch.create();
+        sc.setParameters("uuids", uuids.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public VMInstanceVO findVMByHostName(String hostName) {
         SearchCriteria<VMInstanceVO> sc = HostNameSearch.create();
@@ -859,6 +970,22 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public int updatePowerStates(Collection<Long> instanceIds, long powerHostId, VirtualMachine.PowerState powerState, int powerStateUpdateCount) {
+        if (instanceIds.isEmpty()) {
+            return 0;
+        }
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", instanceIds.toArray());
+
+        VMInstanceVO instance = createForUpdate();
+        instance.setPowerState(powerState);
+        instance.setPowerHostId(powerHostId);
+        instance.setPowerStateUpdateCount(powerStateUpdateCount);
+        instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+        return update(instance, sc);
+    }
+
     @Override
     public boolean isPowerStateUpToDate(final long instanceId) {
         VMInstanceVO instance = findById(instanceId);
@@ -883,6 +1010,20 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public void resetVmPowerStateTracking(Collection<Long> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return;
+        }
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", instanceIds.toArray());
+
+        VMInstanceVO instance = createForUpdate();
+        instance.setPowerStateUpdateCount(0);
+        instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+        update(instance, sc);
+    }
+
     @Override @DB
     public void resetHostPowerStateTracking(final long hostId) {
         Transaction.execute(new TransactionCallbackNoReturn() {
@@ -59,6 +59,9 @@ public class AffinityGroupVO implements AffinityGroup {
     @Enumerated(value = EnumType.STRING)
     ControlledEntity.ACLType aclType;
 
+    @Column(name = "placement_version")
+    private long placementVersion;
+
     public AffinityGroupVO() {
         uuid = UUID.randomUUID().toString();
     }
@@ -117,6 +120,10 @@ public class AffinityGroupVO implements AffinityGroup {
         return aclType;
     }
 
+    public long getPlacementVersion() {
+        return placementVersion;
+    }
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder("AffinityGroup[");
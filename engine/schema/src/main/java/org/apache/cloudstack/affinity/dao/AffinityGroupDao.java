@@ -16,7 +16,9 @@
 // under the License.
 package org.apache.cloudstack.affinity.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cloudstack.affinity.AffinityGroupVO;
 
@@ -38,4 +40,16 @@ public interface AffinityGroupDao extends GenericDao<AffinityGroupVO, Long> {
     AffinityGroupVO findByAccountAndType(Long accountId, String string);
 
     AffinityGroupVO findDomainLevelGroupByType(Long domainId, String string);
+
+    /**
+     * @return the placement versions of the groups that exist, by group id
+     */
+    Map<Long, Long> listPlacementVersions(Collection<Long> groupIds);
+
+    /**
+     * Moves the placement version of the group on, unless a reservation in the group moved it on since it was read.
+     *
+     * @return true if the group was still at the given version
+     */
+    boolean updatePlacementVersion(long groupId, long placementVersion);
 }
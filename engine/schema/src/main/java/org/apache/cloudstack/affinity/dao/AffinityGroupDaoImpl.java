@@ -16,7 +16,10 @@
 // under the License.
 package org.apache.cloudstack.affinity.dao;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -29,6 +32,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.JoinBuilder.JoinType;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.UpdateBuilder;
 
 public class AffinityGroupDaoImpl extends GenericDaoBase<AffinityGroupVO, Long> implements AffinityGroupDao {
     private SearchBuilder<AffinityGroupVO> AccountIdSearch;
@@ -40,6 +44,8 @@ public class AffinityGroupDaoImpl extends GenericDaoBase<AffinityGroupVO, Long>
     AffinityGroupDomainMapDao _groupDomainDao;
 
     private SearchBuilder<AffinityGroupVO> DomainLevelTypeSearch;
+    private SearchBuilder<AffinityGroupVO> IdsSearch;
+    private SearchBuilder<AffinityGroupVO> PlacementVersionSearch;
 
     public AffinityGroupDaoImpl() {
 
@@ -82,6 +88,15 @@ public class AffinityGroupDaoImpl extends GenericDaoBase<AffinityGroupVO, Long>
         DomainLevelTypeSearch.join("domainTypeSearch", domainTypeSearch, domainTypeSearch.entity().getAffinityGroupId(), DomainLevelTypeSearch.entity().getId(),
             JoinType.INNER);
         DomainLevelTypeSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+
+        PlacementVersionSearch = createSearchBuilder();
+        PlacementVersionSearch.and("id", PlacementVersionSearch.entity().getId(), SearchCriteria.Op.EQ);
+        PlacementVersionSearch.and("placementVersion", PlacementVersionSearch.entity().getPlacementVersion(), SearchCriteria.Op.EQ);
+        PlacementVersionSearch.done();
     }
 
     @Override
@@ -158,4 +173,30 @@ public class AffinityGroupDaoImpl extends GenericDaoBase<AffinityGroupVO, Long>
         sc.setJoinParameters("domainTypeSearch", "domainId", domainId);
         return findOneBy(sc);
     }
+
+    @Override
+    public Map<Long, Long> listPlacementVersions(Collection<Long> groupIds) {
+        Map<Long, Long> placementVersions = new HashMap<Long, Long>();
+        if (groupIds.isEmpty()) {
+            return placementVersions;
+        }
+        SearchCriteria<AffinityGroupVO> sc = IdsSearch.create();
+        sc.setParameters("ids", groupIds.toArray());
+        for (AffinityGroupVO group : listBy(sc)) {
+            placementVersions.put(group.getId(), group.getPlacementVersion());
+        }
+        return placementVersions;
+    }
+
+    @Override
+    public boolean updatePlacementVersion(long groupId, long placementVersion) {
+        SearchCriteria<AffinityGroupVO> sc = PlacementVersionSearch.create();
+        sc.setParameters("id", groupId);
+        sc.setParameters("placementVersion", placementVersion);
+
+        AffinityGroupVO group = createForUpdate();
+        UpdateBuilder ub = getUpdateBuilder(group);
+        ub.set(group, "placementVersion", placementVersion + 1);
+        return update(ub, sc, null) > 0;
+    }
 }
@@ -123,4 +123,9 @@ public interface PrimaryDataStoreDao extends GenericDao<StoragePoolVO, Long> {
     List<StoragePoolVO> listLocalStoragePoolByPath(long datacenterId, String path);
 
     void deletePoolTags(long poolId);
+
+    /**
+     * @return the number of storage pools not removed, without listing them
+     */
+    long countAll();
 }
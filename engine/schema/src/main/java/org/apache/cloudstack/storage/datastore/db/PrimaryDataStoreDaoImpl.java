@@ -56,6 +56,7 @@ public class PrimaryDataStoreDaoImpl extends GenericDaoBase<StoragePoolVO, Long>
     private final SearchBuilder<StoragePoolVO> DeleteLvmSearch;
     private final SearchBuilder<StoragePoolVO> DcLocalStorageSearch;
     private final GenericSearchBuilder<StoragePoolVO, Long> StatusCountSearch;
+    private final GenericSearchBuilder<StoragePoolVO, Long> CountSearch;
 
     @Inject
     private StoragePoolDetailsDao _detailsDao;
@@ -127,6 +128,10 @@ public class PrimaryDataStoreDaoImpl extends GenericDaoBase<StoragePoolVO, Long>
         StatusCountSearch.select(null, Func.COUNT, null);
         StatusCountSearch.done();
 
+        CountSearch = createSearchBuilder(Long.class);
+        CountSearch.select(null, Func.COUNT, null);
+        CountSearch.done();
+
         DcLocalStorageSearch = createSearchBuilder();
         DcLocalStorageSearch.and("datacenterId", DcLocalStorageSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         DcLocalStorageSearch.and("path", DcLocalStorageSearch.entity().getPath(), SearchCriteria.Op.EQ);
@@ -516,6 +521,11 @@ public class PrimaryDataStoreDaoImpl extends GenericDaoBase<StoragePoolVO, Long>
         return true;
     }
 
+    @Override
+    public long countAll() {
+        return customSearch(CountSearch.create(), null).get(0);
+    }
+
     @Override
     public long countPoolsByStatus(StoragePoolStatus... statuses) {
         SearchCriteria<Long> sc = StatusCountSearch.create();
@@ -23,3 +23,6 @@
 DELETE FROM `cloud`.`host` WHERE id in (SELECT vsp.host_id FROM `cloud`.`external_nuage_vsp_devices` vsp);
 DROP TABLE IF EXISTS `cloud`.`external_nuage_vsp_devices`;
 DELETE FROM `cloud`.`role_permissions` WHERE rule = 'issueNuageVspResourceRequest';
+
+-- The API rate limit drops idle token buckets itself, it has no count cache to size anymore
+DELETE FROM `cloud`.`configuration` WHERE name = 'api.throttling.cachesize';
@@ -386,3 +386,6 @@ CREATE TABLE `cloud`.`direct_download_certificate_host_map` (
   CONSTRAINT `fk_direct_download_certificate_host_map__certificate_id` FOREIGN KEY (`certificate_id`) REFERENCES `direct_download_certificate` (`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
+
+-- Moved on with every reservation made in an affinity group, reservations are checked against the version they were planned at
+ALTER TABLE `cloud`.`affinity_group` ADD COLUMN `placement_version` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'moved on with every reservation made in the group';
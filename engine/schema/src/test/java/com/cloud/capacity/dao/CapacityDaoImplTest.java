@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity.dao;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class CapacityDaoImplTest {
+
+    private final CapacityDaoImpl capacityDao = spy(new CapacityDaoImpl());
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testListByCapacityTypes() {
+        final List<CapacityVO> capacities = Arrays.asList(new CapacityVO(1L, 1L, 1L, 1L, 0L, 1000L, Capacity.CAPACITY_TYPE_CPU));
+        doReturn(capacities).when(capacityDao).searchIncludingRemoved(any(SearchCriteria.class), any(Filter.class), any(Boolean.class), anyBoolean());
+
+        Assert.assertSame(capacities, capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY));
+
+        final ArgumentCaptor<SearchCriteria> criteria = ArgumentCaptor.forClass(SearchCriteria.class);
+        verify(capacityDao).searchIncludingRemoved(criteria.capture(), any(Filter.class), any(Boolean.class), anyBoolean());
+        final List<Object> types = new ArrayList<Object>();
+        for (final Pair<Attribute, Object> value : ((SearchCriteria<CapacityVO>)criteria.getValue()).getValues()) {
+            types.add(value.second());
+        }
+        Assert.assertEquals(Arrays.<Object>asList(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY), types);
+    }
+}
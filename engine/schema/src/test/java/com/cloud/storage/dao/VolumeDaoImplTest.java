@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.dao;
+
+import static org.mockito.Mockito.when;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.cloud.storage.Volume;
+import com.cloud.utils.Ternary;
+import com.cloud.utils.db.TransactionLegacy;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TransactionLegacy.class)
+@PowerMockIgnore("javax.management.*")
+public class VolumeDaoImplTest {
+
+    @Mock
+    private TransactionLegacy transactionMock;
+
+    @Mock
+    private PreparedStatement preparedStatementMock;
+
+    @Mock
+    private ResultSet resultSetMock;
+
+    private final VolumeDaoImpl volumeDao = new VolumeDaoImpl();
+
+    @Test
+    public void testCountByZoneAndState() throws Exception {
+        PowerMockito.mockStatic(TransactionLegacy.class);
+        when(TransactionLegacy.currentTxn()).thenReturn(transactionMock);
+        when(transactionMock.prepareAutoCloseStatement("SELECT data_center_id, state, COUNT(*) FROM `cloud`.`volumes` WHERE removed IS NULL GROUP BY data_center_id, state"))
+                .thenReturn(preparedStatementMock);
+        when(preparedStatementMock.executeQuery()).thenReturn(resultSetMock);
+        when(resultSetMock.next()).thenReturn(true, true, false);
+        when(resultSetMock.getLong(1)).thenReturn(1L, 2L);
+        when(resultSetMock.getString(2)).thenReturn(Volume.State.Ready.toString(), Volume.State.Allocated.toString());
+        when(resultSetMock.getLong(3)).thenReturn(5L, 3L);
+
+        final List<Ternary<Long, Volume.State, Long>> counts = volumeDao.countByZoneAndState();
+
+        Assert.assertEquals(2, counts.size());
+        Assert.assertEquals(1L, counts.get(0).first().longValue());
+        Assert.assertEquals(Volume.State.Ready, counts.get(0).second());
+        Assert.assertEquals(5L, counts.get(0).third().longValue());
+        Assert.assertEquals(2L, counts.get(1).first().longValue());
+        Assert.assertEquals(Volume.State.Allocated, counts.get(1).second());
+        Assert.assertEquals(3L, counts.get(1).third().longValue());
+    }
+}
@@ -18,17 +18,30 @@
 package com.cloud.vm.dao;
 
 import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.vm.VirtualMachine;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
+import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
 
 import static com.cloud.vm.VirtualMachine.State.Running;
 import static com.cloud.vm.VirtualMachine.State.Stopped;
 
 import static org.mockito.Mockito.when;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Map;
+
 import com.cloud.vm.VMInstanceVO;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
@@ -37,6 +50,9 @@ import org.mockito.Spy;
  * Created by sudharma_jain on 3/2/17.
  */
 
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(TransactionLegacy.class)
+@PowerMockIgnore("javax.management.*")
 public class VMInstanceDaoImplTest {
 
     @Spy
@@ -45,6 +61,15 @@ public class VMInstanceDaoImplTest {
     @Mock
     VMInstanceVO vm;
 
+    @Mock
+    TransactionLegacy txn;
+
+    @Mock
+    PreparedStatement pstmt;
+
+    @Mock
+    ResultSet rs;
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
@@ -67,6 +92,41 @@ public class VMInstanceDaoImplTest {
         Assert.assertEquals(vmInstanceDao.ifStateUnchanged(Stopped, Running, null, null), false);
     }
 
-}
+    private void mockQuery(String sql) throws Exception {
+        PowerMockito.mockStatic(TransactionLegacy.class);
+        when(TransactionLegacy.currentTxn()).thenReturn(txn);
+        when(txn.prepareAutoCloseStatement(sql)).thenReturn(pstmt);
+        when(pstmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, false);
+    }
 
+    @Test
+    public void testCountByHost() throws Exception {
+        mockQuery("SELECT host_id, COUNT(*) FROM `cloud`.`vm_instance` WHERE host_id IS NOT NULL AND removed IS NULL GROUP BY host_id");
+        when(rs.getLong(1)).thenReturn(1L, 2L);
+        when(rs.getLong(2)).thenReturn(4L, 7L);
+
+        Map<Long, Long> counts = vmInstanceDao.countByHost();
 
+        Assert.assertEquals(2, counts.size());
+        Assert.assertEquals(4L, counts.get(1L).longValue());
+        Assert.assertEquals(7L, counts.get(2L).longValue());
+    }
+
+    @Test
+    public void testCountByZoneAndState() throws Exception {
+        mockQuery("SELECT data_center_id, state, COUNT(*) FROM `cloud`.`vm_instance` WHERE removed IS NULL GROUP BY data_center_id, state");
+        when(rs.getLong(1)).thenReturn(1L, 1L);
+        when(rs.getString(2)).thenReturn(Running.toString(), Stopped.toString());
+        when(rs.getLong(3)).thenReturn(3L, 2L);
+
+        List<Ternary<Long, VirtualMachine.State, Long>> counts = vmInstanceDao.countByZoneAndState();
+
+        Assert.assertEquals(2, counts.size());
+        Assert.assertEquals(1L, counts.get(0).first().longValue());
+        Assert.assertEquals(Running, counts.get(0).second());
+        Assert.assertEquals(3L, counts.get(0).third().longValue());
+        Assert.assertEquals(Stopped, counts.get(1).second());
+        Assert.assertEquals(2L, counts.get(1).third().longValue());
+    }
+}
@@ -274,6 +274,11 @@ public class DirectAgentManagerSimpleImpl extends ManagerBase implements AgentMa
         return false;
     }
 
+    @Override
+    public int getInFlightStorageCommands(long hostId) {
+        return 0;
+    }
+
     @Override
     public boolean handleDirectConnectAgent(Host host, StartupCommand[] cmds, ServerResource resource, boolean forRebalance, boolean newHost) throws ConnectionException {
         return false;
@@ -34,6 +34,7 @@ import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.StoragePoolAllocationIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterVO;
 import com.cloud.dc.dao.ClusterDao;
@@ -66,6 +67,7 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
     @Inject private ClusterDao clusterDao;
     @Inject private StorageManager storageMgr;
     @Inject private StorageUtil storageUtil;
+    @Inject private StoragePoolAllocationIndex poolAllocationIndex;
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -102,6 +104,14 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
             return null;
         }
 
+        if (poolAllocationIndex != null && poolAllocationIndex.isEnabled()) {
+            List<StoragePool> reorderedPools = poolAllocationIndex.orderPoolsByFreeCapacity(pools);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("List of pools in descending order of unallocated capacity: " + reorderedPools);
+            }
+            return reorderedPools;
+        }
+
         List<Long> poolIdsByCapacity = capacityDao.orderHostsByFreeCapacity(clusterId, capacityType);
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("List of pools in descending order of free capacity: "+ poolIdsByCapacity);
@@ -24,8 +24,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.inject.Inject;
 
@@ -43,6 +43,7 @@ import org.apache.cloudstack.storage.RemoteHostEndPoint;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
+import com.cloud.agent.AgentManager;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
@@ -64,6 +65,10 @@ public class DefaultEndPointSelector implements EndPointSelector {
     private static final Logger s_logger = Logger.getLogger(DefaultEndPointSelector.class);
     @Inject
     private HostDao hostDao;
+    @Inject
+    private AgentManager agentMgr;
+    @Inject
+    private EndPointHostView hostView;
     private final String findOneHostOnPrimaryStorage = "select t.id from "
                             + "(select h.id, cd.value "
                             + "from host h join storage_pool_host_ref s on h.id = s.host_id  "
@@ -104,8 +109,34 @@ public class DefaultEndPointSelector implements EndPointSelector {
         }
     }
 
+    /**
+     * Picks two of the hosts at random and returns the one with fewer storage commands in flight, which keeps the
+     * hosts evenly loaded without having to look at the load of all of them.
+     */
+    protected HostVO chooseLeastLoaded(List<HostVO> hosts) {
+        if (hosts.size() == 1) {
+            return hosts.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(hosts.size());
+        int second = random.nextInt(hosts.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        HostVO host = hosts.get(first);
+        HostVO other = hosts.get(second);
+        return agentMgr.getInFlightStorageCommands(other.getId()) < agentMgr.getInFlightStorageCommands(host.getId()) ? other : host;
+    }
+
     @DB
     protected EndPoint findEndPointInScope(Scope scope, String sqlBase, Long poolId) {
+        if (poolId != null) {
+            List<HostVO> hosts = hostView.listHosts(poolId, scope);
+            if (hosts != null && !hosts.isEmpty()) {
+                return RemoteHostEndPoint.getHypervisorHostEndPoint(chooseLeastLoaded(hosts));
+            }
+        }
+
         StringBuilder sbuilder = new StringBuilder();
         sbuilder.append(sqlBase);
 
@@ -122,7 +153,7 @@ public class DefaultEndPointSelector implements EndPointSelector {
             }
         }
 
-        // TODO: order by rand() is slow if there are lot of hosts
+        // order by rand() is slow if there are lot of hosts, only done when the host view does not know of the pool
         sbuilder.append(") t where t.value<>'true' or t.value is null");    //Added for exclude cluster's subquery
         sbuilder.append(" ORDER by rand() limit 1");
         String sql = sbuilder.toString();
@@ -251,8 +282,7 @@ public class DefaultEndPointSelector implements EndPointSelector {
         if (ssAHosts == null || ssAHosts.isEmpty()) {
             return null;
         }
-        Collections.shuffle(ssAHosts);
-        HostVO host = ssAHosts.get(0);
+        HostVO host = chooseLeastLoaded(ssAHosts);
         return RemoteHostEndPoint.getHypervisorHostEndPoint(host);
     }
 
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.endpoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.Scope;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.CapacityManager;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.ScopeType;
+import com.cloud.storage.StoragePoolHostVO;
+import com.cloud.storage.dao.StoragePoolHostDao;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Keeps the hosts the endpoint selector can send storage commands to in memory: the Up and Enabled routing hosts
+ * outside the clusters excluded from storage operations, by the primary storage pools they are connected to.
+ *
+ * The view is reloaded from the database periodically. A host leaving the Up state on this management server is
+ * dropped from it at once, anything else (new hosts and pools, changes on the other management servers) shows up on
+ * the next reload.
+ */
+public class EndPointHostView extends ManagerBase implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(EndPointHostView.class);
+
+    static final ConfigKey<Integer> EndPointHostViewReloadInterval = new ConfigKey<Integer>("Advanced", Integer.class, "endpoint.host.view.reload.interval", "30",
+            "Interval in seconds to reload the in-memory view of the hosts the storage endpoints are picked from, 0 to query the database for every endpoint instead",
+            false);
+
+    private static class Snapshot {
+        private final Map<Long, HostVO> hosts;
+        private final Map<Long, List<HostVO>> hostsByPool;
+
+        Snapshot(Map<Long, HostVO> hosts, Map<Long, List<HostVO>> hostsByPool) {
+            this.hosts = hosts;
+            this.hostsByPool = hostsByPool;
+        }
+    }
+
+    @Inject
+    HostDao _hostDao;
+    @Inject
+    StoragePoolHostDao _poolHostDao;
+    @Inject
+    ClusterDetailsDao _clusterDetailsDao;
+
+    private volatile Snapshot _snapshot;
+    private final ConcurrentMap<Long, Long> _leftUp = new ConcurrentHashMap<Long, Long>();
+
+    private final EndPointHostViewStats _stats = new EndPointHostViewStats(this);
+
+    private int _reloadInterval;
+    private ScheduledExecutorService _executor;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _reloadInterval = EndPointHostViewReloadInterval.value();
+        if (_reloadInterval > 0) {
+            Status.getStateMachine().registerListener(new HostStatusListener());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        if (_reloadInterval > 0) {
+            _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("EndPointHostView"));
+            _executor.scheduleWithFixedDelay(new ReloadTask(), 0, _reloadInterval, TimeUnit.SECONDS);
+            try {
+                JmxUtil.registerMBean("EndPointHostView", "Hosts", _stats);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the MBean of the endpoint host view", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the endpoints are to be picked from the database rather than the view
+     */
+    public boolean isEnabled() {
+        return _reloadInterval > 0;
+    }
+
+    void setReloadInterval(int reloadInterval) {
+        _reloadInterval = reloadInterval;
+    }
+
+    /**
+     * @return the hosts in the scope connected to the pool, null if the view is disabled or not loaded yet, empty if it
+     *         does not know of a host for the pool
+     */
+    public List<HostVO> listHosts(long poolId, Scope scope) {
+        Snapshot snapshot = _snapshot;
+        if (!isEnabled() || snapshot == null) {
+            return null;
+        }
+        List<HostVO> poolHosts = snapshot.hostsByPool.get(poolId);
+        if (poolHosts == null) {
+            _stats.missed();
+            return Collections.emptyList();
+        }
+        List<HostVO> hosts = new ArrayList<HostVO>(poolHosts.size());
+        for (HostVO host : poolHosts) {
+            if (inScope(host, scope) && !_leftUp.containsKey(host.getId())) {
+                hosts.add(host);
+            }
+        }
+        if (hosts.isEmpty()) {
+            _stats.missed();
+        } else {
+            _stats.hit();
+        }
+        return hosts;
+    }
+
+    private static boolean inScope(HostVO host, Scope scope) {
+        if (scope == null || scope.getScopeId() == null) {
+            return true;
+        }
+        if (scope.getScopeType() == ScopeType.HOST) {
+            return scope.getScopeId().equals(host.getId());
+        } else if (scope.getScopeType() == ScopeType.CLUSTER) {
+            return scope.getScopeId().equals(host.getClusterId());
+        } else if (scope.getScopeType() == ScopeType.ZONE) {
+            return scope.getScopeId().equals(host.getDataCenterId());
+        }
+        return true;
+    }
+
+    /**
+     * Reloads the hosts and their pools from the database.
+     */
+    public void reload() {
+        long started = System.nanoTime();
+        Map<Long, HostVO> hosts = new HashMap<Long, HostVO>();
+        Map<Long, Boolean> excludedClusters = new HashMap<Long, Boolean>();
+        for (HostVO host : _hostDao.listByType(Host.Type.Routing)) {
+            if (host.getStatus() != Status.Up || host.getResourceState() != ResourceState.Enabled || host.getClusterId() == null) {
+                continue;
+            }
+            Boolean excluded = excludedClusters.get(host.getClusterId());
+            if (excluded == null) {
+                ClusterDetailsVO detail = _clusterDetailsDao.findDetail(host.getClusterId(), CapacityManager.StorageOperationsExcludeCluster.key());
+                excluded = detail != null && "true".equals(detail.getValue());
+                excludedClusters.put(host.getClusterId(), excluded);
+            }
+            if (!excluded) {
+                hosts.put(host.getId(), host);
+            }
+        }
+
+        Map<Long, List<HostVO>> hostsByPool = new HashMap<Long, List<HostVO>>();
+        for (StoragePoolHostVO poolHost : _poolHostDao.listAll()) {
+            HostVO host = hosts.get(poolHost.getHostId());
+            if (host == null) {
+                continue;
+            }
+            List<HostVO> poolHosts = hostsByPool.get(poolHost.getPoolId());
+            if (poolHosts == null) {
+                poolHosts = new ArrayList<HostVO>();
+                hostsByPool.put(poolHost.getPoolId(), poolHosts);
+            }
+            poolHosts.add(host);
+        }
+
+        _snapshot = new Snapshot(hosts, hostsByPool);
+        for (Map.Entry<Long, Long> leftUp : _leftUp.entrySet()) {
+            if (leftUp.getValue() < started) {
+                _leftUp.remove(leftUp.getKey(), leftUp.getValue());
+            }
+        }
+        _stats.reloaded();
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Reloaded " + hosts.size() + " hosts connected to " + hostsByPool.size() + " pools");
+        }
+    }
+
+    public int getHostCount() {
+        Snapshot snapshot = _snapshot;
+        return snapshot == null ? 0 : snapshot.hosts.size();
+    }
+
+    EndPointHostViewStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Drops the hosts leaving the Up state from the view until they are back Up or it is reloaded.
+     */
+    class HostStatusListener implements StateListener<Status, Status.Event, Host> {
+        @Override
+        public boolean preStateTransitionEvent(Status oldState, Status.Event event, Status newState, Host vo, boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<Status, Status.Event> transition, Host vo, boolean status, Object opaque) {
+            if (!status) {
+                return true;
+            }
+            if (transition.getToState() == Status.Up) {
+                _leftUp.remove(vo.getId());
+            } else {
+                _leftUp.put(vo.getId(), System.nanoTime());
+            }
+            return true;
+        }
+    }
+
+    private class ReloadTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reload();
+            } catch (Exception e) {
+                s_logger.warn("Failed to reload the endpoint host view from the database", e);
+            }
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return EndPointHostView.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {EndPointHostViewReloadInterval};
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.endpoint;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the endpoint host view, exposed over JMX.
+ */
+public class EndPointHostViewStats extends StandardMBean implements EndPointHostViewMBean {
+    private final EndPointHostView _view;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _reloads = new AtomicLong();
+
+    EndPointHostViewStats(EndPointHostView view) {
+        super(EndPointHostViewMBean.class, false);
+        _view = view;
+    }
+
+    void hit() {
+        _hits.incrementAndGet();
+    }
+
+    void missed() {
+        _misses.incrementAndGet();
+    }
+
+    void reloaded() {
+        _reloads.incrementAndGet();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getReloads() {
+        return _reloads.get();
+    }
+
+    @Override
+    public int getHostCount() {
+        return _view.getHostCount();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.StoragePoolHostVO;
+import com.cloud.storage.dao.StoragePoolHostDao;
+
+public class DefaultEndPointSelectorTest {
+    private final AgentManager agentMgr = Mockito.mock(AgentManager.class, Mockito.withSettings().stubOnly());
+    private DefaultEndPointSelector selector = new DefaultEndPointSelector();
+
+    private int[] inFlight;
+    private final AtomicInteger loadLookups = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(selector, "agentMgr", agentMgr);
+        Mockito.when(agentMgr.getInFlightStorageCommands(Matchers.anyLong())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                loadLookups.incrementAndGet();
+                return inFlight[((Long)invocation.getArguments()[0]).intValue()];
+            }
+        });
+    }
+
+    private List<HostVO> hosts(int count) {
+        inFlight = new int[count];
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (int i = 0; i < count; i++) {
+            HostVO host = new HostVO("host-" + i);
+            ReflectionTestUtils.setField(host, "id", i);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    @Test
+    public void testIdleHostsArePickedEvenly() {
+        List<HostVO> hosts = hosts(4);
+        int[] picked = new int[hosts.size()];
+        for (int i = 0; i < 40000; i++) {
+            picked[(int)selector.chooseLeastLoaded(hosts).getId()]++;
+        }
+        for (int count : picked) {
+            Assert.assertTrue("picked " + count + " times", count > 9000 && count < 11000);
+        }
+    }
+
+    @Test
+    public void testMostLoadedHostIsNeverPicked() {
+        List<HostVO> hosts = hosts(3);
+        inFlight[1] = 5;
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNotEquals(1L, selector.chooseLeastLoaded(hosts).getId());
+        }
+        Assert.assertEquals(hosts.get(0), selector.chooseLeastLoaded(hosts.subList(0, 1)));
+    }
+
+    @Test
+    public void testLoadStaysBalancedBetterThanRandom() {
+        final int hostCount = 50;
+        final int commands = 10000;
+        List<HostVO> hosts = hosts(hostCount);
+
+        for (int i = 0; i < commands; i++) {
+            inFlight[(int)selector.chooseLeastLoaded(hosts).getId()]++;
+        }
+        int twoChoicesMax = 0;
+        for (int count : inFlight) {
+            twoChoicesMax = Math.max(twoChoicesMax, count);
+        }
+
+        int[] random = new int[hostCount];
+        for (int i = 0; i < commands; i++) {
+            random[ThreadLocalRandom.current().nextInt(hostCount)]++;
+        }
+        int randomMax = 0;
+        for (int count : random) {
+            randomMax = Math.max(randomMax, count);
+        }
+
+        Assert.assertTrue("most loaded host had " + twoChoicesMax + " commands", twoChoicesMax <= commands / hostCount + 5);
+        Assert.assertTrue("most loaded host had " + twoChoicesMax + " commands, " + randomMax + " when picked at random", twoChoicesMax <= randomMax);
+    }
+
+    @Test
+    public void testSelectionsFromTheHostViewBenchmark() {
+        final int hostCount = 50;
+        final int commands = 10000;
+        List<HostVO> hosts = hosts(hostCount);
+        List<StoragePoolHostVO> poolHosts = new ArrayList<StoragePoolHostVO>();
+        for (HostVO host : hosts) {
+            ReflectionTestUtils.setField(host, "clusterId", 1L);
+            ReflectionTestUtils.setField(host, "status", Status.Up);
+            ReflectionTestUtils.setField(host, "resourceState", ResourceState.Enabled);
+            poolHosts.add(new StoragePoolHostVO(100L, host.getId(), null));
+        }
+        HostDao hostDao = Mockito.mock(HostDao.class);
+        StoragePoolHostDao poolHostDao = Mockito.mock(StoragePoolHostDao.class);
+        ClusterDetailsDao clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class);
+        Mockito.when(hostDao.listByType(Host.Type.Routing)).thenReturn(hosts);
+        Mockito.when(poolHostDao.listAll()).thenReturn(poolHosts);
+        EndPointHostView view = new EndPointHostView();
+        view._hostDao = hostDao;
+        view._poolHostDao = poolHostDao;
+        view._clusterDetailsDao = clusterDetailsDao;
+        view.setReloadInterval(30);
+        view.reload();
+
+        for (int i = 0; i < commands; i++) {
+            inFlight[(int)selector.chooseLeastLoaded(view.listHosts(100L, null)).getId()]++;
+        }
+
+        // one round trip per table when the view is loaded and none per selection, which used to run ORDER BY rand()
+        Mockito.verify(hostDao, Mockito.times(1)).listByType(Host.Type.Routing);
+        Mockito.verify(poolHostDao, Mockito.times(1)).listAll();
+        Mockito.verify(clusterDetailsDao, Mockito.times(1)).findDetail(Matchers.anyLong(), Matchers.anyString());
+        Assert.assertEquals(commands, view.getStats().getHits());
+        Assert.assertEquals(0, view.getStats().getMisses());
+        // the in flight counts of two hosts are looked up per selection, whatever the number of hosts
+        Assert.assertEquals(2 * commands, loadLookups.get());
+        int max = 0;
+        for (int count : inFlight) {
+            max = Math.max(max, count);
+        }
+        Assert.assertTrue("most loaded host had " + max + " commands", max <= commands / hostCount + 5);
+    }
+}
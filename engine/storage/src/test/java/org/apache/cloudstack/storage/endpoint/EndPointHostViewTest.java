@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.ClusterScope;
+import org.apache.cloudstack.engine.subsystem.api.storage.Scope;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.cloud.capacity.CapacityManager;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.StoragePoolHostVO;
+import com.cloud.storage.dao.StoragePoolHostDao;
+import com.cloud.utils.fsm.StateMachine2;
+
+public class EndPointHostViewTest {
+    private final HostDao hostDao = Mockito.mock(HostDao.class);
+    private final StoragePoolHostDao poolHostDao = Mockito.mock(StoragePoolHostDao.class);
+    private final ClusterDetailsDao clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class);
+    private EndPointHostView view;
+
+    private static HostVO host(long id, long clusterId, Status status, ResourceState state) {
+        HostVO host = Mockito.mock(HostVO.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getClusterId()).thenReturn(clusterId);
+        Mockito.when(host.getDataCenterId()).thenReturn(1L);
+        Mockito.when(host.getStatus()).thenReturn(status);
+        Mockito.when(host.getResourceState()).thenReturn(state);
+        return host;
+    }
+
+    private static List<Long> ids(List<HostVO> hosts) {
+        List<Long> ids = new ArrayList<Long>();
+        for (HostVO host : hosts) {
+            ids.add(host.getId());
+        }
+        return ids;
+    }
+
+    @Before
+    public void setUp() {
+        view = new EndPointHostView();
+        view._hostDao = hostDao;
+        view._poolHostDao = poolHostDao;
+        view._clusterDetailsDao = clusterDetailsDao;
+        view.setReloadInterval(30);
+
+        List<HostVO> hosts = Arrays.asList(host(1L, 10L, Status.Up, ResourceState.Enabled), host(2L, 20L, Status.Up, ResourceState.Enabled),
+                host(3L, 10L, Status.Down, ResourceState.Enabled), host(4L, 10L, Status.Up, ResourceState.Maintenance), host(5L, 30L, Status.Up, ResourceState.Enabled));
+        Mockito.when(hostDao.listByType(Host.Type.Routing)).thenReturn(hosts);
+        ClusterDetailsVO excluded = Mockito.mock(ClusterDetailsVO.class);
+        Mockito.when(excluded.getValue()).thenReturn("true");
+        Mockito.when(clusterDetailsDao.findDetail(30L, CapacityManager.StorageOperationsExcludeCluster.key())).thenReturn(excluded);
+        List<StoragePoolHostVO> poolHosts = new ArrayList<StoragePoolHostVO>();
+        for (long hostId = 1; hostId <= 5; hostId++) {
+            poolHosts.add(new StoragePoolHostVO(100L, hostId, null));
+        }
+        Mockito.when(poolHostDao.listAll()).thenReturn(poolHosts);
+    }
+
+    @Test
+    public void testOnlyUsableHostsOfThePoolInScopeAreListed() {
+        Assert.assertNull(view.listHosts(100L, null));
+
+        view.reload();
+        Assert.assertEquals(Arrays.asList(1L, 2L), ids(view.listHosts(100L, null)));
+        Scope cluster = new ClusterScope(10L, null, 1L);
+        Assert.assertEquals(Arrays.asList(1L), ids(view.listHosts(100L, cluster)));
+        Assert.assertTrue(view.listHosts(200L, null).isEmpty());
+        Assert.assertEquals(1, view.getStats().getMisses());
+        Mockito.verify(clusterDetailsDao, Mockito.times(3)).findDetail(Matchers.anyLong(), Matchers.anyString());
+    }
+
+    @Test
+    public void testHostLeavingUpIsDroppedUntilItIsBack() {
+        view.reload();
+        HostVO host = host(1L, 10L, Status.Up, ResourceState.Enabled);
+        view.new HostStatusListener().postStateTransitionEvent(new StateMachine2.Transition<Status, Status.Event>(Status.Up, Status.Event.AgentDisconnected,
+                Status.Alert, null), host, true, null);
+        Assert.assertEquals(Arrays.asList(2L), ids(view.listHosts(100L, null)));
+
+        view.new HostStatusListener().postStateTransitionEvent(new StateMachine2.Transition<Status, Status.Event>(Status.Connecting, Status.Event.Ready,
+                Status.Up, null), host, true, null);
+        Assert.assertEquals(Arrays.asList(1L, 2L), ids(view.listHosts(100L, null)));
+    }
+}
@@ -47,6 +47,15 @@ public interface ClusterManager extends Manager {
      */
     void broadcast(long agentId, String cmds);
 
+    /**
+     * Publish an event on the message bus of all of the other management server nodes.
+     * The event is delivered with local scope on the peers, callers that also need the
+     * event on this node publish it on the local message bus themselves.
+     * @param subject message bus subject
+     * @param args event argument, delivered to the peer subscribers as a string
+     */
+    void publishEvent(String subject, String args);
+
     void registerListener(ClusterManagerListener listener);
 
     void unregisterListener(ClusterManagerListener listener);
@@ -44,6 +44,8 @@ import org.apache.cloudstack.management.ManagementServerHost;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.apache.log4j.Logger;
@@ -67,6 +69,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.NetUtils;
+import com.google.gson.Gson;
 
 public class ClusterManagerImpl extends ManagerBase implements ClusterManager, Configurable {
     private static final Logger s_logger = Logger.getLogger(ClusterManagerImpl.class);
@@ -101,6 +104,11 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     protected Dispatcher _dispatcher;
 
+    @Inject
+    protected MessageBus _messageBus;
+
+    private static final Gson s_gson = new Gson();
+
     //
     // pay attention to _mshostId and _msid
     // _mshostId is the primary key of management host table
@@ -312,6 +320,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                             } else {
                                 s_logger.warn("Original request has already been cancelled. pdu: " + pdu.getJsonPackage());
                             }
+                        } else if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_EVENT) {
+                            onClusterEvent(pdu);
                         } else {
                             String result = _dispatcher.dispatch(pdu);
                             if (result == null) {
@@ -375,6 +385,47 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
+    public void publishEvent(final String subject, final String args) {
+        final String eventPackage = s_gson.toJson(new String[] {subject, args});
+        final Date cutTime = DateUtil.currentGMTTime();
+
+        final List<ManagementServerHostVO> peers = _mshostDao.getActiveList(new Date(cutTime.getTime() - HeartbeatThreshold.value()));
+        for (final ManagementServerHostVO peer : peers) {
+            final String peerName = Long.toString(peer.getMsid());
+            if (getSelfPeerName().equals(peerName)) {
+                continue;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Publishing event " + subject + " to " + peer.getMsid());
+            }
+            final ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setSourcePeer(getSelfPeerName());
+            pdu.setDestPeer(peerName);
+            pdu.setJsonPackage(eventPackage);
+            pdu.setPduType(ClusterServicePdu.PDU_TYPE_EVENT);
+            addOutgoingClusterPdu(pdu);
+        }
+    }
+
+    private void onClusterEvent(final ClusterServicePdu pdu) {
+        final String[] event;
+        try {
+            event = s_gson.fromJson(pdu.getJsonPackage(), String[].class);
+        } catch (final Exception e) {
+            s_logger.warn("Unable to decode cluster event from " + pdu.getSourcePeer() + ": " + pdu.getJsonPackage(), e);
+            return;
+        }
+        if (event == null || event.length != 2 || event[0] == null) {
+            s_logger.warn("Ignoring malformed cluster event from " + pdu.getSourcePeer() + ": " + pdu.getJsonPackage());
+            return;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Received cluster event " + event[0] + " from " + pdu.getSourcePeer());
+        }
+        _messageBus.publish(pdu.getSourcePeer(), event[0], PublishScope.LOCAL, event[1]);
+    }
+
     public void executeAsync(final String strPeer, final long agentId, final String cmds, final boolean stopOnError) {
         final ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
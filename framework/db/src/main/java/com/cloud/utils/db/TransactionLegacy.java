@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -96,6 +97,8 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final List<Runnable> _afterCompletion = new ArrayList<Runnable>();
+    private final List<Runnable> _afterCommit = new ArrayList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -285,6 +288,54 @@ public class TransactionLegacy implements Closeable {
         return txn.detach(name);
     }
 
+    /**
+     * Runs the task once the database transaction of this thread is over, committed or rolled back, or right away when
+     * the thread is not in a transaction. This is for what others must not act upon before the changes are visible,
+     * such as dropping the changed rows from caches.
+     */
+    public static void runAfterCompletion(final Runnable task) {
+        final TransactionLegacy txn = tls.get();
+        if (txn == null || !txn._txn) {
+            task.run();
+        } else {
+            txn._afterCompletion.add(task);
+        }
+    }
+
+    /**
+     * Runs the task once the database transaction of this thread is committed, or right away when the thread is not in
+     * a transaction. The task is dropped when the transaction is rolled back. This is for what must only ever reflect
+     * committed changes, such as putting the changed rows in caches.
+     */
+    public static void runAfterCommit(final Runnable task) {
+        final TransactionLegacy txn = tls.get();
+        if (txn == null || !txn._txn) {
+            task.run();
+        } else {
+            txn._afterCommit.add(task);
+        }
+    }
+
+    protected void afterCompletion(final boolean committed) {
+        if (_afterCompletion.isEmpty() && _afterCommit.isEmpty()) {
+            return;
+        }
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        if (committed) {
+            tasks.addAll(_afterCommit);
+        }
+        tasks.addAll(_afterCompletion);
+        _afterCommit.clear();
+        _afterCompletion.clear();
+        for (final Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (final Exception e) {
+                s_logger.warn("Unable to run " + task + " after the transaction " + _name, e);
+            }
+        }
+    }
+
     protected static boolean checkAnnotation(int stack, TransactionLegacy txn) {
         final StackTraceElement[] stacks = Thread.currentThread().getStackTrace();
         StackElement se = txn.peekInStack(CURRENT_TXN);
@@ -467,6 +518,7 @@ public class TransactionLegacy implements Closeable {
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql);
+        StatementCounter.prepared();
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -487,6 +539,7 @@ public class TransactionLegacy implements Closeable {
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        StatementCounter.prepared();
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -509,6 +562,7 @@ public class TransactionLegacy implements Closeable {
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
+        StatementCounter.prepared();
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -530,6 +584,7 @@ public class TransactionLegacy implements Closeable {
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        StatementCounter.prepared();
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -641,6 +696,7 @@ public class TransactionLegacy implements Closeable {
             rollbackTransaction();
         }
         _txn = false;
+        afterCompletion(false);
         _name = null;
 
         closeConnection();
@@ -728,9 +784,11 @@ public class TransactionLegacy implements Closeable {
         }
 
         _txn = false;
+        boolean committed = _conn == null;
         try {
             if (_conn != null) {
                 _conn.commit();
+                committed = true;
                 s_logger.trace("txn: DB Changes committed. Time = " + (System.currentTimeMillis() - _txnTime));
                 clearLockTimes();
                 closeConnection();
@@ -739,6 +797,8 @@ public class TransactionLegacy implements Closeable {
         } catch (final SQLException e) {
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
+        } finally {
+            afterCompletion(committed);
         }
     }
 
@@ -856,6 +916,7 @@ public class TransactionLegacy implements Closeable {
         } catch (final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        afterCompletion(false);
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -870,6 +931,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            afterCompletion(false);
         }
     }
 
@@ -921,6 +983,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            afterCompletion(false);
         }
     }
 
@@ -0,0 +1,143 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.acl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+
+/**
+ * The ordered permissions of a role, compiled once so that evaluating them on every API call does not allocate.
+ *
+ * The decision for every API known at compile time is precomputed, any other command name is evaluated against
+ * the rules in order with a case insensitive glob matcher that has the same semantics as {@link Rule#matches(String)}.
+ */
+public final class CompiledRolePermissions {
+
+    public enum Decision {
+        ALLOW, DENY, UNAVAILABLE
+    }
+
+    private final long roleId;
+    private final RoleType roleType;
+    private final char[][] rules;
+    private final boolean[] allowed;
+    private final Set<String> annotatedApis;
+    private final Map<String, Decision> decisions;
+
+    public CompiledRolePermissions(final Role role, final List<RolePermission> permissions, final Set<String> annotatedApis, final Collection<String> apiNames) {
+        this.roleId = role.getId();
+        this.roleType = role.getRoleType();
+        this.rules = new char[permissions.size()][];
+        this.allowed = new boolean[permissions.size()];
+        for (int i = 0; i < permissions.size(); i++) {
+            final RolePermission permission = permissions.get(i);
+            rules[i] = permission.getRule().getRuleString().toLowerCase(Locale.ROOT).toCharArray();
+            allowed[i] = RolePermission.Permission.ALLOW.equals(permission.getPermission());
+        }
+        this.annotatedApis = annotatedApis == null ? Collections.<String>emptySet() : annotatedApis;
+        this.decisions = new HashMap<>(apiNames.size() * 2);
+        for (final String apiName : apiNames) {
+            decisions.put(apiName, evaluateRules(apiName));
+        }
+    }
+
+    public long getRoleId() {
+        return roleId;
+    }
+
+    public RoleType getRoleType() {
+        return roleType;
+    }
+
+    public Decision evaluate(final String commandName) {
+        final Decision decision = commandName == null ? null : decisions.get(commandName);
+        if (decision != null) {
+            return decision;
+        }
+        return evaluateRules(commandName);
+    }
+
+    /**
+     * @return true if the decision for the command was made at compile time, so evaluating it matches no rule
+     */
+    boolean isPrecomputed(final String commandName) {
+        return decisions.containsKey(commandName);
+    }
+
+    private Decision evaluateRules(final String commandName) {
+        if (!Strings.isNullOrEmpty(commandName) && isWord(commandName)) {
+            for (int i = 0; i < rules.length; i++) {
+                if (matches(rules[i], commandName)) {
+                    return allowed[i] ? Decision.ALLOW : Decision.DENY;
+                }
+            }
+        }
+        if (commandName != null && annotatedApis.contains(commandName)) {
+            return Decision.ALLOW;
+        }
+        return Decision.UNAVAILABLE;
+    }
+
+    private static boolean isWordChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // rules only hold letters, digits and '*' which stands for \w*, so a name with any other character never matches
+    private static boolean isWord(final String commandName) {
+        for (int i = 0; i < commandName.length(); i++) {
+            if (!isWordChar(commandName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Full match of a lower case glob pattern against a name, backtracking to the last '*' on mismatch.
+     */
+    static boolean matches(final char[] pattern, final String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int starMatch = 0;
+        while (n < name.length()) {
+            if (p < pattern.length && pattern[p] != '*' && pattern[p] == Character.toLowerCase(name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length && pattern[p] == '*') {
+                star = p++;
+                starMatch = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length && pattern[p] == '*') {
+            p++;
+        }
+        return p == pattern.length;
+    }
+}
@@ -21,12 +21,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import com.cloud.exception.UnavailableCommandException;
 import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.log4j.Logger;
 
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.user.Account;
@@ -38,13 +44,22 @@ import com.google.common.base.Strings;
 
 public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements APIAclChecker {
 
+    private static final Logger LOGGER = Logger.getLogger(DynamicRoleBasedAPIAccessChecker.class);
+
     @Inject
     private AccountService accountService;
     @Inject
     private RoleService roleService;
+    @Inject
+    private MessageBus messageBus;
 
     private List<PluggableService> services;
     private Map<RoleType, Set<String>> annotationRoleBasedApisMap = new HashMap<>();
+    private Set<String> apiNames = new HashSet<>();
+
+    private final ConcurrentMap<Long, CompiledRolePermissions> compiledRoles = new ConcurrentHashMap<>();
+    // bumped on every invalidation so that a role compiled concurrently with a change is not cached
+    private final AtomicLong rolesGeneration = new AtomicLong();
 
     protected DynamicRoleBasedAPIAccessChecker() {
         super();
@@ -71,37 +86,65 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
             throw new PermissionDeniedException("The account id=" + user.getAccountId() + "for user id=" + user.getId() + "is null");
         }
 
-        final Role accountRole = roleService.findRole(account.getRoleId());
-        if (accountRole == null || accountRole.getId() < 1L) {
+        final CompiledRolePermissions accountRole = getCompiledRole(account.getRoleId());
+        if (accountRole == null) {
             denyApiAccess(commandName);
         }
 
         // Allow all APIs for root admins
-        if (accountRole.getRoleType() == RoleType.Admin && accountRole.getId() == RoleType.Admin.getId()) {
+        if (accountRole.getRoleType() == RoleType.Admin && accountRole.getRoleId() == RoleType.Admin.getId()) {
             return true;
         }
 
-        // Check against current list of permissions
-        for (final RolePermission permission : roleService.findAllPermissionsBy(accountRole.getId())) {
-            if (permission.getRule().matches(commandName)) {
-                if (RolePermission.Permission.ALLOW.equals(permission.getPermission())) {
-                    return true;
-                } else {
-                    denyApiAccess(commandName);
-                }
-            }
-        }
-
-        // Check annotations
-        if (annotationRoleBasedApisMap.get(accountRole.getRoleType()) != null
-                && annotationRoleBasedApisMap.get(accountRole.getRoleType()).contains(commandName)) {
-            return true;
+        // Check against the role permissions, falling back to the annotations
+        switch (accountRole.evaluate(commandName)) {
+            case ALLOW:
+                return true;
+            case DENY:
+                denyApiAccess(commandName);
+                break;
+            default:
+                break;
         }
 
         // Default deny all
         throw new UnavailableCommandException("The API " + commandName + " does not exist or is not available for this account.");
     }
 
+    protected CompiledRolePermissions getCompiledRole(final Long roleId) {
+        if (roleId == null) {
+            return null;
+        }
+        CompiledRolePermissions compiledRole = compiledRoles.get(roleId);
+        if (compiledRole != null) {
+            return compiledRole;
+        }
+
+        final long generation = rolesGeneration.get();
+        final Role role = roleService.findRole(roleId);
+        if (role == null || role.getId() < 1L) {
+            return null;
+        }
+        compiledRole = new CompiledRolePermissions(role, roleService.findAllPermissionsBy(role.getId()),
+                annotationRoleBasedApisMap.get(role.getRoleType()), apiNames);
+        if (rolesGeneration.get() == generation) {
+            compiledRoles.put(roleId, compiledRole);
+        }
+        return compiledRole;
+    }
+
+    /**
+     * Drops the compiled permissions of a role, or of all roles when roleId is null.
+     */
+    public void invalidateRole(final Long roleId) {
+        rolesGeneration.incrementAndGet();
+        if (roleId == null) {
+            compiledRoles.clear();
+        } else {
+            compiledRoles.remove(roleId);
+        }
+    }
+
     public void addApiToRoleBasedAnnotationsMap(final RoleType roleType, final String commandName) {
         if (roleType == null || Strings.isNullOrEmpty(commandName)) {
             return;
@@ -109,12 +152,25 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
         final Set<String> commands = annotationRoleBasedApisMap.get(roleType);
         if (commands != null && !commands.contains(commandName)) {
             commands.add(commandName);
+            invalidateRole(null);
         }
     }
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
+        messageBus.subscribe(RoleService.MESSAGE_ROLE_PERMISSIONS_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                Long roleId = null;
+                try {
+                    roleId = args == null ? null : Long.valueOf(args.toString());
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid role id " + args + " in role permissions change event, dropping all compiled roles");
+                }
+                invalidateRole(roleId);
+            }
+        });
         return true;
     }
 
@@ -123,11 +179,13 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
         for (PluggableService service : services) {
             for (Class<?> clz : service.getCommands()) {
                 APICommand command = clz.getAnnotation(APICommand.class);
+                apiNames.add(command.name());
                 for (RoleType role : command.authorized()) {
                     addApiToRoleBasedAnnotationsMap(role, command.name());
                 }
             }
         }
+        invalidateRole(null);
         return super.start();
     }
 
@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.acl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledRolePermissionsTest {
+
+    private static final List<String> RULES = Arrays.asList("listVirtualMachines", "list*", "*Vm*", "*", "create*Network*", "a*b*c", "deploy**", "x");
+    private static final List<String> NAMES = Arrays.asList("listVirtualMachines", "ListVIRTUALmachines", "listHosts", "lis", "startVm", "vm",
+            "createNetwork", "createVPCNetworkACL", "createNet", "abc", "aXbYc", "abcd", "deployVirtualMachine", "x", "xy", "list-hosts", "list_hosts", "");
+
+    private int ruleMatches;
+
+    @Test
+    public void testMatchesHasRuleSemantics() {
+        for (final String rule : RULES) {
+            final char[] pattern = rule.toLowerCase(Locale.ROOT).toCharArray();
+            for (final String name : NAMES) {
+                final boolean expected = new Rule(rule).matches(name);
+                final CompiledRolePermissions compiled = new CompiledRolePermissions(new RoleVO(4L, "role", RoleType.User, null),
+                        Collections.<RolePermission>singletonList(new RolePermissionVO(4L, rule, RolePermission.Permission.ALLOW, null)),
+                        null, Collections.<String>emptyList());
+                Assert.assertEquals("rule " + rule + " on " + name, expected,
+                        compiled.evaluate(name) == CompiledRolePermissions.Decision.ALLOW);
+                if (!name.isEmpty() && name.matches("\\w+")) {
+                    Assert.assertEquals("rule " + rule + " on " + name, expected, CompiledRolePermissions.matches(pattern, name));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFirstMatchingRuleWins() {
+        final List<RolePermission> permissions = Arrays.<RolePermission>asList(
+                new RolePermissionVO(4L, "listHosts", RolePermission.Permission.DENY, null),
+                new RolePermissionVO(4L, "list*", RolePermission.Permission.ALLOW, null));
+        final CompiledRolePermissions compiled = new CompiledRolePermissions(new RoleVO(4L, "role", RoleType.User, null), permissions,
+                Collections.singleton("annotatedApi"), Arrays.asList("listHosts", "listZones", "annotatedApi", "deleteHost"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.DENY, compiled.evaluate("listHosts"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("listZones"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("annotatedApi"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.UNAVAILABLE, compiled.evaluate("deleteHost"));
+        // not known at compile time
+        Assert.assertEquals(CompiledRolePermissions.Decision.DENY, compiled.evaluate("LISTHOSTS"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("listPods"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.UNAVAILABLE, compiled.evaluate(null));
+    }
+
+    @Test
+    public void testRulesAreMatchedTheSameInEveryLocale() {
+        final Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            final CompiledRolePermissions compiled = new CompiledRolePermissions(new RoleVO(4L, "role", RoleType.User, null),
+                    Collections.<RolePermission>singletonList(new RolePermissionVO(4L, "listISOs", RolePermission.Permission.ALLOW, null)),
+                    null, Collections.singletonList("listIsos"));
+            Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("listIsos"));
+            Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("LISTISOS"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private RolePermission.Permission evaluateWithRules(final List<RolePermission> permissions, final String commandName) {
+        for (final RolePermission permission : permissions) {
+            ruleMatches++;
+            if (permission.getRule().matches(commandName)) {
+                return permission.getPermission();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testRoleWithManyRulesBenchmark() {
+        final List<RolePermission> permissions = new ArrayList<>();
+        final List<String> apiNames = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            permissions.add(new RolePermissionVO(4L, "api" + i + "*", i % 2 == 0 ? RolePermission.Permission.ALLOW : RolePermission.Permission.DENY, null));
+            apiNames.add("api" + i + "List");
+        }
+        permissions.add(new RolePermissionVO(4L, "*", RolePermission.Permission.ALLOW, null));
+        apiNames.add("lastMatchingApi");
+        final CompiledRolePermissions compiled = new CompiledRolePermissions(new RoleVO(4L, "role", RoleType.User, null), permissions, null, apiNames);
+
+        Assert.assertEquals(RolePermission.Permission.ALLOW, evaluateWithRules(permissions, "lastMatchingApi"));
+        Assert.assertEquals(permissions.size(), ruleMatches);
+
+        // the decision of every known api is looked up, none of them matches a rule when evaluated
+        for (final String apiName : apiNames) {
+            Assert.assertTrue(apiName, compiled.isPrecomputed(apiName));
+            Assert.assertEquals(apiName, evaluateWithRules(permissions, apiName) == RolePermission.Permission.ALLOW,
+                    compiled.evaluate(apiName) == CompiledRolePermissions.Decision.ALLOW);
+        }
+        Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("lastMatchingApi"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.DENY, compiled.evaluate("api1List"));
+
+        Assert.assertFalse(compiled.isPrecomputed("unknownApi"));
+        Assert.assertEquals(CompiledRolePermissions.Decision.ALLOW, compiled.evaluate("unknownApi"));
+    }
+}
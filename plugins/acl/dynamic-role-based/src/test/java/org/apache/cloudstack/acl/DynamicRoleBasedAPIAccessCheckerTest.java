@@ -161,4 +161,33 @@ public class DynamicRoleBasedAPIAccessCheckerTest extends TestCase {
         assertTrue(apiAccessChecker.checkAccess(getTestUser(), allowedApiName));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testCompiledRoleIsCached() {
+        final String allowedApiName = "someAllowedApi";
+        final RolePermission permission = new RolePermissionVO(1L, "some*", RolePermission.Permission.ALLOW, null);
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(permission));
+        assertTrue(apiAccessChecker.checkAccess(getTestUser(), allowedApiName));
+        assertTrue(apiAccessChecker.checkAccess(getTestUser(), allowedApiName));
+        Mockito.verify(roleService, Mockito.times(1)).findRole(Mockito.anyLong());
+        Mockito.verify(roleService, Mockito.times(1)).findAllPermissionsBy(Mockito.anyLong());
+    }
+
+    @Test
+    public void testInvalidateRoleRecompilesPermissions() {
+        final String apiName = "someApi";
+        final RolePermission allow = new RolePermissionVO(1L, apiName, RolePermission.Permission.ALLOW, null);
+        final RolePermission deny = new RolePermissionVO(1L, apiName, RolePermission.Permission.DENY, null);
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(allow));
+        assertTrue(apiAccessChecker.checkAccess(getTestUser(), apiName));
+
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(deny));
+        assertTrue(apiAccessChecker.checkAccess(getTestUser(), apiName));
+
+        apiAccessChecker.invalidateRole(getTestAccount().getRoleId());
+        try {
+            apiAccessChecker.checkAccess(getTestUser(), apiName);
+            fail("Exception was expected");
+        } catch (PermissionDeniedException ignored) {
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package org.apache.cloudstack.affinity;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -250,6 +252,21 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
 
     private ExcludeList updateAvoidList(List<DedicatedResourceVO> dedicatedResources, ExcludeList avoidList, DataCenter dc) {
         ExcludeList includeList = new ExcludeList();
+        // the dedications of the pods, clusters and hosts are looked up at once rather than for each of them
+        Map<Long, DedicatedResourceVO> dedicatedPods = new HashMap<Long, DedicatedResourceVO>();
+        Map<Long, DedicatedResourceVO> dedicatedClusters = new HashMap<Long, DedicatedResourceVO>();
+        Map<Long, DedicatedResourceVO> dedicatedHosts = new HashMap<Long, DedicatedResourceVO>();
+        for (DedicatedResourceVO dedicated : _dedicatedDao.listAll()) {
+            if (dedicated.getPodId() != null) {
+                dedicatedPods.put(dedicated.getPodId(), dedicated);
+            }
+            if (dedicated.getClusterId() != null) {
+                dedicatedClusters.put(dedicated.getClusterId(), dedicated);
+            }
+            if (dedicated.getHostId() != null) {
+                dedicatedHosts.put(dedicated.getHostId(), dedicated);
+            }
+        }
         for (DedicatedResourceVO dr : dedicatedResources) {
             if (dr.getHostId() != null) {
                 includeList.addHost(dr.getHostId());
@@ -263,7 +280,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this in includeList
                 List<HostVO> hostList = _hostDao.findByClusterId(dr.getClusterId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedicatedHosts.get(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -279,7 +296,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all cluster under this pod in includeList
                 List<ClusterVO> clusterList = _clusterDao.listByPodId(dr.getPodId());
                 for (ClusterVO cluster : clusterList) {
-                    DedicatedResourceVO dCluster = _dedicatedDao.findByClusterId(cluster.getId());
+                    DedicatedResourceVO dCluster = dedicatedClusters.get(cluster.getId());
                     if (dCluster != null && !dedicatedResources.contains(dCluster)) {
                         avoidList.addCluster(cluster.getId());
                     } else {
@@ -289,7 +306,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this pod in includeList
                 List<HostVO> hostList = _hostDao.findByPodId(dr.getPodId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedicatedHosts.get(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -303,7 +320,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all Pod under this data center in includeList
                 List<HostPodVO> podList = _podDao.listByDataCenterId(dr.getDataCenterId());
                 for (HostPodVO pod : podList) {
-                    DedicatedResourceVO dPod = _dedicatedDao.findByPodId(pod.getId());
+                    DedicatedResourceVO dPod = dedicatedPods.get(pod.getId());
                     if (dPod != null && !dedicatedResources.contains(dPod)) {
                         avoidList.addPod(pod.getId());
                     } else {
@@ -312,7 +329,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 }
                 List<ClusterVO> clusterList = _clusterDao.listClustersByDcId(dr.getDataCenterId());
                 for (ClusterVO cluster : clusterList) {
-                    DedicatedResourceVO dCluster = _dedicatedDao.findByClusterId(cluster.getId());
+                    DedicatedResourceVO dCluster = dedicatedClusters.get(cluster.getId());
                     if (dCluster != null && !dedicatedResources.contains(dCluster)) {
                         avoidList.addCluster(cluster.getId());
                     } else {
@@ -322,7 +339,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this in includeList
                 List<HostVO> hostList = _hostDao.listByDataCenterId(dr.getDataCenterId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedicatedHosts.get(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -18,6 +18,7 @@ package org.apache.cloudstack.affinity;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -37,6 +38,7 @@ import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.db.SearchCriteria;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineProfile;
@@ -61,13 +63,23 @@ public class HostAntiAffinityProcessor extends AffinityProcessorBase implements
     @Inject
     protected VMReservationDao _reservationDao;
 
+    @Inject
+    protected AffinityGroupHostIndex _affinityGroupHostIndex;
+
     @Override
     public void process(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoid) throws AffinityConflictException {
         VirtualMachine vm = vmProfile.getVirtualMachine();
         List<AffinityGroupVMMapVO> vmGroupMappings = _affinityGroupVMMapDao.findByVmIdType(vm.getId(), getType());
 
         for (AffinityGroupVMMapVO vmGroupMapping : vmGroupMappings) {
-            if (vmGroupMapping != null) {
+            if (vmGroupMapping != null && _affinityGroupHostIndex.isEnabled()) {
+                Set<Long> occupiedHostIds = _affinityGroupHostIndex.getOccupiedHosts(vmGroupMapping.getAffinityGroupId(), vm.getId());
+                avoid.addHostList(occupiedHostIds);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Added hosts " + occupiedHostIds + " to avoid set, since VMs of affinity group " + vmGroupMapping.getAffinityGroupId() +
+                        " are present on or reserved capacity on the hosts");
+                }
+            } else if (vmGroupMapping != null) {
                 AffinityGroupVO group = _affinityGroupDao.findById(vmGroupMapping.getAffinityGroupId());
 
                 if (s_logger.isDebugEnabled()) {
@@ -76,10 +88,14 @@ public class HostAntiAffinityProcessor extends AffinityProcessorBase implements
 
                 List<Long> groupVMIds = _affinityGroupVMMapDao.listVmIdsByAffinityGroup(group.getId());
                 groupVMIds.remove(vm.getId());
+                if (groupVMIds.isEmpty()) {
+                    continue;
+                }
 
-                for (Long groupVMId : groupVMIds) {
-                    VMInstanceVO groupVM = _vmInstanceDao.findById(groupVMId);
-                    if (groupVM != null && !groupVM.isRemoved()) {
+                SearchCriteria<VMInstanceVO> sc = _vmInstanceDao.createSearchCriteria();
+                sc.addAnd("id", SearchCriteria.Op.IN, groupVMIds.toArray());
+                for (VMInstanceVO groupVM : _vmInstanceDao.search(sc, null)) {
+                    if (!groupVM.isRemoved()) {
                         if (groupVM.getHostId() != null) {
                             avoid.addHost(groupVM.getHostId());
                             if (s_logger.isDebugEnabled()) {
@@ -122,23 +138,44 @@ public class HostAntiAffinityProcessor extends AffinityProcessorBase implements
         List<AffinityGroupVMMapVO> vmGroupMappings = _affinityGroupVMMapDao.findByVmIdType(vm.getId(), getType());
 
         for (AffinityGroupVMMapVO vmGroupMapping : vmGroupMappings) {
+            if (_affinityGroupHostIndex.isEnabled()) {
+                // the group was refreshed at the placement version the reservation is made at, so the index knows the
+                // reservations of the other management servers
+                if (!_affinityGroupHostIndex.claimHost(vmGroupMapping.getAffinityGroupId(), vm.getId(), plannedHostId)) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Planned destination for VM " + vm.getId() + " conflicts with a VM of affinity group " + vmGroupMapping.getAffinityGroupId() +
+                            " on, reserved or claimed on the same host " + plannedHostId);
+                    }
+                    return false;
+                }
+                continue;
+            }
+
             // if more than 1 VM's are present in the group then check for
             // conflict due to parallel deployment
             List<Long> groupVMIds = _affinityGroupVMMapDao.listVmIdsByAffinityGroup(vmGroupMapping.getAffinityGroupId());
             groupVMIds.remove(vm.getId());
+            if (groupVMIds.isEmpty()) {
+                continue;
+            }
 
-            for (Long groupVMId : groupVMIds) {
-                VMReservationVO vmReservation = _reservationDao.findByVmId(groupVMId);
-                if (vmReservation != null && vmReservation.getHostId() != null && vmReservation.getHostId().equals(plannedHostId)) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Planned destination for VM " + vm.getId() + " conflicts with an existing VM " + vmReservation.getVmId() +
-                            " reserved on the same host " + plannedHostId);
-                    }
-                    return false;
+            SearchCriteria<VMReservationVO> sc = _reservationDao.createSearchCriteria();
+            sc.addAnd("vmId", SearchCriteria.Op.IN, groupVMIds.toArray());
+            sc.addAnd("hostId", SearchCriteria.Op.EQ, plannedHostId);
+            VMReservationVO vmReservation = _reservationDao.findOneBy(sc);
+            if (vmReservation != null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Planned destination for VM " + vm.getId() + " conflicts with an existing VM " + vmReservation.getVmId() +
+                        " reserved on the same host " + plannedHostId);
                 }
+                return false;
             }
         }
         return true;
     }
 
+    @Override
+    public int getMaxVmsPerHost() {
+        return 1;
+    }
 }
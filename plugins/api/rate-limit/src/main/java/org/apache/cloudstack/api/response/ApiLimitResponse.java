@@ -41,7 +41,7 @@ public class ApiLimitResponse extends BaseResponse {
     private int apiAllowed;
 
     @SerializedName("expireAfter")
-    @Param(description = "seconds left to reset counters")
+    @Param(description = "milliseconds left until the api limit is fully replenished")
     private long expireAfter;
 
     public void setAccountId(String accountId) {
@@ -27,6 +27,17 @@ import com.cloud.utils.component.PluggableService;
  */
 public interface ApiRateLimitService extends PluggableService {
 
+    /**
+     * Sent to the other management servers with the tokens taken locally since the last time, as key=count pairs
+     * separated by ';'
+     */
+    String MESSAGE_API_LIMIT_CONSUMED_EVENT = "Message.ApiLimitConsumed.Event";
+
+    /**
+     * Sent to the other management servers with the id of the account whose limit was reset, or an empty string for all accounts
+     */
+    String MESSAGE_API_LIMIT_RESET_EVENT = "Message.ApiLimitReset.Event";
+
     public ApiLimitResponse searchApiLimit(Account caller);
 
     public boolean resetApiLimit(Long accountId);
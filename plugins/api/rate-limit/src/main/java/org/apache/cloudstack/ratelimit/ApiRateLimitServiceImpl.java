@@ -17,15 +17,19 @@
 package org.apache.cloudstack.ratelimit;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -33,8 +37,14 @@ import org.apache.cloudstack.acl.APIChecker;
 import org.apache.cloudstack.api.command.admin.ratelimit.ResetApiLimitCmd;
 import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
@@ -42,34 +52,71 @@ import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
 import com.cloud.utils.component.AdapterBase;
-
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Limits the API requests of every account, and of every account per class of commands, with token buckets.
+ *
+ * The buckets are checked locally without locking. Every management server periodically sends the tokens it
+ * handed out to the others, which take them from their own buckets, so with N management servers an account
+ * can at most get the requests N - 1 servers allow it within one sync interval above its limit.
+ */
 @Component
-public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService {
+public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService, Configurable {
     private static final Logger s_logger = Logger.getLogger(ApiRateLimitServiceImpl.class);
 
+    static final ConfigKey<String> ApiLimitCommandClasses = new ConfigKey<String>("Advanced", String.class, "api.throttling.command.classes", "",
+            "Comma separated list of pattern=max, e.g. list*=100,deployVirtualMachine=5, limiting every account to max requests per api.throttling.interval "
+                    + "for the commands matching the first pattern they match, on top of api.throttling.max", false);
+
+    static final ConfigKey<Integer> ApiLimitSyncInterval = new ConfigKey<Integer>("Advanced", Integer.class, "api.throttling.sync.interval", "1000",
+            "Interval in milliseconds at which every management server shares the API requests it allowed with the other management servers", false);
+
+    private static final String ACCOUNT_LIMIT = "account";
+    private static final int MAX_CACHED_COMMANDS = 4096;
+
     /**
      * True if api rate limiting is enabled
      */
     private boolean enabled = false;
 
     /**
-     * Fixed time duration where api rate limit is set, in seconds
+     * Time in seconds in which an account that used up its api limit gets all of it back
      */
     private int timeToLive = 1;
 
     /**
-     * Max number of api requests during timeToLive duration.
+     * Max number of api requests during timeToLive duration, also the largest burst allowed.
      */
     private int maxAllowed = 30;
 
     private LimitStore _store = null;
 
+    /**
+     * Limits of the command classes by pattern, in configuration order
+     */
+    private Map<String, Integer> commandClassLimits = new LinkedHashMap<String, Integer>();
+    private Map<String, Pattern> commandClassPatterns = new LinkedHashMap<String, Pattern>();
+    // command name to the pattern of its class, or the empty string if it is in none
+    private final ConcurrentMap<String, String> commandClasses = new ConcurrentHashMap<String, String>();
+
+    private final ApiRateLimitStats stats = new ApiRateLimitStats(this);
+
+    private ScheduledExecutorService syncExecutor;
+
     @Inject
     AccountService _accountService;
 
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    MessageBus _messageBus;
+
+    @Inject
+    ClusterManager _clusterMgr;
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
@@ -88,42 +135,145 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
-            // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
-            int maxElements = 10000;
-            String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
-            if (cachesize != null) {
-                maxElements = Integer.parseInt(cachesize);
-            }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements);
-            cacheStore.setCache(cache);
-            _store = cacheStore;
+            setCommandClassLimits(ApiLimitCommandClasses.value());
+            s_logger.info("Limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", commandClasses=" + commandClassLimits);
+            _store = new TokenBucketLimitStore();
+        }
 
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        if (!enabled) {
+            return true;
+        }
+        try {
+            JmxUtil.registerMBean("ApiRateLimitService", "Requests", stats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the MBean of the API rate limiting", e);
         }
 
+        _messageBus.subscribe(MESSAGE_API_LIMIT_CONSUMED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                consumeRemote(args.toString());
+            }
+        });
+        _messageBus.subscribe(MESSAGE_API_LIMIT_RESET_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                resetLocally(args.toString().isEmpty() ? null : Long.valueOf(args.toString()));
+            }
+        });
+
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ApiRateLimitSync"));
+        int syncInterval = Math.max(ApiLimitSyncInterval.value(), 100);
+        syncExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    syncBuckets();
+                } catch (Exception e) {
+                    s_logger.warn("Unable to share the API requests allowed with the other management servers", e);
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
         return true;
     }
 
+    @Override
+    public boolean stop() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    protected void setCommandClassLimits(String spec) {
+        Map<String, Integer> limits = new LinkedHashMap<String, Integer>();
+        Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>();
+        if (spec != null) {
+            for (String entry : spec.split(",")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = entry.split("=");
+                String pattern = parts[0].trim();
+                if (parts.length != 2 || !pattern.matches("[\\w*]+")) {
+                    s_logger.warn("Ignoring invalid API command class limit " + entry + ", expected pattern=max");
+                    continue;
+                }
+                try {
+                    limits.put(pattern, Integer.parseInt(parts[1].trim()));
+                } catch (NumberFormatException e) {
+                    s_logger.warn("Ignoring invalid API command class limit " + entry + ", expected pattern=max");
+                    continue;
+                }
+                patterns.put(pattern, Pattern.compile(pattern.replace("*", "\\w*"), Pattern.CASE_INSENSITIVE));
+            }
+        }
+        commandClassLimits = limits;
+        commandClassPatterns = patterns;
+        commandClasses.clear();
+    }
+
+    private String getCommandClass(String apiCommandName) {
+        if (apiCommandName == null || commandClassPatterns.isEmpty()) {
+            return null;
+        }
+        String commandClass = commandClasses.get(apiCommandName);
+        if (commandClass == null) {
+            commandClass = "";
+            for (Map.Entry<String, Pattern> entry : commandClassPatterns.entrySet()) {
+                if (entry.getValue().matcher(apiCommandName).matches()) {
+                    commandClass = entry.getKey();
+                    break;
+                }
+            }
+            // the command name comes from the request, do not let made up names grow the map without bounds
+            if (commandClasses.size() < MAX_CACHED_COMMANDS) {
+                commandClasses.put(apiCommandName, commandClass);
+            }
+        }
+        return commandClass.isEmpty() ? null : commandClass;
+    }
+
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    private static String bucketKey(long accountId, String commandClass) {
+        return commandClass == null ? String.valueOf(accountId) : accountId + "/" + commandClass;
+    }
+
+    /**
+     * @return the number of requests allowed per interval for the bucket key, or null if the key is not limited here
+     */
+    private Integer getLimit(String key) {
+        int separator = key.indexOf('/');
+        if (separator < 0) {
+            return maxAllowed;
+        }
+        return commandClassLimits.get(key.substring(separator + 1));
+    }
+
     @Override
     public ApiLimitResponse searchApiLimit(Account caller) {
         ApiLimitResponse response = new ApiLimitResponse();
         response.setAccountId(caller.getUuid());
         response.setAccountName(caller.getAccountName());
-        StoreEntry entry = _store.get(caller.getId());
-        if (entry == null) {
-
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(caller.getId(), timeToLive);
+        TokenBucket bucket = _store.peek(bucketKey(caller.getId(), null));
+        long now = now();
+        if (bucket == null || !bucket.hasLimit(maxAllowed, timeToLive)) {
             response.setApiIssued(0);
             response.setApiAllowed(maxAllowed);
-            response.setExpireAfter(timeToLive);
+            response.setExpireAfter(0);
         } else {
-            response.setApiIssued(entry.getCounter());
-            response.setApiAllowed(maxAllowed - entry.getCounter());
-            response.setExpireAfter(entry.getExpireDuration());
+            int available = bucket.getAvailable(now);
+            response.setApiIssued(maxAllowed - available);
+            response.setApiAllowed(available);
+            response.setExpireAfter(TimeUnit.NANOSECONDS.toMillis(bucket.getNanosUntilFull(now)));
         }
 
         return response;
@@ -131,12 +281,19 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
     @Override
     public boolean resetApiLimit(Long accountId) {
+        resetLocally(accountId);
+        if (_clusterMgr != null) {
+            _clusterMgr.publishEvent(MESSAGE_API_LIMIT_RESET_EVENT, accountId == null ? "" : String.valueOf(accountId));
+        }
+        return true;
+    }
+
+    private void resetLocally(Long accountId) {
         if (accountId != null) {
-            _store.create(accountId, timeToLive);
+            _store.reset(accountId);
         } else {
             _store.resetCounters();
         }
-        return true;
     }
 
     @Override
@@ -151,26 +308,78 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             // no API throttling on root admin
             return true;
         }
-        StoreEntry entry = _store.get(accountId);
 
-        if (entry == null) {
+        long now = now();
+        String commandClass = getCommandClass(apiCommandName);
+        TokenBucket classBucket = null;
+        if (commandClass != null) {
+            classBucket = _store.get(bucketKey(accountId, commandClass), commandClassLimits.get(commandClass), timeToLive, now);
+            long wait = classBucket.tryConsume(now);
+            if (wait > 0) {
+                throttle(account, commandClass, wait);
+            }
+        }
+        long wait = _store.get(bucketKey(accountId, null), maxAllowed, timeToLive, now).tryConsume(now);
+        if (wait > 0) {
+            if (classBucket != null) {
+                classBucket.refund();
+            }
+            throttle(account, ACCOUNT_LIMIT, wait);
+        }
 
-            /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(accountId, timeToLive);
+        stats.allowed();
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") is allowed " + apiCommandName);
         }
+        return true;
+    }
 
-        /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
+    private void throttle(Account account, String limit, long waitNanos) {
+        stats.throttled(limit);
 
-        if (current <= maxAllowed) {
-            s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
-            return true;
-        } else {
-            long expireAfter = entry.getExpireDuration();
-            // for this exception, we can just show the same message to user and admin users.
-            String msg = "The given user has reached his/her account api limit, please retry after " + expireAfter + " ms.";
-            s_logger.warn(msg);
-            throw new RequestLimitException(msg);
+        long expireAfter = TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+        // for this exception, we can just show the same message to user and admin users.
+        String msg = "The given user has reached his/her account api limit" + (ACCOUNT_LIMIT.equals(limit) ? "" : " for " + limit) + ", please retry after " + expireAfter + " ms.";
+        s_logger.warn(msg + " Account: " + account.getAccountName());
+        throw new RequestLimitException(msg, (expireAfter + 999) / 1000);
+    }
+
+    /**
+     * Sends the tokens handed out here since the last sync to the other management servers and drops the idle buckets.
+     */
+    protected void syncBuckets() {
+        StringBuilder consumed = new StringBuilder();
+        for (Map.Entry<String, TokenBucket> entry : _store.getBuckets().entrySet()) {
+            int tokens = entry.getValue().drainUnreported();
+            if (tokens > 0) {
+                if (consumed.length() > 0) {
+                    consumed.append(';');
+                }
+                consumed.append(entry.getKey()).append('=').append(tokens);
+            }
+        }
+        if (consumed.length() > 0) {
+            _clusterMgr.publishEvent(MESSAGE_API_LIMIT_CONSUMED_EVENT, consumed.toString());
+        }
+        _store.removeIdle(now());
+    }
+
+    protected void consumeRemote(String consumed) {
+        long now = now();
+        for (String entry : consumed.split(";")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String key = entry.substring(0, separator);
+            Integer limit = getLimit(key);
+            if (limit == null) {
+                continue;
+            }
+            int tokens = Integer.parseInt(entry.substring(separator + 1));
+            // not reported back, the tokens were already shared by the management server that handed them out
+            _store.get(key, limit, timeToLive, now).consumeRemote(tokens, now);
+            stats.consumedRemote(tokens);
         }
     }
 
@@ -199,4 +408,22 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
     }
 
+    int getBucketCount() {
+        return _store.getBuckets().size();
+    }
+
+    ApiRateLimitStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ApiRateLimitService.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ApiLimitCommandClasses, ApiLimitSyncInterval};
+    }
+
 }
@@ -0,0 +1,88 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the API rate limiting, exposed over JMX.
+ */
+public class ApiRateLimitStats extends StandardMBean implements ApiRateLimitMBean {
+    private final ApiRateLimitServiceImpl _service;
+    private final AtomicLong _allowed = new AtomicLong();
+    private final AtomicLong _throttled = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> _throttledByLimit = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong _remoteTokensConsumed = new AtomicLong();
+
+    ApiRateLimitStats(ApiRateLimitServiceImpl service) {
+        super(ApiRateLimitMBean.class, false);
+        _service = service;
+    }
+
+    void allowed() {
+        _allowed.incrementAndGet();
+    }
+
+    void throttled(String limit) {
+        _throttled.incrementAndGet();
+        AtomicLong counter = _throttledByLimit.get(limit);
+        if (counter == null) {
+            _throttledByLimit.putIfAbsent(limit, new AtomicLong());
+            counter = _throttledByLimit.get(limit);
+        }
+        counter.incrementAndGet();
+    }
+
+    void consumedRemote(int tokens) {
+        _remoteTokensConsumed.addAndGet(tokens);
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return _allowed.get();
+    }
+
+    @Override
+    public long getThrottledCount() {
+        return _throttled.get();
+    }
+
+    @Override
+    public Map<String, Long> getThrottledCountByLimit() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : _throttledByLimit.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return _service.getBucketCount();
+    }
+
+    @Override
+    public long getRemoteTokensConsumed() {
+        return _remoteTokensConsumed.get();
+    }
+}
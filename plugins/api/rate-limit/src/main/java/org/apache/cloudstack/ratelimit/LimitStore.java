@@ -16,6 +16,8 @@
 // under the License.
 package org.apache.cloudstack.ratelimit;
 
+import java.util.Map;
+
 /**
  * Interface to define how an api limit store should work.
  *
@@ -23,26 +25,43 @@ package org.apache.cloudstack.ratelimit;
 public interface LimitStore {
 
     /**
-     * Returns a store entry for the given account. A value of null means that there is no
-     * such entry and the calling client must call create to avoid
-     * other clients potentially being blocked without any hope of progressing. A non-null
-     * entry means that it has not expired and can be used to determine whether the current client should be allowed to
-     * proceed with the rate-limited action or not.
+     * Returns the token bucket for the given key, creating a full one if there is no such bucket or if the
+     * existing one was created for another limit.
      *
+     * @param key
+     *            the account, or the account and the command class, the bucket limits
+     * @param capacity
+     *            the number of requests allowed per interval
+     * @param intervalSecs
+     *            the positive time in seconds in which an empty bucket is full again
+     * @param now
+     *            the current {@link System#nanoTime()}
+     * @return a non-null bucket
      */
-    StoreEntry get(Long account);
+    TokenBucket get(String key, int capacity, int intervalSecs, long now);
 
     /**
-     * Creates a new store entry
-     *
-     * @param account
-     *            the user account, key to the store
-     * @param timeToLiveInSecs
-     *            the positive time-to-live in seconds
-     * @return a non-null entry
+     * Returns the token bucket for the given key, or null if all requests are allowed for it.
+     */
+    TokenBucket peek(String key);
+
+    /**
+     * Returns the buckets by key, used to share the tokens taken locally with the other management servers.
+     */
+    Map<String, TokenBucket> getBuckets();
+
+    /**
+     * Drops the buckets of the given account.
      */
-    StoreEntry create(Long account, int timeToLiveInSecs);
+    void reset(long account);
 
     void resetCounters();
 
+    /**
+     * Drops the buckets that are full and have nothing left to share with the other management servers.
+     *
+     * @return the number of buckets dropped
+     */
+    int removeIdle(long now);
+
 }
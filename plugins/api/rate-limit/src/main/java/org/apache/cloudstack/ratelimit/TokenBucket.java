@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket holding up to capacity tokens that refills continuously, an empty bucket is full again after interval.
+ *
+ * The state of the bucket is the single point in time at which it is full again, so taking a token is one compare
+ * and set and never blocks. All times are {@link System#nanoTime()} values.
+ */
+public class TokenBucket {
+
+    private final int capacity;
+    private final long intervalNanos;
+    private final long tokenNanos;
+    private final AtomicLong fullAt;
+    // tokens taken on this management server and not yet shared with the others
+    private final AtomicInteger unreported = new AtomicInteger();
+
+    public TokenBucket(int capacity, int intervalSecs, long now) {
+        this.capacity = capacity;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(Math.max(intervalSecs, 1));
+        this.tokenNanos = capacity > 0 ? intervalNanos / capacity : intervalNanos;
+        this.fullAt = new AtomicLong(now);
+    }
+
+    public boolean hasLimit(int capacity, int intervalSecs) {
+        return this.capacity == capacity && intervalNanos == TimeUnit.SECONDS.toNanos(Math.max(intervalSecs, 1));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 0 if a token was taken, otherwise the nanoseconds until the next token is available
+     */
+    public long tryConsume(long now) {
+        if (capacity <= 0) {
+            return intervalNanos;
+        }
+        while (true) {
+            final long current = fullAt.get();
+            final long next = Math.max(current, now) + tokenNanos;
+            if (next - now > intervalNanos) {
+                return next - now - intervalNanos;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                unreported.incrementAndGet();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryConsume(long)} for a request that was throttled anyway.
+     */
+    public void refund() {
+        fullAt.addAndGet(-tokenNanos);
+        unreported.decrementAndGet();
+    }
+
+    /**
+     * Takes the tokens another management server handed out. Those requests were already served, so the bucket
+     * is emptied at most, it never goes into debt.
+     */
+    public void consumeRemote(int tokens, long now) {
+        while (true) {
+            final long current = fullAt.get();
+            final long next = Math.min(Math.max(current, now) + tokens * tokenNanos, now + intervalNanos);
+            if (next <= current || fullAt.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public int drainUnreported() {
+        return unreported.getAndSet(0);
+    }
+
+    public boolean isIdle(long now) {
+        return unreported.get() == 0 && fullAt.get() - now <= 0;
+    }
+
+    public int getAvailable(long now) {
+        if (capacity <= 0) {
+            return 0;
+        }
+        final long used = Math.max(fullAt.get() - now, 0);
+        return (int)Math.min(capacity, (intervalNanos - used) / tokenNanos);
+    }
+
+    public long getNanosUntilFull(long now) {
+        return Math.max(fullAt.get() - now, 0);
+    }
+}
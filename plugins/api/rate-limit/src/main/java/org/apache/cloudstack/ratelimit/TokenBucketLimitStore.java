@@ -0,0 +1,89 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A Limit store keeping the token buckets in memory. A full bucket is equivalent to no bucket at all, so idle
+ * buckets can be dropped at any time with {@link #removeIdle(long)} to bound the memory used.
+ *
+ */
+public class TokenBucketLimitStore implements LimitStore {
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    @Override
+    public TokenBucket get(String key, int capacity, int intervalSecs, long now) {
+        TokenBucket bucket = buckets.get(key);
+        while (bucket == null || !bucket.hasLimit(capacity, intervalSecs)) {
+            TokenBucket created = new TokenBucket(capacity, intervalSecs, now);
+            if (bucket == null) {
+                bucket = buckets.putIfAbsent(key, created);
+                if (bucket == null) {
+                    return created;
+                }
+            } else if (buckets.replace(key, bucket, created)) {
+                return created;
+            } else {
+                bucket = buckets.get(key);
+            }
+        }
+        return bucket;
+    }
+
+    @Override
+    public TokenBucket peek(String key) {
+        return buckets.get(key);
+    }
+
+    @Override
+    public Map<String, TokenBucket> getBuckets() {
+        return Collections.unmodifiableMap(buckets);
+    }
+
+    @Override
+    public void reset(long account) {
+        String prefix = account + "/";
+        for (Iterator<String> it = buckets.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            if (key.equals(String.valueOf(account)) || key.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void resetCounters() {
+        buckets.clear();
+    }
+
+    @Override
+    public int removeIdle(long now) {
+        int removed = 0;
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            if (entry.getValue().isIdle(now) && buckets.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -19,7 +19,11 @@ package org.apache.cloudstack.ratelimit;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import java.util.Collections;
@@ -35,7 +39,9 @@ import org.junit.Test;
 
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
@@ -46,9 +52,17 @@ import com.cloud.user.UserVO;
 
 public class ApiRateLimitTest {
 
-    static ApiRateLimitServiceImpl s_limitService = new ApiRateLimitServiceImpl();
+    // when set, the time the limit service sees, so refilling does not depend on how fast the test runs
+    static volatile Long s_frozenNow;
+    static ApiRateLimitServiceImpl s_limitService = new ApiRateLimitServiceImpl() {
+        @Override
+        protected long now() {
+            return s_frozenNow != null ? s_frozenNow : super.now();
+        }
+    };
     static AccountService s_accountService = mock(AccountService.class);
     static ConfigurationDao s_configDao = mock(ConfigurationDao.class);
+    static ClusterManager s_clusterMgr = mock(ClusterManager.class);
     private static long s_acctIdSeq = 5L;
     private static Account s_testAccount;
 
@@ -57,13 +71,13 @@ public static void setUp() throws ConfigurationException {
 
         when(s_configDao.getValue(Config.ApiLimitInterval.key())).thenReturn(null);
         when(s_configDao.getValue(Config.ApiLimitMax.key())).thenReturn(null);
-        when(s_configDao.getValue(Config.ApiLimitCacheSize.key())).thenReturn(null);
         when(s_configDao.getValue(Config.ApiLimitEnabled.key())).thenReturn("true"); // enable api rate limiting
         s_limitService._configDao = s_configDao;
 
         s_limitService.configure("ApiRateLimitTest", Collections.<String, Object> emptyMap());
 
         s_limitService._accountService = s_accountService;
+        s_limitService._clusterMgr = s_clusterMgr;
 
         // Standard responses
         AccountVO acct = new AccountVO(s_acctIdSeq);
@@ -88,8 +102,12 @@ public static void setUp() throws ConfigurationException {
     }
 
     private boolean isUnderLimit(User key) {
+        return isUnderLimit(key, null);
+    }
+
+    private boolean isUnderLimit(User key, String apiCommandName) {
         try {
-            s_limitService.checkAccess(key, null);
+            s_limitService.checkAccess(key, apiCommandName);
             return true;
         } catch (RequestLimitException ex) {
             return false;
@@ -116,11 +134,16 @@ public static void setUp() throws ConfigurationException {
 
         User key = createFakeUser();
 
-        for (int i = 0; i < allowedRequests; i++) {
-            assertTrue("We should allow " + allowedRequests + " requests per second, but failed at request " + i, isUnderLimit(key));
-        }
+        s_frozenNow = System.nanoTime();
+        try {
+            for (int i = 0; i < allowedRequests; i++) {
+                assertTrue("We should allow " + allowedRequests + " requests per second, but failed at request " + i, isUnderLimit(key));
+            }
 
-        assertFalse("We should block >" + allowedRequests + " requests per second", isUnderLimit(key));
+            assertFalse("We should block >" + allowedRequests + " requests per second", isUnderLimit(key));
+        } finally {
+            s_frozenNow = null;
+        }
     }
 
     @Test
@@ -250,4 +273,76 @@ public static void setUp() throws ConfigurationException {
 
     }
 
+    @Test
+    public void retryAfterIsReported() throws Exception {
+        s_limitService.setMaxAllowed(1);
+        s_limitService.setTimeToLive(2);
+
+        User key = createFakeUser();
+        assertTrue("The first request should be allowed", isUnderLimit(key));
+        try {
+            s_limitService.checkAccess(key, null);
+            fail("The second request should be blocked");
+        } catch (RequestLimitException e) {
+            assertEquals("The token is back after the interval", 2, e.getRetryAfter());
+        }
+    }
+
+    @Test
+    public void commandClassLimit() throws Exception {
+        try {
+            s_limitService.setMaxAllowed(10);
+            s_limitService.setTimeToLive(1);
+            s_limitService.setCommandClassLimits("deploy*=1, list*=5");
+
+            User key = createFakeUser();
+            assertTrue("The first deploy should be allowed", isUnderLimit(key, "deployVirtualMachine"));
+            assertFalse("The second deploy should be blocked by its command class limit", isUnderLimit(key, "deployVirtualMachine"));
+            assertTrue("Other commands are only limited by the account limit", isUnderLimit(key, "listVirtualMachines"));
+            assertTrue("Other commands are only limited by the account limit", isUnderLimit(key, "startVirtualMachine"));
+
+            ApiLimitResponse response = s_limitService.searchApiLimit(s_testAccount);
+            assertEquals("A request blocked by its command class does not count for the account", 3, response.getApiIssued());
+        } finally {
+            s_limitService.setCommandClassLimits(null);
+        }
+    }
+
+    @Test
+    public void tokensAreSharedWithOtherManagementServers() throws Exception {
+        s_limitService.setMaxAllowed(10);
+        s_limitService.setTimeToLive(1);
+        reset(s_clusterMgr);
+
+        User key = createFakeUser();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(isUnderLimit(key));
+        }
+        s_limitService.syncBuckets();
+        verify(s_clusterMgr).publishEvent(ApiRateLimitService.MESSAGE_API_LIMIT_CONSUMED_EVENT, key.getAccountId() + "=3");
+
+        // another management server allowed 6 requests of the same account
+        s_limitService.consumeRemote(key.getAccountId() + "=6");
+        assertTrue(isUnderLimit(key));
+        assertFalse("The limit is enforced for the whole cluster", isUnderLimit(key));
+    }
+
+    @Test
+    public void disabledLimitDoesNotSync() throws Exception {
+        ApiRateLimitServiceImpl limitService = new ApiRateLimitServiceImpl();
+        ConfigurationDao configDao = mock(ConfigurationDao.class);
+        when(configDao.getValue(Config.ApiLimitEnabled.key())).thenReturn("false");
+        limitService._configDao = configDao;
+        limitService._messageBus = mock(MessageBus.class);
+        limitService._clusterMgr = mock(ClusterManager.class);
+        limitService.configure("ApiRateLimitTest", Collections.<String, Object> emptyMap());
+
+        assertTrue(limitService.start());
+        try {
+            verifyNoMoreInteractions(limitService._messageBus);
+        } finally {
+            limitService.stop();
+        }
+    }
+
 }
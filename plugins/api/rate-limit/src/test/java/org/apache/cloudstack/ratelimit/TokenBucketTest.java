@@ -0,0 +1,100 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void burstUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Request " + i + " should be allowed", 0, bucket.tryConsume(0));
+        }
+        assertEquals("The next token is there after a tenth of the interval", 100 * MS, bucket.tryConsume(0));
+        assertEquals(0, bucket.getAvailable(0));
+        assertEquals(1000 * MS, bucket.getNanosUntilFull(0));
+    }
+
+    @Test
+    public void noBurstAtWindowEdge() {
+        // a fixed window lets 2 x capacity through around the edge of two windows, the bucket only what refilled
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        for (int i = 0; i < 10; i++) {
+            bucket.tryConsume(900 * MS);
+        }
+        int allowed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (bucket.tryConsume(1100 * MS) == 0) {
+                allowed++;
+            }
+        }
+        assertEquals(2, allowed);
+    }
+
+    @Test
+    public void refillsContinuously() {
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        for (int i = 0; i < 10; i++) {
+            bucket.tryConsume(0);
+        }
+        assertEquals(5, bucket.getAvailable(500 * MS));
+        assertFalse(bucket.isIdle(999 * MS));
+        bucket.drainUnreported();
+        assertTrue(bucket.isIdle(1000 * MS));
+        assertEquals(10, bucket.getAvailable(5000 * MS));
+    }
+
+    @Test
+    public void refund() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        assertEquals(0, bucket.tryConsume(0));
+        bucket.refund();
+        assertEquals(0, bucket.drainUnreported());
+        assertEquals(0, bucket.tryConsume(0));
+        assertEquals(1, bucket.drainUnreported());
+    }
+
+    @Test
+    public void remoteTokensEmptyTheBucketAtMost() {
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        bucket.consumeRemote(4, 0);
+        assertEquals(6, bucket.getAvailable(0));
+        assertEquals("Remote tokens are not shared again", 0, bucket.drainUnreported());
+
+        bucket.consumeRemote(100, 0);
+        assertEquals(0, bucket.getAvailable(0));
+        assertEquals("Requests served elsewhere do not put the bucket into debt", 1000 * MS, bucket.getNanosUntilFull(0));
+        assertEquals(0, bucket.tryConsume(100 * MS));
+    }
+
+    @Test
+    public void zeroCapacityDeniesEverything() {
+        TokenBucket bucket = new TokenBucket(0, 1, 0);
+        assertTrue(bucket.tryConsume(0) > 0);
+        assertEquals(0, bucket.getAvailable(0));
+    }
+}
@@ -60,6 +60,7 @@ import org.apache.cloudstack.test.utils.SpringUtils;
 
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.DataCenterVO;
@@ -558,6 +559,11 @@ public class ImplicitPlannerTest {
             return Mockito.mock(CapacityDao.class);
         }
 
+        @Bean
+        public HostCapacityIndex hostCapacityIndex() {
+            return Mockito.mock(HostCapacityIndex.class);
+        }
+
         @Bean
         public AccountManager accountManager() {
             return Mockito.mock(AccountManager.class);
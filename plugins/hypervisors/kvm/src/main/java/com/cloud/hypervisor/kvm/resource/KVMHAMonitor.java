@@ -16,20 +16,37 @@
 // under the License.
 package com.cloud.hypervisor.kvm.resource;
 
+import com.cloud.agent.api.StoragePoolHeartbeatStats;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.script.Script;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
 import org.libvirt.StoragePool;
 import org.libvirt.StoragePoolInfo.StoragePoolState;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class KVMHAMonitor extends KVMHABase implements Runnable {
     private static final Logger s_logger = Logger.getLogger(KVMHAMonitor.class);
@@ -37,6 +54,14 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
 
     private final String _hostIP; /* private ip address */
 
+    // the heartbeats of the pools are written concurrently, a write that hangs on a stalled NFS mount is abandoned after
+    // the heartbeat timeout and no other write is started for its pool until it returns; both executors are sized to
+    // the pools written, plus the pools no longer monitored whose write still hangs
+    private final ThreadPoolExecutor _heartBeatExecutor = newHeartBeatExecutor("KVMHAMonitor-HeartBeat");
+    private final ThreadPoolExecutor _heartBeatWriteExecutor = newHeartBeatExecutor("KVMHAMonitor-HeartBeatWrite");
+    private final Map<String, Future<String>> _pendingWrites = new ConcurrentHashMap<String, Future<String>>();
+    private final ConcurrentMap<String, StoragePoolHeartbeatStats> _heartBeatStats = new ConcurrentHashMap<String, StoragePoolHeartbeatStats>();
+
     public KVMHAMonitor(NfsStoragePool pool, String host, String scriptPath) {
         if (pool != null) {
             _storagePool.put(pool._poolUUID, pool);
@@ -45,6 +70,24 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
         configureHeartBeatPath(scriptPath);
     }
 
+    private static ThreadPoolExecutor newHeartBeatExecutor(String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int threads) {
+        threads = Math.max(1, threads);
+        // the core size may not exceed the maximum size
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
     private static synchronized void configureHeartBeatPath(String scriptPath) {
         KVMHABase.s_heartBeatPath = scriptPath;
     }
@@ -61,6 +104,7 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
             if (pool != null) {
                 Script.runSimpleBashScript("umount " + pool._mountDestPath);
                 _storagePool.remove(uuid);
+                _heartBeatStats.remove(uuid);
             }
         }
     }
@@ -77,10 +121,189 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
         }
     }
 
+    /**
+     * @return a copy of the heartbeat stats of the storage pools, by pool UUID
+     */
+    public Map<String, StoragePoolHeartbeatStats> getHeartbeatStats() {
+        Map<String, StoragePoolHeartbeatStats> stats = new HashMap<String, StoragePoolHeartbeatStats>();
+        for (Map.Entry<String, StoragePoolHeartbeatStats> entry : _heartBeatStats.entrySet()) {
+            stats.put(entry.getKey(), new StoragePoolHeartbeatStats(entry.getValue()));
+        }
+        return stats;
+    }
+
+    private StoragePoolHeartbeatStats getHeartbeatStats(String uuid) {
+        StoragePoolHeartbeatStats stats = _heartBeatStats.get(uuid);
+        if (stats == null) {
+            _heartBeatStats.putIfAbsent(uuid, new StoragePoolHeartbeatStats());
+            stats = _heartBeatStats.get(uuid);
+        }
+        return stats;
+    }
+
+    protected boolean isMounted(String mountPoint) {
+        try {
+            for (String mount : FileUtils.readLines(new File("/proc/mounts"), StandardCharsets.UTF_8)) {
+                String[] fields = mount.split(" ");
+                if (fields.length > 2 && fields[1].equals(mountPoint) && fields[2].startsWith("nfs")) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            s_logger.warn("Failed to read the mounts: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Writes the current time to the heartbeat file of the host in the pool, or has kvmheartbeat.sh mount the pool
+     * again and write it when the pool is not mounted.
+     *
+     * @return null if the heartbeat was written, the error otherwise
+     */
+    protected String writeHeartBeat(NfsStoragePool pool) {
+        if (!isMounted(pool._mountDestPath)) {
+            Script cmd = new Script(s_heartBeatPath, _heartBeatUpdateTimeout, s_logger);
+            cmd.add("-i", pool._poolIp);
+            cmd.add("-p", pool._poolMountSourcePath);
+            cmd.add("-m", pool._mountDestPath);
+            cmd.add("-h", _hostIP);
+            return cmd.execute();
+        }
+
+        File folder = new File(getHBFolder(pool._mountDestPath));
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            return "Failed to create " + folder;
+        }
+        File hbFile = new File(getHBFile(pool._mountDestPath, _hostIP));
+        try (FileOutputStream out = new FileOutputStream(hbFile)) {
+            out.write((TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            return "Failed to write " + hbFile + ": " + e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Writes the heartbeat of the pool on the executor and waits for it up to the heartbeat timeout. A write still
+     * running after an earlier timeout is waited for again instead of starting another one.
+     */
+    private String writeHeartBeatWithTimeout(final NfsStoragePool pool) {
+        Future<String> write = _pendingWrites.get(pool._poolUUID);
+        if (write == null || write.isDone()) {
+            write = _heartBeatWriteExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return writeHeartBeat(pool);
+                }
+            });
+            _pendingWrites.put(pool._poolUUID, write);
+        }
+
+        long start = System.currentTimeMillis();
+        String result;
+        try {
+            result = write.get(_heartBeatUpdateTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result = "timed out after " + _heartBeatUpdateTimeout + " ms";
+        } catch (ExecutionException e) {
+            result = String.valueOf(e.getCause());
+        } catch (InterruptedException e) {
+            result = "interrupted";
+        }
+        getHeartbeatStats(pool._poolUUID).record(System.currentTimeMillis() - start, result == null);
+        return result;
+    }
+
+    protected void fenceHost(NfsStoragePool pool) {
+        Script cmd = new Script(s_heartBeatPath, _heartBeatUpdateTimeout, s_logger);
+        cmd.add("-i", pool._poolIp);
+        cmd.add("-p", pool._poolMountSourcePath);
+        cmd.add("-m", pool._mountDestPath);
+        cmd.add("-c");
+        cmd.execute();
+    }
+
+    /**
+     * Writes the heartbeats of the pools concurrently, each with its own retries and deadlines so a stalled pool does
+     * not hold up the others, and waits for all of them.
+     */
+    protected void writeHeartBeats(List<NfsStoragePool> pools) {
+        Set<String> uuids = new HashSet<String>();
+        for (NfsStoragePool pool : pools) {
+            uuids.add(pool._poolUUID);
+        }
+        int hungWrites = 0;
+        for (Iterator<Map.Entry<String, Future<String>>> it = _pendingWrites.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Future<String>> write = it.next();
+            if (!uuids.contains(write.getKey())) {
+                if (write.getValue().isDone()) {
+                    it.remove();
+                } else {
+                    hungWrites++;
+                }
+            }
+        }
+        resize(_heartBeatExecutor, uuids.size());
+        resize(_heartBeatWriteExecutor, uuids.size() + hungWrites);
+
+        List<Future<String>> heartBeats = new ArrayList<Future<String>>();
+        for (NfsStoragePool pool : pools) {
+            heartBeats.add(_heartBeatExecutor.submit(new HeartBeat(pool)));
+        }
+        for (Future<String> heartBeat : heartBeats) {
+            try {
+                heartBeat.get();
+            } catch (InterruptedException | ExecutionException e) {
+                s_logger.warn("Failed to wait for the heartbeat of a storage pool", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the heartbeat of a pool, retrying failed writes, and stops the host when none succeeds.
+     */
+    private class HeartBeat implements Callable<String> {
+        private final NfsStoragePool primaryStoragePool;
+
+        HeartBeat(NfsStoragePool primaryStoragePool) {
+            this.primaryStoragePool = primaryStoragePool;
+        }
+
+        @Override
+        public String call() {
+            String result = null;
+            // Try multiple times, but sleep in between tries to ensure it isn't a short lived transient error
+            for (int i = 1; i <= _heartBeatUpdateMaxTries; i++) {
+                result = writeHeartBeatWithTimeout(primaryStoragePool);
+                if (result != null) {
+                    s_logger.warn("write heartbeat to pool " + primaryStoragePool._poolUUID + " failed: " + result + ", try: " + i + " of " + _heartBeatUpdateMaxTries);
+                    try {
+                        Thread.sleep(_heartBeatUpdateRetrySleep);
+                    } catch (InterruptedException e) {
+                        s_logger.debug("[ignored] interupted between heartbeat retries.");
+                    }
+                } else {
+                    break;
+                }
+            }
+
+            if (result != null) {
+                // Stop cloudstack-agent if can't write to heartbeat file.
+                // This will raise an alert on the mgmt server
+                s_logger.warn("write heartbeat failed: " + result + "; stopping cloudstack-agent");
+                fenceHost(primaryStoragePool);
+            }
+            return result;
+        }
+    }
+
     private class Monitor extends ManagedContextRunnable {
 
         @Override
         protected void runInContext() {
+            List<NfsStoragePool> heartBeatPools = new ArrayList<NfsStoragePool>();
             synchronized (_storagePool) {
                 Set<String> removedPools = new HashSet<String>();
                 for (String uuid : _storagePool.keySet()) {
@@ -118,38 +341,7 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
                         }
                     }
 
-                    String result = null;
-                    // Try multiple times, but sleep in between tries to ensure it isn't a short lived transient error
-                    for (int i = 1; i <= _heartBeatUpdateMaxTries; i++) {
-                        Script cmd = new Script(s_heartBeatPath, _heartBeatUpdateTimeout, s_logger);
-                        cmd.add("-i", primaryStoragePool._poolIp);
-                        cmd.add("-p", primaryStoragePool._poolMountSourcePath);
-                        cmd.add("-m", primaryStoragePool._mountDestPath);
-                        cmd.add("-h", _hostIP);
-                        result = cmd.execute();
-                        if (result != null) {
-                            s_logger.warn("write heartbeat failed: " + result + ", try: " + i + " of " + _heartBeatUpdateMaxTries);
-                            try {
-                                Thread.sleep(_heartBeatUpdateRetrySleep);
-                            } catch (InterruptedException e) {
-                                s_logger.debug("[ignored] interupted between heartbeat retries.");
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-
-                    if (result != null) {
-                        // Stop cloudstack-agent if can't write to heartbeat file.
-                        // This will raise an alert on the mgmt server
-                        s_logger.warn("write heartbeat failed: " + result + "; stopping cloudstack-agent");
-                        Script cmd = new Script(s_heartBeatPath, _heartBeatUpdateTimeout, s_logger);
-                        cmd.add("-i", primaryStoragePool._poolIp);
-                        cmd.add("-p", primaryStoragePool._poolMountSourcePath);
-                        cmd.add("-m", primaryStoragePool._mountDestPath);
-                        cmd.add("-c");
-                        result = cmd.execute();
-                    }
+                    heartBeatPools.add(primaryStoragePool);
                 }
 
                 if (!removedPools.isEmpty()) {
@@ -159,6 +351,7 @@ public class KVMHAMonitor extends KVMHABase implements Runnable {
                 }
             }
 
+            writeHeartBeats(heartBeatPools);
         }
     }
 
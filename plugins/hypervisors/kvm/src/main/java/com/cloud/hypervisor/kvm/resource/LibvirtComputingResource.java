@@ -27,7 +27,6 @@ import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -38,6 +37,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,19 +59,14 @@ import org.apache.cloudstack.utils.qemu.QemuImg.PhysicalDiskFormat;
 import org.apache.cloudstack.utils.security.KeyStoreUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.Duration;
 import org.libvirt.Connect;
 import org.libvirt.Domain;
-import org.libvirt.DomainBlockStats;
-import org.libvirt.DomainInfo;
 import org.libvirt.DomainInfo.DomainState;
-import org.libvirt.DomainInterfaceStats;
 import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
-import org.libvirt.MemoryStatistic;
 import org.libvirt.Network;
 import org.libvirt.NodeInfo;
 import org.w3c.dom.Document;
@@ -164,10 +159,12 @@ import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.OutputInterpreter.AllLinesParser;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.ssh.SshConnectionPool;
 import com.cloud.utils.ssh.SshHelper;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.PowerState;
@@ -199,6 +196,9 @@ import com.google.common.base.Strings;
 public class LibvirtComputingResource extends ServerResourceBase implements ServerResource, VirtualRouterDeployer {
     private static final Logger s_logger = Logger.getLogger(LibvirtComputingResource.class);
 
+    private static final String ROUTER_SSH_KEY = "/root/.ssh/id_rsa.cloud";
+    private static final int ROUTER_SSH_PORT = 3922;
+
     private String _modifyVlanPath;
     private String _versionstringpath;
     private String _patchScriptPath;
@@ -212,6 +212,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     private String _ovsPvlanDhcpHostPath;
     private String _ovsPvlanVmPath;
     private String _routerProxyPath;
+    // the connections to the virtual routers, null when the scripts are run through router_proxy.sh
+    private SshConnectionPool _routerSshPool;
     private String _ovsTunnelPath;
     private String _host;
     private String _dcId;
@@ -220,7 +222,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private long _hvVersion;
     private Duration _timeout;
-    private static final int NUMMEMSTATS =2;
 
     private KVMHAMonitor _monitor;
     public static final String SSHKEYSPATH = "/root/.ssh";
@@ -285,6 +286,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final LibvirtDomainDevicesCache _domainDevices = new LibvirtDomainDevicesCache();
+    private final LibvirtDomainStatsCollector _domainStatsCollector = new LibvirtDomainStatsCollector(_domainDevices);
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -320,6 +323,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final Duration timeout) {
+        if (_routerSshPool != null) {
+            s_logger.debug("Executing script in VR: " + script);
+            try {
+                final Pair<Boolean, String> result = _routerSshPool.execute(routerIp, "/opt/cloud/bin/" + script + (args != null ? " " + args : ""), (int)timeout.getMillis());
+                return new ExecutionResult(result.first(), result.second());
+            } catch (final Exception e) {
+                s_logger.warn("Fail to execute " + script + " in VR " + routerIp, e);
+                return new ExecutionResult(false, e.getMessage());
+            }
+        }
+
         final Script command = new Script(_routerProxyPath, timeout, s_logger);
         final AllLinesParser parser = new AllLinesParser();
         command.add(script);
@@ -339,13 +353,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
-        final File permKey = new File("/root/.ssh/id_rsa.cloud");
+        final File permKey = new File(ROUTER_SSH_KEY);
         boolean success = true;
         String details = "Creating file in VR, with ip: " + routerIp + ", file: " + filename;
         s_logger.debug(details);
 
         try {
-            SshHelper.scpTo(routerIp, 3922, "root", permKey, null, path, content.getBytes(), filename, null);
+            if (_routerSshPool != null) {
+                _routerSshPool.scpTo(routerIp, path, content.getBytes(), filename, null);
+            } else {
+                SshHelper.scpTo(routerIp, ROUTER_SSH_PORT, "root", permKey, null, path, content.getBytes(), filename, null);
+            }
         } catch (final Exception e) {
             s_logger.warn("Fail to create file " + path + filename + " in VR " + routerIp, e);
             details = e.getMessage();
@@ -1053,6 +1071,23 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         value = (String) params.get("vm.migrate.pauseafter");
         _migratePauseAfter = NumbersUtil.parseInt(value, -1);
 
+        value = (String) params.get("vm.stats.snapshot.maxage");
+        _domainStatsCollector.setMaxAge(TimeUnit.SECONDS.toMillis(NumbersUtil.parseInt(value, 10)));
+
+        value = (String) params.get("router.ssh.idle.timeout");
+        final int routerSshIdleTimeout = NumbersUtil.parseInt(value, 300);
+        if (routerSshIdleTimeout > 0) {
+            final int connectTimeout = (int)VRScripts.CONNECTION_TIMEOUT.getMillis();
+            _routerSshPool = new SshConnectionPool(ROUTER_SSH_PORT, "root", new File(ROUTER_SSH_KEY), null, connectTimeout, connectTimeout,
+                    TimeUnit.SECONDS.toMillis(routerSshIdleTimeout));
+            _routerSshPool.start();
+            try {
+                JmxUtil.registerMBean("VirtualRouterSsh", "VirtualRouterSsh", _routerSshPool);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register the MBean of the virtual router SSH connections", e);
+            }
+        }
+
         value = (String)params.get("vm.migrate.speed");
         _migrateSpeed = NumbersUtil.parseInt(value, -1);
         if (_migrateSpeed == -1) {
@@ -1441,7 +1476,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 }
             }
 
-            conn.domainCreateXML(domainXML, 0);
+            final Domain created = conn.domainCreateXML(domainXML, 0);
+            if (created != null) {
+                invalidateDomainDevices(created);
+                created.free();
+            }
         } catch (final LibvirtException e) {
             throw e;
         }
@@ -1450,6 +1489,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        if (_routerSshPool != null) {
+            _routerSshPool.shutdown();
+        }
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1665,6 +1707,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "", null).toString());
+        invalidateDomainDevices(vm);
     }
 
 
@@ -1676,6 +1719,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainDevices(vm);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2658,6 +2702,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 s_logger.debug("Detaching device: " + xml);
                 dm.detachDevice(xml);
             }
+            invalidateDomainDevices(dm);
         } catch (final LibvirtException e) {
             if (attach) {
                 s_logger.warn("Failed to attach device to " + vmName + ": " + e.getMessage());
@@ -2681,12 +2726,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     @Override
     public PingCommand getCurrentStatus(final long id) {
 
+        final PingRoutingCommand ping;
         if (!_canBridgeFirewall) {
-            return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
+            ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
         } else {
             final HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-            return new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
+            ping = new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
+        }
+        if (_monitor != null) {
+            ping.setHeartbeatStats(_monitor.getHeartbeatStats());
         }
+        return ping;
     }
 
     @Override
@@ -3058,6 +3108,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
+            invalidateDomainDevices(dm);
             final int persist = dm.isPersistent();
             if (force) {
                 if (dm.isActive() == 1) {
@@ -3229,6 +3280,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return conn.domainLookupByName(vmName);
     }
 
+    /**
+     * Makes the stats collection parse the XML of the domain again, to be called after changing its devices.
+     */
+    public void invalidateDomainDevices(final Domain dm) {
+        _domainDevices.invalidate(dm);
+    }
+
     public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
         final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
@@ -3280,23 +3338,21 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return command.execute();
     }
 
-    public List<VmNetworkStatsEntry> getVmNetworkStat(Connect conn, String vmName) throws LibvirtException {
+    /**
+     * @return the stats of the running VMs among the named ones, from a recent snapshot of the stats of the connection
+     */
+    public Map<String, LibvirtDomainStats> getDomainStats(final Connect conn, final List<String> vmNames) throws LibvirtException {
+        return _domainStatsCollector.collect(conn, vmNames);
+    }
+
+    private LibvirtDomainStats getDomainStats(final Connect conn, final String vmName) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
-
-            List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
-
-            List<InterfaceDef> nics = getInterfaces(conn, vmName);
-
-            for (InterfaceDef nic : nics) {
-                DomainInterfaceStats nicStats = dm.interfaceStats(nic.getDevName());
-                String macAddress = nic.getMacAddress();
-                VmNetworkStatsEntry stat = new VmNetworkStatsEntry(vmName, macAddress, nicStats.tx_bytes, nicStats.rx_bytes);
-                stats.add(stat);
+            if (dm == null) {
+                return null;
             }
-
-            return stats;
+            return _domainStatsCollector.collectDomain(dm, vmName, System.currentTimeMillis());
         } finally {
             if (dm != null) {
                 dm.free();
@@ -3304,38 +3360,46 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
     }
 
-    public List<VmDiskStatsEntry> getVmDiskStat(final Connect conn, final String vmName) throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
+    public List<VmNetworkStatsEntry> getVmNetworkStat(Connect conn, String vmName) throws LibvirtException {
+        final LibvirtDomainStats domainStats = getDomainStats(conn, vmName);
+        return domainStats != null ? getVmNetworkStat(domainStats) : null;
+    }
 
-            final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
+    public List<VmNetworkStatsEntry> getVmNetworkStat(final LibvirtDomainStats domainStats) {
+        List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
+        for (LibvirtDomainStats.InterfaceStats nicStats : domainStats.getInterfaces()) {
+            String macAddress = nicStats.getNic().getMacAddress();
+            VmNetworkStatsEntry stat = new VmNetworkStatsEntry(domainStats.getName(), macAddress, nicStats.getTxBytes(), nicStats.getRxBytes());
+            stats.add(stat);
+        }
+        return stats;
+    }
 
-            final List<DiskDef> disks = getDisks(conn, vmName);
+    public List<VmDiskStatsEntry> getVmDiskStat(final Connect conn, final String vmName) throws LibvirtException {
+        final LibvirtDomainStats domainStats = getDomainStats(conn, vmName);
+        return domainStats != null ? getVmDiskStat(domainStats) : null;
+    }
 
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() != DeviceType.DISK) {
-                    break;
-                }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
-                String diskPath = null;
-                if (path != null) {
-                    final String[] token = path.split("/");
-                    if (token.length > 3) {
-                        diskPath = token[3];
-                        final VmDiskStatsEntry stat = new VmDiskStatsEntry(vmName, diskPath, blockStats.wr_req, blockStats.rd_req, blockStats.wr_bytes, blockStats.rd_bytes);
-                        stats.add(stat);
-                    }
-                }
+    public List<VmDiskStatsEntry> getVmDiskStat(final LibvirtDomainStats domainStats) {
+        final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
+        for (final LibvirtDomainStats.BlockStats blockStats : domainStats.getBlocks()) {
+            final DiskDef disk = blockStats.getDisk();
+            if (disk.getDeviceType() != DeviceType.DISK) {
+                break;
             }
-
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+            final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
+            String diskPath = null;
+            if (path != null) {
+                final String[] token = path.split("/");
+                if (token.length > 3) {
+                    diskPath = token[3];
+                    final VmDiskStatsEntry stat = new VmDiskStatsEntry(domainStats.getName(), diskPath, blockStats.getWriteRequests(), blockStats.getReadRequests(),
+                            blockStats.getWriteBytes(), blockStats.getReadBytes());
+                    stats.add(stat);
+                }
             }
         }
+        return stats;
     }
 
     private class VmStats {
@@ -3346,120 +3410,118 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         long _ioWrote;
         long _bytesRead;
         long _bytesWrote;
-        Calendar _timestamp;
+        long _timestamp;
     }
 
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
-            if (dm == null) {
-                return null;
-            }
-            DomainInfo info = dm.getInfo();
-            final VmStatsEntry stats = new VmStatsEntry();
+        return getVmStat(conn, vmName, null);
+    }
 
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
+    /**
+     * Gets the stats of the VM looking up its domain once, with its devices from the cache.
+     *
+     * @param node the info of the host fetched once for all the VMs of a collection, fetched if null
+     */
+    public VmStatsEntry getVmStat(final Connect conn, final String vmName, final NodeInfo node) throws LibvirtException {
+        final LibvirtDomainStats domainStats = getDomainStats(conn, vmName);
+        return domainStats != null ? getVmStat(conn, domainStats, node) : null;
+    }
 
-            stats.setMemoryKBs(info.maxMem);
-            stats.setTargetMemoryKBs(info.memory);
-            stats.setIntFreeMemoryKBs(getMemoryFreeInKBs(dm));
+    /**
+     * Computes the stats of the VM from the counters of its domain and those it had when its stats were last computed.
+     *
+     * @param node the info of the host fetched once for all the VMs of a collection, fetched if null
+     */
+    public VmStatsEntry getVmStat(final Connect conn, final LibvirtDomainStats domainStats, NodeInfo node) throws LibvirtException {
+        final String vmName = domainStats.getName();
+        final VmStatsEntry stats = new VmStatsEntry();
 
-            /* get cpu utilization */
-            VmStats oldStats = null;
+        stats.setNumCPUs(domainStats.getVcpus());
+        stats.setEntityType("vm");
 
-            final Calendar now = Calendar.getInstance();
+        stats.setMemoryKBs(domainStats.getMaxMemoryKBs());
+        stats.setTargetMemoryKBs(domainStats.getMemoryKBs());
+        stats.setIntFreeMemoryKBs(domainStats.getFreeMemoryKBs());
 
-            oldStats = _vmStats.get(vmName);
+        /* get cpu utilization */
+        final VmStats oldStats = _vmStats.get(vmName);
+        final long now = domainStats.getTimestamp();
 
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+        if (oldStats != null && now > oldStats._timestamp) {
+            final long elapsedTime = now - oldStats._timestamp;
+            double utilization = (domainStats.getCpuTime() - oldStats._usedTime) / ((double)elapsedTime * 1000000);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if (utilization > 0) {
-                    stats.setCPUUtilization(utilization * 100);
-                }
+            if (node == null) {
+                node = conn.nodeInfo();
+            }
+            utilization = utilization / node.cpus;
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
             }
+        }
 
-            /* get network stats */
+        /* get network stats */
+        long rx = 0;
+        long tx = 0;
+        for (final LibvirtDomainStats.InterfaceStats ifStats : domainStats.getInterfaces()) {
+            rx += ifStats.getRxBytes();
+            tx += ifStats.getTxBytes();
+        }
 
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
+        if (oldStats != null) {
+            final double deltarx = rx - oldStats._rx;
+            if (deltarx > 0) {
+                stats.setNetworkReadKBs(deltarx / 1024);
             }
-
-            if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
-                if (deltarx > 0) {
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                }
-                final double deltatx = tx - oldStats._tx;
-                if (deltatx > 0) {
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-                }
+            final double deltatx = tx - oldStats._tx;
+            if (deltatx > 0) {
+                stats.setNetworkWriteKBs(deltatx / 1024);
             }
+        }
 
-            /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
-                    continue;
-                }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-
-            if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
-                if (deltaiord > 0) {
-                    stats.setDiskReadIOs(deltaiord);
-                }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
-                if (deltaiowr > 0) {
-                    stats.setDiskWriteIOs(deltaiowr);
-                }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
-                if (deltabytesrd > 0) {
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
-                if (deltabyteswr > 0) {
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-                }
-            }
-
-            /* save to Hashmap */
-            final VmStats newStat = new VmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+        /* get disk stats */
+        long io_rd = 0;
+        long io_wr = 0;
+        long bytes_rd = 0;
+        long bytes_wr = 0;
+        for (final LibvirtDomainStats.BlockStats blockStats : domainStats.getBlocks()) {
+            io_rd += blockStats.getReadRequests();
+            io_wr += blockStats.getWriteRequests();
+            bytes_rd += blockStats.getReadBytes();
+            bytes_wr += blockStats.getWriteBytes();
+        }
+
+        if (oldStats != null) {
+            final long deltaiord = io_rd - oldStats._ioRead;
+            if (deltaiord > 0) {
+                stats.setDiskReadIOs(deltaiord);
+            }
+            final long deltaiowr = io_wr - oldStats._ioWrote;
+            if (deltaiowr > 0) {
+                stats.setDiskWriteIOs(deltaiowr);
+            }
+            final double deltabytesrd = bytes_rd - oldStats._bytesRead;
+            if (deltabytesrd > 0) {
+                stats.setDiskReadKBs(deltabytesrd / 1024);
+            }
+            final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
+            if (deltabyteswr > 0) {
+                stats.setDiskWriteKBs(deltabyteswr / 1024);
             }
         }
+
+        /* save to Hashmap */
+        final VmStats newStat = new VmStats();
+        newStat._usedTime = domainStats.getCpuTime();
+        newStat._rx = rx;
+        newStat._tx = tx;
+        newStat._ioRead = io_rd;
+        newStat._ioWrote = io_wr;
+        newStat._bytesRead = bytes_rd;
+        newStat._bytesWrote = bytes_wr;
+        newStat._timestamp = now;
+        _vmStats.put(vmName, newStat);
+        return stats;
     }
 
     /**
@@ -3470,11 +3532,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
      * @return the amount of free memory in KBs
      */
     protected long getMemoryFreeInKBs(Domain dm) throws LibvirtException {
-        MemoryStatistic[] mems = dm.memoryStats(NUMMEMSTATS);
-        if (ArrayUtils.isEmpty(mems)) {
-            return NumberUtils.LONG_ZERO;
-        }
-        return mems[0].getValue();
+        return LibvirtDomainStatsCollector.getMemoryFreeInKBs(dm);
     }
 
     private boolean canBridgeFirewall(final String prvNic) {
@@ -0,0 +1,137 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * Keeps the interfaces and disks parsed from the XML of the domains, by domain UUID, so collecting the stats of a
+ * domain does not fetch and parse its XML every time. The devices of a domain are parsed again after it is
+ * invalidated, which has to be done whenever a domain is defined, started, stopped or migrated, or a device is attached
+ * to or detached from it.
+ */
+public class LibvirtDomainDevicesCache {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainDevicesCache.class);
+
+    public static class Devices {
+        private final List<InterfaceDef> interfaces;
+        private final List<DiskDef> disks;
+
+        Devices(List<InterfaceDef> interfaces, List<DiskDef> disks) {
+            this.interfaces = Collections.unmodifiableList(interfaces);
+            this.disks = Collections.unmodifiableList(disks);
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return interfaces;
+        }
+
+        public List<DiskDef> getDisks() {
+            return disks;
+        }
+    }
+
+    private final ConcurrentMap<String, Devices> devices = new ConcurrentHashMap<String, Devices>();
+    // the UUIDs of the domains by name, for the stats that name the domains only
+    private final ConcurrentMap<String, String> uuids = new ConcurrentHashMap<String, String>();
+    // incremented by every invalidation, devices parsed from XML fetched before one are not kept
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+
+    /**
+     * @return the devices of the domain, parsed from its XML if they are not cached
+     */
+    public Devices get(Domain dm) throws LibvirtException {
+        final String uuid = dm.getUUIDString();
+        Devices domainDevices = uuid != null ? devices.get(uuid) : null;
+        if (domainDevices != null) {
+            return domainDevices;
+        }
+
+        final long invalidationsBefore = invalidations.get();
+        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        if (!parser.parseDomainXML(dm.getXMLDesc(0))) {
+            // not kept, so a domain whose XML could not be parsed is tried again next time
+            return new Devices(parser.getInterfaces(), parser.getDisks());
+        }
+        parsed.incrementAndGet();
+        domainDevices = new Devices(parser.getInterfaces(), parser.getDisks());
+        if (uuid != null && invalidations.get() == invalidationsBefore) {
+            final String name = dm.getName();
+            if (name != null) {
+                uuids.put(name, uuid);
+            }
+            devices.put(uuid, domainDevices);
+            if (invalidations.get() != invalidationsBefore) {
+                devices.remove(uuid, domainDevices);
+            }
+        }
+        return domainDevices;
+    }
+
+    /**
+     * @return the cached devices of the domain with the name, null if they are not cached
+     */
+    public Devices getIfPresent(String name) {
+        final String uuid = uuids.get(name);
+        return uuid != null ? devices.get(uuid) : null;
+    }
+
+    public void invalidate(String uuid) {
+        invalidations.incrementAndGet();
+        if (uuid != null) {
+            devices.remove(uuid);
+            uuids.values().remove(uuid);
+        }
+    }
+
+    /**
+     * Invalidates the devices of the domain, errors getting its UUID are logged and ignored.
+     */
+    public void invalidate(Domain dm) {
+        if (dm == null) {
+            return;
+        }
+        try {
+            invalidate(dm.getUUIDString());
+        } catch (final LibvirtException e) {
+            s_logger.debug("Failed to get the UUID of the domain to invalidate its devices: " + e.getMessage());
+        }
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    /**
+     * @return the number of times the XML of a domain was parsed
+     */
+    public long getParsed() {
+        return parsed.get();
+    }
+}
@@ -0,0 +1,172 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * The raw counters of a domain at the time they were collected, the VM, disk and network stats are computed from.
+ */
+public class LibvirtDomainStats {
+
+    public static class InterfaceStats {
+        private final InterfaceDef nic;
+        private final long rxBytes;
+        private final long txBytes;
+
+        public InterfaceStats(InterfaceDef nic, long rxBytes, long txBytes) {
+            this.nic = nic;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+        }
+
+        public InterfaceDef getNic() {
+            return nic;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+    }
+
+    public static class BlockStats {
+        private final DiskDef disk;
+        private final long readRequests;
+        private final long writeRequests;
+        private final long readBytes;
+        private final long writeBytes;
+
+        public BlockStats(DiskDef disk, long readRequests, long writeRequests, long readBytes, long writeBytes) {
+            this.disk = disk;
+            this.readRequests = readRequests;
+            this.writeRequests = writeRequests;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+        }
+
+        public DiskDef getDisk() {
+            return disk;
+        }
+
+        public long getReadRequests() {
+            return readRequests;
+        }
+
+        public long getWriteRequests() {
+            return writeRequests;
+        }
+
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        public long getWriteBytes() {
+            return writeBytes;
+        }
+    }
+
+    private final String name;
+    private final long timestamp;
+    private long cpuTime;
+    private int vcpus;
+    private long maxMemoryKBs;
+    private long memoryKBs;
+    private long freeMemoryKBs;
+    private final List<InterfaceStats> interfaces = new ArrayList<InterfaceStats>();
+    private final List<BlockStats> blocks = new ArrayList<BlockStats>();
+
+    public LibvirtDomainStats(String name, long timestamp) {
+        this.name = name;
+        this.timestamp = timestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return milliseconds since the epoch the stats were collected at
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return nanoseconds of CPU time used by the domain
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public void setCpuTime(long cpuTime) {
+        this.cpuTime = cpuTime;
+    }
+
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    public void setVcpus(int vcpus) {
+        this.vcpus = vcpus;
+    }
+
+    public long getMaxMemoryKBs() {
+        return maxMemoryKBs;
+    }
+
+    public void setMaxMemoryKBs(long maxMemoryKBs) {
+        this.maxMemoryKBs = maxMemoryKBs;
+    }
+
+    public long getMemoryKBs() {
+        return memoryKBs;
+    }
+
+    public void setMemoryKBs(long memoryKBs) {
+        this.memoryKBs = memoryKBs;
+    }
+
+    public long getFreeMemoryKBs() {
+        return freeMemoryKBs;
+    }
+
+    public void setFreeMemoryKBs(long freeMemoryKBs) {
+        this.freeMemoryKBs = freeMemoryKBs;
+    }
+
+    /**
+     * @return the stats of the interfaces, in the order of the domain definition
+     */
+    public List<InterfaceStats> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * @return the stats of the disks but CD-ROMs and floppies, in the order of the domain definition
+     */
+    public List<BlockStats> getBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,327 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+import org.libvirt.MemoryStatistic;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainStats.BlockStats;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainStats.InterfaceStats;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef.DeviceType;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+
+/**
+ * Collects the stats of the domains of a connection into a snapshot the VM, disk and network stats commands are all
+ * answered from while it is recent enough.
+ *
+ * With libvirt 1.2.8 or later the stats of all the running domains are read at once with the all-domain stats API,
+ * through "virsh domstats" as the Java bindings do not expose it. Otherwise, or if that fails, every domain is asked
+ * for its info, memory, interface and block stats.
+ */
+public class LibvirtDomainStatsCollector {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainStatsCollector.class);
+
+    // virConnectGetAllDomainStats was added in libvirt 1.2.8
+    public static final long ALL_DOMAIN_STATS_MIN_VERSION = 1002008L;
+    private static final int NUMMEMSTATS = 2;
+    private static final long ALL_DOMAIN_STATS_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    private static final class Snapshot {
+        private final long timestamp;
+        // whether the stats are those of all the running domains, or only of the requested ones
+        private final boolean allDomains;
+        private final Set<String> requested;
+        private final Map<String, LibvirtDomainStats> stats;
+
+        Snapshot(long timestamp, boolean allDomains, Set<String> requested, Map<String, LibvirtDomainStats> stats) {
+            this.timestamp = timestamp;
+            this.allDomains = allDomains;
+            this.requested = requested;
+            this.stats = stats;
+        }
+
+        boolean covers(Collection<String> vmNames, long now, long maxAge) {
+            if (now - timestamp > maxAge || now < timestamp) {
+                return false;
+            }
+            return allDomains || requested.containsAll(vmNames);
+        }
+    }
+
+    private final LibvirtDomainDevicesCache devicesCache;
+    private volatile long maxAge = TimeUnit.SECONDS.toMillis(10);
+    // by connection URI
+    private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+    private Boolean allDomainStatsSupported;
+
+    public LibvirtDomainStatsCollector(LibvirtDomainDevicesCache devicesCache) {
+        this.devicesCache = devicesCache;
+    }
+
+    /**
+     * @param maxAge milliseconds the stats of a snapshot are answered with
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return the stats of the running domains among the named ones, from the last snapshot if it is recent enough
+     */
+    public synchronized Map<String, LibvirtDomainStats> collect(Connect conn, Collection<String> vmNames) throws LibvirtException {
+        final String uri = conn.getURI();
+        final long now = System.currentTimeMillis();
+        Snapshot snapshot = snapshots.get(uri);
+        if (snapshot == null || !snapshot.covers(vmNames, now, maxAge)) {
+            snapshot = null;
+            if (isAllDomainStatsSupported(conn)) {
+                snapshot = collectAllDomains(conn, uri, now);
+            }
+            if (snapshot == null) {
+                snapshot = collectEachDomain(conn, vmNames, now);
+            }
+            snapshots.put(uri, snapshot);
+        }
+
+        final Map<String, LibvirtDomainStats> stats = new LinkedHashMap<String, LibvirtDomainStats>();
+        for (final String vmName : vmNames) {
+            final LibvirtDomainStats domainStats = snapshot.stats.get(vmName);
+            if (domainStats != null) {
+                stats.put(vmName, domainStats);
+            }
+        }
+        return stats;
+    }
+
+    private boolean isAllDomainStatsSupported(Connect conn) throws LibvirtException {
+        if (allDomainStatsSupported == null) {
+            allDomainStatsSupported = conn.getLibVirVersion() >= ALL_DOMAIN_STATS_MIN_VERSION;
+            s_logger.info((allDomainStatsSupported ? "Collecting" : "Not collecting") + " the stats of all domains at once, libvirt version is " + conn.getLibVirVersion());
+        }
+        return allDomainStatsSupported;
+    }
+
+    private Snapshot collectEachDomain(Connect conn, Collection<String> vmNames, long now) {
+        final Map<String, LibvirtDomainStats> stats = new HashMap<String, LibvirtDomainStats>();
+        for (final String vmName : vmNames) {
+            Domain dm = null;
+            try {
+                dm = conn.domainLookupByName(vmName);
+                stats.put(vmName, collectDomain(dm, vmName, now));
+            } catch (final LibvirtException e) {
+                s_logger.warn("Can't get the stats of vm " + vmName + ": " + e.toString() + ", continue");
+            } finally {
+                freeDomain(dm);
+            }
+        }
+        return new Snapshot(now, false, new HashSet<String>(vmNames), stats);
+    }
+
+    /**
+     * Collects the stats of a domain with a call per interface and disk.
+     */
+    public LibvirtDomainStats collectDomain(Domain dm, String vmName, long now) throws LibvirtException {
+        final LibvirtDomainStats stats = new LibvirtDomainStats(vmName, now);
+        final DomainInfo info = dm.getInfo();
+        stats.setCpuTime(info.cpuTime);
+        stats.setVcpus(info.nrVirtCpu);
+        stats.setMaxMemoryKBs(info.maxMem);
+        stats.setMemoryKBs(info.memory);
+        stats.setFreeMemoryKBs(getMemoryFreeInKBs(dm));
+
+        final LibvirtDomainDevicesCache.Devices devices = devicesCache.get(dm);
+        for (final InterfaceDef nic : devices.getInterfaces()) {
+            final DomainInterfaceStats nicStats = dm.interfaceStats(nic.getDevName());
+            stats.getInterfaces().add(new InterfaceStats(nic, nicStats.rx_bytes, nicStats.tx_bytes));
+        }
+        for (final DiskDef disk : devices.getDisks()) {
+            if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
+                continue;
+            }
+            final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+            stats.getBlocks().add(new BlockStats(disk, blockStats.rd_req, blockStats.wr_req, blockStats.rd_bytes, blockStats.wr_bytes));
+        }
+        return stats;
+    }
+
+    /**
+     * This method retrieves the memory statistics from the domain given as parameters.
+     * If no memory statistic is found, it will return {@link NumberUtils#LONG_ZERO} as the value of free memory in the domain.
+     * If it can retrieve the domain memory statistics, it will return the free memory statistic; that means, it returns the value at the first position of the array returned by {@link Domain#memoryStats(int)}.
+     *
+     * @return the amount of free memory in KBs
+     */
+    public static long getMemoryFreeInKBs(Domain dm) throws LibvirtException {
+        MemoryStatistic[] mems = dm.memoryStats(NUMMEMSTATS);
+        if (ArrayUtils.isEmpty(mems)) {
+            return NumberUtils.LONG_ZERO;
+        }
+        return mems[0].getValue();
+    }
+
+    private Snapshot collectAllDomains(Connect conn, String uri, long now) {
+        final String output = getAllDomainStats(uri);
+        if (output == null) {
+            s_logger.warn("Failed to get the stats of all domains at once, getting them domain by domain");
+            return null;
+        }
+
+        final Map<String, LibvirtDomainStats> stats = new HashMap<String, LibvirtDomainStats>();
+        for (final Map.Entry<String, Map<String, String>> record : parseAllDomainStats(output).entrySet()) {
+            final String vmName = record.getKey();
+            try {
+                final LibvirtDomainDevicesCache.Devices devices = getDevices(conn, vmName);
+                stats.put(vmName, toDomainStats(vmName, now, record.getValue(), devices));
+            } catch (final LibvirtException e) {
+                s_logger.warn("Can't get the devices of vm " + vmName + ": " + e.toString() + ", continue");
+            }
+        }
+        return new Snapshot(now, true, null, stats);
+    }
+
+    private LibvirtDomainDevicesCache.Devices getDevices(Connect conn, String vmName) throws LibvirtException {
+        final LibvirtDomainDevicesCache.Devices devices = devicesCache.getIfPresent(vmName);
+        if (devices != null) {
+            return devices;
+        }
+        Domain dm = null;
+        try {
+            dm = conn.domainLookupByName(vmName);
+            return devicesCache.get(dm);
+        } finally {
+            freeDomain(dm);
+        }
+    }
+
+    static LibvirtDomainStats toDomainStats(String vmName, long now, Map<String, String> record, LibvirtDomainDevicesCache.Devices devices) {
+        final LibvirtDomainStats stats = new LibvirtDomainStats(vmName, now);
+        stats.setCpuTime(NumberUtils.toLong(record.get("cpu.time")));
+        stats.setVcpus(NumberUtils.toInt(record.get("vcpu.current")));
+        stats.setMaxMemoryKBs(NumberUtils.toLong(record.get("balloon.maximum")));
+        stats.setMemoryKBs(NumberUtils.toLong(record.get("balloon.current")));
+        stats.setFreeMemoryKBs(NumberUtils.toLong(record.get("balloon.unused")));
+
+        final Map<String, String> nics = indexByName(record, "net");
+        for (final InterfaceDef nic : devices.getInterfaces()) {
+            final String prefix = nics.get(nic.getDevName());
+            if (prefix != null) {
+                stats.getInterfaces().add(new InterfaceStats(nic, NumberUtils.toLong(record.get(prefix + "rx.bytes")), NumberUtils.toLong(record.get(prefix + "tx.bytes"))));
+            }
+        }
+        final Map<String, String> blocks = indexByName(record, "block");
+        for (final DiskDef disk : devices.getDisks()) {
+            if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
+                continue;
+            }
+            final String prefix = blocks.get(disk.getDiskLabel());
+            if (prefix != null) {
+                stats.getBlocks().add(new BlockStats(disk, NumberUtils.toLong(record.get(prefix + "rd.reqs")), NumberUtils.toLong(record.get(prefix + "wr.reqs")),
+                        NumberUtils.toLong(record.get(prefix + "rd.bytes")), NumberUtils.toLong(record.get(prefix + "wr.bytes"))));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the prefix of the fields of each device of the group, e.g. "net.0.", by device name
+     */
+    private static Map<String, String> indexByName(Map<String, String> record, String group) {
+        final Map<String, String> prefixes = new HashMap<String, String>();
+        final int count = NumberUtils.toInt(record.get(group + ".count"));
+        for (int i = 0; i < count; i++) {
+            final String prefix = group + "." + i + ".";
+            final String name = record.get(prefix + "name");
+            if (name != null) {
+                prefixes.put(name, prefix);
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Parses the raw output of "virsh domstats", a "Domain: 'name'" line followed by a "field=value" line per stat for
+     * every domain.
+     *
+     * @return the stats of every domain by name
+     */
+    static Map<String, Map<String, String>> parseAllDomainStats(String output) {
+        final Map<String, Map<String, String>> records = new LinkedHashMap<String, Map<String, String>>();
+        Map<String, String> record = null;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("Domain:")) {
+                final String name = line.substring("Domain:".length()).trim().replaceAll("^'|'$", "");
+                record = new HashMap<String, String>();
+                records.put(name, record);
+            } else if (record != null) {
+                final int separator = line.indexOf('=');
+                if (separator > 0) {
+                    record.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the raw stats of all the running domains of the connection, null if they could not be read
+     */
+    protected String getAllDomainStats(String uri) {
+        final Script command = new Script("virsh", ALL_DOMAIN_STATS_TIMEOUT, s_logger);
+        if (uri != null) {
+            command.add("-c", uri);
+        }
+        command.add("domstats", "--raw", "--list-active", "--state", "--cpu-total", "--balloon", "--vcpu", "--interface", "--block");
+        final OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        final String result = command.execute(parser);
+        if (result != null) {
+            s_logger.debug("Failed to get the stats of all domains: " + result);
+            return null;
+        }
+        return parser.getLines();
+    }
+
+    private static void freeDomain(Domain dm) {
+        if (dm == null) {
+            return;
+        }
+        try {
+            dm.free();
+        } catch (final LibvirtException e) {
+            s_logger.trace("Ignoring libvirt error.", e);
+        }
+    }
+}
@@ -21,6 +21,7 @@ package com.cloud.hypervisor.kvm.resource.wrapper;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
@@ -31,6 +32,7 @@ import com.cloud.agent.api.GetVmDiskStatsAnswer;
 import com.cloud.agent.api.GetVmDiskStatsCommand;
 import com.cloud.agent.api.VmDiskStatsEntry;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainStats;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
 
@@ -47,17 +49,14 @@ public final class LibvirtGetVmDiskStatsCommandWrapper extends CommandWrapper<Ge
         try {
             final HashMap<String, List<VmDiskStatsEntry>> vmDiskStatsNameMap = new HashMap<String, List<VmDiskStatsEntry>>();
             final Connect conn = libvirtUtilitiesHelper.getConnection();
+            final Map<String, LibvirtDomainStats> domainStats = libvirtComputingResource.getDomainStats(conn, vmNames);
             for (final String vmName : vmNames) {
-                try {
-                    final List<VmDiskStatsEntry> statEntry = libvirtComputingResource.getVmDiskStat(conn, vmName);
-                    if (statEntry == null) {
-                        continue;
-                    }
-
-                    vmDiskStatsNameMap.put(vmName, statEntry);
-                } catch (LibvirtException e) {
-                    s_logger.warn("Can't get vm disk stats: " + e.toString() + ", continue");
+                final LibvirtDomainStats stats = domainStats.get(vmName);
+                if (stats == null) {
+                    continue;
                 }
+
+                vmDiskStatsNameMap.put(vmName, libvirtComputingResource.getVmDiskStat(stats));
             }
             return new GetVmDiskStatsAnswer(command, "", command.getHostName(), vmDiskStatsNameMap);
         } catch (final LibvirtException e) {
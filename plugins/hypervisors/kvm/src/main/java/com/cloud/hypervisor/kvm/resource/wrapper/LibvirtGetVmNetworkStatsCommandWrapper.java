@@ -21,6 +21,7 @@ package com.cloud.hypervisor.kvm.resource.wrapper;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
@@ -31,6 +32,7 @@ import com.cloud.agent.api.GetVmNetworkStatsAnswer;
 import com.cloud.agent.api.GetVmNetworkStatsCommand;
 import com.cloud.agent.api.VmNetworkStatsEntry;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainStats;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
 
@@ -47,17 +49,14 @@ public final class LibvirtGetVmNetworkStatsCommandWrapper extends CommandWrapper
         try {
             final HashMap<String, List<VmNetworkStatsEntry>> vmNetworkStatsNameMap = new HashMap<String, List<VmNetworkStatsEntry>>();
             final Connect conn = libvirtUtilitiesHelper.getConnection();
+            final Map<String, LibvirtDomainStats> domainStats = libvirtComputingResource.getDomainStats(conn, vmNames);
             for (final String vmName : vmNames) {
-                try {
-                    final List<VmNetworkStatsEntry> statEntry = libvirtComputingResource.getVmNetworkStat(conn, vmName);
-                    if (statEntry == null) {
-                        continue;
-                    }
-
-                    vmNetworkStatsNameMap.put(vmName, statEntry);
-                } catch (LibvirtException e) {
-                    s_logger.warn("Can't get vm network stats: " + e.toString() + ", continue");
+                final LibvirtDomainStats stats = domainStats.get(vmName);
+                if (stats == null) {
+                    continue;
                 }
+
+                vmNetworkStatsNameMap.put(vmName, libvirtComputingResource.getVmNetworkStat(stats));
             }
             return new GetVmNetworkStatsAnswer(command, "", command.getHostName(), vmNetworkStatsNameMap);
         } catch (final LibvirtException e) {
@@ -19,18 +19,23 @@
 
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
+import org.libvirt.NodeInfo;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.GetVmStatsAnswer;
 import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainStats;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
 
@@ -44,18 +49,35 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
         final List<String> vmNames = command.getVmNames();
         try {
             final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (final String vmName : vmNames) {
-
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
+            // the stats of the VMs of a connection are collected at once
+            final Map<Connect, List<String>> vmNamesByConnection = new LinkedHashMap<Connect, List<String>>();
+            for (final String vmName : vmNames) {
                 final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
+                if (!vmNamesByConnection.containsKey(conn)) {
+                    vmNamesByConnection.put(conn, new ArrayList<String>());
+                }
+                vmNamesByConnection.get(conn).add(vmName);
+            }
+
+            // the same for all the VMs, fetched once
+            NodeInfo node = null;
+            for (final Map.Entry<Connect, List<String>> connectionVmNames : vmNamesByConnection.entrySet()) {
+                final Connect conn = connectionVmNames.getKey();
                 try {
-                    final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
-                    if (statEntry == null) {
-                        continue;
+                    if (node == null) {
+                        node = conn.nodeInfo();
                     }
+                    final Map<String, LibvirtDomainStats> domainStats = libvirtComputingResource.getDomainStats(conn, connectionVmNames.getValue());
+                    for (final LibvirtDomainStats stats : domainStats.values()) {
+                        final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, stats, node);
+                        if (statEntry == null) {
+                            continue;
+                        }
 
-                    vmStatsNameMap.put(vmName, statEntry);
+                        vmStatsNameMap.put(stats.getName(), statEntry);
+                    }
                 } catch (LibvirtException e) {
                     s_logger.warn("Can't get vm stats: " + e.toString() + ", continue");
                 }
@@ -257,6 +257,7 @@ public final class LibvirtMigrateCommandWrapper extends CommandWrapper<MigrateCo
                     }
                 }
                 if (dm != null) {
+                    libvirtComputingResource.invalidateDomainDevices(dm);
                     if (dm.isPersistent() == 1) {
                         dm.undefine();
                     }
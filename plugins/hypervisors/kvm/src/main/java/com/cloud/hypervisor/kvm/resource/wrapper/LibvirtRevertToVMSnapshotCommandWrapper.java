@@ -67,6 +67,7 @@ public final class LibvirtRevertToVMSnapshotCommandWrapper extends CommandWrappe
 
             dm.revertToSnapshot(snapshot);
             snapshot.free();
+            libvirtComputingResource.invalidateDomainDevices(dm);
 
             if (!snapshotMemory) {
                 dm.destroy();
@@ -0,0 +1,128 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloud.agent.api.StoragePoolHeartbeatStats;
+import com.cloud.hypervisor.kvm.resource.KVMHABase.NfsStoragePool;
+import com.cloud.hypervisor.kvm.resource.KVMHABase.PoolType;
+
+public class KVMHAMonitorTest {
+
+    private static final String HOST = "10.1.1.10";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CountDownLatch nfsStalled = new CountDownLatch(1);
+    private final AtomicInteger stalledWrites = new AtomicInteger();
+    private final List<String> fenced = new CopyOnWriteArrayList<String>();
+
+    private NfsStoragePool pool(String uuid) throws IOException {
+        return new NfsStoragePool(uuid, "10.1.1.2", "/export/" + uuid, folder.newFolder(uuid).getPath(), PoolType.PrimaryStorage);
+    }
+
+    private KVMHAMonitor monitor(final String stalledPool) {
+        KVMHAMonitor monitor = new KVMHAMonitor(null, HOST, null) {
+            @Override
+            protected boolean isMounted(String mountPoint) {
+                return true;
+            }
+
+            @Override
+            protected String writeHeartBeat(NfsStoragePool pool) {
+                if (pool._poolUUID.equals(stalledPool)) {
+                    stalledWrites.incrementAndGet();
+                    try {
+                        nfsStalled.await();
+                    } catch (InterruptedException e) {
+                        return "interrupted";
+                    }
+                }
+                return super.writeHeartBeat(pool);
+            }
+
+            @Override
+            protected void fenceHost(NfsStoragePool pool) {
+                fenced.add(pool._poolUUID);
+            }
+        };
+        monitor._heartBeatUpdateTimeout = 200;
+        monitor._heartBeatUpdateMaxTries = 3;
+        monitor._heartBeatUpdateRetrySleep = 10;
+        return monitor;
+    }
+
+    @After
+    public void tearDown() {
+        nfsStalled.countDown();
+    }
+
+    @Test
+    public void testHeartBeatIsWritten() throws IOException {
+        KVMHAMonitor monitor = monitor(null);
+        NfsStoragePool pool = pool("pool1");
+        long before = System.currentTimeMillis() / 1000;
+
+        monitor.writeHeartBeats(Collections.singletonList(pool));
+
+        File hbFile = new File(monitor.getHBFile(pool._mountDestPath, HOST));
+        long heartBeat = Long.parseLong(FileUtils.readFileToString(hbFile, StandardCharsets.UTF_8).trim());
+        Assert.assertTrue(heartBeat >= before);
+        StoragePoolHeartbeatStats stats = monitor.getHeartbeatStats().get("pool1");
+        Assert.assertEquals(1, stats.getWrites());
+        Assert.assertEquals(0, stats.getFailures());
+        Assert.assertTrue(fenced.isEmpty());
+    }
+
+    @Test
+    public void testStalledPoolDoesNotDelayOtherPools() throws IOException {
+        KVMHAMonitor monitor = monitor("stalled");
+        List<NfsStoragePool> pools = Arrays.asList(pool("stalled"), pool("pool1"), pool("pool2"));
+
+        long start = System.currentTimeMillis();
+        monitor.writeHeartBeats(pools);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the stalled pool is given up on after its own tries, the others are written once right away
+        Assert.assertTrue("Heartbeats took " + elapsed + " ms", elapsed < 3 * (200 + 10) + 1000);
+        Map<String, StoragePoolHeartbeatStats> stats = monitor.getHeartbeatStats();
+        Assert.assertEquals(3, stats.get("stalled").getConsecutiveFailures());
+        Assert.assertEquals(0, stats.get("pool1").getFailures());
+        Assert.assertEquals(0, stats.get("pool2").getFailures());
+        Assert.assertTrue(new File(monitor.getHBFile(pools.get(1)._mountDestPath, HOST)).exists());
+        Assert.assertEquals(Collections.singletonList("stalled"), fenced);
+        Assert.assertEquals("The hung write is waited for instead of starting another", 1, stalledWrites.get());
+    }
+}
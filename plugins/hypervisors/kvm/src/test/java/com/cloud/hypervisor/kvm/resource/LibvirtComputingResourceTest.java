@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -481,6 +480,11 @@ public class LibvirtComputingResourceTest {
         Mockito.when(domain.getInfo()).thenReturn(domainInfo);
         Mockito.when(domain.memoryStats(2)).thenReturn(domainMem);
         Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
+        Mockito.when(domain.getUUIDString()).thenReturn("e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        Mockito.when(domain.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>" + VMNAME + "</name><devices>"
+                + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/disk'/><target dev='vda' bus='virtio'/></disk>"
+                + "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>"
+                + "</devices></domain>");
         final NodeInfo nodeInfo = new NodeInfo();
         nodeInfo.cpus = 8;
         nodeInfo.memory = 8 * 1024 * 1024;
@@ -524,22 +528,12 @@ public class LibvirtComputingResourceTest {
 
         });
 
-        final LibvirtComputingResource libvirtComputingResource = new LibvirtComputingResource() {
-            @Override
-            public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
-                final InterfaceDef interfaceDef = new InterfaceDef();
-                return Arrays.asList(interfaceDef);
-            }
-
-            @Override
-            public List<DiskDef> getDisks(final Connect conn, final String vmName) {
-                final DiskDef diskDef = new DiskDef();
-                return Arrays.asList(diskDef);
-            }
-
-        };
+        final LibvirtComputingResource libvirtComputingResource = new LibvirtComputingResource();
         libvirtComputingResource.getVmStat(connect, VMNAME);
-        final VmStatsEntry vmStat = libvirtComputingResource.getVmStat(connect, VMNAME);
+        final VmStatsEntry vmStat = libvirtComputingResource.getVmStat(connect, VMNAME, nodeInfo);
+        // the devices are parsed once and the node info passed in is used
+        Mockito.verify(domain, Mockito.times(1)).getXMLDesc(0);
+        Mockito.verify(connect, Mockito.never()).nodeInfo();
         // network traffic as generated by the logic above, must be greater than zero
         Assert.assertTrue(vmStat.getNetworkReadKBs() > 0);
         Assert.assertTrue(vmStat.getNetworkWriteKBs() > 0);
@@ -550,6 +544,10 @@ public class LibvirtComputingResourceTest {
         Assert.assertTrue(vmStat.getIntFreeMemoryKBs() >= 0);
         Assert.assertTrue(vmStat.getMemoryKBs() >= 0);
         Assert.assertTrue(vmStat.getTargetMemoryKBs() >= vmStat.getMemoryKBs());
+
+        libvirtComputingResource.invalidateDomainDevices(domain);
+        libvirtComputingResource.getVmStat(connect, VMNAME, nodeInfo);
+        Mockito.verify(domain, Mockito.times(2)).getXMLDesc(0);
     }
 
     /*
@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+import org.libvirt.MemoryStatistic;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+public class LibvirtDomainStatsCollectorTest {
+
+    private static final String VM1 = "i-2-10-VM";
+    private static final String VM2 = "i-2-11-VM";
+    private static final String URI = "qemu:///system";
+
+    private static final String ALL_DOMAIN_STATS = "Domain: '" + VM1 + "'\n"
+            + "  state.state=1\n"
+            + "  cpu.time=5000000000\n"
+            + "  balloon.current=1048576\n"
+            + "  balloon.maximum=2097152\n"
+            + "  balloon.unused=524288\n"
+            + "  vcpu.current=2\n"
+            + "  net.count=1\n"
+            + "  net.0.name=vnet0\n"
+            + "  net.0.rx.bytes=1000\n"
+            + "  net.0.tx.bytes=2000\n"
+            + "  block.count=2\n"
+            + "  block.0.name=vda\n"
+            + "  block.0.path=/mnt/pool/volume1\n"
+            + "  block.0.rd.reqs=10\n"
+            + "  block.0.rd.bytes=4096\n"
+            + "  block.0.wr.reqs=20\n"
+            + "  block.0.wr.bytes=8192\n"
+            + "  block.1.name=hdc\n"
+            + "\n"
+            + "Domain: '" + VM2 + "'\n"
+            + "  state.state=1\n"
+            + "  cpu.time=7000000000\n"
+            + "  net.count=0\n"
+            + "  block.count=0\n";
+
+    private final Connect conn = Mockito.mock(Connect.class);
+    private final AtomicInteger allDomainStatsCalls = new AtomicInteger();
+    private String allDomainStats = ALL_DOMAIN_STATS;
+    private LibvirtDomainStatsCollector collector;
+
+    private Domain mockDomain(String name, String uuid) throws LibvirtException {
+        final Domain dm = Mockito.mock(Domain.class);
+        Mockito.when(dm.getName()).thenReturn(name);
+        Mockito.when(dm.getUUIDString()).thenReturn(uuid);
+        Mockito.when(dm.getXMLDesc(0)).thenReturn("<domain type='kvm'><name>" + name + "</name><devices>"
+                + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/volume1'/><target dev='vda' bus='virtio'/></disk>"
+                + "<disk type='file' device='cdrom'><target dev='hdc' bus='ide'/></disk>"
+                + "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>"
+                + "</devices></domain>");
+        final DomainInfo info = new DomainInfo();
+        info.cpuTime = 5000000000L;
+        info.nrVirtCpu = 2;
+        info.maxMem = 2097152;
+        info.memory = 1048576;
+        Mockito.when(dm.getInfo()).thenReturn(info);
+        Mockito.when(dm.memoryStats(Matchers.anyInt())).thenReturn(new MemoryStatistic[0]);
+        final DomainInterfaceStats nicStats = new DomainInterfaceStats();
+        nicStats.rx_bytes = 1000;
+        nicStats.tx_bytes = 2000;
+        Mockito.when(dm.interfaceStats("vnet0")).thenReturn(nicStats);
+        final DomainBlockStats blockStats = new DomainBlockStats();
+        blockStats.rd_req = 10;
+        blockStats.rd_bytes = 4096;
+        blockStats.wr_req = 20;
+        blockStats.wr_bytes = 8192;
+        Mockito.when(dm.blockStats("vda")).thenReturn(blockStats);
+        Mockito.when(conn.domainLookupByName(name)).thenReturn(dm);
+        return dm;
+    }
+
+    @Before
+    public void setup() throws LibvirtException {
+        Mockito.when(conn.getURI()).thenReturn(URI);
+        collector = new LibvirtDomainStatsCollector(new LibvirtDomainDevicesCache()) {
+            @Override
+            protected String getAllDomainStats(String uri) {
+                Assert.assertEquals(URI, uri);
+                allDomainStatsCalls.incrementAndGet();
+                return allDomainStats;
+            }
+        };
+    }
+
+    @Test
+    public void testParseAllDomainStats() {
+        final Map<String, Map<String, String>> records = LibvirtDomainStatsCollector.parseAllDomainStats(ALL_DOMAIN_STATS);
+        Assert.assertEquals(Arrays.asList(VM1, VM2), Arrays.asList(records.keySet().toArray()));
+        Assert.assertEquals("5000000000", records.get(VM1).get("cpu.time"));
+        Assert.assertEquals("vda", records.get(VM1).get("block.0.name"));
+        Assert.assertEquals("0", records.get(VM2).get("net.count"));
+    }
+
+    @Test
+    public void testAllDomainsAreCollectedAtOnce() throws LibvirtException {
+        Mockito.when(conn.getLibVirVersion()).thenReturn(LibvirtDomainStatsCollector.ALL_DOMAIN_STATS_MIN_VERSION);
+        final Domain dm = mockDomain(VM1, "e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        mockDomain(VM2, "5b1c0c4a-5f5d-4a4b-9a42-3b0d3f3c1f11");
+
+        final Map<String, LibvirtDomainStats> stats = collector.collect(conn, Arrays.asList(VM1, VM2, "i-2-12-VM"));
+        Assert.assertEquals(2, stats.size());
+        final LibvirtDomainStats vm1 = stats.get(VM1);
+        Assert.assertEquals(5000000000L, vm1.getCpuTime());
+        Assert.assertEquals(2, vm1.getVcpus());
+        Assert.assertEquals(2097152, vm1.getMaxMemoryKBs());
+        Assert.assertEquals(524288, vm1.getFreeMemoryKBs());
+        Assert.assertEquals(1, vm1.getInterfaces().size());
+        Assert.assertEquals("02:00:00:00:00:01", vm1.getInterfaces().get(0).getNic().getMacAddress());
+        Assert.assertEquals(2000, vm1.getInterfaces().get(0).getTxBytes());
+        Assert.assertEquals("The CD-ROM is left out", 1, vm1.getBlocks().size());
+        Assert.assertEquals(8192, vm1.getBlocks().get(0).getWriteBytes());
+
+        // the disk and network stats are answered from the same snapshot
+        final Map<String, LibvirtDomainStats> again = collector.collect(conn, Arrays.asList(VM1));
+        Assert.assertSame(vm1, again.get(VM1));
+        Assert.assertEquals(1, allDomainStatsCalls.get());
+
+        Mockito.verify(dm, Mockito.never()).interfaceStats(Matchers.anyString());
+        Mockito.verify(dm, Mockito.never()).blockStats(Matchers.anyString());
+        Mockito.verify(dm, Mockito.never()).getInfo();
+    }
+
+    @Test
+    public void testSnapshotExpires() throws LibvirtException {
+        Mockito.when(conn.getLibVirVersion()).thenReturn(LibvirtDomainStatsCollector.ALL_DOMAIN_STATS_MIN_VERSION);
+        mockDomain(VM1, "e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        mockDomain(VM2, "5b1c0c4a-5f5d-4a4b-9a42-3b0d3f3c1f11");
+        collector.setMaxAge(-1);
+
+        collector.collect(conn, Arrays.asList(VM1));
+        collector.collect(conn, Arrays.asList(VM1));
+        Assert.assertEquals(2, allDomainStatsCalls.get());
+    }
+
+    @Test
+    public void testEachDomainIsCollectedWithOldLibvirt() throws LibvirtException {
+        Mockito.when(conn.getLibVirVersion()).thenReturn(1002002L);
+        final Domain dm = mockDomain(VM1, "e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        Mockito.when(conn.domainLookupByName("i-2-12-VM")).thenThrow(LibvirtException.class);
+
+        final Map<String, LibvirtDomainStats> stats = collector.collect(conn, Arrays.asList(VM1, "i-2-12-VM"));
+        Assert.assertEquals(1, stats.size());
+        final LibvirtDomainStats vm1 = stats.get(VM1);
+        Assert.assertEquals(1048576, vm1.getMemoryKBs());
+        Assert.assertEquals(1000, vm1.getInterfaces().get(0).getRxBytes());
+        Assert.assertEquals(10, vm1.getBlocks().get(0).getReadRequests());
+        Assert.assertEquals(0, allDomainStatsCalls.get());
+
+        // requesting the same VMs again is answered from the snapshot
+        collector.collect(conn, Arrays.asList(VM1, "i-2-12-VM"));
+        Mockito.verify(dm, Mockito.times(1)).getInfo();
+    }
+
+    @Test
+    public void testFailureFallsBackToEachDomain() throws LibvirtException {
+        Mockito.when(conn.getLibVirVersion()).thenReturn(LibvirtDomainStatsCollector.ALL_DOMAIN_STATS_MIN_VERSION);
+        final Domain dm = mockDomain(VM1, "e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        allDomainStats = null;
+
+        final List<String> vmNames = Arrays.asList(VM1);
+        Assert.assertEquals(1, collector.collect(conn, vmNames).size());
+        Assert.assertEquals(1, allDomainStatsCalls.get());
+        Mockito.verify(dm).interfaceStats("vnet0");
+    }
+}
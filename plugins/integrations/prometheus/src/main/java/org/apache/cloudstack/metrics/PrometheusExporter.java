@@ -21,4 +21,9 @@ public interface PrometheusExporter {
     void updateMetrics();
 
     String getMetrics();
+
+    /**
+     * @return the metrics of the last update, rendered in the text exposition format
+     */
+    byte[] getMetricsSnapshot();
 }
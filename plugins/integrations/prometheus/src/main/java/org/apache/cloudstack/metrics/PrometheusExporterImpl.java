@@ -17,16 +17,24 @@
 package org.apache.cloudstack.metrics;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
 import org.apache.cloudstack.engine.subsystem.api.storage.ZoneScope;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.ImageStoreDao;
 import org.apache.log4j.Logger;
 
-import com.cloud.alert.AlertManager;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.dao.DomainJoinDao;
 import com.cloud.api.query.dao.HostJoinDao;
@@ -50,10 +58,11 @@ import com.cloud.network.dao.IPAddressDao;
 import com.cloud.storage.ImageStore;
 import com.cloud.storage.StorageStats;
 import com.cloud.storage.Volume;
-import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.dao.VMInstanceDao;
 import com.google.common.base.Strings;
@@ -68,7 +77,14 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
     private static final String ONLINE = "online";
     private static final String OFFLINE = "offline";
 
-    private static List<Item> metricsItems = new ArrayList<>();
+    private static final String HEADER = "# Cloudstack Prometheus Metrics\n";
+
+    // the metrics of the last update, rendered once and replaced as a whole so a scrape only copies out the bytes
+    private volatile byte[] metricsSnapshot = HEADER.getBytes(StandardCharsets.UTF_8);
+    // the metrics of the update in progress are rendered into it, updates do not run concurrently
+    private final StringBuilder renderBuffer = new StringBuilder();
+
+    private ScheduledExecutorService executor;
 
     @Inject
     private DataCenterDao dcDao;
@@ -90,21 +106,123 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
     private ImageStoreDao imageStoreDao;
     @Inject
     private DomainJoinDao domainDao;
-    @Inject
-    private AlertManager alertManager;
 
     public PrometheusExporterImpl() {
         super();
     }
 
-    private void addHostMetrics(final List<Item> metricsList, final long dcId, final String zoneName, final String zoneUuid) {
+    @Override
+    public boolean start() {
+        if (PrometheusExporterServer.EnablePrometheusExporter.value()) {
+            executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("PrometheusExporter"));
+            executor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    updateMetrics();
+                }
+            }, 0L, PrometheusExporterServer.PrometheusExporterRefreshInterval.value(), TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * What the metrics of all the zones are computed from, each fetched with a single query for all the zones.
+     */
+    private class Aggregates {
+        final Map<Long, List<HostJoinVO>> hostsByZone = new HashMap<>();
+        final Map<Long, List<StoragePoolJoinVO>> poolsByZone = new HashMap<>();
+        final Map<Long, Map<Short, CapacityVO>> hostCapacities = new HashMap<>();
+        final Map<Long, Long> vmsByHost;
+        final Map<Long, Map<State, Long>> vmsByZone = new HashMap<>();
+        final Map<Long, Map<Volume.State, Long>> volumesByZone = new HashMap<>();
+        final Map<Long, String> cpuFactorByCluster = new HashMap<>();
+        final Map<Long, String> memoryFactorByCluster = new HashMap<>();
+
+        Aggregates() {
+            // the view has a row per host tag
+            final Set<Long> hostIds = new HashSet<>();
+            for (final HostJoinVO host : hostJoinDao.listAll()) {
+                if (host != null && host.getType() == Host.Type.Routing && hostIds.add(host.getId())) {
+                    listOf(hostsByZone, host.getZoneId()).add(host);
+                }
+            }
+            for (final StoragePoolJoinVO pool : storagePoolJoinDao.listAll()) {
+                if (pool != null) {
+                    listOf(poolsByZone, pool.getZoneId()).add(pool);
+                }
+            }
+            for (final CapacityVO capacity : capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY, Capacity.CAPACITY_TYPE_CPU_CORE)) {
+                Map<Short, CapacityVO> capacities = hostCapacities.get(capacity.getHostOrPoolId());
+                if (capacities == null) {
+                    capacities = new HashMap<>();
+                    hostCapacities.put(capacity.getHostOrPoolId(), capacities);
+                }
+                capacities.put(capacity.getCapacityType(), capacity);
+            }
+            vmsByHost = vmDao.countByHost();
+            for (final Ternary<Long, State, Long> count : vmDao.countByZoneAndState()) {
+                mapOf(vmsByZone, count.first()).put(count.second(), count.third());
+            }
+            for (final Ternary<Long, Volume.State, Long> count : volumeDao.countByZoneAndState()) {
+                mapOf(volumesByZone, count.first()).put(count.second(), count.third());
+            }
+        }
+
+        CapacityVO hostCapacity(final long hostId, final short capacityType) {
+            final Map<Short, CapacityVO> capacities = hostCapacities.get(hostId);
+            return capacities != null ? capacities.get(capacityType) : null;
+        }
+
+        String cpuFactor(final Long clusterId) {
+            String factor = cpuFactorByCluster.get(clusterId);
+            if (factor == null) {
+                factor = String.valueOf(CapacityManager.CpuOverprovisioningFactor.valueIn(clusterId));
+                cpuFactorByCluster.put(clusterId, factor);
+            }
+            return factor;
+        }
+
+        String memoryFactor(final Long clusterId) {
+            String factor = memoryFactorByCluster.get(clusterId);
+            if (factor == null) {
+                factor = String.valueOf(CapacityManager.MemOverprovisioningFactor.valueIn(clusterId));
+                memoryFactorByCluster.put(clusterId, factor);
+            }
+            return factor;
+        }
+    }
+
+    private static <T> List<T> listOf(final Map<Long, List<T>> lists, final long zoneId) {
+        List<T> list = lists.get(zoneId);
+        if (list == null) {
+            list = new ArrayList<>();
+            lists.put(zoneId, list);
+        }
+        return list;
+    }
+
+    private static <K> Map<K, Long> mapOf(final Map<Long, Map<K, Long>> maps, final long zoneId) {
+        Map<K, Long> map = maps.get(zoneId);
+        if (map == null) {
+            map = new HashMap<>();
+            maps.put(zoneId, map);
+        }
+        return map;
+    }
+
+    private void addHostMetrics(final List<Item> metricsList, final Aggregates aggregates, final long dcId, final String zoneName, final String zoneUuid) {
         int total = 0;
         int up = 0;
         int down = 0;
-        for (final HostJoinVO host : hostJoinDao.listAll()) {
-            if (host == null || host.getType() != Host.Type.Routing || host.getZoneId() != dcId) {
-                continue;
-            }
+        for (final HostJoinVO host : listOf(aggregates.hostsByZone, dcId)) {
             total++;
             if (host.getStatus() == Status.Up) {
                 up++;
@@ -112,8 +230,8 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
                 down++;
             }
 
-            final String cpuFactor = String.valueOf(CapacityManager.CpuOverprovisioningFactor.valueIn(host.getClusterId()));
-            final CapacityVO cpuCapacity = capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_CPU);
+            final String cpuFactor = aggregates.cpuFactor(host.getClusterId());
+            final CapacityVO cpuCapacity = aggregates.hostCapacity(host.getId(), Capacity.CAPACITY_TYPE_CPU);
             if (cpuCapacity != null) {
                 metricsList.add(new ItemHostCpu(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), cpuFactor, USED, cpuCapacity.getUsedCapacity()));
                 metricsList.add(new ItemHostCpu(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), cpuFactor, TOTAL, cpuCapacity.getTotalCapacity()));
@@ -122,8 +240,8 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
                 metricsList.add(new ItemHostCpu(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), cpuFactor, TOTAL, 0L));
             }
 
-            final String memoryFactor = String.valueOf(CapacityManager.MemOverprovisioningFactor.valueIn(host.getClusterId()));
-            final CapacityVO memCapacity = capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_MEMORY);
+            final String memoryFactor = aggregates.memoryFactor(host.getClusterId());
+            final CapacityVO memCapacity = aggregates.hostCapacity(host.getId(), Capacity.CAPACITY_TYPE_MEMORY);
             if (memCapacity != null) {
                 metricsList.add(new ItemHostMemory(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), memoryFactor, USED, memCapacity.getUsedCapacity()));
                 metricsList.add(new ItemHostMemory(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), memoryFactor, TOTAL, memCapacity.getTotalCapacity()));
@@ -132,9 +250,10 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
                 metricsList.add(new ItemHostMemory(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), memoryFactor, TOTAL, 0L));
             }
 
-            metricsList.add(new ItemHostVM(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), vmDao.listByHostId(host.getId()).size()));
+            final Long vms = aggregates.vmsByHost.get(host.getId());
+            metricsList.add(new ItemHostVM(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), vms != null ? vms.intValue() : 0));
 
-            final CapacityVO coreCapacity = capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_CPU_CORE);
+            final CapacityVO coreCapacity = aggregates.hostCapacity(host.getId(), Capacity.CAPACITY_TYPE_CPU_CORE);
             if (coreCapacity != null) {
                 metricsList.add(new ItemVMCore(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), USED, coreCapacity.getUsedCapacity()));
                 metricsList.add(new ItemVMCore(zoneName, zoneUuid, host.getName(), host.getUuid(), host.getPrivateIpAddress(), TOTAL, coreCapacity.getTotalCapacity()));
@@ -164,29 +283,24 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
         metricsList.add(new ItemHost(zoneName, zoneUuid, TOTAL, total));
     }
 
-    private void addVMMetrics(final List<Item> metricsList, final long dcId, final String zoneName, final String zoneUuid) {
+    private void addVMMetrics(final List<Item> metricsList, final Aggregates aggregates, final long dcId, final String zoneName, final String zoneUuid) {
+        final Map<State, Long> counts = mapOf(aggregates.vmsByZone, dcId);
         for (final State state : State.values()) {
-            final Long count = vmDao.countByZoneAndState(dcId, state);
-            if (count == null) {
-                continue;
-            }
-            metricsList.add(new ItemVM(zoneName, zoneUuid, state.name().toLowerCase(), count));
+            final Long count = counts.get(state);
+            metricsList.add(new ItemVM(zoneName, zoneUuid, state.name().toLowerCase(), count != null ? count : 0L));
         }
     }
 
-    private void addVolumeMetrics(final List<Item> metricsList, final long dcId, final String zoneName, final String zoneUuid) {
+    private void addVolumeMetrics(final List<Item> metricsList, final Aggregates aggregates, final long dcId, final String zoneName, final String zoneUuid) {
         int total = 0;
         int ready = 0;
         int destroyed = 0;
-        for (final VolumeVO volume : volumeDao.findByDc(dcId)) {
-            if (volume == null) {
-                continue;
-            }
-            total++;
-            if (volume.getState() == Volume.State.Ready) {
-                ready++;
-            } else if (volume.getState() == Volume.State.Destroy) {
-                destroyed++;
+        for (final Map.Entry<Volume.State, Long> count : mapOf(aggregates.volumesByZone, dcId).entrySet()) {
+            total += count.getValue();
+            if (count.getKey() == Volume.State.Ready) {
+                ready += count.getValue();
+            } else if (count.getKey() == Volume.State.Destroy) {
+                destroyed += count.getValue();
             }
         }
         metricsList.add(new ItemVolume(zoneName, zoneUuid, Volume.State.Ready.name().toLowerCase(), ready));
@@ -194,11 +308,8 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
         metricsList.add(new ItemVolume(zoneName, zoneUuid, TOTAL, total));
     }
 
-    private void addStorageMetrics(final List<Item> metricsList, final long dcId, final String zoneName, final String zoneUuid) {
-        for (final StoragePoolJoinVO pool: storagePoolJoinDao.listAll()) {
-            if (pool == null || pool.getZoneId() != dcId) {
-                continue;
-            }
+    private void addStorageMetrics(final List<Item> metricsList, final Aggregates aggregates, final long dcId, final String zoneName, final String zoneUuid) {
+        for (final StoragePoolJoinVO pool : listOf(aggregates.poolsByZone, dcId)) {
             final String poolName = pool.getName();
             final String poolPath = pool.getHostAddress() + ":" + pool.getPath();
 
@@ -265,18 +376,23 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
         metricsList.add(new ItemDomainLimitMemory(totalMemoryLimit));
     }
 
+    /**
+     * Computes the metrics of all the zones and replaces the snapshot the scrapes are served from. The capacities are
+     * read as the alert manager last recalculated them, they are not recalculated for the metrics.
+     */
     @Override
-    public void updateMetrics() {
+    public synchronized void updateMetrics() {
+        final long start = System.currentTimeMillis();
         final List<Item> latestMetricsItems = new ArrayList<Item>();
         try {
+            final Aggregates aggregates = new Aggregates();
             for (final DataCenterVO dc : dcDao.listAll()) {
                 final String zoneName = dc.getName();
                 final String zoneUuid = dc.getUuid();
-                alertManager.recalculateCapacity();
-                addHostMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
-                addVMMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
-                addVolumeMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
-                addStorageMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
+                addHostMetrics(latestMetricsItems, aggregates, dc.getId(), zoneName, zoneUuid);
+                addVMMetrics(latestMetricsItems, aggregates, dc.getId(), zoneName, zoneUuid);
+                addVolumeMetrics(latestMetricsItems, aggregates, dc.getId(), zoneName, zoneUuid);
+                addStorageMetrics(latestMetricsItems, aggregates, dc.getId(), zoneName, zoneUuid);
                 addIpAddressMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
                 addVlanMetrics(latestMetricsItems, dc.getId(), zoneName, zoneUuid);
             }
@@ -284,17 +400,26 @@ public class PrometheusExporterImpl extends ManagerBase implements PrometheusExp
         } catch (Exception e) {
             LOG.warn("Getting metrics failed ", e);
         }
-        metricsItems = latestMetricsItems;
+
+        renderBuffer.setLength(0);
+        renderBuffer.append(HEADER);
+        for (final Item item : latestMetricsItems) {
+            renderBuffer.append(item.toMetricsString()).append("\n");
+        }
+        metricsSnapshot = renderBuffer.toString().getBytes(StandardCharsets.UTF_8);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Updated " + latestMetricsItems.size() + " prometheus metrics in " + (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
     @Override
     public String getMetrics() {
-        final StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("# Cloudstack Prometheus Metrics\n");
-        for (final Item item : metricsItems) {
-            stringBuilder.append(item.toMetricsString()).append("\n");
-        }
-        return stringBuilder.toString();
+        return new String(metricsSnapshot, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getMetricsSnapshot() {
+        return metricsSnapshot;
     }
 
     private abstract class Item {
@@ -30,4 +30,7 @@ public interface PrometheusExporterServer extends Manager {
 
     ConfigKey<String> PrometheusExporterAllowedAddresses = new ConfigKey<>("Advanced", String.class, "prometheus.exporter.allowed.ips", "127.0.0.1",
             "List of comma separated prometheus server ips (with no spaces) that should be allowed to access the URLs", true);
+
+    ConfigKey<Integer> PrometheusExporterRefreshInterval = new ConfigKey<>("Advanced", Integer.class, "prometheus.exporter.refresh.interval", "30",
+            "Interval in seconds the metrics served to prometheus are updated at, management server restart needed.", false);
 }
@@ -28,6 +28,7 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class PrometheusExporterServerImpl extends ManagerBase implements PrometheusExporterServer, Configurable {
@@ -39,6 +40,8 @@ public class PrometheusExporterServerImpl extends ManagerBase implements Prometh
     private PrometheusExporter prometheusExporter;
 
     private final static class ExporterHandler implements HttpHandler {
+        private static final byte[] FORBIDDEN = "Forbidden".getBytes(StandardCharsets.UTF_8);
+
         private PrometheusExporter prometheusExporter;
 
         ExporterHandler(final PrometheusExporter prometheusExporter) {
@@ -50,17 +53,17 @@ public class PrometheusExporterServerImpl extends ManagerBase implements Prometh
         public void handle(final HttpExchange httpExchange) throws IOException {
             final String remoteClientAddress = httpExchange.getRemoteAddress().getAddress().toString().replace("/", "");
             LOG.debug("Prometheus exporter received client request from: " + remoteClientAddress);
-            String response = "Forbidden";
+            byte[] response = FORBIDDEN;
             int responseCode = 403;
             if (Arrays.asList(PrometheusExporterAllowedAddresses.value().split(",")).contains(remoteClientAddress)) {
-                prometheusExporter.updateMetrics();
-                response = prometheusExporter.getMetrics();
+                // served as rendered by the last update of the exporter, scrapes never compute the metrics
+                response = prometheusExporter.getMetricsSnapshot();
                 responseCode = 200;
             }
             httpExchange.getResponseHeaders().set("Content-Type", "text/plain");
-            httpExchange.sendResponseHeaders(responseCode, response.length());
+            httpExchange.sendResponseHeaders(responseCode, response.length);
             final OutputStream os = httpExchange.getResponseBody();
-            os.write(response.getBytes());
+            os.write(response);
             os.close();
         }
     }
@@ -112,7 +115,8 @@ public class PrometheusExporterServerImpl extends ManagerBase implements Prometh
         return new ConfigKey<?>[] {
                 EnablePrometheusExporter,
                 PrometheusExporterServerPort,
-                PrometheusExporterAllowedAddresses
+                PrometheusExporterAllowedAddresses,
+                PrometheusExporterRefreshInterval
         };
     }
 }
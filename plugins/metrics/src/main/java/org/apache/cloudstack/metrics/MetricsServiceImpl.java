@@ -18,8 +18,16 @@
 package org.apache.cloudstack.metrics;
 
 import java.lang.reflect.InvocationTargetException;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -29,6 +37,7 @@ import org.apache.cloudstack.api.ListHostsMetricsCmd;
 import org.apache.cloudstack.api.ListInfrastructureCmd;
 import org.apache.cloudstack.api.ListStoragePoolsMetricsCmd;
 import org.apache.cloudstack.api.ListVMsMetricsCmd;
+import org.apache.cloudstack.api.ListVMsMetricsHistoryCmd;
 import org.apache.cloudstack.api.ListVolumesMetricsCmd;
 import org.apache.cloudstack.api.ListZonesMetricsCmd;
 import org.apache.cloudstack.api.ServerApiException;
@@ -39,11 +48,14 @@ import org.apache.cloudstack.api.response.UserVmResponse;
 import org.apache.cloudstack.api.response.VolumeResponse;
 import org.apache.cloudstack.api.response.ZoneResponse;
 import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.response.ClusterMetricsResponse;
 import org.apache.cloudstack.response.HostMetricsResponse;
 import org.apache.cloudstack.response.InfrastructureResponse;
 import org.apache.cloudstack.response.StoragePoolMetricsResponse;
+import org.apache.cloudstack.response.VmMetricsHistoryResponse;
 import org.apache.cloudstack.response.VmMetricsResponse;
+import org.apache.cloudstack.response.VmStatsSampleResponse;
 import org.apache.cloudstack.response.VolumeMetricsResponse;
 import org.apache.cloudstack.response.ZoneMetricsResponse;
 import org.apache.cloudstack.storage.datastore.db.ImageStoreDao;
@@ -51,7 +63,6 @@ import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.commons.beanutils.BeanUtils;
 
 import com.cloud.alert.AlertManager;
-import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.dao.HostJoinDao;
 import com.cloud.api.query.vo.HostJoinVO;
 import com.cloud.capacity.Capacity;
@@ -59,24 +70,30 @@ import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.capacity.dao.CapacityDaoImpl;
 import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DeploymentClusterPlanner;
+import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.host.Host;
 import com.cloud.host.HostStats;
+import com.cloud.host.HostVO;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.org.Cluster;
 import com.cloud.org.Grouping;
 import com.cloud.org.Managed;
+import com.cloud.server.StatsCollector;
+import com.cloud.server.StatsCollector.VmHistoryMetric;
+import com.cloud.server.StatsHistory;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ComponentLifecycleBase;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
-import com.cloud.vm.dao.DomainRouterDao;
 import com.cloud.vm.dao.VMInstanceDao;
 
 public class MetricsServiceImpl extends ComponentLifecycleBase implements MetricsService {
@@ -88,6 +105,8 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
     @Inject
     private ClusterDao clusterDao;
     @Inject
+    private ClusterDetailsDao clusterDetailsDao;
+    @Inject
     private HostDao hostDao;
     @Inject
     private HostJoinDao hostJoinDao;
@@ -98,30 +117,148 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
     @Inject
     private VMInstanceDao vmInstanceDao;
     @Inject
-    private DomainRouterDao domainRouterDao;
-    @Inject
     private CapacityDao capacityDao;
     @Inject
     private AccountManager accountMgr;
     @Inject
     private ManagementServerHostDao managementServerHostDao;
+    @Inject
+    private StatsCollector statsCollector;
 
     protected MetricsServiceImpl() {
         super();
     }
 
-    private Double findRatioValue(final String value) {
+    private static Double findRatioValue(final String value) {
         if (value != null) {
             return Double.valueOf(value);
         }
         return 1.0;
     }
 
+    /**
+     * @return the value of the setting in the details of a cluster, where ConfigKey.valueIn looks it up one setting at
+     * a time, or its global value when the cluster does not set it
+     */
+    private static Double doubleValueIn(final ConfigKey<Double> key, final Map<String, String> details) {
+        final String value = details.get(key.key());
+        return value != null ? Double.valueOf(value) : key.value();
+    }
+
+    /**
+     * @see #doubleValueIn(ConfigKey, Map)
+     */
+    private static Float floatValueIn(final ConfigKey<Float> key, final Map<String, String> details) {
+        final String value = details.get(key.key());
+        return value != null ? Float.valueOf(value) : key.value();
+    }
+
+    /**
+     * The thresholds and overcommit ratios of a cluster.
+     */
+    private static class ClusterSettings {
+        private final Double cpuThreshold;
+        private final Double memoryThreshold;
+        private final Float cpuDisableThreshold;
+        private final Float memoryDisableThreshold;
+        private final Double cpuOvercommitRatio;
+        private final Double memoryOvercommitRatio;
+
+        /**
+         * @param details the details of the cluster, which hold the thresholds set for the cluster by the name of their
+         *                setting
+         */
+        ClusterSettings(final Map<String, String> details) {
+            cpuThreshold = doubleValueIn(AlertManager.CPUCapacityThreshold, details);
+            memoryThreshold = doubleValueIn(AlertManager.MemoryCapacityThreshold, details);
+            cpuDisableThreshold = floatValueIn(DeploymentClusterPlanner.ClusterCPUCapacityDisableThreshold, details);
+            memoryDisableThreshold = floatValueIn(DeploymentClusterPlanner.ClusterMemoryCapacityDisableThreshold, details);
+            cpuOvercommitRatio = findRatioValue(details.get("cpuOvercommitRatio"));
+            memoryOvercommitRatio = findRatioValue(details.get("memoryOvercommitRatio"));
+        }
+    }
+
+    /**
+     * What the metrics of a request are computed from, fetched at once for all the hosts and clusters of the request so
+     * the number of queries does not grow with the number of hosts. It is kept for the request only, as the capacities
+     * and stats change from one request to the next.
+     */
+    private class RequestCache {
+        private final Map<Long, ClusterSettings> clusterSettings = new HashMap<>();
+        private final Map<Long, List<HostJoinVO>> hostsByCluster = new HashMap<>();
+        private final Map<Long, CapacityDaoImpl.SummedCapacity> cpuCapacities = new HashMap<>();
+        private final Map<Long, CapacityDaoImpl.SummedCapacity> memoryCapacities = new HashMap<>();
+
+        /**
+         * Fetches the routing hosts of all the clusters with a single query.
+         */
+        void loadHosts(final Collection<Long> clusterIds) {
+            final Set<Long> hostIds = new HashSet<>();
+            for (final HostJoinVO host : hostJoinDao.findByClusterIds(Host.Type.Routing, clusterIds.toArray(new Long[clusterIds.size()]))) {
+                // the view has a row per host tag
+                if (hostIds.add(host.getId())) {
+                    hostsOf(host.getClusterId()).add(host);
+                }
+            }
+        }
+
+        /**
+         * Fetches the details the settings of all the clusters come from with a single query.
+         */
+        void loadSettings(final Collection<Long> clusterIds) {
+            final Map<Long, Map<String, String>> detailsByCluster = clusterDetailsDao.findDetailsByClusterIds(clusterIds);
+            for (final Long clusterId : clusterIds) {
+                final Map<String, String> details = detailsByCluster.get(clusterId);
+                clusterSettings.put(clusterId, new ClusterSettings(details != null ? details : new HashMap<String, String>()));
+            }
+        }
+
+        /**
+         * Fetches the CPU and memory capacities of all the clusters with a single query.
+         */
+        void loadCapacities(final Collection<Long> clusterIds) {
+            for (final CapacityDaoImpl.SummedCapacity capacity : capacityDao.findCapacityByClusterIds(null, clusterIds)) {
+                if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+                    cpuCapacities.put(capacity.getClusterId(), capacity);
+                } else if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_MEMORY) {
+                    memoryCapacities.put(capacity.getClusterId(), capacity);
+                }
+            }
+        }
+
+        CapacityDaoImpl.SummedCapacity cpuCapacityOf(final Long clusterId) {
+            return cpuCapacities.get(clusterId);
+        }
+
+        CapacityDaoImpl.SummedCapacity memoryCapacityOf(final Long clusterId) {
+            return memoryCapacities.get(clusterId);
+        }
+
+        List<HostJoinVO> hostsOf(final Long clusterId) {
+            List<HostJoinVO> hosts = hostsByCluster.get(clusterId);
+            if (hosts == null) {
+                hosts = new ArrayList<>();
+                hostsByCluster.put(clusterId, hosts);
+            }
+            return hosts;
+        }
+
+        ClusterSettings settingsOf(final Long clusterId) {
+            ClusterSettings settings = clusterSettings.get(clusterId);
+            if (settings == null) {
+                final Map<String, String> details = clusterId != null ? clusterDetailsDao.findDetails(clusterId) : null;
+                settings = new ClusterSettings(details != null ? details : new HashMap<String, String>());
+                clusterSettings.put(clusterId, settings);
+            }
+            return settings;
+        }
+    }
+
     private void updateHostMetrics(final Metrics metrics, final HostJoinVO host) {
         metrics.incrTotalHosts();
         metrics.addCpuAllocated(host.getCpuReservedCapacity() + host.getCpuUsedCapacity());
         metrics.addMemoryAllocated(host.getMemReservedCapacity() + host.getMemUsedCapacity());
-        final HostStats hostStats = ApiDBUtils.getHostStatistics(host.getId());
+        final HostStats hostStats = statsCollector.getHostStats(host.getId());
         if (hostStats != null) {
             metrics.addCpuUsedPercentage(hostStats.getCpuUtilization());
             metrics.addMemoryUsed((long) hostStats.getUsedMemory());
@@ -136,13 +273,14 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
         response.setZones(dataCenterDao.listAllZones().size());
         response.setPods(podDao.listAllPods(null).size());
         response.setClusters(clusterDao.listAllClusters(null).size());
-        response.setHosts(hostDao.listByType(Host.Type.Routing).size());
-        response.setStoragePools(storagePoolDao.listAll().size());
+        final List<HostVO> hosts = hostDao.listByType(Host.Type.Routing);
+        response.setHosts(hosts.size());
+        response.setStoragePools((int) storagePoolDao.countAll());
         response.setImageStores(imageStoreDao.listImageStores().size());
-        response.setSystemvms(vmInstanceDao.listByTypes(VirtualMachine.Type.ConsoleProxy, VirtualMachine.Type.SecondaryStorageVm).size());
-        response.setRouters(domainRouterDao.listAll().size());
+        response.setSystemvms(vmInstanceDao.countByTypes(VirtualMachine.Type.ConsoleProxy, VirtualMachine.Type.SecondaryStorageVm).intValue());
+        response.setRouters(vmInstanceDao.countByTypes(VirtualMachine.Type.DomainRouter).intValue());
         int cpuSockets = 0;
-        for (final Host host : hostDao.listByType(Host.Type.Routing)) {
+        for (final Host host : hosts) {
             if (host.getCpuSockets() != null) {
                 cpuSockets += host.getCpuSockets();
             }
@@ -175,9 +313,25 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
         return metricsResponses;
     }
 
+    /**
+     * @return the ids of the VMs of the responses by their uuid, looked up in a single query
+     */
+    private Map<String, Long> findVmIds(final List<UserVmResponse> vmResponses) {
+        final Set<String> uuids = new HashSet<>();
+        for (final UserVmResponse vmResponse : vmResponses) {
+            uuids.add(vmResponse.getId());
+        }
+        final Map<String, Long> vmIds = new HashMap<>();
+        for (final VMInstanceVO vm : vmInstanceDao.listByUuids(uuids)) {
+            vmIds.put(vm.getUuid(), vm.getId());
+        }
+        return vmIds;
+    }
+
     @Override
     public List<VmMetricsResponse> listVmMetrics(List<UserVmResponse> vmResponses) {
         final List<VmMetricsResponse> metricsResponses = new ArrayList<>();
+        final Map<String, Long> vmIds = findVmIds(vmResponses);
         for (final UserVmResponse vmResponse: vmResponses) {
             VmMetricsResponse metricsResponse = new VmMetricsResponse();
 
@@ -195,6 +349,63 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
             metricsResponse.setDiskRead(vmResponse.getDiskKbsRead());
             metricsResponse.setDiskWrite(vmResponse.getDiskKbsWrite());
             metricsResponse.setDiskIopsTotal(vmResponse.getDiskIORead(), vmResponse.getDiskIOWrite());
+            final Long vmId = vmIds.get(vmResponse.getId());
+            if (vmId != null) {
+                final long now = System.currentTimeMillis();
+                final StatsHistory history = statsCollector.getVmStatsHistory();
+                final int cpu = VmHistoryMetric.CPU_UTILIZATION.ordinal();
+                metricsResponse.setCpuTrend(history.average(vmId, StatsHistory.Resolution.MINUTE, cpu, now - TimeUnit.HOURS.toMillis(1), now),
+                        history.average(vmId, StatsHistory.Resolution.MINUTE, cpu, now - TimeUnit.MINUTES.toMillis(5), now));
+            }
+            metricsResponses.add(metricsResponse);
+        }
+        return metricsResponses;
+    }
+
+    @Override
+    public List<VmMetricsHistoryResponse> listVmMetricsHistory(List<UserVmResponse> vmResponses, String interval, Date startDate, Date endDate) {
+        StatsHistory.Resolution resolution = StatsHistory.Resolution.MINUTE;
+        if (interval != null) {
+            try {
+                resolution = StatsHistory.Resolution.valueOf(interval.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidParameterValueException("Invalid interval " + interval + ", valid intervals are minute, five_minutes and hour");
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final long from = startDate == null ? 0L : startDate.getTime();
+        final long to = endDate == null ? now : endDate.getTime();
+        final DecimalFormat decimalFormat = new DecimalFormat("#.##");
+
+        final List<VmMetricsHistoryResponse> metricsResponses = new ArrayList<>();
+        final Map<String, Long> vmIds = findVmIds(vmResponses);
+        for (final UserVmResponse vmResponse: vmResponses) {
+            final Long vmId = vmIds.get(vmResponse.getId());
+            if (vmId == null) {
+                continue;
+            }
+            final List<VmStatsSampleResponse> stats = new ArrayList<>();
+            for (final StatsHistory.Sample sample : statsCollector.getVmStatsHistory().read(vmId, resolution, from, to, now)) {
+                final VmStatsSampleResponse statsResponse = new VmStatsSampleResponse();
+                statsResponse.setTimestamp(new Date(sample.getTimestamp()));
+                statsResponse.setCpuUsed(decimalFormat.format(sample.getValue(VmHistoryMetric.CPU_UTILIZATION.ordinal())) + "%");
+                statsResponse.setNetworkKbsRead((long)sample.getValue(VmHistoryMetric.NETWORK_READ_KBS.ordinal()));
+                statsResponse.setNetworkKbsWrite((long)sample.getValue(VmHistoryMetric.NETWORK_WRITE_KBS.ordinal()));
+                statsResponse.setDiskKbsRead((long)sample.getValue(VmHistoryMetric.DISK_READ_KBS.ordinal()));
+                statsResponse.setDiskKbsWrite((long)sample.getValue(VmHistoryMetric.DISK_WRITE_KBS.ordinal()));
+                statsResponse.setDiskIORead((long)sample.getValue(VmHistoryMetric.DISK_READ_IOPS.ordinal()));
+                statsResponse.setDiskIOWrite((long)sample.getValue(VmHistoryMetric.DISK_WRITE_IOPS.ordinal()));
+                statsResponse.setMemoryIntFreeKBs((long)sample.getValue(VmHistoryMetric.MEMORY_INTERNAL_FREE_KBS.ordinal()));
+                stats.add(statsResponse);
+            }
+
+            final VmMetricsHistoryResponse metricsResponse = new VmMetricsHistoryResponse();
+            metricsResponse.setId(vmResponse.getId());
+            metricsResponse.setName(vmResponse.getName());
+            metricsResponse.setDisplayName(vmResponse.getDisplayName());
+            metricsResponse.setInterval(resolution.name().toLowerCase());
+            metricsResponse.setStats(stats);
+            metricsResponse.setObjectName("virtualmachine");
             metricsResponses.add(metricsResponse);
         }
         return metricsResponses;
@@ -236,6 +447,37 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
     @Override
     public List<HostMetricsResponse> listHostMetrics(List<HostResponse> hostResponses) {
         final List<HostMetricsResponse> metricsResponses = new ArrayList<>();
+        final RequestCache cache = new RequestCache();
+
+        final String[] uuids = new String[hostResponses.size()];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = hostResponses.get(i).getId();
+        }
+        final Map<String, HostJoinVO> hostsByUuid = new HashMap<>();
+        for (final HostJoinVO host : hostJoinDao.findByUuids(uuids)) {
+            if (!hostsByUuid.containsKey(host.getUuid())) {
+                hostsByUuid.put(host.getUuid(), host);
+            }
+        }
+        final List<Long> hostIds = new ArrayList<>();
+        final Set<Long> clusterIds = new HashSet<>();
+        for (final HostJoinVO host : hostsByUuid.values()) {
+            hostIds.add(host.getId());
+            if (host.getClusterId() != null) {
+                clusterIds.add(host.getClusterId());
+            }
+        }
+        cache.loadSettings(clusterIds);
+        final Map<Long, Long> upInstancesByHost = new HashMap<>();
+        final Map<Long, Long> totalInstancesByHost = new HashMap<>();
+        for (final Ternary<Long, VirtualMachine.State, Long> count : vmInstanceDao.countByHostAndState(VirtualMachine.Type.User, hostIds)) {
+            final Long total = totalInstancesByHost.get(count.first());
+            totalInstancesByHost.put(count.first(), (total != null ? total : 0L) + count.third());
+            if (count.second() == VirtualMachine.State.Running) {
+                upInstancesByHost.put(count.first(), count.third());
+            }
+        }
+
         for (final HostResponse hostResponse: hostResponses) {
             HostMetricsResponse metricsResponse = new HostMetricsResponse();
 
@@ -245,35 +487,24 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
                 throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to generate host metrics response");
             }
 
-            final Host host = hostDao.findByUuid(hostResponse.getId());
+            final HostJoinVO host = hostsByUuid.get(hostResponse.getId());
             if (host == null) {
                 continue;
             }
             final Long hostId = host.getId();
-            final Long clusterId = host.getClusterId();
+            final ClusterSettings settings = cache.settingsOf(host.getClusterId());
 
             // Thresholds
-            final Double cpuThreshold = AlertManager.CPUCapacityThreshold.valueIn(clusterId);
-            final Double memoryThreshold = AlertManager.MemoryCapacityThreshold.valueIn(clusterId);
-            final Float cpuDisableThreshold = DeploymentClusterPlanner.ClusterCPUCapacityDisableThreshold.valueIn(clusterId);
-            final Float memoryDisableThreshold = DeploymentClusterPlanner.ClusterMemoryCapacityDisableThreshold.valueIn(clusterId);
+            final Double cpuThreshold = settings.cpuThreshold;
+            final Double memoryThreshold = settings.memoryThreshold;
+            final Float cpuDisableThreshold = settings.cpuDisableThreshold;
+            final Float memoryDisableThreshold = settings.memoryDisableThreshold;
             // Over commit ratios
-            final Double cpuOvercommitRatio = findRatioValue(ApiDBUtils.findClusterDetails(clusterId, "cpuOvercommitRatio"));
-            final Double memoryOvercommitRatio = findRatioValue(ApiDBUtils.findClusterDetails(clusterId, "memoryOvercommitRatio"));
+            final Double cpuOvercommitRatio = settings.cpuOvercommitRatio;
+            final Double memoryOvercommitRatio = settings.memoryOvercommitRatio;
 
-            Long upInstances = 0L;
-            Long totalInstances = 0L;
-            for (final VMInstanceVO instance: vmInstanceDao.listByHostId(hostId)) {
-                if (instance == null) {
-                    continue;
-                }
-                if (instance.getType() == VirtualMachine.Type.User) {
-                    totalInstances++;
-                    if (instance.getState() == VirtualMachine.State.Running) {
-                        upInstances++;
-                    }
-                }
-            }
+            final Long upInstances = upInstancesByHost.containsKey(hostId) ? upInstancesByHost.get(hostId) : 0L;
+            final Long totalInstances = totalInstancesByHost.containsKey(hostId) ? totalInstancesByHost.get(hostId) : 0L;
             metricsResponse.setPowerState(hostResponse.getOutOfBandManagementResponse().getPowerState());
             metricsResponse.setInstances(upInstances, totalInstances);
             metricsResponse.setCpuTotal(hostResponse.getCpuNumber(), hostResponse.getCpuSpeed(), cpuOvercommitRatio);
@@ -310,6 +541,22 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
     @Override
     public List<ClusterMetricsResponse> listClusterMetrics(List<ClusterResponse> clusterResponses) {
         final List<ClusterMetricsResponse> metricsResponses = new ArrayList<>();
+        final RequestCache cache = new RequestCache();
+
+        final Set<String> uuids = new HashSet<>();
+        for (final ClusterResponse clusterResponse: clusterResponses) {
+            uuids.add(clusterResponse.getId());
+        }
+        final Map<String, Cluster> clustersByUuid = new HashMap<>();
+        final List<Long> clusterIds = new ArrayList<>();
+        for (final Cluster cluster : clusterDao.listByUuids(uuids)) {
+            clustersByUuid.put(cluster.getUuid(), cluster);
+            clusterIds.add(cluster.getId());
+        }
+        cache.loadHosts(clusterIds);
+        cache.loadSettings(clusterIds);
+        cache.loadCapacities(clusterIds);
+
         for (final ClusterResponse clusterResponse: clusterResponses) {
             ClusterMetricsResponse metricsResponse = new ClusterMetricsResponse();
 
@@ -319,32 +566,28 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
                 throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to generate cluster metrics response");
             }
 
-            final Cluster cluster = clusterDao.findByUuid(clusterResponse.getId());
+            final Cluster cluster = clustersByUuid.get(clusterResponse.getId());
             if (cluster == null) {
                 continue;
             }
             final Long clusterId = cluster.getId();
+            final ClusterSettings settings = cache.settingsOf(clusterId);
 
             // Thresholds
-            final Double cpuThreshold = AlertManager.CPUCapacityThreshold.valueIn(clusterId);
-            final Double memoryThreshold = AlertManager.MemoryCapacityThreshold.valueIn(clusterId);
-            final Float cpuDisableThreshold = DeploymentClusterPlanner.ClusterCPUCapacityDisableThreshold.valueIn(clusterId);
-            final Float memoryDisableThreshold = DeploymentClusterPlanner.ClusterMemoryCapacityDisableThreshold.valueIn(clusterId);
+            final Double cpuThreshold = settings.cpuThreshold;
+            final Double memoryThreshold = settings.memoryThreshold;
+            final Float cpuDisableThreshold = settings.cpuDisableThreshold;
+            final Float memoryDisableThreshold = settings.memoryDisableThreshold;
 
             // CPU and memory capacities
-            final CapacityDaoImpl.SummedCapacity cpuCapacity = getCapacity((int) Capacity.CAPACITY_TYPE_CPU, null, clusterId);
-            final CapacityDaoImpl.SummedCapacity memoryCapacity = getCapacity((int) Capacity.CAPACITY_TYPE_MEMORY, null, clusterId);
-            final Metrics metrics = new Metrics(cpuCapacity, memoryCapacity);
+            final Metrics metrics = new Metrics(cache.cpuCapacityOf(clusterId), cache.memoryCapacityOf(clusterId));
 
-            for (final Host host: hostDao.findByClusterId(clusterId)) {
-                if (host == null || host.getType() != Host.Type.Routing) {
-                    continue;
-                }
+            for (final HostJoinVO host: cache.hostsOf(clusterId)) {
                 if (host.getStatus() == Status.Up) {
                     metrics.incrUpResources();
                 }
                 metrics.incrTotalResources();
-                updateHostMetrics(metrics, hostJoinDao.findById(host.getId()));
+                updateHostMetrics(metrics, host);
             }
 
             metricsResponse.setState(clusterResponse.getAllocationState(), clusterResponse.getManagedState());
@@ -382,6 +625,27 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
     @Override
     public List<ZoneMetricsResponse> listZoneMetrics(List<ZoneResponse> zoneResponses) {
         final List<ZoneMetricsResponse> metricsResponses = new ArrayList<>();
+        final RequestCache cache = new RequestCache();
+
+        final Map<String, DataCenter> zonesByUuid = new HashMap<>();
+        final Map<Long, List<? extends Cluster>> clustersByZone = new HashMap<>();
+        final List<Long> clusterIds = new ArrayList<>();
+        for (final ZoneResponse zoneResponse: zoneResponses) {
+            final DataCenter zone = dataCenterDao.findByUuid(zoneResponse.getId());
+            if (zone == null) {
+                continue;
+            }
+            zonesByUuid.put(zoneResponse.getId(), zone);
+            final List<? extends Cluster> clusters = clusterDao.listClustersByDcId(zone.getId());
+            clustersByZone.put(zone.getId(), clusters);
+            for (final Cluster cluster : clusters) {
+                if (cluster != null) {
+                    clusterIds.add(cluster.getId());
+                }
+            }
+        }
+        cache.loadHosts(clusterIds);
+
         for (final ZoneResponse zoneResponse: zoneResponses) {
             ZoneMetricsResponse metricsResponse = new ZoneMetricsResponse();
 
@@ -391,7 +655,7 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
                 throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to generate zone metrics response");
             }
 
-            final DataCenter zone = dataCenterDao.findByUuid(zoneResponse.getId());
+            final DataCenter zone = zonesByUuid.get(zoneResponse.getId());
             if (zone == null) {
                 continue;
             }
@@ -408,7 +672,7 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
             final CapacityDaoImpl.SummedCapacity memoryCapacity = getCapacity((int) Capacity.CAPACITY_TYPE_MEMORY, zoneId, null);
             final Metrics metrics = new Metrics(cpuCapacity, memoryCapacity);
 
-            for (final Cluster cluster : clusterDao.listClustersByDcId(zoneId)) {
+            for (final Cluster cluster : clustersByZone.get(zoneId)) {
                 if (cluster == null) {
                     continue;
                 }
@@ -418,11 +682,8 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
                     metrics.incrUpResources();
                 }
 
-                for (final Host host: hostDao.findByClusterId(cluster.getId())) {
-                    if (host == null || host.getType() != Host.Type.Routing) {
-                        continue;
-                    }
-                    updateHostMetrics(metrics, hostJoinDao.findById(host.getId()));
+                for (final HostJoinVO host: cache.hostsOf(cluster.getId())) {
+                    updateHostMetrics(metrics, host);
                 }
             }
 
@@ -464,6 +725,7 @@ public class MetricsServiceImpl extends ComponentLifecycleBase implements Metric
         cmdList.add(ListInfrastructureCmd.class);
         cmdList.add(ListVolumesMetricsCmd.class);
         cmdList.add(ListVMsMetricsCmd.class);
+        cmdList.add(ListVMsMetricsHistoryCmd.class);
         cmdList.add(ListStoragePoolsMetricsCmd.class);
         cmdList.add(ListHostsMetricsCmd.class);
         cmdList.add(ListClustersMetricsCmd.class);
@@ -59,6 +59,14 @@ public class VmMetricsResponse extends UserVmResponse {
     @Param(description = "the total disk iops")
     private Long diskIopsTotal;
 
+    @SerializedName("cpuusedaverage")
+    @Param(description = "the average amount of the vm's CPU used over the last hour")
+    private String cpuUsedAverage;
+
+    @SerializedName("cputrend")
+    @Param(description = "how much more of the vm's CPU was used over the last five minutes than over the last hour")
+    private String cpuTrend;
+
     public void setIpAddress(final Set<NicResponse> nics) {
         if (nics != null && nics.size() > 0) {
             this.ipAddress = nics.iterator().next().getIpaddress();
@@ -106,4 +114,13 @@ public class VmMetricsResponse extends UserVmResponse {
             this.diskIopsTotal = diskIoRead + diskIoWrite;
         }
     }
+
+    public void setCpuTrend(final double hourAverage, final double fiveMinutesAverage) {
+        if (!Double.isNaN(hourAverage)) {
+            this.cpuUsedAverage = String.format("%.2f%%", hourAverage);
+            if (!Double.isNaN(fiveMinutesAverage)) {
+                this.cpuTrend = String.format("%+.2f%%", fiveMinutesAverage - hourAverage);
+            }
+        }
+    }
 }
@@ -0,0 +1,215 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.api.response.ClusterResponse;
+import org.apache.cloudstack.api.response.ZoneResponse;
+import org.apache.cloudstack.response.ClusterMetricsResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.internal.stubbing.defaultanswers.ReturnsEmptyValues;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cloud.api.query.dao.HostJoinDao;
+import com.cloud.api.query.vo.HostJoinVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+import com.cloud.server.StatsCollector;
+
+public class MetricsServiceImplTest {
+
+    private static final int CLUSTERS = 10;
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final List<ClusterVO> clusters = new ArrayList<>();
+    private final List<HostJoinVO> hosts = new ArrayList<>();
+    private MetricsServiceImpl metricsService;
+
+    /**
+     * Counts the calls to a DAO, each of which is a round trip to the database.
+     */
+    private Answer<Object> roundTrip(final Object result) {
+        return new Answer<Object>() {
+            private final Answer<Object> defaults = new ReturnsEmptyValues();
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                queries.incrementAndGet();
+                return result != null ? result : defaults.answer(invocation);
+            }
+        };
+    }
+
+    @Before
+    public void setup() {
+        DataCenterDao dataCenterDao = Mockito.mock(DataCenterDao.class, roundTrip(null));
+        ClusterDao clusterDao = Mockito.mock(ClusterDao.class, roundTrip(null));
+        ClusterDetailsDao clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class, roundTrip(null));
+        HostJoinDao hostJoinDao = Mockito.mock(HostJoinDao.class, roundTrip(null));
+        CapacityDao capacityDao = Mockito.mock(CapacityDao.class, roundTrip(null));
+
+        DataCenterVO zone = Mockito.mock(DataCenterVO.class);
+        Mockito.when(zone.getId()).thenReturn(1L);
+        Mockito.doAnswer(roundTrip(zone)).when(dataCenterDao).findByUuid(Mockito.anyString());
+
+        Mockito.doAnswer(new Answer<List<ClusterVO>>() {
+            @Override
+            public List<ClusterVO> answer(InvocationOnMock invocation) throws Throwable {
+                queries.incrementAndGet();
+                Collection<?> uuids = (Collection<?>)invocation.getArguments()[0];
+                List<ClusterVO> found = new ArrayList<>();
+                for (ClusterVO cluster : clusters) {
+                    if (uuids.contains(cluster.getUuid())) {
+                        found.add(cluster);
+                    }
+                }
+                return found;
+            }
+        }).when(clusterDao).listByUuids(Mockito.anyCollectionOf(String.class));
+        Mockito.doAnswer(roundTrip(clusters)).when(clusterDao).listClustersByDcId(1L);
+        Mockito.doAnswer(roundTrip(new HashMap<String, String>())).when(clusterDetailsDao).findDetails(Mockito.anyLong());
+        Mockito.doAnswer(roundTrip(hosts)).when(hostJoinDao).findByClusterIds(Mockito.eq(Host.Type.Routing), Mockito.<Long>anyVararg());
+
+        metricsService = new MetricsServiceImpl();
+        ReflectionTestUtils.setField(metricsService, "dataCenterDao", dataCenterDao);
+        ReflectionTestUtils.setField(metricsService, "clusterDao", clusterDao);
+        ReflectionTestUtils.setField(metricsService, "clusterDetailsDao", clusterDetailsDao);
+        ReflectionTestUtils.setField(metricsService, "hostJoinDao", hostJoinDao);
+        ReflectionTestUtils.setField(metricsService, "capacityDao", capacityDao);
+        ReflectionTestUtils.setField(metricsService, "statsCollector", Mockito.mock(StatsCollector.class));
+    }
+
+    private void addClusters(int count) {
+        clusters.clear();
+        for (long id = 1; id <= count; id++) {
+            ClusterVO cluster = Mockito.mock(ClusterVO.class);
+            Mockito.when(cluster.getId()).thenReturn(id);
+            Mockito.when(cluster.getUuid()).thenReturn("cluster" + id);
+            clusters.add(cluster);
+        }
+    }
+
+    private void addHosts(int count) {
+        hosts.clear();
+        for (long id = 1; id <= count; id++) {
+            HostJoinVO host = new HostJoinVO();
+            ReflectionTestUtils.setField(host, "id", id);
+            ReflectionTestUtils.setField(host, "clusterId", id % clusters.size() + 1);
+            ReflectionTestUtils.setField(host, "status", (id - 1) / clusters.size() % 5 == 4 ? Status.Down : Status.Up);
+            ReflectionTestUtils.setField(host, "cpuUsedCapacity", 1000L);
+            ReflectionTestUtils.setField(host, "memUsedCapacity", 1024L);
+            hosts.add(host);
+        }
+    }
+
+    private List<ClusterResponse> clusterResponses() {
+        List<ClusterResponse> responses = new ArrayList<>();
+        for (int id = 1; id <= clusters.size(); id++) {
+            ClusterResponse response = new ClusterResponse();
+            response.setId("cluster" + id);
+            response.setAllocationState("Enabled");
+            response.setManagedState("Managed");
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private List<ZoneResponse> zoneResponses() {
+        ZoneResponse response = new ZoneResponse();
+        response.setId("zone1");
+        List<ZoneResponse> responses = new ArrayList<>();
+        responses.add(response);
+        return responses;
+    }
+
+    @Test
+    public void testClusterMetricsCountHostsOfEachCluster() {
+        addClusters(CLUSTERS);
+        addHosts(100);
+        List<ClusterMetricsResponse> responses = metricsService.listClusterMetrics(clusterResponses());
+        Assert.assertEquals(CLUSTERS, responses.size());
+        for (ClusterMetricsResponse response : responses) {
+            Assert.assertEquals("8 / 10", ReflectionTestUtils.getField(response, "resources"));
+        }
+    }
+
+    /**
+     * Lists the metrics of a zone and of its clusters with few and with many hosts, checks the number of queries does
+     * not grow with the hosts.
+     */
+    @Test
+    public void testQueriesAreIndependentOfHostCount() {
+        int[] hostCounts = {10, 2000};
+        int[] zoneQueries = new int[hostCounts.length];
+        int[] clusterQueries = new int[hostCounts.length];
+        addClusters(CLUSTERS);
+        for (int i = 0; i < hostCounts.length; i++) {
+            addHosts(hostCounts[i]);
+
+            queries.set(0);
+            metricsService.listZoneMetrics(zoneResponses());
+            zoneQueries[i] = queries.get();
+
+            queries.set(0);
+            metricsService.listClusterMetrics(clusterResponses());
+            clusterQueries[i] = queries.get();
+        }
+        Assert.assertEquals("The zone metrics take as many queries for any number of hosts", zoneQueries[0], zoneQueries[1]);
+        Assert.assertEquals("The cluster metrics take as many queries for any number of hosts", clusterQueries[0], clusterQueries[1]);
+    }
+
+    /**
+     * Lists the metrics of a zone and of its clusters with few and with many clusters, checks the number of queries
+     * does not grow with the clusters.
+     */
+    @Test
+    public void testQueriesAreIndependentOfClusterCount() {
+        int[] clusterCounts = {2, 200};
+        int[] zoneQueries = new int[clusterCounts.length];
+        int[] clusterQueries = new int[clusterCounts.length];
+        for (int i = 0; i < clusterCounts.length; i++) {
+            addClusters(clusterCounts[i]);
+            addHosts(clusterCounts[i] * 10);
+
+            queries.set(0);
+            metricsService.listZoneMetrics(zoneResponses());
+            zoneQueries[i] = queries.get();
+
+            queries.set(0);
+            Assert.assertEquals(clusterCounts[i], metricsService.listClusterMetrics(clusterResponses()).size());
+            clusterQueries[i] = queries.get();
+        }
+        Assert.assertEquals("The zone metrics take as many queries for any number of clusters", zoneQueries[0], zoneQueries[1]);
+        Assert.assertEquals("The cluster metrics take as many queries for any number of clusters", clusterQueries[0], clusterQueries[1]);
+    }
+}
@@ -23,6 +23,7 @@ import javax.inject.Inject;
 import org.apache.cloudstack.acl.ControlledEntity;
 import org.apache.cloudstack.acl.SecurityChecker;
 import org.apache.cloudstack.affinity.AffinityGroup;
+import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.resourcedetail.dao.DiskOfferingDetailsDao;
 import org.springframework.stereotype.Component;
 
@@ -30,7 +31,6 @@ import com.cloud.dc.DataCenter;
 import com.cloud.dc.DedicatedResourceVO;
 import com.cloud.dc.dao.DedicatedResourceDao;
 import com.cloud.domain.Domain;
-import com.cloud.domain.dao.DomainDao;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.network.Network;
 import com.cloud.network.NetworkModel;
@@ -48,6 +48,7 @@ import com.cloud.storage.dao.LaunchPermissionDao;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
+import com.cloud.user.DomainManager;
 import com.cloud.user.User;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.component.AdapterBase;
@@ -55,8 +56,6 @@ import com.cloud.utils.component.AdapterBase;
 @Component
 public class DomainChecker extends AdapterBase implements SecurityChecker {
 
-    @Inject
-    DomainDao _domainDao;
     @Inject
     AccountDao _accountDao;
     @Inject
@@ -72,6 +71,8 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
     @Inject
     AccountService _accountService;
     @Inject
+    DomainManager _domainMgr;
+    @Inject
     DiskOfferingDetailsDao diskOfferingDetailsDao;
     @Inject
     ServiceOfferingDetailsDao serviceOfferingDetailsDao;
@@ -95,7 +96,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             if (caller.getDomainId() != domainId) {
                 throw new PermissionDeniedException(caller + " does not have permission to operate within domain id=" + domain.getUuid());
             }
-        } else if (!_domainDao.isChildDomain(caller.getDomainId(), domainId)) {
+        } else if (!_domainMgr.isChildDomain(caller.getDomainId(), domainId)) {
             throw new PermissionDeniedException(caller + " does not have permission to operate within domain id=" + domain.getUuid());
         }
 
@@ -107,8 +108,18 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
         if (user.getRemoved() != null) {
             throw new PermissionDeniedException(user + " is no longer active.");
         }
-        Account account = _accountDao.findById(user.getAccountId());
-        return checkAccess(account, domain);
+        return checkAccess(getAccount(user), domain);
+    }
+
+    /**
+     * @return the account of the user, taken from the call context when the user is the caller
+     */
+    private Account getAccount(User user) {
+        CallContext context = CallContext.current();
+        if (context != null && context.getCallingUserId() == user.getId() && context.getCallingAccount() != null) {
+            return context.getCallingAccount();
+        }
+        return _accountDao.findById(user.getAccountId());
     }
 
     @Override
@@ -117,12 +128,16 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
         if (entity instanceof VirtualMachineTemplate) {
 
             VirtualMachineTemplate template = (VirtualMachineTemplate)entity;
-            Account owner = _accountDao.findById(template.getAccountId());
+            // the owner is only looked up when the caller does not own the template
+            if (template.getAccountId() == caller.getId()) {
+                return true;
+            }
             // validate that the template is usable by the account
             if (!template.isPublicTemplate()) {
-                if (_accountService.isRootAdmin(caller.getId()) || (owner.getId() == caller.getId())) {
+                if (_accountService.isRootAdmin(caller.getId())) {
                     return true;
                 }
+                Account owner = _accountDao.findById(template.getAccountId());
                 //special handling for the project case
                 if (owner.getType() == Account.ACCOUNT_TYPE_PROJECT && _projectMgr.canAccessProjectAccount(caller, owner.getId())) {
                     return true;
@@ -137,7 +152,8 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             } else {
                 // Domain admin and regular user can delete/modify only templates created by them
                 if (accessType != null && accessType == AccessType.OperateEntry) {
-                    if (!_accountService.isRootAdmin(caller.getId()) && owner.getId() != caller.getId()) {
+                    if (!_accountService.isRootAdmin(caller.getId())) {
+                        Account owner = _accountDao.findById(template.getAccountId());
                         // For projects check if the caller account can access the project account
                         if (owner.getType() != Account.ACCOUNT_TYPE_PROJECT || !(_projectMgr.canAccessProjectAccount(caller, owner.getId()))) {
                             throw new PermissionDeniedException("Domain Admin and regular users can modify only their own Public templates");
@@ -152,7 +168,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
         } else if (entity instanceof AffinityGroup) {
             return false;
         } else {
-            if (_accountService.isNormalUser(caller.getId())) {
+            if (_accountService.isNormalUser(caller.getId()) && caller.getId() != entity.getAccountId()) {
                 Account account = _accountDao.findById(entity.getAccountId());
 
                 if (account != null && account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
@@ -165,9 +181,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                         throw new PermissionDeniedException(caller + " does not have permission to operate with resource " + entity);
                     }
                 } else {
-                    if (caller.getId() != entity.getAccountId()) {
-                        throw new PermissionDeniedException(caller + " does not have permission to operate with resource " + entity);
-                    }
+                    throw new PermissionDeniedException(caller + " does not have permission to operate with resource " + entity);
                 }
             }
         }
@@ -177,8 +191,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
 
     @Override
     public boolean checkAccess(User user, ControlledEntity entity) throws PermissionDeniedException {
-        Account account = _accountDao.findById(user.getAccountId());
-        return checkAccess(account, entity, null);
+        return checkAccess(getAccount(user), entity, null);
     }
 
     @Override
@@ -203,7 +216,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     hasAccess = true;
                 } else {
                     for (Long domainId : doDomainIds) {
-                        if (_domainDao.isChildDomain(domainId, account.getDomainId())) {
+                        if (_domainMgr.isChildDomain(domainId, account.getDomainId())) {
                             hasAccess = true;
                             break;
                         }
@@ -241,7 +254,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     hasAccess = true;
                 } else {
                     for (Long domainId : soDomainIds) {
-                        if (_domainDao.isChildDomain(domainId, account.getDomainId())) {
+                        if (_domainMgr.isChildDomain(domainId, account.getDomainId())) {
                             hasAccess = true;
                             break;
                         }
@@ -279,7 +292,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     hasAccess = true;
                 } else {
                     for (Long domainId : noDomainIds) {
-                        if (_domainDao.isChildDomain(domainId, account.getDomainId())) {
+                        if (_domainMgr.isChildDomain(domainId, account.getDomainId())) {
                             hasAccess = true;
                             break;
                         }
@@ -317,7 +330,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     hasAccess = true;
                 } else {
                     for (Long domainId : voDomainIds) {
-                        if (_domainDao.isChildDomain(domainId, account.getDomainId())) {
+                        if (_domainMgr.isChildDomain(domainId, account.getDomainId())) {
                             hasAccess = true;
                             break;
                         }
@@ -357,58 +370,14 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                         }
                     }
                 }
-                if (account.getDomainId() == zone.getDomainId()) {
-                    return true; //zone and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == zone.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
-                    }
-                }
-                //not found
-                return false;
+                //zone and account at exact node, or account's domain found as a child
+                return _domainMgr.isChildDomain(zone.getDomainId(), account.getDomainId());
             }
             //if account is domain admin
             //check if the account's domain is either child of zone's domain, or if zone's domain is child of account's domain
             else if (_accountService.isDomainAdmin(account.getId())) {
-                if (account.getDomainId() == zone.getDomainId()) {
-                    return true; //zone and account at exact node
-                } else {
-                    Domain zoneDomainRecord = _domainDao.findById(zone.getDomainId());
-                    Domain accountDomainRecord = _domainDao.findById(account.getDomainId());
-                    if (accountDomainRecord != null) {
-                        Domain localRecord = accountDomainRecord;
-                        while (true) {
-                            if (localRecord.getId() == zone.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (localRecord.getParent() != null) {
-                                localRecord = _domainDao.findById(localRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
-                    }
-                    //didn't find in upper tree
-                    if (zoneDomainRecord != null &&
-                            accountDomainRecord != null &&
-                            zoneDomainRecord.getPath().contains(accountDomainRecord.getPath())) {
-                        return true;
-                    }
-                }
-                //not found
-                return false;
+                //zone and account at exact node, account's domain found as a child, or zone's domain found as a child
+                return _domainMgr.isChildDomain(zone.getDomainId(), account.getDomainId()) || _domainMgr.isChildDomain(account.getDomainId(), zone.getDomainId());
             }
         }
         return false;
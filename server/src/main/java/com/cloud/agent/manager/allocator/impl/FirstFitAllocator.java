@@ -33,6 +33,8 @@ import com.google.common.base.Strings;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
@@ -59,6 +61,7 @@ import com.cloud.storage.VMTemplateVO;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.Account;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.AdapterBase;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineProfile;
@@ -94,6 +97,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     CapacityManager _capacityMgr;
     @Inject
     CapacityDao _capacityDao;
+    @Inject
+    HostCapacityIndex _capacityIndex;
 
     boolean _checkHvm = true;
     protected String _allocationAlgorithm = "random";
@@ -278,7 +283,13 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         long serviceOfferingId = offering.getId();
         List<Host> suitableHosts = new ArrayList<Host>();
-        ServiceOfferingDetailsVO offeringDetails = null;
+        ServiceOfferingDetailsVO offeringDetails = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString());
+        ServiceOfferingDetailsVO groupName = null;
+        if (offeringDetails != null) {
+            groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+        }
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -292,7 +303,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             }
 
             //find number of guest VMs occupying capacity on this host.
-            if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
+            if (checkIfHostReachMaxGuestLimit(host)) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() +
                         " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
@@ -302,8 +313,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             }
 
             // Check if GPU device is required by offering and host has the availability
-            if ((offeringDetails   = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString())) != null) {
-                ServiceOfferingDetailsVO groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+            if (offeringDetails != null) {
                 if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
                     s_logger.info("Host name: " + host.getName() + ", hostId: "+ host.getId() +" does not have required GPU devices available");
                     avoid.addHost(host.getId());
@@ -311,17 +321,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
                 }
             }
 
-            int cpu_requested = offering.getCpu() * offering.getSpeed();
-            long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
-            boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
-                considerReservedCapacity);
+            boolean hostHasCpuCapability = checkIfHostHasCpuCapability(host, offering);
+            boolean hostHasCapacity = checkIfHostHasCapacity(host, cpu_requested, ram_requested, considerReservedCapacity);
 
             if (hostHasCpuCapability && hostHasCapacity) {
                 if (s_logger.isDebugEnabled()) {
@@ -343,6 +344,41 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    /**
+     * The checks below answer from the capacity index when it is enabled, the capacity manager does not check its
+     * answer against the database until the VM is started on the host.
+     */
+    protected boolean checkIfHostReachMaxGuestLimit(Host host) {
+        if (_capacityIndex.isEnabled()) {
+            return _capacityIndex.checkIfHostReachMaxGuestLimit(host);
+        }
+        return _capacityMgr.checkIfHostReachMaxGuestLimit(host);
+    }
+
+    protected boolean checkIfHostHasCpuCapability(Host host, ServiceOffering offering) {
+        if (_capacityIndex.isEnabled()) {
+            return host.getCpus().intValue() >= offering.getCpu() && host.getSpeed().intValue() >= offering.getSpeed();
+        }
+        return _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
+    }
+
+    protected boolean checkIfHostHasCapacity(Host host, int cpu, long ram, boolean considerReservedCapacity) {
+        if (_capacityIndex.isEnabled()) {
+            Pair<Float, Float> overcommitRatios = _capacityIndex.getOvercommitRatios(host.getClusterId());
+            HostCapacity capacity = _capacityIndex.getCapacity(host.getId());
+            if (capacity == null) {
+                return false;
+            }
+            return capacity.hasCapacity(cpu, ram, overcommitRatios.first(), overcommitRatios.second(), considerReservedCapacity);
+        }
+        Cluster cluster = _clusterDao.findById(host.getClusterId());
+        ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+        ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+        Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
+        Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+        return _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu, ram, false, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity);
+    }
+
     // Reorder hosts in the decreasing order of free capacity.
     private List<? extends Host> reorderHostsByCapacity(DeploymentPlan plan, List<? extends Host> hosts) {
         Long clusterId = plan.getClusterId();
@@ -484,7 +520,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             List<Host> gpuEnabledHosts = new ArrayList<Host>();
             // Check for GPU enabled hosts.
             for (Host host : prioritizedHosts) {
-                if (_resourceMgr.isHostGpuEnabled(host.getId())) {
+                if (_capacityIndex.isEnabled() ? _capacityIndex.isHostGpuEnabled(host.getId()) : _resourceMgr.isHostGpuEnabled(host.getId())) {
                     gpuEnabledHosts.add(host);
                 }
             }
@@ -517,6 +553,9 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     }
 
     protected String getHostGuestOSCategory(Host host) {
+        if (_capacityIndex.isEnabled()) {
+            return _capacityIndex.getGuestOSCategory(host.getId());
+        }
         DetailVO hostDetail = _hostDetailsDao.findDetail(host.getId(), "guest.os.category.id");
         if (hostDetail != null) {
             String guestOSCategoryIdString = hostDetail.getValue();
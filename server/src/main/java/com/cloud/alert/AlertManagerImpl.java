@@ -24,7 +24,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -52,6 +54,7 @@ import com.cloud.alert.dao.AlertDao;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.CapacityState;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -72,14 +75,24 @@ import com.cloud.event.AlertGenerator;
 import com.cloud.event.EventTypes;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.network.dao.IPAddressDao;
 import com.cloud.org.Grouping.AllocationState;
 import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
 import com.cloud.storage.StorageManager;
+import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.snapshot.VMSnapshot;
 import com.sun.mail.smtp.SMTPMessage;
 import com.sun.mail.smtp.SMTPSSLTransport;
 import com.sun.mail.smtp.SMTPTransport;
@@ -89,6 +102,10 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     private static final long INITIAL_CAPACITY_CHECK_DELAY = 30L * 1000L; // Thirty seconds expressed in milliseconds.
 
+    static final ConfigKey<Integer> CapacityFullRecalculationInterval = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.full.recalculation.interval", "21600",
+            "Interval in seconds between two recalculations of the capacity of all hosts and storage pools, in between only the hosts and pools "
+                    + "touched by VM, volume and VM snapshot state changes are recalculated", true);
+
     private static final DecimalFormat DfPct = new DecimalFormat("###.##");
     private static final DecimalFormat DfWhole = new DecimalFormat("########");
 
@@ -121,6 +138,12 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     private ConfigurationManager _configMgr;
     @Inject
     protected ConfigDepot _configDepot;
+    @Inject
+    private HostDao _hostDao;
+    @Inject
+    private VolumeDao _volumeDao;
+    @Inject
+    private HostCapacityIndex _capacityIndex;
 
     private Timer _timer = null;
     private long _capacityCheckPeriod = 60L * 60L * 1000L; // One hour by default.
@@ -134,6 +157,11 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     private final ExecutorService _executor;
 
+    // hosts and storage pools whose capacity changed since the last recalculation
+    private final Set<Long> _dirtyHosts = ConcurrentHashMap.newKeySet();
+    private final Set<Long> _dirtyPools = ConcurrentHashMap.newKeySet();
+    private volatile long _lastFullRecalculation = 0;
+
     public AlertManagerImpl() {
         _executor = Executors.newCachedThreadPool(new NamedThreadFactory("Email-Alerts-Sender"));
     }
@@ -209,6 +237,10 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
         _timer = new Timer("CapacityChecker");
 
+        VirtualMachine.State.getStateMachine().registerListener(new VmCapacityListener());
+        Volume.State.getStateMachine().registerListener(new VolumeCapacityListener());
+        VMSnapshot.State.getStateMachine().registerListener(new VmSnapshotCapacityListener());
+
         return true;
     }
 
@@ -257,26 +289,43 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public void recalculateCapacity() {
-        // FIXME: the right way to do this is to register a listener (see RouterStatsListener, VMSyncListener)
-        //        for the vm sync state.  The listener model has connects/disconnects to keep things in sync much better
-        //        than this model right now, so when a VM is started, we update the amount allocated, and when a VM
-        //        is stopped we updated the amount allocated, and when VM sync reports a changed state, we update
-        //        the amount allocated.  Hopefully it's limited to 3 entry points and will keep the amount allocated
-        //        per host accurate.
-
         try {
+            long now = System.currentTimeMillis();
+            boolean full = now - _lastFullRecalculation >= CapacityFullRecalculationInterval.value() * 1000L;
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("recalculating system capacity");
                 s_logger.debug("Executing cpu/ram capacity update");
             }
 
-            // Calculate CPU and RAM capacities
-            //     get all hosts...even if they are not in 'UP' state
-            List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
-            if (hosts != null) {
-                for (HostVO host : hosts) {
-                    _capacityMgr.updateCapacityForHost(host);
+            // Calculate CPU and RAM capacities, all hosts on a full run (even if they are not in 'UP' state),
+            // otherwise only the hosts that VM state changes touched since the last run
+            if (full) {
+                _dirtyHosts.clear();
+                _dirtyPools.clear();
+                List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
+                if (hosts != null) {
+                    for (HostVO host : hosts) {
+                        _capacityMgr.updateCapacityForHost(host);
+                    }
+                }
+            } else {
+                int recalculated = 0;
+                for (Long hostId : drain(_dirtyHosts)) {
+                    HostVO host = _hostDao.findById(hostId);
+                    if (host == null || host.getType() != Host.Type.Routing || isInMaintenance(host)) {
+                        continue;
+                    }
+                    try {
+                        _capacityMgr.updateCapacityForHost(host);
+                        recalculated++;
+                    } catch (RuntimeException e) {
+                        _dirtyHosts.add(hostId);
+                        s_logger.warn("Failed to recalculate the capacity of host " + hostId + ", retrying on the next run", e);
+                    }
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Recalculated the cpu/ram capacity of " + recalculated + " changed hosts");
                 }
             }
             if (s_logger.isDebugEnabled()) {
@@ -284,15 +333,33 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
                 s_logger.debug("Executing storage capacity update");
             }
             // Calculate storage pool capacity
-            List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-            for (StoragePoolVO pool : storagePools) {
-                long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
-                if (pool.isShared()) {
-                    _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
-                } else {
-                    _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
+            if (full) {
+                List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
+                for (StoragePoolVO pool : storagePools) {
+                    updatePoolCapacity(pool);
+                }
+            } else {
+                int recalculated = 0;
+                for (Long poolId : drain(_dirtyPools)) {
+                    StoragePoolVO pool = _storagePoolDao.findById(poolId);
+                    if (pool == null) {
+                        continue;
+                    }
+                    try {
+                        updatePoolCapacity(pool);
+                        recalculated++;
+                    } catch (RuntimeException e) {
+                        _dirtyPools.add(poolId);
+                        s_logger.warn("Failed to recalculate the capacity of storage pool " + poolId + ", retrying on the next run", e);
+                    }
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Recalculated the capacity of " + recalculated + " changed storage pools");
                 }
             }
+            if (full) {
+                _lastFullRecalculation = now;
+            }
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Done executing storage capacity update");
@@ -347,15 +414,122 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
         }
     }
 
+    private void updatePoolCapacity(StoragePoolVO pool) {
+        long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
+        if (pool.isShared()) {
+            _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
+        } else {
+            _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
+        }
+    }
+
+    private static boolean isInMaintenance(HostVO host) {
+        ResourceState state = host.getResourceState();
+        return state == ResourceState.Maintenance || state == ResourceState.ErrorInMaintenance || state == ResourceState.PrepareForMaintenance
+                || state == ResourceState.Error;
+    }
+
+    private static List<Long> drain(Set<Long> dirty) {
+        List<Long> ids = new ArrayList<Long>(dirty);
+        dirty.removeAll(ids);
+        return ids;
+    }
+
+    void markHostDirty(Long hostId) {
+        if (hostId != null) {
+            _dirtyHosts.add(hostId);
+        }
+    }
+
+    void markPoolDirty(Long poolId) {
+        if (poolId != null) {
+            _dirtyPools.add(poolId);
+        }
+    }
+
+    int getDirtyHostCount() {
+        return _dirtyHosts.size();
+    }
+
+    int getDirtyPoolCount() {
+        return _dirtyPools.size();
+    }
+
+    /**
+     * Marks the hosts a VM was and is placed on, the capacity of both changes with the VM state.
+     */
+    class VmCapacityListener implements StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualMachine> {
+        @Override
+        public boolean preStateTransitionEvent(VirtualMachine.State oldState, VirtualMachine.Event event, VirtualMachine.State newState, VirtualMachine vm, boolean status,
+                Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event> transition, VirtualMachine vm, boolean status,
+                Object opaque) {
+            if (!status) {
+                return true;
+            }
+            if (opaque instanceof Pair) {
+                Object oldHostId = ((Pair<?, ?>)opaque).first();
+                if (oldHostId instanceof Long) {
+                    markHostDirty((Long)oldHostId);
+                }
+            }
+            markHostDirty(vm.getHostId());
+            markHostDirty(vm.getLastHostId());
+            return true;
+        }
+    }
+
+    /**
+     * Marks the storage pool of a volume, volumes are created, migrated and destroyed through state changes.
+     */
+    class VolumeCapacityListener implements StateListener<Volume.State, Volume.Event, Volume> {
+        @Override
+        public boolean preStateTransitionEvent(Volume.State oldState, Volume.Event event, Volume.State newState, Volume volume, boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<Volume.State, Volume.Event> transition, Volume volume, boolean status, Object opaque) {
+            if (status) {
+                markPoolDirty(volume.getPoolId());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Marks the storage pools of the volumes of a VM, the size of its VM snapshots counts against them.
+     */
+    class VmSnapshotCapacityListener implements StateListener<VMSnapshot.State, VMSnapshot.Event, VMSnapshot> {
+        @Override
+        public boolean preStateTransitionEvent(VMSnapshot.State oldState, VMSnapshot.Event event, VMSnapshot.State newState, VMSnapshot vmSnapshot, boolean status,
+                Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<VMSnapshot.State, VMSnapshot.Event> transition, VMSnapshot vmSnapshot, boolean status,
+                Object opaque) {
+            VMSnapshot.State state = transition.getToState();
+            if (status && (state == VMSnapshot.State.Ready || state == VMSnapshot.State.Removed || state == VMSnapshot.State.Error)) {
+                for (VolumeVO volume : _volumeDao.findByInstance(vmSnapshot.getVmId())) {
+                    markPoolDirty(volume.getPoolId());
+                }
+            }
+            return true;
+        }
+    }
+
     private void createOrUpdateVlanCapacity(long dcId, AllocationState capacityState) {
 
         SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
-
-        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
-        capacitySC = _capacityDao.createSearchCriteria();
         capacitySC.addAnd("dataCenterId", SearchCriteria.Op.EQ, dcId);
         capacitySC.addAnd("capacityType", SearchCriteria.Op.EQ, Capacity.CAPACITY_TYPE_VLAN);
-        capacities = _capacityDao.search(capacitySC, null);
+        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
 
         int totalVlans = _dcDao.countZoneVlans(dcId, false);
         int allocatedVlans = _dcDao.countZoneVlans(dcId, true);
@@ -378,16 +552,13 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     public void createOrUpdateIpCapacity(Long dcId, Long podId, short capacityType, AllocationState capacityState) {
         SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
-
-        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
-        capacitySC = _capacityDao.createSearchCriteria();
         capacitySC.addAnd("podId", SearchCriteria.Op.EQ, podId);
         capacitySC.addAnd("dataCenterId", SearchCriteria.Op.EQ, dcId);
         capacitySC.addAnd("capacityType", SearchCriteria.Op.EQ, capacityType);
 
         int totalIPs;
         int allocatedIPs;
-        capacities = _capacityDao.search(capacitySC, null);
+        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
         if (capacityType == Capacity.CAPACITY_TYPE_PRIVATE_IP) {
             totalIPs = _privateIPAddressDao.countIPs(podId, dcId, false);
             allocatedIPs = _privateIPAddressDao.countIPs(podId, dcId, true);
@@ -444,21 +615,24 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
         List<Short> dataCenterCapacityTypes = getCapacityTypesAtZoneLevel();
         List<Short> podCapacityTypes = getCapacityTypesAtPodLevel();
         List<Short> clusterCapacityTypes = getCapacityTypesAtClusterLevel();
+        //Sum up the capacities of all levels from a single read of the per host, pool and zone capacities
+        Map<String, SummedCapacity> capacities = rollUpCapacities(_capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_MEMORY, Capacity.CAPACITY_TYPE_CPU,
+                Capacity.CAPACITY_TYPE_STORAGE, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, Capacity.CAPACITY_TYPE_VIRTUAL_NETWORK_PUBLIC_IP,
+                Capacity.CAPACITY_TYPE_PRIVATE_IP, Capacity.CAPACITY_TYPE_SECONDARY_STORAGE, Capacity.CAPACITY_TYPE_VLAN,
+                Capacity.CAPACITY_TYPE_DIRECT_ATTACHED_PUBLIC_IP, Capacity.CAPACITY_TYPE_LOCAL_STORAGE));
 
         // Generate Alerts for Zone Level capacities
         for (DataCenterVO dc : dataCenterList) {
             for (Short capacityType : dataCenterCapacityTypes) {
-                List<SummedCapacity> capacity = new ArrayList<SummedCapacity>();
-                capacity = _capacityDao.findCapacityBy(capacityType.intValue(), dc.getId(), null, null);
-
-                if (capacityType == Capacity.CAPACITY_TYPE_SECONDARY_STORAGE) {
-                    capacity.add(getUsedStats(capacityType, dc.getId(), null, null));
+                SummedCapacity capacity = capacities.get(rollUpKey("zone", dc.getId(), capacityType));
+                if (capacity == null && capacityType == Capacity.CAPACITY_TYPE_SECONDARY_STORAGE) {
+                    capacity = getUsedStats(capacityType, dc.getId(), null, null);
                 }
-                if (capacity == null || capacity.size() == 0) {
+                if (capacity == null) {
                     continue;
                 }
-                double totalCapacity = capacity.get(0).getTotalCapacity();
-                double usedCapacity = capacity.get(0).getUsedCapacity();
+                double totalCapacity = capacity.getTotalCapacity();
+                double usedCapacity = capacity.getUsedCapacity();
                 if (totalCapacity != 0 && usedCapacity / totalCapacity > _capacityTypeThresholdMap.get(capacityType)) {
                     generateEmailAlert(dc, null, null, totalCapacity, usedCapacity, capacityType);
                 }
@@ -468,12 +642,12 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
         // Generate Alerts for Pod Level capacities
         for (HostPodVO pod : podList) {
             for (Short capacityType : podCapacityTypes) {
-                List<SummedCapacity> capacity = _capacityDao.findCapacityBy(capacityType.intValue(), pod.getDataCenterId(), pod.getId(), null);
-                if (capacity == null || capacity.size() == 0) {
+                SummedCapacity capacity = capacities.get(rollUpKey("pod", pod.getId(), capacityType));
+                if (capacity == null) {
                     continue;
                 }
-                double totalCapacity = capacity.get(0).getTotalCapacity();
-                double usedCapacity = capacity.get(0).getUsedCapacity();
+                double totalCapacity = capacity.getTotalCapacity();
+                double usedCapacity = capacity.getUsedCapacity();
                 if (totalCapacity != 0 && usedCapacity / totalCapacity > _capacityTypeThresholdMap.get(capacityType)) {
                     generateEmailAlert(ApiDBUtils.findZoneById(pod.getDataCenterId()), pod, null, totalCapacity, usedCapacity, capacityType);
                 }
@@ -483,14 +657,15 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
         // Generate Alerts for Cluster Level capacities
         for (ClusterVO cluster : clusterList) {
             for (Short capacityType : clusterCapacityTypes) {
-                List<SummedCapacity> capacity = new ArrayList<SummedCapacity>();
-                capacity = _capacityDao.findCapacityBy(capacityType.intValue(), cluster.getDataCenterId(), null, cluster.getId());
+                SummedCapacity capacity = capacities.get(rollUpKey("cluster", cluster.getId(), capacityType));
 
                 // cpu and memory allocated capacity notification threshold can be defined at cluster level, so getting the value if they are defined at cluster level
                 double threshold = 0;
                 switch (capacityType) {
                 case Capacity.CAPACITY_TYPE_STORAGE:
-                    capacity.add(getUsedStats(capacityType, cluster.getDataCenterId(), cluster.getPodId(), cluster.getId()));
+                    if (capacity == null) {
+                        capacity = getUsedStats(capacityType, cluster.getDataCenterId(), cluster.getPodId(), cluster.getId());
+                    }
                     threshold = StorageCapacityThreshold.valueIn(cluster.getId());
                     break;
                 case Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED:
@@ -505,12 +680,12 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
                 default:
                     threshold = _capacityTypeThresholdMap.get(capacityType);
                 }
-                if (capacity == null || capacity.size() == 0) {
+                if (capacity == null) {
                     continue;
                 }
 
-                double totalCapacity = capacity.get(0).getTotalCapacity();
-                double usedCapacity = capacity.get(0).getUsedCapacity() + capacity.get(0).getReservedCapacity();
+                double totalCapacity = capacity.getTotalCapacity();
+                double usedCapacity = capacity.getUsedCapacity() + capacity.getReservedCapacity();
                 if (totalCapacity != 0 && usedCapacity / totalCapacity > threshold) {
                     generateEmailAlert(ApiDBUtils.findZoneById(cluster.getDataCenterId()), ApiDBUtils.findPodById(cluster.getPodId()), cluster, totalCapacity,
                             usedCapacity, capacityType);
@@ -520,6 +695,55 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     }
 
+    private static String rollUpKey(String level, long id, short capacityType) {
+        return level + "-" + id + "-" + capacityType;
+    }
+
+    /**
+     * Sums up the enabled capacities per zone, pod and cluster, the total CPU and memory of a host is scaled by the overcommit
+     * ratios of its cluster. The ratios are looked up once per cluster, the host capacity index only caches them when it
+     * is enabled.
+     */
+    Map<String, SummedCapacity> rollUpCapacities(List<CapacityVO> capacities) {
+        Map<String, SummedCapacity> rollUp = new HashMap<String, SummedCapacity>();
+        Map<Long, Pair<Float, Float>> overcommitRatios = new HashMap<Long, Pair<Float, Float>>();
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getTotalCapacity() <= 0 || capacity.getDataCenterId() == null || capacity.getCapacityState() != CapacityState.Enabled) {
+                continue;
+            }
+            short type = capacity.getCapacityType();
+            long total = capacity.getTotalCapacity();
+            if (capacity.getClusterId() != null && (type == Capacity.CAPACITY_TYPE_CPU || type == Capacity.CAPACITY_TYPE_MEMORY)) {
+                Pair<Float, Float> ratios = overcommitRatios.get(capacity.getClusterId());
+                if (ratios == null) {
+                    ratios = _capacityIndex.getOvercommitRatios(capacity.getClusterId());
+                    overcommitRatios.put(capacity.getClusterId(), ratios);
+                }
+                total = (long)(total * (type == Capacity.CAPACITY_TYPE_CPU ? ratios.first() : ratios.second()));
+            }
+            addTo(rollUp, rollUpKey("zone", capacity.getDataCenterId(), type), capacity, total);
+            if (capacity.getPodId() != null) {
+                addTo(rollUp, rollUpKey("pod", capacity.getPodId(), type), capacity, total);
+            }
+            if (capacity.getClusterId() != null) {
+                addTo(rollUp, rollUpKey("cluster", capacity.getClusterId(), type), capacity, total);
+            }
+        }
+        return rollUp;
+    }
+
+    private static void addTo(Map<String, SummedCapacity> rollUp, String key, CapacityVO capacity, long total) {
+        SummedCapacity sum = rollUp.get(key);
+        if (sum == null) {
+            rollUp.put(key, new SummedCapacity(capacity.getUsedCapacity(), capacity.getReservedCapacity(), total, capacity.getCapacityType(), capacity.getClusterId(),
+                    capacity.getPodId(), capacity.getDataCenterId()));
+        } else {
+            sum.setUsedCapacity(sum.getUsedCapacity() + capacity.getUsedCapacity());
+            sum.setReservedCapacity(sum.getReservedCapacity() + capacity.getReservedCapacity());
+            sum.setSumTotal(sum.getTotalCapacity() + total);
+        }
+    }
+
     private SummedCapacity getUsedStats(short capacityType, long zoneId, Long podId, Long clusterId) {
         CapacityVO capacity;
         if (capacityType == Capacity.CAPACITY_TYPE_SECONDARY_STORAGE) {
@@ -850,7 +1074,8 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold};
+        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold,
+                CapacityFullRecalculationInterval};
     }
 
     @Override
@@ -0,0 +1,269 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.log4j.Logger;
+
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.user.AccountManager;
+import com.cloud.user.User;
+import com.cloud.user.UserVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ManagerBase;
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Caches, by API key, the user and account a signed request is made for together with a Mac initialized with
+ * the decrypted secret key of the user, so verifying the signature of a request does not hit the database,
+ * decrypt the secret key or look up the Mac provider.
+ *
+ * Entries are evicted on every management server as soon as the state, keys or account of a user change, see
+ * {@link AccountManager#MESSAGE_USER_ACCESS_CHANGED_EVENT} and {@link AccountManager#MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT},
+ * the time to live only bounds the damage of a missed event.
+ */
+public class ApiKeyCredentialCache extends ManagerBase implements ApiKeyCredentialCacheMBean, Configurable {
+    private static final Logger s_logger = Logger.getLogger(ApiKeyCredentialCache.class.getName());
+
+    static final String HMAC_SHA1 = "HmacSHA1";
+
+    static final ConfigKey<Integer> ApiKeyCredentialCacheSize = new ConfigKey<Integer>("Advanced", Integer.class, "api.key.credential.cache.size", "10000",
+            "Maximum number of API keys whose user, account and secret key are cached to verify signed requests, 0 disables the cache", false);
+
+    static final ConfigKey<Integer> ApiKeyCredentialCacheTtl = new ConfigKey<Integer>("Advanced", Integer.class, "api.key.credential.cache.ttl", "300",
+            "Time in seconds after which a cached API key credential is loaded again from the database", false);
+
+    @Inject
+    private AccountManager accountMgr;
+    @Inject
+    private MessageBus messageBus;
+
+    private Cache<String, ApiKeyCredential> cache;
+    // bumped on every eviction, a credential loaded while an eviction happened is not cached as it may be stale
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The user and account an API key belongs to, as loaded from the database, with a Mac for the secret key of the user.
+     * The credential is shared by the requests of the key, so it never hands out the user and account it holds, only
+     * copies of them.
+     */
+    public static class ApiKeyCredential {
+        private final UserVO user;
+        private final AccountVO account;
+        private final SecretKeySpec keySpec;
+        private final Mac prototype;
+
+        ApiKeyCredential(final UserVO user, final AccountVO account) throws GeneralSecurityException {
+            this.user = user.clone();
+            this.account = account.clone();
+            if (user.getSecretKey() == null) {
+                keySpec = null;
+                prototype = null;
+            } else {
+                keySpec = new SecretKeySpec(user.getSecretKey().getBytes(), HMAC_SHA1);
+                prototype = Mac.getInstance(HMAC_SHA1);
+                prototype.init(keySpec);
+            }
+        }
+
+        /**
+         * @return a copy of the user, the caller may register it in its call context
+         */
+        public User getUser() {
+            return user.clone();
+        }
+
+        /**
+         * @return a copy of the account, the caller may register it in its call context
+         */
+        public Account getAccount() {
+            return account.clone();
+        }
+
+        /**
+         * @return a Mac initialized with the secret key of the user, to be used by a single thread, or null if the user has no secret key
+         */
+        public Mac newMac() throws GeneralSecurityException {
+            if (prototype == null) {
+                return null;
+            }
+            try {
+                return (Mac)prototype.clone();
+            } catch (final CloneNotSupportedException e) {
+                final Mac mac = Mac.getInstance(HMAC_SHA1);
+                mac.init(keySpec);
+                return mac;
+            }
+        }
+    }
+
+    @Override
+    public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        final int size = ApiKeyCredentialCacheSize.value();
+        if (size > 0) {
+            cache = CacheBuilder.newBuilder()
+                    .maximumSize(size)
+                    .expireAfterWrite(ApiKeyCredentialCacheTtl.value(), TimeUnit.SECONDS)
+                    .recordStats()
+                    .build();
+        }
+
+        messageBus.subscribe(AccountManager.MESSAGE_USER_ACCESS_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                evictUser(Long.valueOf(args.toString()));
+            }
+        });
+        final MessageSubscriber accountSubscriber = new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                evictAccount(Long.valueOf(args.toString()));
+            }
+        };
+        messageBus.subscribe(AccountManager.MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT, accountSubscriber);
+        messageBus.subscribe(AccountManager.MESSAGE_REMOVE_ACCOUNT_EVENT, accountSubscriber);
+        return true;
+    }
+
+    /**
+     * @return the credential of the API key, or null if no user has this API key
+     */
+    public ApiKeyCredential get(final String apiKey) throws GeneralSecurityException {
+        if (cache == null) {
+            return load(apiKey);
+        }
+        ApiKeyCredential credential = cache.getIfPresent(apiKey);
+        if (credential != null) {
+            return credential;
+        }
+        final long loadedAt = generation.get();
+        credential = load(apiKey);
+        // unknown keys are not cached, a client guessing keys must not be able to push the valid ones out
+        if (credential != null && generation.get() == loadedAt) {
+            cache.put(apiKey, credential);
+        }
+        return credential;
+    }
+
+    private ApiKeyCredential load(final String apiKey) throws GeneralSecurityException {
+        final Pair<User, Account> userAcctPair = accountMgr.findUserByApiKey(apiKey);
+        if (userAcctPair == null) {
+            return null;
+        }
+        // the account DAO builds the user and account as VOs
+        return new ApiKeyCredential((UserVO)userAcctPair.first(), (AccountVO)userAcctPair.second());
+    }
+
+    protected void evictUser(final long userId) {
+        evict(new Predicate<ApiKeyCredential>() {
+            @Override
+            public boolean apply(final ApiKeyCredential credential) {
+                return credential.user.getId() == userId;
+            }
+        });
+    }
+
+    protected void evictAccount(final long accountId) {
+        evict(new Predicate<ApiKeyCredential>() {
+            @Override
+            public boolean apply(final ApiKeyCredential credential) {
+                return credential.account.getId() == accountId;
+            }
+        });
+    }
+
+    private void evict(final Predicate<ApiKeyCredential> predicate) {
+        generation.incrementAndGet();
+        if (cache == null) {
+            return;
+        }
+        int evicted = 0;
+        for (final Map.Entry<String, ApiKeyCredential> entry : cache.asMap().entrySet()) {
+            if (predicate.apply(entry.getValue()) && cache.asMap().remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        if (s_logger.isDebugEnabled() && evicted > 0) {
+            s_logger.debug("Evicted " + evicted + " cached API key credentials");
+        }
+    }
+
+    private CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    @Override
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats().evictionCount();
+    }
+
+    @Override
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ApiKeyCredentialCache.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ApiKeyCredentialCacheSize, ApiKeyCredentialCacheTtl};
+    }
+}
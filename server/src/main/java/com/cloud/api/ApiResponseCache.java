@@ -0,0 +1,289 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.CachedResponse;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.domain.Domain;
+import com.cloud.projects.Project;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.DomainManager;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.db.EntityManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Read through cache of the serialized responses of the commands annotated with {@link CachedResponse}.
+ *
+ * A response is cached for the command, its parameters and the account calling it, together with the version of
+ * the entities it is built from. Every action event on an entity bumps the version of the entity here and, through
+ * the cluster, on the other management servers, so a response built before the change is never served again.
+ * Changes to accounts, domains and projects change what callers may see and bump every version.
+ */
+public class ApiResponseCache extends ManagerBase implements ApiResponseCacheMBean, Configurable {
+
+    static final ConfigKey<Boolean> ApiResponseCacheEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "api.response.cache.enabled", "false",
+            "Serve the responses of the read only APIs marked as cacheable, e.g. listZones or listServiceOfferings, from a cache invalidated by action events", false);
+
+    static final ConfigKey<Integer> ApiResponseCacheSize = new ConfigKey<Integer>("Advanced", Integer.class, "api.response.cache.size", "1000",
+            "Maximum number of API responses cached when api.response.cache.enabled is true", false);
+
+    /**
+     * Sent to the other management servers with the name of the entity that changed here
+     */
+    static final String MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT = "Message.ApiResponseCache.EntityChanged.Event";
+
+    static final String ALL_ENTITIES = "*";
+
+    // request parameters that only authenticate or format the request, besides the ctx ones set by the server
+    private static final Set<String> IGNORED_PARAMETERS = new HashSet<String>(Arrays.asList("apikey", "signature", "signatureversion", "expires", "sessionkey",
+            "response", "httpmethod", "_"));
+
+    private static final Set<String> GLOBAL_ENTITIES = new HashSet<String>(Arrays.asList(Account.class.getName(), Domain.class.getName(), Project.class.getName()));
+
+    @Inject
+    private MessageBus messageBus;
+    @Inject
+    private ClusterManager clusterMgr;
+
+    private Cache<String, CachedEntry> cache;
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private static class CachedEntry {
+        private final long version;
+        private final long expiresAt;
+        private final String response;
+        private final String log;
+
+        CachedEntry(long version, long expiresAt, String response, String log) {
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.response = response;
+            this.log = log;
+        }
+    }
+
+    /**
+     * A cacheable call: where its response is cached and the versions of the entities it was built from.
+     */
+    public static class Lookup {
+        private final String key;
+        private final CachedResponse annotation;
+        private final long version;
+
+        Lookup(String key, CachedResponse annotation, long version) {
+            this.key = key;
+            this.annotation = annotation;
+            this.version = version;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        if (isEnabled()) {
+            cache = CacheBuilder.newBuilder().maximumSize(ApiResponseCacheSize.value()).build();
+        }
+
+        messageBus.subscribe(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                String entity = args.toString();
+                entityChanged(entity);
+                clusterMgr.publishEvent(MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT, entity);
+            }
+        });
+        messageBus.subscribe(MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                entityChanged(args.toString());
+            }
+        });
+        // already sent to the whole cluster by their publishers
+        MessageSubscriber visibilityChanged = new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                entityChanged(ALL_ENTITIES);
+            }
+        };
+        messageBus.subscribe(AccountManager.MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT, visibilityChanged);
+        messageBus.subscribe(DomainManager.MESSAGE_DOMAIN_HIERARCHY_CHANGED_EVENT, visibilityChanged);
+        return true;
+    }
+
+    protected boolean isEnabled() {
+        return ApiResponseCacheEnabled.value();
+    }
+
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    protected void entityChanged(String entity) {
+        version(GLOBAL_ENTITIES.contains(entity) ? ALL_ENTITIES : entity).incrementAndGet();
+    }
+
+    private AtomicLong version(String entity) {
+        AtomicLong version = versions.get(entity);
+        if (version == null) {
+            versions.putIfAbsent(entity, new AtomicLong());
+            version = versions.get(entity);
+        }
+        return version;
+    }
+
+    // versions only grow, so the sum changes whenever one of them does
+    private long versionOf(CachedResponse annotation) {
+        long version = version(ALL_ENTITIES).get();
+        for (Class<?> entity : annotation.entities()) {
+            version += version(entity.getName()).get();
+        }
+        return version;
+    }
+
+    /**
+     * @return where to find and put the response of the command for the caller, or null if it is not cacheable
+     */
+    public Lookup lookup(BaseCmd cmd, Map<String, String> params, Account caller) {
+        if (cache == null || caller == null) {
+            return null;
+        }
+        CachedResponse annotation = cmd.getClass().getAnnotation(CachedResponse.class);
+        APICommand command = cmd.getClass().getAnnotation(APICommand.class);
+        if (annotation == null || command == null) {
+            return null;
+        }
+
+        Map<String, String> normalized = new TreeMap<String, String>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey().toLowerCase();
+            if (!IGNORED_PARAMETERS.contains(name) && !name.startsWith("ctx")) {
+                normalized.put(name, param.getValue());
+            }
+        }
+        // what a caller may see depends on its account, the domain and role of the account are part of it as they can change
+        StringBuilder key = new StringBuilder(command.name()).append('\n').append(cmd.getResponseType()).append('\n')
+                .append(caller.getId()).append('/').append(caller.getDomainId()).append('/').append(caller.getRoleId()).append('/').append(caller.getType());
+        for (Map.Entry<String, String> param : normalized.entrySet()) {
+            key.append('\n').append(param.getKey()).append('=').append(param.getValue());
+        }
+        return new Lookup(key.toString(), annotation, versionOf(annotation));
+    }
+
+    /**
+     * @return the cached response, or null if there is none built from the current versions of the entities
+     */
+    public String get(Lookup lookup, StringBuilder log) {
+        CachedEntry entry = cache.getIfPresent(lookup.key);
+        if (entry == null || entry.version != lookup.version || entry.expiresAt - now() < 0) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        log.append(entry.log);
+        return entry.response;
+    }
+
+    /**
+     * Caches the response built for the lookup, unless one of the entities changed in the meantime.
+     */
+    public void put(Lookup lookup, String response, String log) {
+        if (response == null || versionOf(lookup.annotation) != lookup.version) {
+            return;
+        }
+        long expiresAt = now() + TimeUnit.SECONDS.toNanos(lookup.annotation.ttl());
+        cache.put(lookup.key, new CachedEntry(lookup.version, expiresAt, response, log));
+    }
+
+    @Override
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+        return requests == 0 ? 1.0 : (double)hits / requests;
+    }
+
+    @Override
+    public Map<String, Long> getVersions() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : versions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void invalidateAll() {
+        entityChanged(ALL_ENTITIES);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ApiResponseCache.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ApiResponseCacheEnabled, ApiResponseCacheSize};
+    }
+}
@@ -141,7 +141,6 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 import javax.servlet.http.HttpServletResponse;
@@ -208,6 +207,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     private EntityManager entityMgr;
     @Inject
     private APIAuthenticationManager authManager;
+    @Inject
+    private ApiKeyCredentialCache apiKeyCredentialCache;
+    @Inject
+    private ApiResponseCache apiResponseCache;
 
     private List<PluggableService> pluggableServices;
 
@@ -755,6 +758,14 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             return response;
 
         } else {
+            final ApiResponseCache.Lookup cacheLookup = apiResponseCache.lookup(cmdObj, params, caller);
+            if (cacheLookup != null) {
+                final String cachedResponse = apiResponseCache.get(cacheLookup, log);
+                if (cachedResponse != null) {
+                    return cachedResponse;
+                }
+            }
+
             dispatcher.dispatch(cmdObj, params, false);
 
             // if the command is of the listXXXCommand, we will need to also return the
@@ -771,7 +782,11 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedStringWithSecureLogs((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), log);
+            final String response = ApiResponseSerializer.toSerializedStringWithSecureLogs((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), log);
+            if (cacheLookup != null) {
+                apiResponseCache.put(cacheLookup, response, log.toString());
+            }
+            return response;
         }
     }
 
@@ -927,14 +942,14 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             txn.close();
             User user = null;
             // verify there is a user with this api key
-            final Pair<User, Account> userAcctPair = accountMgr.findUserByApiKey(apiKey);
-            if (userAcctPair == null) {
+            final ApiKeyCredentialCache.ApiKeyCredential credential = apiKeyCredentialCache.get(apiKey);
+            if (credential == null) {
                 s_logger.debug("apiKey does not map to a valid user -- ignoring request, apiKey: " + apiKey);
                 return false;
             }
 
-            user = userAcctPair.first();
-            final Account account = userAcctPair.second();
+            user = credential.getUser();
+            final Account account = credential.getAccount();
 
             if (user.getState() != Account.State.enabled || !account.getState().equals(Account.State.enabled)) {
                 s_logger.info("disabled or locked user accessing the api, userid = " + user.getId() + "; name = " + user.getUsername() + "; state: " + user.getState() +
@@ -955,9 +970,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
             unsignedRequest = unsignedRequest.toLowerCase();
 
-            final Mac mac = Mac.getInstance("HmacSHA1");
-            final SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
-            mac.init(keySpec);
+            final Mac mac = credential.newMac();
             mac.update(unsignedRequest.getBytes());
 
             final byte[] encryptedBytes = mac.doFinal();
@@ -967,6 +980,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             if (!equalSig) {
                 s_logger.info("User signature: " + signature + " is not equaled to computed signature: " + computedSignature);
             } else {
+                // the credential hands out copies, the call does not share its user and account with the other requests of the key
                 CallContext.register(user, account);
             }
             return equalSig;
@@ -983,7 +997,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             checkCommandAvailable(user, commandName, remoteAddress);
         } catch (final RequestLimitException ex) {
             s_logger.debug(ex.getMessage());
-            throw new ServerApiException(ApiErrorCode.API_LIMIT_EXCEED, ex.getMessage());
+            final ServerApiException limitExceeded = new ServerApiException(ApiErrorCode.API_LIMIT_EXCEED, ex.getMessage());
+            // kept as the cause so the servlet can tell the client when to retry
+            limitExceeded.initCause(ex);
+            throw limitExceeded;
         }  catch (final UnavailableCommandException ex) {
             s_logger.debug(ex.getMessage());
             throw new ServerApiException(ApiErrorCode.UNSUPPORTED_ACTION_ERROR, ex.getMessage());
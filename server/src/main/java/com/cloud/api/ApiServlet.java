@@ -47,6 +47,7 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.support.SpringBeanAutowiringSupport;
 
+import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
@@ -327,6 +328,9 @@ public class ApiServlet extends HttpServlet {
         } catch (final ServerApiException se) {
             final String serializedResponseText = apiServer.getSerializedApiError(se, params, responseType);
             resp.setHeader("X-Description", se.getDescription());
+            if (se.getCause() instanceof RequestLimitException && ((RequestLimitException)se.getCause()).getRetryAfter() > 0) {
+                resp.setHeader("Retry-After", String.valueOf(((RequestLimitException)se.getCause()).getRetryAfter()));
+            }
             HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.JSONcontentType.value());
             auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
         } catch (final Exception ex) {
@@ -2627,12 +2627,12 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
                     for (String domainIdString : domainIdsArray) {
                         Long dId = Long.valueOf(domainIdString.trim());
                         if (isRecursive) {
-                            if (_domainDao.isChildDomain(account.getDomainId(), dId)) {
+                            if (_domainMgr.isChildDomain(account.getDomainId(), dId)) {
                                 toRemove = false;
                                 break;
                             }
                         } else {
-                            if (_domainDao.isChildDomain(dId, account.getDomainId())) {
+                            if (_domainMgr.isChildDomain(dId, account.getDomainId())) {
                                 toRemove = false;
                                 break;
                             }
@@ -2838,12 +2838,12 @@ public class QueryManagerImpl extends MutualExclusiveIdsManagerBase implements Q
                     for (String domainIdString : domainIdsArray) {
                         Long dId = Long.valueOf(domainIdString.trim());
                         if (isRecursive) {
-                            if (_domainDao.isChildDomain(caller.getDomainId(), dId)) {
+                            if (_domainMgr.isChildDomain(caller.getDomainId(), dId)) {
                                 toRemove = false;
                                 break;
                             }
                         } else {
-                            if (_domainDao.isChildDomain(dId, caller.getDomainId())) {
+                            if (_domainMgr.isChildDomain(dId, caller.getDomainId())) {
                                 toRemove = false;
                                 break;
                             }
@@ -43,4 +43,14 @@ public interface HostJoinDao extends GenericDao<HostJoinVO, Long> {
 
     List<HostJoinVO> findByClusterId(Long clusterId, Host.Type type);
 
+    /**
+     * @return the hosts of the type in any of the clusters, a host has a row per host tag
+     */
+    List<HostJoinVO> findByClusterIds(Host.Type type, Long... clusterIds);
+
+    /**
+     * @return the hosts of the uuids, a host has a row per host tag
+     */
+    List<HostJoinVO> findByUuids(String... uuids);
+
 }
@@ -72,6 +72,10 @@ public class HostJoinDaoImpl extends GenericDaoBase<HostJoinVO, Long> implements
 
     private final SearchBuilder<HostJoinVO> ClusterSearch;
 
+    private final SearchBuilder<HostJoinVO> ClustersSearch;
+
+    private final SearchBuilder<HostJoinVO> UuidsSearch;
+
     protected HostJoinDaoImpl() {
 
         hostSearch = createSearchBuilder();
@@ -87,6 +91,15 @@ public class HostJoinDaoImpl extends GenericDaoBase<HostJoinVO, Long> implements
         ClusterSearch.and("type", ClusterSearch.entity().getType(), SearchCriteria.Op.EQ);
         ClusterSearch.done();
 
+        ClustersSearch = createSearchBuilder();
+        ClustersSearch.and("clusterIds", ClustersSearch.entity().getClusterId(), SearchCriteria.Op.IN);
+        ClustersSearch.and("type", ClustersSearch.entity().getType(), SearchCriteria.Op.EQ);
+        ClustersSearch.done();
+
+        UuidsSearch = createSearchBuilder();
+        UuidsSearch.and("uuids", UuidsSearch.entity().getUuid(), SearchCriteria.Op.IN);
+        UuidsSearch.done();
+
         this._count = "select count(distinct id) from host_view WHERE ";
     }
 
@@ -460,4 +473,25 @@ public class HostJoinDaoImpl extends GenericDaoBase<HostJoinVO, Long> implements
         return listBy(sc);
     }
 
+    @Override
+    public List<HostJoinVO> findByClusterIds(Host.Type type, Long... clusterIds) {
+        if (clusterIds.length == 0) {
+            return new ArrayList<HostJoinVO>();
+        }
+        SearchCriteria<HostJoinVO> sc = ClustersSearch.create();
+        sc.setParameters("clusterIds", (Object[])clusterIds);
+        sc.setParameters("type", type);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<HostJoinVO> findByUuids(String... uuids) {
+        if (uuids.length == 0) {
+            return new ArrayList<HostJoinVO>();
+        }
+        SearchCriteria<HostJoinVO> sc = UuidsSearch.create();
+        sc.setParameters("uuids", (Object[])uuids);
+        return listBy(sc);
+    }
+
 }
@@ -20,6 +20,8 @@ import java.net.URI;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -78,11 +80,14 @@ import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VMInstanceVO;
@@ -98,6 +103,11 @@ import com.cloud.vm.snapshot.dao.VMSnapshotDao;
 public class CapacityManagerImpl extends ManagerBase implements CapacityManager, StateListener<State, VirtualMachine.Event, VirtualMachine>, Listener, ResourceListener,
         Configurable {
     private static final Logger s_logger = Logger.getLogger(CapacityManagerImpl.class);
+    private static final int HOST_LOCK_STRIPES = 64;
+
+    static final ConfigKey<Integer> CapacityUpdateRetries = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.update.retries", "3",
+            "The number of times a host capacity update is retried when it fails on the database", true);
+
     @Inject
     CapacityDao _capacityDao;
     @Inject
@@ -133,12 +143,22 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    HostCapacityIndex _capacityIndex;
     private int _vmCapacityReleaseInterval;
+    private final Lock[] _hostLocks = new Lock[HOST_LOCK_STRIPES];
+    private final CapacityUpdateStats _updateStats = new CapacityUpdateStats();
     long _extraBytesPerVolume = 0;
 
     @Inject
     MessageBus _messageBus;
 
+    public CapacityManagerImpl() {
+        for (int i = 0; i < _hostLocks.length; i++) {
+            _hostLocks[i] = new ReentrantLock();
+        }
+    }
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
@@ -154,6 +174,11 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        try {
+            JmxUtil.registerMBean("CapacityManager", "CapacityUpdates", _updateStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the MBean of the capacity updates", e);
+        }
         return true;
     }
 
@@ -172,90 +197,66 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         final ServiceOfferingVO svo = _offeringsDao.findById(vm.getId(), vm.getServiceOfferingId());
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
         CapacityVO capacityMemory = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
-        Long clusterId = null;
-        if (hostId != null) {
-            HostVO host = _hostDao.findById(hostId);
-            if (host == null) {
-                s_logger.warn("Host " + hostId + " no long exist anymore!");
-                return true;
-            }
-
-            clusterId = host.getClusterId();
+        HostVO host = _hostDao.findById(hostId);
+        if (host == null) {
+            s_logger.warn("Host " + hostId + " no long exist anymore!");
+            return true;
         }
         if (capacityCpu == null || capacityMemory == null || svo == null) {
             return false;
         }
 
+        final Long clusterId = host.getClusterId();
+        float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
+        float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
+        final int vmCPU = svo.getCpu() * svo.getSpeed();
+        final long vmMem = svo.getRamSize() * 1024L * 1024L;
+        final long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOvercommitRatio);
+        final long totalMem = (long)(capacityMemory.getTotalCapacity() * memoryOvercommitRatio);
+
+        final long capacityCpuId = capacityCpu.getId();
+        final long capacityMemoryId = capacityMemory.getId();
+        Lock lock = lockHost(hostId);
         try {
-            final Long clusterIdFinal = clusterId;
-            final long capacityCpuId = capacityCpu.getId();
-            final long capacityMemoryId = capacityMemory.getId();
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            updateCapacities(new TransactionCallbackNoReturn() {
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
-                    CapacityVO capacityMemory = _capacityDao.lockRow(capacityMemoryId, true);
-
-                    long usedCpu = capacityCpu.getUsedCapacity();
-                    long usedMem = capacityMemory.getUsedCapacity();
-                    long reservedCpu = capacityCpu.getReservedCapacity();
-                    long reservedMem = capacityMemory.getReservedCapacity();
-                    long actualTotalCpu = capacityCpu.getTotalCapacity();
-                    float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "cpuOvercommitRatio").getValue());
-                    float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "memoryOvercommitRatio").getValue());
-                    int vmCPU = svo.getCpu() * svo.getSpeed();
-                    long vmMem = svo.getRamSize() * 1024L * 1024L;
-                    long actualTotalMem = capacityMemory.getTotalCapacity();
-                    long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
-                    long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-                        s_logger.debug("Hosts's actual total RAM: " + actualTotalMem + " and RAM after applying overprovisioning: " + totalMem);
-                    }
-
-                    if (!moveFromReserved) {
-                        /* move resource from used */
-                        if (usedCpu >= vmCPU) {
-                            capacityCpu.setUsedCapacity(usedCpu - vmCPU);
-                        }
-                        if (usedMem >= vmMem) {
-                            capacityMemory.setUsedCapacity(usedMem - vmMem);
-                        }
-
-                        if (moveToReservered) {
-                            if (reservedCpu + vmCPU <= totalCpu) {
-                                capacityCpu.setReservedCapacity(reservedCpu + vmCPU);
-                            }
-                            if (reservedMem + vmMem <= totalMem) {
-                                capacityMemory.setReservedCapacity(reservedMem + vmMem);
-                            }
-                        }
-                    } else {
-                        if (reservedCpu >= vmCPU) {
-                            capacityCpu.setReservedCapacity(reservedCpu - vmCPU);
-                        }
-                        if (reservedMem >= vmMem) {
-                            capacityMemory.setReservedCapacity(reservedMem - vmMem);
-                        }
-                    }
-
-                    s_logger.debug("release cpu from host: " + hostId + ", old used: " + usedCpu + ",reserved: " + reservedCpu + ", actual total: " + actualTotalCpu +
-                        ", total with overprovisioning: " + totalCpu + "; new used: " + capacityCpu.getUsedCapacity() + ",reserved:" + capacityCpu.getReservedCapacity() +
-                        "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
-
-                    s_logger.debug("release mem from host: " + hostId + ", old used: " + usedMem + ",reserved: " + reservedMem + ", total: " + totalMem + "; new used: " +
-                        capacityMemory.getUsedCapacity() + ",reserved:" + capacityMemory.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved +
-                        ",moveToReservered" + moveToReservered);
-
-                    _capacityDao.update(capacityCpu.getId(), capacityCpu);
-                    _capacityDao.update(capacityMemory.getId(), capacityMemory);
+                    releaseCapacity(capacityCpuId, vmCPU, totalCpu, moveFromReserved, moveToReservered);
+                    releaseCapacity(capacityMemoryId, vmMem, totalMem, moveFromReserved, moveToReservered);
                 }
             });
 
+            capacityCpu = _capacityDao.findById(capacityCpuId);
+            capacityMemory = _capacityDao.findById(capacityMemoryId);
+            s_logger.debug("release cpu from host: " + hostId + ", cpu: " + vmCPU + ", total with overprovisioning: " + totalCpu + "; new used: " + capacityCpu.getUsedCapacity() +
+                    ",reserved:" + capacityCpu.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
+            s_logger.debug("release mem from host: " + hostId + ", mem: " + vmMem + ", total: " + totalMem + "; new used: " + capacityMemory.getUsedCapacity() + ",reserved:" +
+                    capacityMemory.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
+            _capacityIndex.update(hostId, capacityCpu, capacityMemory);
             return true;
         } catch (Exception e) {
+            _capacityIndex.invalidateHost(hostId);
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
             return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the capacity of a VM from the used, or the reserved, capacity of a host. Each part of the release only
+     * applies when the capacity allows it, the used capacity does not go below zero and the reserved capacity does not
+     * go above the total.
+     */
+    private void releaseCapacity(long capacityId, long capacity, long total, boolean moveFromReserved, boolean moveToReserved) {
+        if (moveFromReserved) {
+            updateCapacity(capacityId, 0, -capacity, null);
+        } else if (!moveToReserved) {
+            updateCapacity(capacityId, -capacity, 0, null);
+        } else if (!updateCapacity(capacityId, -capacity, capacity, total)) {
+            // one of the two moves does not fit, retry them one by one
+            updateCapacity(capacityId, -capacity, 0, null);
+            updateCapacity(capacityId, 0, capacity, total);
         }
     }
 
@@ -281,78 +282,120 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         final int cpu = svo.getCpu() * svo.getSpeed();
         final long ram = svo.getRamSize() * 1024L * 1024L;
 
+        Lock lock = lockHost(hostId);
         try {
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemId = capacityMem.getId();
 
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            final boolean allocatedFromReserved = updateCapacities(new TransactionCallback<Boolean>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
-                    CapacityVO capacityMem = _capacityDao.lockRow(capacityMemId, true);
-
-                    long usedCpu = capacityCpu.getUsedCapacity();
-                    long usedMem = capacityMem.getUsedCapacity();
-                    long reservedCpu = capacityCpu.getReservedCapacity();
-                    long reservedMem = capacityMem.getReservedCapacity();
-                    long actualTotalCpu = capacityCpu.getTotalCapacity();
-                    long actualTotalMem = capacityMem.getTotalCapacity();
-                    long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
-                    long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-                    }
-
-                    long freeCpu = totalCpu - (reservedCpu + usedCpu);
-                    long freeMem = totalMem - (reservedMem + usedMem);
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("We are allocating VM, increasing the used capacity of this host:" + hostId);
-                        s_logger.debug("Current Used CPU: " + usedCpu + " , Free CPU:" + freeCpu + " ,Requested CPU: " + cpu);
-                        s_logger.debug("Current Used RAM: " + usedMem + " , Free RAM:" + freeMem + " ,Requested RAM: " + ram);
-                    }
-                    capacityCpu.setUsedCapacity(usedCpu + cpu);
-                    capacityMem.setUsedCapacity(usedMem + ram);
-
+                public Boolean doInTransaction(TransactionStatus status) {
                     if (fromLastHost) {
-                        /* alloc from reserved */
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("We are allocating VM to the last host again, so adjusting the reserved capacity if it is not less than required");
-                            s_logger.debug("Reserved CPU: " + reservedCpu + " , Requested CPU: " + cpu);
-                            s_logger.debug("Reserved RAM: " + reservedMem + " , Requested RAM: " + ram);
+                        /* alloc from reserved, only if both the reserved cpu and ram are not less than required */
+                        if (updateCapacity(capacityCpuId, cpu, -cpu, null)) {
+                            if (updateCapacity(capacityMemId, ram, -ram, null)) {
+                                return true;
+                            }
+                            // give the reserved cpu back, the cpu stays used
+                            updateCapacity(capacityCpuId, 0, cpu, null);
+                            updateCapacity(capacityMemId, ram, 0, null);
+                        } else {
+                            updateCapacity(capacityCpuId, cpu, 0, null);
+                            updateCapacity(capacityMemId, ram, 0, null);
                         }
-                        if (reservedCpu >= cpu && reservedMem >= ram) {
-                            capacityCpu.setReservedCapacity(reservedCpu - cpu);
-                            capacityMem.setReservedCapacity(reservedMem - ram);
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("We are allocating VM to the last host again, but the reserved capacity is less than required, allocating from free resource");
                         }
                     } else {
-                        /* alloc from free resource */
-                        if (!((reservedCpu + usedCpu + cpu <= totalCpu) && (reservedMem + usedMem + ram <= totalMem))) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Host doesnt seem to have enough free capacity, but increasing the used capacity anyways, " +
-                                    "since the VM is already starting on this host ");
-                            }
-                        }
+                        /* alloc from free resource, the used capacity is increased anyways since the VM is already starting on this host */
+                        updateCapacity(capacityCpuId, cpu, 0, null);
+                        updateCapacity(capacityMemId, ram, 0, null);
                     }
-
-                    s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", old used: " + usedCpu + ", old reserved: " + reservedCpu + ", actual total: " +
-                        actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used:" + capacityCpu.getUsedCapacity() + ", reserved:" +
-                        capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu + ",alloc_from_last:" + fromLastHost);
-
-                    s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", old used: " + usedMem + ", old reserved: " + reservedMem + ", total: " +
-                        totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity() + "; requested mem: " + ram +
-                        ",alloc_from_last:" + fromLastHost);
-
-                    _capacityDao.update(capacityCpu.getId(), capacityCpu);
-                    _capacityDao.update(capacityMem.getId(), capacityMem);
+                    return false;
                 }
             });
+
+            capacityCpu = _capacityDao.findById(capacityCpuId);
+            capacityMem = _capacityDao.findById(capacityMemId);
+            if (s_logger.isDebugEnabled()) {
+                long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOvercommitRatio);
+                long totalMem = (long)(capacityMem.getTotalCapacity() * memoryOvercommitRatio);
+                s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", actual total: " + capacityCpu.getTotalCapacity() + ", total with overprovisioning: " +
+                        totalCpu + "; new used:" + capacityCpu.getUsedCapacity() + ", reserved:" + capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu +
+                        ",alloc_from_last:" + fromLastHost + ",alloc_from_reserved:" + allocatedFromReserved);
+                s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", total: " + totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " +
+                        capacityMem.getReservedCapacity() + "; requested mem: " + ram + ",alloc_from_last:" + fromLastHost + ",alloc_from_reserved:" + allocatedFromReserved);
+            }
+            _capacityIndex.update(hostId, capacityCpu, capacityMem);
         } catch (Exception e) {
+            _capacityIndex.invalidateHost(hostId);
             s_logger.error("Exception allocating VM capacity", e);
             return;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Takes the lock of the stripe of the host, so that the capacity updates of a host made by this management server
+     * do not race with each other, nor with the recalculation of the capacity of the host.
+     */
+    protected Lock lockHost(long hostId) {
+        Lock lock = _hostLocks[(int)(Math.abs(hostId) % _hostLocks.length)];
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            _updateStats.contended(System.nanoTime() - start);
+        }
+        return lock;
+    }
+
+    /**
+     * Applies the updates of the CPU and the memory capacity of a host in one short transaction, so that they apply
+     * together or not at all. The transaction is retried when it fails on the database, like on a deadlock with the
+     * planners, unless it is part of a transaction of the caller, which has failed as a whole then.
+     */
+    protected <T> T updateCapacities(TransactionCallback<T> updates) {
+        int retries = CapacityUpdateRetries.value();
+        try (TransactionLegacy txn = TransactionLegacy.open("updateCapacities")) {
+            // a failed transaction of the caller is not started any more once the updates have failed
+            final boolean callerTxn = txn.dbTxnStarted();
+            for (int attempt = 0;; attempt++) {
+                try {
+                    return Transaction.execute(updates);
+                } catch (CloudRuntimeException e) {
+                    if (attempt >= retries || callerTxn) {
+                        _updateStats.failed();
+                        throw e;
+                    }
+                    _updateStats.retried();
+                    s_logger.debug("Retrying the update of the capacity of a host after: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the deltas to a capacity row in a single statement.
+     *
+     * @return false if the guard of the update did not hold, the capacity is left as it is then
+     */
+    protected boolean updateCapacity(long capacityId, long usedDelta, long reservedDelta, Long reservedLimit) {
+        _updateStats.updated();
+        if (_capacityDao.updateCapacityDelta(capacityId, usedDelta, reservedDelta, reservedLimit)) {
+            return true;
+        }
+        _updateStats.guardFailed();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Capacity " + capacityId + " not updated by used " + usedDelta + ", reserved " + reservedDelta + ", it does not allow it");
+        }
+        return false;
+    }
+
+    public CapacityUpdateMBean getUpdateStats() {
+        return _updateStats;
+    }
+
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
 
@@ -567,9 +610,21 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return totalAllocatedSize;
     }
 
-    @DB
+    /**
+     * Recalculates the capacity of the host from the VMs on it, correcting the drift of the delta updates. The delta
+     * updates of the host by this management server wait for the recalculation.
+     */
     @Override
     public void updateCapacityForHost(final Host host) {
+        Lock lock = lockHost(host.getId());
+        try {
+            recalculateCapacityForHost(host);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recalculateCapacityForHost(final Host host) {
         // prepare the service offerings
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
@@ -827,7 +882,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             });
 
         }
-
+        _capacityIndex.invalidateHost(host.getId());
     }
 
     @Override
@@ -847,6 +902,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
       State oldState = transition.getCurrentState();
       State newState = transition.getToState();
       Event event = transition.getEvent();
+      _capacityIndex.vmStateChanged(oldHostId, vm.getHostId(), vm.getLastHostId());
       s_logger.debug("VM state transitted from :" + oldState + " to " + newState + " with event: " + event + "vm's original host id: " + vm.getLastHostId() +
               " new host id: " + vm.getHostId() + " host id before state transition: " + oldHostId);
 
@@ -1152,6 +1208,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion};
+            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion, CapacityUpdateRetries};
     }
 }
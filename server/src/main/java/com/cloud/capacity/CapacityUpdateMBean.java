@@ -0,0 +1,49 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+public interface CapacityUpdateMBean {
+    /**
+     * @return the host capacity updates done for VMs being allocated, released or moved to reserved
+     */
+    long getUpdates();
+
+    /**
+     * @return the updates that had to wait for another update of the same host
+     */
+    long getContendedUpdates();
+
+    /**
+     * @return the time spent waiting for updates of the same host, in milliseconds
+     */
+    long getContendedWaitMs();
+
+    /**
+     * @return the delta updates that were not applied because their guard did not hold
+     */
+    long getGuardFailures();
+
+    /**
+     * @return the updates retried after failing on the database
+     */
+    long getRetries();
+
+    /**
+     * @return the updates that failed after all their retries
+     */
+    long getFailures();
+}
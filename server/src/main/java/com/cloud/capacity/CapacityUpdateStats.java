@@ -0,0 +1,89 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the host capacity updates of the capacity manager, exposed over JMX.
+ */
+public class CapacityUpdateStats extends StandardMBean implements CapacityUpdateMBean {
+    private final AtomicLong _updates = new AtomicLong();
+    private final AtomicLong _contended = new AtomicLong();
+    private final AtomicLong _contendedWaitNanos = new AtomicLong();
+    private final AtomicLong _guardFailures = new AtomicLong();
+    private final AtomicLong _retries = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    public CapacityUpdateStats() {
+        super(CapacityUpdateMBean.class, false);
+    }
+
+    void updated() {
+        _updates.incrementAndGet();
+    }
+
+    void contended(long waitNanos) {
+        _contended.incrementAndGet();
+        _contendedWaitNanos.addAndGet(waitNanos);
+    }
+
+    void guardFailed() {
+        _guardFailures.incrementAndGet();
+    }
+
+    void retried() {
+        _retries.incrementAndGet();
+    }
+
+    void failed() {
+        _failures.incrementAndGet();
+    }
+
+    @Override
+    public long getUpdates() {
+        return _updates.get();
+    }
+
+    @Override
+    public long getContendedUpdates() {
+        return _contended.get();
+    }
+
+    @Override
+    public long getContendedWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(_contendedWaitNanos.get());
+    }
+
+    @Override
+    public long getGuardFailures() {
+        return _guardFailures.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return _retries.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return _failures.get();
+    }
+}
@@ -0,0 +1,662 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.event.EventTypes;
+import com.cloud.host.DetailVO;
+import com.cloud.host.Host;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
+import com.cloud.resource.ResourceManager;
+import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.dao.GuestOSCategoryDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * Keeps the compute capacity of the hosts and the attributes the host allocators check (the overcommit ratios of the
+ * clusters, the number of active VMs, the guest OS category and whether a host has GPUs) in memory, so the allocators do
+ * not query the database for every candidate host of every placement.
+ *
+ * The capacity of a host is updated by the capacity manager whenever it changes the capacity of the host, the VM count
+ * is reloaded after a VM on the host changes state and the overcommit ratios are reloaded after the overprovisioning
+ * factor of a cluster is changed. Once the change is committed, the other management servers are told which hosts
+ * changed and reload them. Everything is also reloaded from op_host_capacity periodically, which catches up with what
+ * the messages between the management servers missed. Whatever is not in the index is loaded when it is first asked for.
+ */
+public class HostCapacityIndex extends ManagerBase implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(HostCapacityIndex.class);
+
+    static final ConfigKey<Integer> CapacityIndexReconcileInterval = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.index.reconcile.interval", "60",
+            "Interval in seconds to reload the in-memory capacity index the host allocators use from the database, 0 to have the allocators query the database instead",
+            false);
+
+    /**
+     * Sent to the other management servers with the id of a host whose capacity changed here
+     */
+    static final String MESSAGE_HOST_CAPACITY_CHANGED_EVENT = "Message.HostCapacityIndex.CapacityChanged.Event";
+
+    /**
+     * Sent to the other management servers with the comma separated ids of the hosts a VM changed state on here
+     */
+    static final String MESSAGE_HOST_VMS_CHANGED_EVENT = "Message.HostCapacityIndex.VmsChanged.Event";
+
+    private static final String NO_CATEGORY = "";
+
+    /**
+     * The CPU and memory capacity of a host at the time it was indexed.
+     */
+    public static class HostCapacity {
+        private final long hostId;
+        private final Long zoneId;
+        private final Long podId;
+        private final Long clusterId;
+        private final long usedCpu;
+        private final long reservedCpu;
+        private final long totalCpu;
+        private final long usedMemory;
+        private final long reservedMemory;
+        private final long totalMemory;
+        private final long indexed;
+
+        public HostCapacity(long hostId, CapacityVO cpu, CapacityVO memory) {
+            this.hostId = hostId;
+            zoneId = cpu.getDataCenterId();
+            podId = cpu.getPodId();
+            clusterId = cpu.getClusterId();
+            usedCpu = cpu.getUsedCapacity();
+            reservedCpu = cpu.getReservedCapacity();
+            totalCpu = cpu.getTotalCapacity();
+            usedMemory = memory.getUsedCapacity();
+            reservedMemory = memory.getReservedCapacity();
+            totalMemory = memory.getTotalCapacity();
+            indexed = System.nanoTime();
+        }
+
+        public long getHostId() {
+            return hostId;
+        }
+
+        public Long getClusterId() {
+            return clusterId;
+        }
+
+        public long getUsedCpu() {
+            return usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return reservedCpu;
+        }
+
+        public long getTotalCpu() {
+            return totalCpu;
+        }
+
+        public long getUsedMemory() {
+            return usedMemory;
+        }
+
+        public long getReservedMemory() {
+            return reservedMemory;
+        }
+
+        public long getTotalMemory() {
+            return totalMemory;
+        }
+
+        /**
+         * Same check as {@link CapacityManager#checkIfHostHasCapacity} for allocating from the free capacity.
+         */
+        public boolean hasCapacity(long cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
+            long totalCpuWithOvercommit = (long)(totalCpu * cpuOvercommitRatio);
+            long totalMemoryWithOvercommit = (long)(totalMemory * memoryOvercommitRatio);
+            long reservedCpuToUse = considerReservedCapacity ? reservedCpu : 0;
+            long reservedMemoryToUse = considerReservedCapacity ? reservedMemory : 0;
+            return reservedCpuToUse + usedCpu + cpu <= totalCpuWithOvercommit && reservedMemoryToUse + usedMemory + ram <= totalMemoryWithOvercommit;
+        }
+
+        @Override
+        public String toString() {
+            return "HostCapacity[" + hostId + ", cpu used: " + usedCpu + ", reserved: " + reservedCpu + ", total: " + totalCpu + ", memory used: " + usedMemory +
+                ", reserved: " + reservedMemory + ", total: " + totalMemory + "]";
+        }
+    }
+
+    @Inject
+    CapacityDao _capacityDao;
+    @Inject
+    ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    VMInstanceDao _vmDao;
+    @Inject
+    HypervisorCapabilitiesDao _hypervisorCapabilitiesDao;
+    @Inject
+    HostDetailsDao _hostDetailsDao;
+    @Inject
+    GuestOSCategoryDao _guestOSCategoryDao;
+    @Inject
+    ResourceManager _resourceMgr;
+    @Inject
+    MessageBus _messageBus;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    private final ConcurrentMap<Long, HostCapacity> _capacities = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentMap<Long, Pair<Float, Float>> _overcommitRatios = new ConcurrentHashMap<Long, Pair<Float, Float>>();
+    private final ConcurrentMap<Long, Long> _vmCounts = new ConcurrentHashMap<Long, Long>();
+    private final ConcurrentMap<String, Long> _maxGuestsLimits = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<Long, String> _guestOSCategories = new ConcurrentHashMap<Long, String>();
+    private final ConcurrentMap<Long, Boolean> _gpuEnabled = new ConcurrentHashMap<Long, Boolean>();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _reconciliations = new AtomicLong();
+    private final AtomicLong _remoteChanges = new AtomicLong();
+    // whether the capacity of every host is indexed, which only holds once the index was reconciled
+    private volatile boolean _complete;
+
+    private int _reconcileInterval;
+    private ScheduledExecutorService _executor;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _reconcileInterval = CapacityIndexReconcileInterval.value();
+        _messageBus.subscribe(EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                configurationChanged((String)args);
+            }
+        });
+        _messageBus.subscribe(MESSAGE_HOST_CAPACITY_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                _remoteChanges.incrementAndGet();
+                reload(Long.parseLong(args.toString()));
+            }
+        });
+        _messageBus.subscribe(MESSAGE_HOST_VMS_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                _remoteChanges.incrementAndGet();
+                for (String hostId : args.toString().split(",")) {
+                    _vmCounts.remove(Long.parseLong(hostId));
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        if (_reconcileInterval > 0) {
+            _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("HostCapacityIndex"));
+            _executor.scheduleWithFixedDelay(new ReconcileTask(), 0, _reconcileInterval, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the allocators are to query the database rather than the index
+     */
+    public boolean isEnabled() {
+        return _reconcileInterval > 0;
+    }
+
+    /**
+     * @return true if the capacity of every host is indexed, so the capacity of a zone or pod can be summed up from it
+     */
+    public boolean isComplete() {
+        return isEnabled() && _complete;
+    }
+
+    void setReconcileInterval(int reconcileInterval) {
+        _reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * @return the indexed capacity of the host, null if the host has no CPU or memory capacity. The capacity and the
+     * overcommit ratios are always answered, but only kept while the index is enabled.
+     */
+    public HostCapacity getCapacity(long hostId) {
+        HostCapacity capacity = _capacities.get(hostId);
+        if (capacity != null) {
+            _hits.incrementAndGet();
+            return capacity;
+        }
+        _misses.incrementAndGet();
+        CapacityVO cpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO memory = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        if (cpu == null || memory == null) {
+            return null;
+        }
+        capacity = new HostCapacity(hostId, cpu, memory);
+        if (!isEnabled()) {
+            return capacity;
+        }
+        HostCapacity updated = _capacities.putIfAbsent(hostId, capacity);
+        return updated != null ? updated : capacity;
+    }
+
+    /**
+     * @return the CPU and memory overcommit ratios of the cluster
+     */
+    public Pair<Float, Float> getOvercommitRatios(long clusterId) {
+        Pair<Float, Float> ratios = _overcommitRatios.get(clusterId);
+        if (ratios != null) {
+            _hits.incrementAndGet();
+            return ratios;
+        }
+        _misses.incrementAndGet();
+        ClusterDetailsVO cpuOvercommitRatio = _clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio");
+        ClusterDetailsVO memoryOvercommitRatio = _clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio");
+        ratios = new Pair<Float, Float>(Float.parseFloat(cpuOvercommitRatio.getValue()), Float.parseFloat(memoryOvercommitRatio.getValue()));
+        if (isEnabled()) {
+            _overcommitRatios.put(clusterId, ratios);
+        }
+        return ratios;
+    }
+
+    /**
+     * Same as {@link CapacityManager#checkIfHostReachMaxGuestLimit}.
+     */
+    public boolean checkIfHostReachMaxGuestLimit(Host host) {
+        Long vmCount = _vmCounts.get(host.getId());
+        if (vmCount == null) {
+            _misses.incrementAndGet();
+            vmCount = _vmDao.countActiveByHostId(host.getId());
+            _vmCounts.put(host.getId(), vmCount);
+        } else {
+            _hits.incrementAndGet();
+        }
+        String hypervisor = host.getHypervisorType() + "-" + host.getHypervisorVersion();
+        Long maxGuestsLimit = _maxGuestsLimits.get(hypervisor);
+        if (maxGuestsLimit == null) {
+            maxGuestsLimit = _hypervisorCapabilitiesDao.getMaxGuestsLimit(host.getHypervisorType(), host.getHypervisorVersion());
+            _maxGuestsLimits.put(hypervisor, maxGuestsLimit);
+        }
+        if (vmCount.longValue() >= maxGuestsLimit.longValue()) {
+            s_logger.info("Host name: " + host.getName() + ", hostId: " + host.getId() + " already reached max Running VMs(count includes system VMs), limit: " +
+                maxGuestsLimit + ", Running VM count: " + vmCount.longValue());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the name of the guest OS category the host is dedicated to, null if it is not
+     */
+    public String getGuestOSCategory(long hostId) {
+        String category = _guestOSCategories.get(hostId);
+        if (category != null) {
+            _hits.incrementAndGet();
+            return category == NO_CATEGORY ? null : category;
+        }
+        _misses.incrementAndGet();
+        category = loadGuestOSCategory(hostId);
+        _guestOSCategories.put(hostId, category != null ? category : NO_CATEGORY);
+        return category;
+    }
+
+    private String loadGuestOSCategory(long hostId) {
+        DetailVO hostDetail = _hostDetailsDao.findDetail(hostId, "guest.os.category.id");
+        if (hostDetail == null) {
+            return null;
+        }
+        long guestOSCategoryId;
+        try {
+            guestOSCategoryId = Long.parseLong(hostDetail.getValue());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        GuestOSCategoryVO guestOSCategory = _guestOSCategoryDao.findById(guestOSCategoryId);
+        return guestOSCategory != null ? guestOSCategory.getName() : null;
+    }
+
+    public boolean isHostGpuEnabled(long hostId) {
+        Boolean gpuEnabled = _gpuEnabled.get(hostId);
+        if (gpuEnabled != null) {
+            _hits.incrementAndGet();
+            return gpuEnabled;
+        }
+        _misses.incrementAndGet();
+        gpuEnabled = _resourceMgr.isHostGpuEnabled(hostId);
+        _gpuEnabled.put(hostId, gpuEnabled);
+        return gpuEnabled;
+    }
+
+    /**
+     * Indexes the capacity of the host as the capacity manager wrote it, once the transaction it is written in is
+     * committed. Nothing changes when the transaction is rolled back, so the allocator never sees a capacity that was
+     * not committed.
+     */
+    public void update(final long hostId, final CapacityVO cpu, final CapacityVO memory) {
+        if (!isEnabled()) {
+            return;
+        }
+        final HostCapacity capacity = new HostCapacity(hostId, cpu, memory);
+        TransactionLegacy.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacities.put(hostId, capacity);
+            }
+        });
+        publishAfterCompletion(MESSAGE_HOST_CAPACITY_CHANGED_EVENT, String.valueOf(hostId));
+    }
+
+    /**
+     * Has the VM count of the hosts loaded again, here and on the other management servers, after a VM on them changed
+     * state.
+     */
+    public void vmStateChanged(Long... hostIds) {
+        StringBuilder changed = new StringBuilder();
+        for (Long hostId : hostIds) {
+            if (hostId != null) {
+                _vmCounts.remove(hostId);
+                if (changed.length() > 0) {
+                    changed.append(',');
+                }
+                changed.append(hostId);
+            }
+        }
+        if (isEnabled() && changed.length() > 0) {
+            publishAfterCompletion(MESSAGE_HOST_VMS_CHANGED_EVENT, changed.toString());
+        }
+    }
+
+    /**
+     * Has everything about the host loaded again, here and on the other management servers, when it is not known what
+     * changed. The capacity is reloaded once the transaction the change is made in is over.
+     */
+    public void invalidateHost(final long hostId) {
+        _vmCounts.remove(hostId);
+        _guestOSCategories.remove(hostId);
+        _gpuEnabled.remove(hostId);
+        if (!isEnabled()) {
+            _capacities.remove(hostId);
+            return;
+        }
+        TransactionLegacy.runAfterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                reload(hostId);
+                if (_clusterMgr != null) {
+                    _clusterMgr.publishEvent(MESSAGE_HOST_CAPACITY_CHANGED_EVENT, String.valueOf(hostId));
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the other management servers about the change once the transaction it is made in is over, so they do not
+     * load the host again before the change is visible.
+     */
+    private void publishAfterCompletion(final String subject, final String hostIds) {
+        if (_clusterMgr == null) {
+            return;
+        }
+        TransactionLegacy.runAfterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                _clusterMgr.publishEvent(subject, hostIds);
+            }
+        });
+    }
+
+    /**
+     * Loads the capacity of the host again, unless it was updated in the meantime, and drops its VM count, after the
+     * host was changed by another management server or it is not known what changed.
+     */
+    void reload(long hostId) {
+        _vmCounts.remove(hostId);
+        if (!isEnabled()) {
+            return;
+        }
+        long started = System.nanoTime();
+        CapacityVO cpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO memory = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        HostCapacity indexed = _capacities.get(hostId);
+        if (cpu == null || memory == null) {
+            if (indexed != null && indexed.indexed < started) {
+                _capacities.remove(hostId, indexed);
+            }
+            return;
+        }
+        HostCapacity capacity = new HostCapacity(hostId, cpu, memory);
+        if (indexed == null) {
+            _capacities.putIfAbsent(hostId, capacity);
+        } else if (indexed.indexed < started) {
+            _capacities.replace(hostId, indexed, capacity);
+        }
+    }
+
+    /**
+     * Same as {@link CapacityDao#orderClustersByAggregateCapacity} followed by keeping the clusters
+     * {@link CapacityDao#listClustersInZoneOrPodByHostCapacities} lists, summed up from the index. Only to be called when
+     * the index is complete.
+     *
+     * @return the ids of the clusters of the zone or pod with a host having enough CPU and a host having enough memory
+     * for the VM, ordered by the share of their capacity of the type in use, and that share of all their clusters
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByCapacity(long id, boolean isZone, int requiredCpu, long requiredRam, short capacityTypeForOrdering) {
+        Map<Long, long[]> aggregates = new HashMap<Long, long[]>();
+        Set<Long> withEnoughCpu = new HashSet<Long>();
+        Set<Long> withEnoughMemory = new HashSet<Long>();
+        for (HostCapacity capacity : _capacities.values()) {
+            Long scope = isZone ? capacity.zoneId : capacity.podId;
+            if (scope == null || scope.longValue() != id || capacity.clusterId == null) {
+                continue;
+            }
+            Pair<Float, Float> ratios = getOvercommitRatios(capacity.clusterId);
+            long totalCpu = (long)(capacity.totalCpu * ratios.first());
+            long totalMemory = (long)(capacity.totalMemory * ratios.second());
+            // the free capacity as the query has it, which adds the reserved capacity back
+            if (totalCpu - capacity.usedCpu + capacity.reservedCpu >= requiredCpu) {
+                withEnoughCpu.add(capacity.clusterId);
+            }
+            if (totalMemory - capacity.usedMemory + capacity.reservedMemory >= requiredRam) {
+                withEnoughMemory.add(capacity.clusterId);
+            }
+            long[] aggregate = aggregates.get(capacity.clusterId);
+            if (aggregate == null) {
+                aggregate = new long[2];
+                aggregates.put(capacity.clusterId, aggregate);
+            }
+            if (capacityTypeForOrdering == Capacity.CAPACITY_TYPE_MEMORY) {
+                aggregate[0] += capacity.usedMemory + capacity.reservedMemory;
+                aggregate[1] += totalMemory;
+            } else {
+                aggregate[0] += capacity.usedCpu + capacity.reservedCpu;
+                aggregate[1] += totalCpu;
+            }
+        }
+
+        final Map<Long, Double> clusterCapacityMap = new HashMap<Long, Double>();
+        for (Map.Entry<Long, long[]> aggregate : aggregates.entrySet()) {
+            long total = aggregate.getValue()[1];
+            clusterCapacityMap.put(aggregate.getKey(), total == 0 ? 0 : (double)aggregate.getValue()[0] / total);
+        }
+        List<Long> clusterIds = new ArrayList<Long>(clusterCapacityMap.keySet());
+        Collections.sort(clusterIds, new Comparator<Long>() {
+            @Override
+            public int compare(Long cluster1, Long cluster2) {
+                int compared = Double.compare(clusterCapacityMap.get(cluster1), clusterCapacityMap.get(cluster2));
+                return compared != 0 ? compared : cluster1.compareTo(cluster2);
+            }
+        });
+        withEnoughCpu.retainAll(withEnoughMemory);
+        clusterIds.retainAll(withEnoughCpu);
+        return new Pair<List<Long>, Map<Long, Double>>(clusterIds, clusterCapacityMap);
+    }
+
+    /**
+     * Has the overcommit ratios of the clusters loaded again after an overprovisioning factor was changed. The change
+     * does not say which cluster it was made to.
+     */
+    void configurationChanged(String name) {
+        if (CapacityManager.CpuOverprovisioningFactor.key().equalsIgnoreCase(name) || CapacityManager.MemOverprovisioningFactor.key().equalsIgnoreCase(name)) {
+            _overcommitRatios.clear();
+        }
+    }
+
+    /**
+     * Reloads the capacity of all the hosts from op_host_capacity in a single query and has the rest loaded again when
+     * it is next asked for. Capacities the capacity manager updated since the reload started are kept.
+     */
+    public void reconcile() {
+        long started = System.nanoTime();
+        List<CapacityVO> capacities = _capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        Map<Long, CapacityVO> cpus = new HashMap<Long, CapacityVO>();
+        Map<Long, CapacityVO> memories = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+                cpus.put(capacity.getHostOrPoolId(), capacity);
+            } else {
+                memories.put(capacity.getHostOrPoolId(), capacity);
+            }
+        }
+
+        int changed = 0;
+        for (Map.Entry<Long, CapacityVO> cpu : cpus.entrySet()) {
+            long hostId = cpu.getKey();
+            CapacityVO memory = memories.get(hostId);
+            if (memory == null) {
+                continue;
+            }
+            HostCapacity capacity = new HostCapacity(hostId, cpu.getValue(), memory);
+            HostCapacity indexed = _capacities.get(hostId);
+            if (indexed == null) {
+                _capacities.putIfAbsent(hostId, capacity);
+            } else if (indexed.indexed < started) {
+                if (indexed.usedCpu != capacity.usedCpu || indexed.reservedCpu != capacity.reservedCpu || indexed.totalCpu != capacity.totalCpu ||
+                    indexed.usedMemory != capacity.usedMemory || indexed.reservedMemory != capacity.reservedMemory || indexed.totalMemory != capacity.totalMemory) {
+                    changed++;
+                }
+                _capacities.replace(hostId, indexed, capacity);
+            }
+        }
+        for (Long hostId : _capacities.keySet()) {
+            HostCapacity indexed = _capacities.get(hostId);
+            if (!cpus.containsKey(hostId) && indexed != null && indexed.indexed < started) {
+                _capacities.remove(hostId, indexed);
+            }
+        }
+
+        _overcommitRatios.clear();
+        _vmCounts.clear();
+        _maxGuestsLimits.clear();
+        _guestOSCategories.clear();
+        _gpuEnabled.clear();
+        _reconciliations.incrementAndGet();
+        _complete = true;
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reconciled the capacity index of " + cpus.size() + " hosts with the database in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) +
+                " ms, " + changed + " hosts were changed by other management servers");
+        }
+    }
+
+    public int size() {
+        return _capacities.size();
+    }
+
+    /**
+     * @return the number of lookups answered from the index
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * @return the number of lookups that queried the database
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getReconciliations() {
+        return _reconciliations.get();
+    }
+
+    /**
+     * @return the number of changes of hosts the other management servers told about
+     */
+    public long getRemoteChanges() {
+        return _remoteChanges.get();
+    }
+
+    private class ReconcileTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                s_logger.warn("Failed to reconcile the capacity index with the database", e);
+            }
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return HostCapacityIndex.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {CapacityIndexReconcileInterval};
+    }
+}
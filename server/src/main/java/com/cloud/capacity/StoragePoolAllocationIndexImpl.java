@@ -0,0 +1,404 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * The allocation of a pool is calculated when it is first asked for and kept until one of the volumes on the pool
+ * changes state, which is how volumes are created, resized, migrated and destroyed. The allocations are also calculated
+ * again periodically, which picks up the changes made outside the volume state machine (templates copied to the pool,
+ * VM snapshots); how far the kept allocations were off is counted as drift. The other management servers are told about
+ * the pools a volume changed on, so they drop their allocation of the pool as well.
+ */
+public class StoragePoolAllocationIndexImpl extends ManagerBase implements StoragePoolAllocationIndex, Configurable {
+    private static final Logger s_logger = Logger.getLogger(StoragePoolAllocationIndexImpl.class);
+
+    static final String MESSAGE_POOL_ALLOCATION_CHANGED_EVENT = "Message.StoragePoolAllocationIndex.AllocationChanged.Event";
+
+    static final ConfigKey<Integer> PoolAllocationIndexReconcileInterval = new ConfigKey<Integer>("Advanced", Integer.class,
+            "storage.pool.allocation.index.reconcile.interval", "60",
+            "Interval in seconds to calculate the allocations the storage pool allocators use again from the database, 0 to have them calculated on every call instead",
+            false);
+
+    /**
+     * What was allocated on a pool at the time it was calculated, and its capacity with the overprovisioning factor of
+     * the pool applied.
+     */
+    static class PoolAllocation {
+        private final boolean managed;
+        private final long usedBytes;
+        private final long volumeBytes;
+        private final long volumeCount;
+        private final long vmSnapshotBytes;
+        private final long templateBytes;
+        private final Set<Long> templateIds;
+        private final Long usedIops;
+        private final long capacityBytes;
+        private final long calculated;
+
+        PoolAllocation(boolean managed, long usedBytes, long volumeBytes, long volumeCount, long vmSnapshotBytes, long templateBytes, Set<Long> templateIds, Long usedIops,
+                long capacityBytes) {
+            this.managed = managed;
+            this.usedBytes = usedBytes;
+            this.volumeBytes = volumeBytes;
+            this.volumeCount = volumeCount;
+            this.vmSnapshotBytes = vmSnapshotBytes;
+            this.templateBytes = templateBytes;
+            this.templateIds = templateIds;
+            this.usedIops = usedIops;
+            this.capacityBytes = capacityBytes;
+            calculated = System.nanoTime();
+        }
+
+        long getAllocatedBytes(VMTemplateVO templateForVmCreation) {
+            if (managed) {
+                return usedBytes;
+            }
+            long allocated = volumeBytes + vmSnapshotBytes + templateBytes;
+            if (templateForVmCreation != null && !templateIds.contains(templateForVmCreation.getId()) && templateForVmCreation.getSize() != null) {
+                allocated += templateForVmCreation.getSize();
+            }
+            return allocated;
+        }
+
+        double getFreeShare() {
+            return capacityBytes > 0 ? 1 - (double)getAllocatedBytes(null) / capacityBytes : 0;
+        }
+    }
+
+    @Inject
+    PrimaryDataStoreDao _storagePoolDao;
+    @Inject
+    VolumeDao _volumeDao;
+    @Inject
+    VMTemplatePoolDao _templatePoolDao;
+    @Inject
+    CapacityManager _capacityMgr;
+    @Inject
+    MessageBus _messageBus;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    private final ConcurrentMap<Long, PoolAllocation> _allocations = new ConcurrentHashMap<Long, PoolAllocation>();
+    private final ConcurrentMap<Long, Long> _invalidated = new ConcurrentHashMap<Long, Long>();
+
+    private final StoragePoolAllocationIndexStats _stats = new StoragePoolAllocationIndexStats();
+
+    private int _reconcileInterval;
+    private ScheduledExecutorService _executor;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _reconcileInterval = PoolAllocationIndexReconcileInterval.value();
+        Volume.State.getStateMachine().registerListener(new VolumeAllocationListener());
+        _messageBus.subscribe(MESSAGE_POOL_ALLOCATION_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                _stats.remotelyInvalidated();
+                drop(Long.parseLong(args.toString()));
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        if (_reconcileInterval > 0) {
+            _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("StoragePoolAllocationIndex"));
+            _executor.scheduleWithFixedDelay(new ReconcileTask(), _reconcileInterval, _reconcileInterval, TimeUnit.SECONDS);
+        }
+        try {
+            JmxUtil.registerMBean("StoragePoolAllocationIndex", "Allocations", _stats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the MBean of the storage pool allocation index", e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _reconcileInterval > 0;
+    }
+
+    void setReconcileInterval(int reconcileInterval) {
+        _reconcileInterval = reconcileInterval;
+    }
+
+    @Override
+    public long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation) {
+        if (!isEnabled()) {
+            return _capacityMgr.getAllocatedPoolCapacity(pool, templateForVmCreation);
+        }
+        return getAllocation(pool).getAllocatedBytes(templateForVmCreation);
+    }
+
+    @Override
+    public long getUsedIops(StoragePoolVO pool) {
+        if (!isEnabled()) {
+            return _capacityMgr.getUsedIops(pool);
+        }
+        PoolAllocation allocation = getAllocation(pool);
+        return allocation.usedIops != null ? allocation.usedIops : _capacityMgr.getUsedIops(pool);
+    }
+
+    @Override
+    public List<StoragePool> orderPoolsByFreeCapacity(List<StoragePool> pools) {
+        final Map<Long, Double> freeShares = new HashMap<Long, Double>();
+        List<StoragePool> ordered = new ArrayList<StoragePool>();
+        for (StoragePool pool : pools) {
+            PoolAllocation allocation = _allocations.get(pool.getId());
+            if (allocation == null) {
+                StoragePoolVO poolVO = _storagePoolDao.findById(pool.getId());
+                if (poolVO == null) {
+                    continue;
+                }
+                allocation = getAllocation(poolVO);
+            } else {
+                _stats.hit();
+            }
+            freeShares.put(pool.getId(), allocation.getFreeShare());
+            ordered.add(pool);
+        }
+        Collections.sort(ordered, new Comparator<StoragePool>() {
+            @Override
+            public int compare(StoragePool pool1, StoragePool pool2) {
+                return Double.compare(freeShares.get(pool2.getId()), freeShares.get(pool1.getId()));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Drops the allocation of the pool, here and on the other management servers, once the transaction the change is
+     * made in is over; an allocation calculated before the commit would still count the volumes as they were.
+     */
+    @Override
+    public void invalidate(final long poolId) {
+        TransactionLegacy.runAfterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                drop(poolId);
+                if (isEnabled() && _clusterMgr != null) {
+                    _clusterMgr.publishEvent(MESSAGE_POOL_ALLOCATION_CHANGED_EVENT, String.valueOf(poolId));
+                }
+            }
+        });
+    }
+
+    private void drop(long poolId) {
+        _invalidated.put(poolId, System.nanoTime());
+        if (_allocations.remove(poolId) != null) {
+            _stats.invalidated();
+        }
+    }
+
+    private PoolAllocation getAllocation(StoragePoolVO pool) {
+        PoolAllocation allocation = _allocations.get(pool.getId());
+        if (allocation != null) {
+            _stats.hit();
+            return allocation;
+        }
+        _stats.missed();
+        long started = System.nanoTime();
+        allocation = calculate(pool);
+        if (!isEnabled() || invalidatedSince(pool.getId(), started)) {
+            return allocation;
+        }
+        PoolAllocation calculated = _allocations.putIfAbsent(pool.getId(), allocation);
+        return calculated != null ? calculated : allocation;
+    }
+
+    private boolean invalidatedSince(long poolId, long started) {
+        Long invalidated = _invalidated.get(poolId);
+        return invalidated != null && invalidated - started >= 0;
+    }
+
+    /**
+     * Calculates the allocation of the pool the same way {@link CapacityManager#getAllocatedPoolCapacity} does.
+     */
+    PoolAllocation calculate(StoragePoolVO pool) {
+        Long usedIops = pool.getCapacityIops() != null ? _capacityMgr.getUsedIops(pool) : null;
+        if (pool.isManaged()) {
+            return new PoolAllocation(true, _capacityMgr.getUsedBytes(pool), 0, _volumeDao.getNonDestroyedCountAndTotalByPool(pool.getId()).first(), 0, 0,
+                    Collections.<Long>emptySet(), usedIops, getOverProvisionedCapacity(pool));
+        }
+        Pair<Long, Long> volumes = _volumeDao.getNonDestroyedCountAndTotalByPool(pool.getId());
+        long vmSnapshotBytes = _volumeDao.getVMSnapshotSizeByPool(pool.getId());
+        long templateBytes = 0;
+        Set<Long> templateIds = new HashSet<Long>();
+        for (VMTemplateStoragePoolVO templatePool : _templatePoolDao.listByPoolId(pool.getId())) {
+            templateIds.add(templatePool.getTemplateId());
+            templateBytes += templatePool.getTemplateSize();
+        }
+        return new PoolAllocation(false, 0, volumes.second(), volumes.first(), vmSnapshotBytes, templateBytes, templateIds, usedIops, getOverProvisionedCapacity(pool));
+    }
+
+    /**
+     * @return the capacity of the pool as {@link com.cloud.storage.StorageManager} records it, the overprovisioning
+     * factor of the pool applied when its type supports overprovisioning
+     */
+    private long getOverProvisionedCapacity(StoragePoolVO pool) {
+        if (pool.getPoolType() == null || !pool.getPoolType().supportsOverProvisioning()) {
+            return pool.getCapacityBytes();
+        }
+        BigDecimal overProvFactor = new BigDecimal(CapacityManager.StorageOverprovisioningFactor.valueIn(pool.getId()));
+        return overProvFactor.multiply(new BigDecimal(pool.getCapacityBytes())).longValue();
+    }
+
+    /**
+     * Calculates the allocations of the indexed pools again. Allocations that were calculated again since the
+     * reconciliation started are kept.
+     */
+    public void reconcile() {
+        long started = System.nanoTime();
+        int drifted = 0;
+        long totalDriftBytes = 0;
+        for (Long poolId : new ArrayList<Long>(_allocations.keySet())) {
+            PoolAllocation indexed = _allocations.get(poolId);
+            if (indexed == null) {
+                continue;
+            }
+            StoragePoolVO pool = _storagePoolDao.findById(poolId);
+            if (pool == null) {
+                _allocations.remove(poolId, indexed);
+                continue;
+            }
+            PoolAllocation allocation = calculate(pool);
+            if (indexed.calculated - started < 0 && !invalidatedSince(poolId, started)) {
+                long driftBytes = Math.abs(allocation.getAllocatedBytes(null) - indexed.getAllocatedBytes(null));
+                boolean driftIops = allocation.usedIops != null && !allocation.usedIops.equals(indexed.usedIops);
+                if (driftBytes > 0 || driftIops || allocation.volumeCount != indexed.volumeCount) {
+                    drifted++;
+                    totalDriftBytes += driftBytes;
+                }
+                _allocations.replace(poolId, indexed, allocation);
+            }
+        }
+        for (Map.Entry<Long, Long> invalidated : _invalidated.entrySet()) {
+            if (invalidated.getValue() - started < 0) {
+                _invalidated.remove(invalidated.getKey(), invalidated.getValue());
+            }
+        }
+        _stats.reconciled(drifted, totalDriftBytes);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reconciled the allocation index of " + _allocations.size() + " storage pools with the database in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms, the allocation of " + drifted + " pools had drifted");
+        }
+    }
+
+    public int size() {
+        return _allocations.size();
+    }
+
+    StoragePoolAllocationIndexStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Invalidates the pool a volume is on and the one it was on once the change is committed, the volume state changes
+     * when it is created, resized, migrated or destroyed.
+     */
+    class VolumeAllocationListener implements StateListener<Volume.State, Volume.Event, Volume> {
+        @Override
+        public boolean preStateTransitionEvent(Volume.State oldState, Volume.Event event, Volume.State newState, Volume volume, boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<Volume.State, Volume.Event> transition, Volume volume, boolean status, Object opaque) {
+            if (volume.getPoolId() != null) {
+                invalidate(volume.getPoolId());
+            }
+            if (volume instanceof VolumeVO && ((VolumeVO)volume).getLastPoolId() != null) {
+                invalidate(((VolumeVO)volume).getLastPoolId());
+            }
+            return true;
+        }
+    }
+
+    private class ReconcileTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                s_logger.warn("Failed to reconcile the storage pool allocation index with the database", e);
+            }
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return StoragePoolAllocationIndex.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {PoolAllocationIndexReconcileInterval};
+    }
+}
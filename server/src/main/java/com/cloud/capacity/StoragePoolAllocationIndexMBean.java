@@ -0,0 +1,54 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+public interface StoragePoolAllocationIndexMBean {
+    /**
+     * @return the number of lookups answered from the index
+     */
+    long getHits();
+
+    /**
+     * @return the number of lookups that calculated the allocation from the database
+     */
+    long getMisses();
+
+    /**
+     * @return the number of indexed allocations dropped because a volume on their pool changed
+     */
+    long getInvalidations();
+
+    /**
+     * @return the number of pools the other management servers said a volume changed on
+     */
+    long getRemoteInvalidations();
+
+    /**
+     * @return the number of times the indexed allocations were calculated again from the database
+     */
+    long getReconciliations();
+
+    /**
+     * @return the number of times a reconciliation found the indexed allocation of a pool to be off
+     */
+    long getDriftedPools();
+
+    /**
+     * @return the bytes by which the indexed allocations were off in total
+     */
+    long getDriftBytes();
+}
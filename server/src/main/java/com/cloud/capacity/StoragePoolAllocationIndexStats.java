@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the storage pool allocation index, exposed over JMX.
+ */
+public class StoragePoolAllocationIndexStats extends StandardMBean implements StoragePoolAllocationIndexMBean {
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _remoteInvalidations = new AtomicLong();
+    private final AtomicLong _reconciliations = new AtomicLong();
+    private final AtomicLong _driftedPools = new AtomicLong();
+    private final AtomicLong _driftBytes = new AtomicLong();
+
+    public StoragePoolAllocationIndexStats() {
+        super(StoragePoolAllocationIndexMBean.class, false);
+    }
+
+    void hit() {
+        _hits.incrementAndGet();
+    }
+
+    void missed() {
+        _misses.incrementAndGet();
+    }
+
+    void invalidated() {
+        _invalidations.incrementAndGet();
+    }
+
+    void remotelyInvalidated() {
+        _remoteInvalidations.incrementAndGet();
+    }
+
+    void reconciled(int driftedPools, long driftBytes) {
+        _reconciliations.incrementAndGet();
+        _driftedPools.addAndGet(driftedPools);
+        _driftBytes.addAndGet(driftBytes);
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidations() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public long getReconciliations() {
+        return _reconciliations.get();
+    }
+
+    @Override
+    public long getDriftedPools() {
+        return _driftedPools.get();
+    }
+
+    @Override
+    public long getDriftBytes() {
+        return _driftBytes.get();
+    }
+}
@@ -535,6 +535,8 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
                     clusterDetailsVO.setValue(value);
                     _clusterDetailsDao.update(clusterDetailsVO.getId(), clusterDetailsVO);
                 }
+                // the host capacity index keeps the overcommit ratios of the clusters
+                messageBus.publish(_name, EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, PublishScope.GLOBAL, name);
                 break;
 
             case StoragePool:
@@ -18,13 +18,17 @@ package com.cloud.deploy;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.Timer;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import javax.inject.Inject;
@@ -35,6 +39,7 @@ import com.cloud.utils.fsm.StateMachine2;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.log4j.Logger;
+import org.apache.cloudstack.affinity.AffinityGroupHostIndex;
 import org.apache.cloudstack.affinity.AffinityGroupProcessor;
 import org.apache.cloudstack.affinity.AffinityGroupService;
 import org.apache.cloudstack.affinity.AffinityGroupVMMapVO;
@@ -66,6 +71,8 @@ import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManagerImpl;
@@ -84,6 +91,7 @@ import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.deploy.DeploymentPlanner.PlannerResourceUsage;
 import com.cloud.deploy.dao.PlannerHostReservationDao;
 import com.cloud.exception.AffinityConflictException;
+import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.ConnectionException;
 import com.cloud.exception.InsufficientServerCapacityException;
 import com.cloud.gpu.GPU;
@@ -125,6 +133,7 @@ import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.DiskProfile;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
@@ -165,6 +174,16 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
     protected VMReservationDao _reservationDao;
 
     private static final long INITIAL_RESERVATION_RELEASE_CHECKER_DELAY = 30L * 1000L; // thirty seconds expressed in milliseconds
+    private static final int MAX_TRACED_VMS = 1000;
+    private static final int MAX_TRACES_PER_VM = 10;
+    private static final int MAX_PLACEMENT_VERSION_ATTEMPTS = 3;
+    private final PlannerLatencyStats _latencyStats = new PlannerLatencyStats();
+    private final Map<Long, List<PlanningTrace>> _planningTraces = new LinkedHashMap<Long, List<PlanningTrace>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, List<PlanningTrace>> eldest) {
+            return size() > MAX_TRACED_VMS;
+        }
+    };
     protected long _nodeId = -1;
 
     protected List<StoragePoolAllocator> _storagePoolAllocators;
@@ -209,6 +228,10 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
     @Inject
     protected CapacityManager _capacityMgr;
     @Inject
+    protected HostCapacityIndex _capacityIndex;
+    @Inject
+    protected AffinityGroupHostIndex _affinityGroupHostIndex;
+    @Inject
     protected ConfigurationDao _configDao;
     @Inject
     protected PrimaryDataStoreDao _storagePoolDao;
@@ -250,6 +273,61 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
     @Override
     public DeployDestination planDeployment(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
             throws InsufficientServerCapacityException, AffinityConflictException {
+        PlanningTrace trace = PlanningTrace.begin(vmProfile.getId());
+        if (trace == null) {
+            // part of a planning already traced, e.g. of a batch
+            return doPlanDeployment(vmProfile, plan, avoids, planner);
+        }
+        DeployDestination dest = null;
+        boolean failed = true;
+        try {
+            dest = doPlanDeployment(vmProfile, plan, avoids, planner);
+            failed = false;
+            return dest;
+        } finally {
+            if (failed) {
+                trace.end("failed");
+            } else if (dest == null) {
+                trace.end("no destination found");
+            } else {
+                trace.end("destination found on host " + (dest.getHost() != null ? dest.getHost().getId() : null));
+            }
+            recordPlanningTrace(trace, dest != null, failed);
+        }
+    }
+
+    private void recordPlanningTrace(PlanningTrace trace, boolean found, boolean failed) {
+        _latencyStats.record(trace, found, failed);
+        synchronized (_planningTraces) {
+            List<PlanningTrace> traces = _planningTraces.get(trace.getVmId());
+            if (traces == null) {
+                traces = new ArrayList<PlanningTrace>();
+                _planningTraces.put(trace.getVmId(), traces);
+            }
+            traces.add(trace);
+            if (traces.size() > MAX_TRACES_PER_VM) {
+                traces.remove(0);
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(trace);
+        }
+    }
+
+    @Override
+    public List<PlanningTrace> getPlanningTraces(long vmId) {
+        synchronized (_planningTraces) {
+            List<PlanningTrace> traces = _planningTraces.get(vmId);
+            return traces == null ? Collections.<PlanningTrace>emptyList() : new ArrayList<PlanningTrace>(traces);
+        }
+    }
+
+    PlannerLatencyStats getLatencyStats() {
+        return _latencyStats;
+    }
+
+    private DeployDestination doPlanDeployment(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DeploymentPlanner planner)
+            throws InsufficientServerCapacityException, AffinityConflictException {
 
         ServiceOffering offering = vmProfile.getServiceOffering();
         int cpu_requested = offering.getCpu() * offering.getSpeed();
@@ -259,7 +337,9 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
 
         if (vm.getType() == VirtualMachine.Type.User || vm.getType() == VirtualMachine.Type.DomainRouter) {
-            checkForNonDedicatedResources(vmProfile, dc, avoids);
+            try (PlanningTrace.Stage stage = PlanningTrace.stage("dedication")) {
+                checkForNonDedicatedResources(vmProfile, dc, avoids);
+            }
         }
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("DeploymentPlanner allocation algorithm: " + planner);
@@ -274,14 +354,18 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
         if (plan.getHostId() != null && haVmTag == null) {
             Long hostIdSpecified = plan.getHostId();
+            // the stage ends with the planning
+            PlanningTrace.stage("specifiedHost").candidates("host", Collections.singletonList(hostIdSpecified));
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("DeploymentPlan has host_id specified, choosing this host and making no checks on this host: " + hostIdSpecified);
             }
             HostVO host = _hostDao.findById(hostIdSpecified);
             if (host == null) {
                 s_logger.debug("The specified host cannot be found");
+                PlanningTrace.note("the specified host cannot be found");
             } else if (avoids.shouldAvoid(host)) {
                 s_logger.debug("The specified host is in avoid set");
+                PlanningTrace.note("the specified host is excluded");
             } else {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug(
@@ -347,12 +431,16 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
         if (vmGroupCount > 0) {
             for (AffinityGroupProcessor processor : _affinityProcessors) {
-                processor.process(vmProfile, plan, avoids);
+                try (PlanningTrace.Stage stage = PlanningTrace.stage("affinity:" + processor.getName())) {
+                    processor.process(vmProfile, plan, avoids);
+                }
             }
         }
 
         if (vm.getType() == VirtualMachine.Type.User) {
-            checkForNonDedicatedResources(vmProfile, dc, avoids);
+            try (PlanningTrace.Stage stage = PlanningTrace.stage("dedication")) {
+                checkForNonDedicatedResources(vmProfile, dc, avoids);
+            }
         }
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Deploy avoids pods: " + avoids.getPodsToAvoid() + ", clusters: " + avoids.getClustersToAvoid() + ", hosts: " + avoids.getHostsToAvoid());
@@ -369,37 +457,36 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
         }
 
         if (planner == null) {
-            String plannerName = offering.getDeploymentPlanner();
-            if (plannerName == null) {
-                if (vm.getHypervisorType() == HypervisorType.BareMetal) {
-                    plannerName = "BareMetalPlanner";
-                } else {
-                    plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
-                }
-            }
-            planner = getDeploymentPlannerByName(plannerName);
+            planner = getDefaultPlanner(vmProfile);
         }
 
         if (vm.getLastHostId() != null && haVmTag == null) {
             s_logger.debug("This VM has last host_id specified, trying to choose the same host: " + vm.getLastHostId());
+            PlanningTrace.Stage lastHostStage = PlanningTrace.stage("lastHost");
+            lastHostStage.candidates("host", Collections.singletonList(vm.getLastHostId()));
 
             HostVO host = _hostDao.findById(vm.getLastHostId());
             ServiceOfferingDetailsVO offeringDetails = null;
             if (host == null) {
                 s_logger.debug("The last host of this VM cannot be found");
+                PlanningTrace.note("the last host cannot be found");
             } else if (avoids.shouldAvoid(host)) {
                 s_logger.debug("The last host of this VM is in avoid set");
+                PlanningTrace.note("the last host is excluded");
             } else if (plan.getClusterId() != null && host.getClusterId() != null
                     && !plan.getClusterId().equals(host.getClusterId())) {
                 s_logger.debug("The last host of this VM cannot be picked as the plan specifies different clusterId: "
                         + plan.getClusterId());
+                PlanningTrace.note("the plan specifies another cluster than the one of the last host");
             } else if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
                 s_logger.debug("The last Host, hostId: " + host.getId() +
                         " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
+                PlanningTrace.note("the last host runs the maximum number of VMs");
             } else if ((offeringDetails  = _serviceOfferingDetailsDao.findDetail(offering.getId(), GPU.Keys.vgpuType.toString())) != null) {
                 ServiceOfferingDetailsVO groupName = _serviceOfferingDetailsDao.findDetail(offering.getId(), GPU.Keys.pciDevice.toString());
                 if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
                     s_logger.debug("The last host of this VM does not have required GPU devices available");
+                    PlanningTrace.note("the last host does not have the GPU devices");
                 }
             } else {
                 if (host.getStatus() == Status.Up && host.getResourceState() == ResourceState.Enabled) {
@@ -480,16 +567,20 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
                             }
                         } else {
                             s_logger.debug("The last host of this VM does not have enough capacity");
+                            PlanningTrace.note("the last host does not have enough capacity");
                         }
                     } else {
                         s_logger.debug("Service Offering host tag does not match the last host of this VM");
+                        PlanningTrace.note("the last host does not have the host tag of the offering");
                     }
                 } else {
                     s_logger.debug("The last host of this VM is not UP or is not enabled, host status is: " + host.getStatus().name() + ", host resource state is: " +
                             host.getResourceState());
+                    PlanningTrace.note("the last host is " + host.getStatus() + " and " + host.getResourceState());
                 }
             }
             s_logger.debug("Cannot choose the last host to deploy this VM ");
+            lastHostStage.close();
         }
 
         DeployDestination dest = null;
@@ -503,7 +594,10 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
                             new ExcludeList(avoids.getDataCentersToAvoid(), avoids.getPodsToAvoid(), avoids.getClustersToAvoid(), avoids.getHostsToAvoid(),
                                     avoids.getPoolsToAvoid());
 
-                    clusterList = ((DeploymentClusterPlanner)planner).orderClusters(vmProfile, plan, avoids);
+                    try (PlanningTrace.Stage stage = PlanningTrace.stage("orderClusters:" + planner.getName())) {
+                        clusterList = ((DeploymentClusterPlanner)planner).orderClusters(vmProfile, plan, avoids);
+                        stage.candidates("cluster", clusterList);
+                    }
 
                     if (clusterList != null && !clusterList.isEmpty()) {
                         // planner refactoring. call allocators to list hosts
@@ -525,7 +619,9 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
                         return null;
                     }
                 } else {
-                    dest = planner.plan(vmProfile, plan, avoids);
+                    try (PlanningTrace.Stage stage = PlanningTrace.stage("plan:" + planner.getName())) {
+                        dest = planner.plan(vmProfile, plan, avoids);
+                    }
                     if (dest != null) {
                         long hostId = dest.getHost().getId();
                         avoids.addHost(dest.getHost().getId());
@@ -548,6 +644,358 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
         return dest;
     }
 
+    private DeploymentPlanner getDefaultPlanner(VirtualMachineProfile vmProfile) {
+        String plannerName = vmProfile.getServiceOffering().getDeploymentPlanner();
+        if (plannerName == null) {
+            if (vmProfile.getHypervisorType() == HypervisorType.BareMetal) {
+                plannerName = "BareMetalPlanner";
+            } else {
+                plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
+            }
+        }
+        return getDeploymentPlannerByName(plannerName);
+    }
+
+    @Override
+    public Map<Long, String> planAndReserveDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlanner planner) {
+        // VMs that can be placed on the same hosts are planned together
+        Map<String, List<VirtualMachineProfile>> batches = new LinkedHashMap<String, List<VirtualMachineProfile>>();
+        for (VirtualMachineProfile vmProfile : vmProfiles) {
+            VirtualMachine vm = vmProfile.getVirtualMachine();
+            List<Long> groupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vm.getId());
+            Collections.sort(groupIds);
+            String batchKey = vm.getDataCenterId() + "/" + vm.getPodIdToDeployIn() + "/" + vm.getHypervisorType() + "/" + vm.getServiceOfferingId() + "/" +
+                    vm.getTemplateId() + "/" + groupIds;
+            List<VirtualMachineProfile> batch = batches.get(batchKey);
+            if (batch == null) {
+                batch = new ArrayList<VirtualMachineProfile>();
+                batches.put(batchKey, batch);
+            }
+            batch.add(vmProfile);
+        }
+
+        Map<Long, String> reservations = new HashMap<Long, String>();
+        for (List<VirtualMachineProfile> batch : batches.values()) {
+            try {
+                reservations.putAll(planAndReserveBatch(batch, planner));
+            } catch (InsufficientServerCapacityException | AffinityConflictException e) {
+                s_logger.debug("Unable to plan the deployment of " + batch.size() + " VMs together, they will be planned one by one: " + e.getMessage());
+            }
+        }
+        return reservations;
+    }
+
+    /**
+     * Finds the hosts for the first VM of the batch and packs the VMs onto them, in the order the planner and the
+     * allocators return them, as long as the capacity of the hosts at the start allows and no more VMs share a host than
+     * their affinity groups allow. The first VM packed onto a host is planned on it, the others are placed on the pools
+     * that VM was planned on. The destinations are then checked against the affinity groups and reserved in one
+     * transaction, which moves the groups on from the placement versions they were checked at.
+     */
+    protected Map<Long, String> planAndReserveBatch(final List<VirtualMachineProfile> batch, DeploymentPlanner planner) throws InsufficientServerCapacityException,
+            AffinityConflictException {
+        final VirtualMachineProfile firstProfile = batch.get(0);
+        final VirtualMachine firstVm = firstProfile.getVirtualMachine();
+        final DeploymentPlanner batchPlanner = planner != null ? planner : getDefaultPlanner(firstProfile);
+        DataCenterDeployment plan = new DataCenterDeployment(firstVm.getDataCenterId(), firstVm.getPodIdToDeployIn(), null, null, null, null);
+        ExcludeList avoids = new ExcludeList();
+        if (!(batchPlanner instanceof DeploymentClusterPlanner) || !batchPlanner.canHandle(firstProfile, plan, avoids)) {
+            s_logger.debug("Planner " + batchPlanner + " cannot plan the deployment of " + batch.size() + " VMs together");
+            return Collections.emptyMap();
+        }
+
+        final List<Long> groupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(firstVm.getId());
+        if (!groupIds.isEmpty()) {
+            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                processor.process(firstProfile, plan, avoids);
+            }
+        }
+        DataCenter dc = _dcDao.findById(firstVm.getDataCenterId());
+        if (firstVm.getType() == VirtualMachine.Type.User || firstVm.getType() == VirtualMachine.Type.DomainRouter) {
+            checkForNonDedicatedResources(firstProfile, dc, avoids);
+        }
+
+        final List<Host> hosts = new ArrayList<Host>();
+        List<Long> clusterIds = ((DeploymentClusterPlanner)batchPlanner).orderClusters(firstProfile, plan, avoids);
+        if (clusterIds != null) {
+            for (Long clusterId : clusterIds) {
+                ClusterVO cluster = _clusterDao.findById(clusterId);
+                DataCenterDeployment clusterPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), clusterId, null, null, null);
+                for (Host host : findSuitableHosts(firstProfile, clusterPlan, avoids, HostAllocator.RETURN_UPTO_ALL)) {
+                    if (plan.getPreferredHosts() == null || plan.getPreferredHosts().isEmpty() || plan.getPreferredHosts().contains(host.getId())) {
+                        hosts.add(host);
+                    }
+                }
+            }
+        }
+        if (hosts.isEmpty()) {
+            s_logger.debug("No suitable hosts found to deploy " + batch.size() + " VMs together");
+            return Collections.emptyMap();
+        }
+
+        // the capacity left on the hosts for the batch, CPU and memory
+        final Map<Long, long[]> capacitiesLeft = new HashMap<Long, long[]>();
+        for (Host host : hosts) {
+            HostCapacity capacity = _capacityIndex.getCapacity(host.getId());
+            if (capacity != null) {
+                Pair<Float, Float> overcommitRatios = _capacityIndex.getOvercommitRatios(host.getClusterId());
+                long cpuLeft = (long)(capacity.getTotalCpu() * overcommitRatios.first()) - capacity.getUsedCpu() - capacity.getReservedCpu();
+                long memoryLeft = (long)(capacity.getTotalMemory() * overcommitRatios.second()) - capacity.getUsedMemory() - capacity.getReservedMemory();
+                capacitiesLeft.put(host.getId(), new long[] {cpuLeft, memoryLeft});
+            }
+        }
+        ServiceOffering offering = firstProfile.getServiceOffering();
+        final long cpu = offering.getCpu() * offering.getSpeed();
+        final long ram = offering.getRamSize() * 1024L * 1024L;
+
+        // the VMs of the batch share their affinity groups, the strictest group decides how many of them a host takes
+        final int maxVmsPerHost = getMaxVmsPerHost(groupIds);
+        final Map<Long, Integer> vmsPerHost = new HashMap<Long, Integer>();
+
+        // the destinations are planned before the placement versions of the affinity groups are read, only their check
+        // and the reservations are made at the versions
+        final Map<VirtualMachineProfile, DeployDestination> destinations = new LinkedHashMap<VirtualMachineProfile, DeployDestination>();
+        final Map<Long, DeployDestination> plannedOnHost = new HashMap<Long, DeployDestination>();
+        for (VirtualMachineProfile vmProfile : batch) {
+            for (Host host : hosts) {
+                long[] capacityLeft = capacitiesLeft.get(host.getId());
+                if (capacityLeft == null || capacityLeft[0] < cpu || capacityLeft[1] < ram) {
+                    continue;
+                }
+                Integer vmsOnHost = vmsPerHost.get(host.getId());
+                if (maxVmsPerHost > 0 && vmsOnHost != null && vmsOnHost >= maxVmsPerHost) {
+                    continue;
+                }
+                DeployDestination planned = plannedOnHost.get(host.getId());
+                DeployDestination dest = planned != null ? packOnHost(vmProfile, planned) : null;
+                if (dest == null) {
+                    dest = planOnHost(vmProfile, host, batchPlanner);
+                }
+                if (dest == null) {
+                    // no storage for the VMs of the batch on the host
+                    capacitiesLeft.remove(host.getId());
+                    continue;
+                }
+                if (planned == null) {
+                    plannedOnHost.put(host.getId(), dest);
+                }
+                destinations.put(vmProfile, dest);
+                vmsPerHost.put(host.getId(), vmsOnHost == null ? 1 : vmsOnHost + 1);
+                capacityLeft[0] -= cpu;
+                capacityLeft[1] -= ram;
+                break;
+            }
+        }
+        checkPoolsOfPackedVms(destinations);
+
+        Map<Long, String> reservations;
+        for (int attempt = 1;; attempt++) {
+            final Map<Long, Long> placementVersions = readPlacementVersions(groupIds);
+            try {
+                reservations = Transaction.execute(new TransactionCallback<Map<Long, String>>() {
+                    @Override
+                    public Map<Long, String> doInTransaction(TransactionStatus status) {
+                        // a VM whose destination breaks its affinity groups is left to be planned on its own
+                        List<VirtualMachineProfile> checked = new ArrayList<VirtualMachineProfile>();
+                        for (Map.Entry<VirtualMachineProfile, DeployDestination> destination : destinations.entrySet()) {
+                            if (checkAffinityGroups(destination.getKey(), destination.getValue(), groupIds)) {
+                                checked.add(destination.getKey());
+                            }
+                        }
+                        if (!checked.isEmpty()) {
+                            updatePlacementVersions(placementVersions);
+                        }
+
+                        Map<Long, String> reservations = new HashMap<Long, String>();
+                        for (VirtualMachineProfile vmProfile : checked) {
+                            reservations.put(vmProfile.getId(), saveReservation(vmProfile.getVirtualMachine(), destinations.get(vmProfile), batchPlanner));
+                        }
+                        return reservations;
+                    }
+                });
+            } catch (ConcurrentOperationException e) {
+                for (VirtualMachineProfile vmProfile : destinations.keySet()) {
+                    _affinityGroupHostIndex.releaseClaims(vmProfile.getId());
+                }
+                if (attempt >= MAX_PLACEMENT_VERSION_ATTEMPTS) {
+                    s_logger.debug("Unable to reserve the destinations of " + batch.size() + " VMs planned together, they will be planned one by one: " + e.getMessage());
+                    return Collections.emptyMap();
+                }
+                s_logger.debug("Checking the destinations of " + batch.size() + " VMs planned together again: " + e.getMessage());
+                continue;
+            }
+            if (!reservations.isEmpty()) {
+                advancePlacementVersions(placementVersions);
+            }
+            break;
+        }
+
+        s_logger.debug("Reserved destinations for " + reservations.size() + " of " + batch.size() + " VMs planned together on " + hosts.size() + " hosts");
+        return reservations;
+    }
+
+    /**
+     * @return the most VMs of the groups that may run on the same host, 0 if the groups do not limit it
+     */
+    private int getMaxVmsPerHost(List<Long> groupIds) {
+        int maxVmsPerHost = 0;
+        for (Long groupId : groupIds) {
+            AffinityGroupVO group = _affinityGroupDao.findById(groupId);
+            if (group == null) {
+                continue;
+            }
+            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                int max = processor.getMaxVmsPerHost();
+                if (group.getType().equals(processor.getType()) && max > 0 && (maxVmsPerHost == 0 || max < maxVmsPerHost)) {
+                    maxVmsPerHost = max;
+                }
+            }
+        }
+        return maxVmsPerHost;
+    }
+
+    /**
+     * Places the VM on the host and pools another VM of the batch was planned on. The VMs of a batch share their
+     * offering and template, so the volumes of the VM are matched to those of the planned VM by type and disk offering.
+     *
+     * @return the destination, or null if the VM has volumes that are already created or do not match those of the
+     * planned VM, in which case the VM is planned on the host on its own
+     */
+    protected DeployDestination packOnHost(VirtualMachineProfile vmProfile, DeployDestination planned) {
+        List<Volume> plannedVolumes = new ArrayList<Volume>(planned.getStorageForDisks().keySet());
+        Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+        for (VolumeVO volume : _volsDao.findUsableVolumesForInstance(vmProfile.getId())) {
+            if (volume.getState() != Volume.State.Allocated) {
+                return null;
+            }
+            Volume match = null;
+            for (Volume plannedVolume : plannedVolumes) {
+                if (plannedVolume.getState() == Volume.State.Allocated && plannedVolume.getVolumeType() == volume.getVolumeType() &&
+                        Objects.equals(plannedVolume.getDiskOfferingId(), volume.getDiskOfferingId())) {
+                    match = plannedVolume;
+                    break;
+                }
+            }
+            if (match == null) {
+                return null;
+            }
+            plannedVolumes.remove(match);
+            storage.put(volume, planned.getStorageForDisks().get(match));
+        }
+        if (!plannedVolumes.isEmpty()) {
+            return null;
+        }
+        return new DeployDestination(planned.getDataCenter(), planned.getPod(), planned.getCluster(), planned.getHost(), storage);
+    }
+
+    /**
+     * Checks each pool for the volumes of all the VMs of the batch placed on it at once, the planned VMs were only
+     * checked on their own and the packed ones not at all. The VMs placed last on a pool that is short of space or IOPS
+     * are dropped from the batch until the rest fits, they are planned on their own.
+     */
+    protected void checkPoolsOfPackedVms(Map<VirtualMachineProfile, DeployDestination> destinations) {
+        Map<Long, StoragePool> pools = new HashMap<Long, StoragePool>();
+        for (DeployDestination dest : destinations.values()) {
+            for (StoragePool pool : dest.getStorageForDisks().values()) {
+                pools.put(pool.getId(), pool);
+            }
+        }
+        for (StoragePool pool : pools.values()) {
+            LinkedHashMap<VirtualMachineProfile, List<Volume>> vmVolumes = new LinkedHashMap<VirtualMachineProfile, List<Volume>>();
+            List<Volume> volumes = new ArrayList<Volume>();
+            Long clusterId = null;
+            for (Map.Entry<VirtualMachineProfile, DeployDestination> destination : destinations.entrySet()) {
+                for (Map.Entry<Volume, StoragePool> volumePool : destination.getValue().getStorageForDisks().entrySet()) {
+                    // volumes already on the pool are counted in its allocation
+                    if (volumePool.getValue().getId() == pool.getId() && volumePool.getKey().getState() == Volume.State.Allocated) {
+                        List<Volume> onPool = vmVolumes.get(destination.getKey());
+                        if (onPool == null) {
+                            onPool = new ArrayList<Volume>();
+                            vmVolumes.put(destination.getKey(), onPool);
+                        }
+                        onPool.add(volumePool.getKey());
+                        volumes.add(volumePool.getKey());
+                        clusterId = destination.getValue().getCluster().getId();
+                    }
+                }
+            }
+            List<VirtualMachineProfile> packed = new ArrayList<VirtualMachineProfile>(vmVolumes.keySet());
+            while (!vmVolumes.isEmpty() && (!_storageMgr.storagePoolHasEnoughIops(volumes, pool) || !_storageMgr.storagePoolHasEnoughSpace(volumes, pool, clusterId))) {
+                VirtualMachineProfile last = packed.remove(packed.size() - 1);
+                volumes.removeAll(vmVolumes.remove(last));
+                destinations.remove(last);
+                s_logger.debug("Pool " + pool.getId() + " is short of space for the VMs packed onto it, " + last + " is planned on its own");
+            }
+        }
+    }
+
+    protected DeployDestination planOnHost(VirtualMachineProfile vmProfile, Host host, DeploymentPlanner planner) {
+        DataCenterDeployment hostPlan = new DataCenterDeployment(host.getDataCenterId(), host.getPodId(), host.getClusterId(), host.getId(), null, null);
+        try {
+            return planDeployment(vmProfile, hostPlan, new ExcludeList(), planner);
+        } catch (InsufficientServerCapacityException | AffinityConflictException e) {
+            s_logger.debug("Unable to plan the deployment of " + vmProfile + " on host " + host.getId() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the placement versions of the groups, in the order of the groups, and refreshes the groups in the host index
+     * at them before the destinations are checked.
+     */
+    private Map<Long, Long> readPlacementVersions(List<Long> groupIds) {
+        Map<Long, Long> placementVersions = new TreeMap<Long, Long>(_affinityGroupDao.listPlacementVersions(groupIds));
+        if (_affinityGroupHostIndex.isEnabled()) {
+            for (Map.Entry<Long, Long> placementVersion : placementVersions.entrySet()) {
+                _affinityGroupHostIndex.refresh(placementVersion.getKey(), placementVersion.getValue());
+            }
+        }
+        return placementVersions;
+    }
+
+    /**
+     * Moves the groups on from the placement versions the destinations were checked at, in the order of the groups so
+     * that two reservations in the same groups do not deadlock.
+     *
+     * @throws ConcurrentOperationException if a reservation was made in one of the groups since, which rolls the
+     * transaction back
+     */
+    private void updatePlacementVersions(Map<Long, Long> placementVersions) {
+        for (Map.Entry<Long, Long> placementVersion : placementVersions.entrySet()) {
+            if (!_affinityGroupDao.updatePlacementVersion(placementVersion.getKey(), placementVersion.getValue())) {
+                throw new ConcurrentOperationException("A reservation was made in affinity group " + placementVersion.getKey() + " since placement version " +
+                        placementVersion.getValue());
+            }
+        }
+    }
+
+    private void advancePlacementVersions(Map<Long, Long> placementVersions) {
+        if (_affinityGroupHostIndex.isEnabled()) {
+            for (Map.Entry<Long, Long> placementVersion : placementVersions.entrySet()) {
+                _affinityGroupHostIndex.advance(placementVersion.getKey(), placementVersion.getValue());
+            }
+        }
+    }
+
+    private boolean checkAffinityGroups(VirtualMachineProfile vmProfile, DeployDestination dest, List<Long> groupIds) {
+        if (groupIds.isEmpty()) {
+            return true;
+        }
+        try {
+            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                if (!processor.check(vmProfile, dest)) {
+                    _affinityGroupHostIndex.releaseClaims(vmProfile.getId());
+                    return false;
+                }
+            }
+        } catch (AffinityConflictException e) {
+            s_logger.debug("Planned destination for " + vmProfile + " conflicts with its affinity groups: " + e.getMessage());
+            _affinityGroupHostIndex.releaseClaims(vmProfile.getId());
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public DeploymentPlanner getDeploymentPlannerByName(String plannerName) {
         if (plannerName != null) {
@@ -1001,6 +1449,11 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
     public boolean start() {
         _timer.schedule(new HostReservationReleaseChecker(), INITIAL_RESERVATION_RELEASE_CHECKER_DELAY, _hostReservationReleasePeriod);
         cleanupVMReservations();
+        try {
+            JmxUtil.registerMBean("DeploymentPlanner", "Latency", _latencyStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the MBean of the planner latencies", e);
+        }
         return true;
     }
 
@@ -1053,6 +1506,7 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
             }
 
             s_logger.debug("Checking resources in Cluster: " + clusterId + " under Pod: " + clusterVO.getPodId());
+            PlanningTrace.note("checking cluster " + clusterId);
             // search for resources(hosts and storage) under this zone, pod,
             // cluster.
             DataCenterDeployment potentialPlan =
@@ -1220,6 +1674,7 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
     protected Pair<Host, Map<Volume, StoragePool>> findPotentialDeploymentResources(List<Host> suitableHosts, Map<Volume, List<StoragePool>> suitableVolumeStoragePools,
             ExcludeList avoid, DeploymentPlanner.PlannerResourceUsage resourceUsageRequired, List<Volume> readyAndReusedVolumes, List<Long> preferredHosts) {
         s_logger.debug("Trying to find a potenial host and associated storage pools from the suitable host/pool lists for this VM");
+        PlanningTrace.Stage stage = PlanningTrace.stage("potentialResources");
 
         boolean hostCanAccessPool = false;
         boolean haveEnoughSpace = false;
@@ -1284,12 +1739,14 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
             if (hostCanAccessPool && haveEnoughSpace && hostAffinityCheck && checkIfHostFitsPlannerUsage(potentialHost.getId(), resourceUsageRequired)) {
                 s_logger.debug("Found a potential host " + "id: " + potentialHost.getId() + " name: " + potentialHost.getName() +
                         " and associated storage pools for this VM");
+                stage.close();
                 return new Pair<Host, Map<Volume, StoragePool>>(potentialHost, storage);
             } else {
                 avoid.addHost(potentialHost.getId());
             }
         }
         s_logger.debug("Could not find a potential host that has associated storage pools from the suitable host/pool lists for this VM");
+        stage.close();
         return null;
     }
 
@@ -1321,11 +1778,14 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     protected List<Host> findSuitableHosts(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
         List<Host> suitableHosts = new ArrayList<Host>();
-        for (HostAllocator allocator : _hostAllocators) {
-            suitableHosts = allocator.allocateTo(vmProfile, plan, Host.Type.Routing, avoid, returnUpTo);
-            if (suitableHosts != null && !suitableHosts.isEmpty()) {
-                break;
+        try (PlanningTrace.Stage stage = PlanningTrace.stage("hostAllocators")) {
+            for (HostAllocator allocator : _hostAllocators) {
+                suitableHosts = allocator.allocateTo(vmProfile, plan, Host.Type.Routing, avoid, returnUpTo);
+                if (suitableHosts != null && !suitableHosts.isEmpty()) {
+                    break;
+                }
             }
+            stage.candidates("host", getIds(suitableHosts));
         }
 
         if (suitableHosts.isEmpty()) {
@@ -1336,6 +1796,7 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     protected Pair<Map<Volume, List<StoragePool>>, List<Volume>> findSuitablePoolsForVolumes(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoid,
             int returnUpTo) {
+        PlanningTrace.Stage stage = PlanningTrace.stage("storagePoolAllocators");
         List<VolumeVO> volumesTobeCreated = _volsDao.findUsableVolumesForInstance(vmProfile.getId());
         Map<Volume, List<StoragePool>> suitableVolumeStoragePools = new HashMap<Volume, List<StoragePool>>();
         List<Volume> readyAndReusedVolumes = new ArrayList<Volume>();
@@ -1507,10 +1968,22 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
         if (suitableVolumeStoragePools.isEmpty()) {
             s_logger.debug("No suitable pools found");
         }
+        stage.candidates("pool", toRemove);
+        stage.close();
 
         return new Pair<Map<Volume, List<StoragePool>>, List<Volume>>(suitableVolumeStoragePools, readyAndReusedVolumes);
     }
 
+    private static List<Long> getIds(List<Host> hosts) {
+        List<Long> ids = new ArrayList<Long>();
+        if (hosts != null) {
+            for (Host host : hosts) {
+                ids.add(host.getId());
+            }
+        }
+        return ids;
+    }
+
     private boolean isEnabledForAllocation(long zoneId, Long podId, Long clusterId) {
         // Check if the zone exists in the system
         DataCenterVO zone = _dcDao.findById(zoneId);
@@ -1552,48 +2025,62 @@ StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
         final VirtualMachine vm = vmProfile.getVirtualMachine();
         final long vmGroupCount = _affinityGroupVMMapDao.countAffinityGroupsForVm(vm.getId());
+        List<Long> groupIds = vmGroupCount > 0 ? _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vm.getId()) : Collections.<Long>emptyList();
 
-        return Transaction.execute(new TransactionCallback<String>() {
-            @Override
-            public String doInTransaction(TransactionStatus status) {
-                boolean saveReservation = true;
-
-                if (vmGroupCount > 0) {
-                    List<Long> groupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vm.getId());
-                    SearchCriteria<AffinityGroupVO> criteria = _affinityGroupDao.createSearchCriteria();
-                    criteria.addAnd("id", SearchCriteria.Op.IN, groupIds.toArray(new Object[groupIds.size()]));
-                    _affinityGroupDao.lockRows(criteria, null, true);
-
-                    for (AffinityGroupProcessor processor : _affinityProcessors) {
-                        if (!processor.check(vmProfile, plannedDestination)) {
-                            saveReservation = false;
-                            break;
+        for (int attempt = 1;; attempt++) {
+            final Map<Long, Long> placementVersions = readPlacementVersions(groupIds);
+            String reservationId;
+            try {
+                reservationId = Transaction.execute(new TransactionCallback<String>() {
+                    @Override
+                    public String doInTransaction(TransactionStatus status) {
+                        if (vmGroupCount > 0) {
+                            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                                if (!processor.check(vmProfile, plannedDestination)) {
+                                    return null;
+                                }
+                            }
+                            updatePlacementVersions(placementVersions);
                         }
+                        return saveReservation(vm, plannedDestination, planner);
                     }
+                });
+            } catch (ConcurrentOperationException e) {
+                _affinityGroupHostIndex.releaseClaims(vm.getId());
+                if (attempt >= MAX_PLACEMENT_VERSION_ATTEMPTS) {
+                    s_logger.debug("Unable to reserve the planned destination for " + vmProfile + ": " + e.getMessage());
+                    return null;
                 }
+                s_logger.debug("Checking the planned destination for " + vmProfile + " again: " + e.getMessage());
+                continue;
+            }
 
-                if (saveReservation) {
-                    VMReservationVO vmReservation =
-                            new VMReservationVO(vm.getId(), plannedDestination.getDataCenter().getId(), plannedDestination.getPod().getId(), plannedDestination.getCluster()
-                                    .getId(), plannedDestination.getHost().getId());
-                    if (planner != null) {
-                        vmReservation.setDeploymentPlanner(planner.getName());
-                    }
-                    Map<Long, Long> volumeReservationMap = new HashMap<Long, Long>();
+            if (reservationId == null) {
+                _affinityGroupHostIndex.releaseClaims(vm.getId());
+            } else {
+                advancePlacementVersions(placementVersions);
+            }
+            return reservationId;
+        }
+    }
 
-                    if (vm.getHypervisorType() != HypervisorType.BareMetal) {
-                        for (Volume vo : plannedDestination.getStorageForDisks().keySet()) {
-                            volumeReservationMap.put(vo.getId(), plannedDestination.getStorageForDisks().get(vo).getId());
-                        }
-                        vmReservation.setVolumeReservation(volumeReservationMap);
-                    }
-                    _reservationDao.persist(vmReservation);
-                    return vmReservation.getUuid();
-                }
+    private String saveReservation(VirtualMachine vm, DeployDestination plannedDestination, DeploymentPlanner planner) {
+        VMReservationVO vmReservation =
+                new VMReservationVO(vm.getId(), plannedDestination.getDataCenter().getId(), plannedDestination.getPod().getId(), plannedDestination.getCluster()
+                        .getId(), plannedDestination.getHost().getId());
+        if (planner != null) {
+            vmReservation.setDeploymentPlanner(planner.getName());
+        }
+        Map<Long, Long> volumeReservationMap = new HashMap<Long, Long>();
 
-                return null;
+        if (vm.getHypervisorType() != HypervisorType.BareMetal) {
+            for (Volume vo : plannedDestination.getStorageForDisks().keySet()) {
+                volumeReservationMap.put(vo.getId(), plannedDestination.getStorageForDisks().get(vo).getId());
             }
-        });
+            vmReservation.setVolumeReservation(volumeReservationMap);
+        }
+        _reservationDao.persist(vmReservation);
+        return vmReservation.getUuid();
     }
 
     @Override
@@ -35,6 +35,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -104,6 +105,8 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
     @Inject
     protected CapacityDao capacityDao;
     @Inject
+    protected HostCapacityIndex capacityIndex;
+    @Inject
     protected AccountManager accountMgr;
     @Inject
     protected StorageManager storageMgr;
@@ -470,6 +473,14 @@ public class FirstFitPlanner extends AdapterBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
+        if (capacityIndex.isComplete()) {
+            Pair<List<Long>, Map<Long, Double>> result = capacityIndex.orderClustersByCapacity(id, isZone, requiredCpu, requiredRam, capacityType);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("ClusterId List from the capacity index having enough CPU and RAM capacity & in order of aggregate capacity: " + result.first());
+            }
+            return result;
+        }
+
         List<Long> clusterIdswithEnoughCapacity = capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
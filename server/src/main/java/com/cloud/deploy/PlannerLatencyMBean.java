@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+public interface PlannerLatencyMBean {
+    /**
+     * @return the deployments planned, whether a destination was found or not
+     */
+    long getPlans();
+
+    /**
+     * @return the plannings that did not find a destination
+     */
+    long getPlansWithoutDestination();
+
+    /**
+     * @return the plannings that failed with an exception
+     */
+    long getFailedPlans();
+
+    /**
+     * @return per stage of the planning, how often it took less than 1, 5, 10, 50, 100, 500, 1000 and 5000 ms and longer
+     */
+    String[] getStageLatencies();
+
+    /**
+     * @return per stage of the planning, the statements it prepared on the database on average
+     */
+    String[] getStageStatements();
+}
@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.StandardMBean;
+
+/**
+ * Latency histograms of the stages of the deployment planning, aggregated from the {@link PlanningTrace}s and
+ * exposed over JMX.
+ */
+public class PlannerLatencyStats extends StandardMBean implements PlannerLatencyMBean {
+    static final long[] BUCKET_BOUNDS_MS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    static class StageLatency {
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _totalNanos = new AtomicLong();
+        private final AtomicLong _statements = new AtomicLong();
+
+        void record(long elapsedNanos, long statements) {
+            long elapsedMs = elapsedNanos / 1000000L;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && elapsedMs >= BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            _buckets.incrementAndGet(bucket);
+            _count.incrementAndGet();
+            _totalNanos.addAndGet(elapsedNanos);
+            _statements.addAndGet(statements);
+        }
+
+        long getCount() {
+            return _count.get();
+        }
+
+        long getBucket(int bucket) {
+            return _buckets.get(bucket);
+        }
+
+        long getStatements() {
+            return _statements.get();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < _buckets.length(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(i < BUCKET_BOUNDS_MS.length ? "<" + BUCKET_BOUNDS_MS[i] : ">=" + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1]).append("ms: ").append(_buckets.get(i));
+            }
+            long count = _count.get();
+            return sb.append(", avg: ").append(count == 0 ? 0 : _totalNanos.get() / count / 1000000L).append("ms").toString();
+        }
+    }
+
+    private final Map<String, StageLatency> _stages = new ConcurrentSkipListMap<String, StageLatency>();
+    private final AtomicLong _plans = new AtomicLong();
+    private final AtomicLong _withoutDestination = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    public PlannerLatencyStats() {
+        super(PlannerLatencyMBean.class, false);
+    }
+
+    void record(PlanningTrace trace, boolean found, boolean failed) {
+        _plans.incrementAndGet();
+        if (failed) {
+            _failed.incrementAndGet();
+        } else if (!found) {
+            _withoutDestination.incrementAndGet();
+        }
+        for (PlanningTrace.Stage stage : trace.getStages()) {
+            StageLatency latency = _stages.get(stage.getName());
+            if (latency == null) {
+                _stages.putIfAbsent(stage.getName(), new StageLatency());
+                latency = _stages.get(stage.getName());
+            }
+            latency.record(stage.getElapsedNanos(), stage.getStatements());
+        }
+    }
+
+    StageLatency getStageLatency(String stage) {
+        return _stages.get(stage);
+    }
+
+    @Override
+    public long getPlans() {
+        return _plans.get();
+    }
+
+    @Override
+    public long getPlansWithoutDestination() {
+        return _withoutDestination.get();
+    }
+
+    @Override
+    public long getFailedPlans() {
+        return _failed.get();
+    }
+
+    @Override
+    public String[] getStageLatencies() {
+        List<String> latencies = new ArrayList<String>();
+        for (Map.Entry<String, StageLatency> entry : _stages.entrySet()) {
+            latencies.add(entry.getKey() + " (" + entry.getValue().getCount() + "): " + entry.getValue());
+        }
+        return latencies.toArray(new String[latencies.size()]);
+    }
+
+    @Override
+    public String[] getStageStatements() {
+        List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, StageLatency> entry : _stages.entrySet()) {
+            long count = entry.getValue().getCount();
+            statements.add(entry.getKey() + ": " + (count == 0 ? 0 : entry.getValue().getStatements() / count));
+        }
+        return statements.toArray(new String[statements.size()]);
+    }
+}
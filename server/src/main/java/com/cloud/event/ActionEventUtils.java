@@ -27,6 +27,7 @@ import javax.inject.Inject;
 
 import com.cloud.utils.ReflectUtil;
 import com.cloud.utils.db.EntityManager;
+import com.cloud.utils.db.TransactionLegacy;
 import org.apache.cloudstack.api.Identity;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
@@ -35,6 +36,8 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 
 import com.cloud.configuration.Config;
 import com.cloud.event.dao.EventDao;
@@ -58,6 +61,7 @@ public class ActionEventUtils {
     protected static EventBus s_eventBus = null;
     protected static EntityManager s_entityMgr;
     protected static ConfigurationDao s_configDao;
+    protected static MessageBus s_messageBus;
 
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
@@ -77,6 +81,8 @@ public class ActionEventUtils {
     EntityManager entityMgr;
     @Inject
     ConfigurationDao configDao;
+    @Inject
+    MessageBus messageBus;
 
     public ActionEventUtils() {
     }
@@ -89,11 +95,13 @@ public class ActionEventUtils {
         s_projectDao = projectDao;
         s_entityMgr = entityMgr;
         s_configDao = configDao;
+        s_messageBus = messageBus;
     }
 
     public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
 
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Completed, description);
+        publishOnMessageBus(type);
 
         Event event = persistActionEvent(userId, accountId, domainId, null, type, Event.State.Completed, true, description, null);
 
@@ -146,6 +154,7 @@ public class ActionEventUtils {
 
     public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type, boolean eventDisplayEnabled, String description, long startEventId) {
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Completed, description);
+        publishOnMessageBus(type);
 
         Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Completed, eventDisplayEnabled, description, startEventId);
 
@@ -156,6 +165,7 @@ public class ActionEventUtils {
     public static Long onCreatedActionEvent(Long userId, Long accountId, String level, String type, boolean eventDisplayEnabled, String description) {
 
         publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type, com.cloud.event.Event.State.Created, description);
+        publishOnMessageBus(type);
 
         Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Created, eventDisplayEnabled, description, null);
 
@@ -187,6 +197,22 @@ public class ActionEventUtils {
         return event;
     }
 
+    /**
+     * Tells the local components caching entities that the entity of the event changed, once the transaction the event
+     * is raised in is over, so that they do not cache the entity again before the change is visible.
+     */
+    private static void publishOnMessageBus(String eventType) {
+        final Class<?> entityClass = EventTypes.getEntityClassForEvent(eventType);
+        if (entityClass != null && s_messageBus != null) {
+            TransactionLegacy.runAfterCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    s_messageBus.publish(ActionEventUtils.class.getSimpleName(), EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, PublishScope.LOCAL, entityClass.getName());
+                }
+            });
+        }
+    }
+
     private static void publishOnEventBus(long userId, long accountId, String eventCategory, String eventType, Event.State state, String description) {
         String configKey = Config.PublishActionEvent.key();
         String value = s_configDao.getValue(configKey);
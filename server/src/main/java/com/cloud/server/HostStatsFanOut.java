@@ -0,0 +1,190 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.host.HostVO;
+
+/**
+ * Sends the same blocking stats call to many hosts at once. At most as many hosts as the executor has threads are
+ * queried at the same time and a cycle never takes longer than its deadline: the hosts that did not answer by then
+ * are skipped and the cycle goes on with the answers it got.
+ */
+public class HostStatsFanOut {
+    private static final Logger s_logger = Logger.getLogger(HostStatsFanOut.class);
+
+    public interface HostCall<T> {
+        /**
+         * @return the stats of the host, or null if there are none
+         */
+        T call(HostVO host) throws Exception;
+    }
+
+    /**
+     * What the last cycle of a collector took.
+     */
+    public static class CycleStats {
+        private final AtomicLong cycles = new AtomicLong();
+        private final AtomicLong hostsSkipped = new AtomicLong();
+        private final AtomicLong hostsFailed = new AtomicLong();
+        private volatile long lastDuration;
+        private volatile int lastHosts;
+        private volatile int lastHostsSkipped;
+        private final ConcurrentMap<Long, Long> hostLatencies = new ConcurrentHashMap<Long, Long>();
+
+        public long getCycles() {
+            return cycles.get();
+        }
+
+        /**
+         * @return the number of hosts skipped because they did not answer before the deadline, over all cycles
+         */
+        public long getHostsSkipped() {
+            return hostsSkipped.get();
+        }
+
+        public long getHostsFailed() {
+            return hostsFailed.get();
+        }
+
+        public long getLastDuration() {
+            return lastDuration;
+        }
+
+        public int getLastHosts() {
+            return lastHosts;
+        }
+
+        public int getLastHostsSkipped() {
+            return lastHostsSkipped;
+        }
+
+        /**
+         * @return milliseconds each host of the last cycle took to answer in the last cycle it answered in, the hosts
+         *         that are no longer called are dropped
+         */
+        public Map<Long, Long> getHostLatencies() {
+            return new HashMap<Long, Long>(hostLatencies);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, CycleStats> stats = new ConcurrentHashMap<String, CycleStats>();
+
+    public HostStatsFanOut(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private CycleStats cycleStats(String collector) {
+        CycleStats cycleStats = stats.get(collector);
+        if (cycleStats == null) {
+            stats.putIfAbsent(collector, new CycleStats());
+            cycleStats = stats.get(collector);
+        }
+        return cycleStats;
+    }
+
+    public Map<String, CycleStats> getStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Calls every host and waits for the answers until the deadline.
+     *
+     * @return the stats by host id, in the order of the hosts, of the hosts that answered in time
+     */
+    public <T> Map<Long, T> collect(final String collector, List<HostVO> hosts, long deadlineMs, final HostCall<T> call) {
+        final CycleStats cycleStats = cycleStats(collector);
+        final long start = System.nanoTime();
+        final ConcurrentMap<Long, T> answers = new ConcurrentHashMap<Long, T>();
+        final Set<Long> finished = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final CountDownLatch answered = new CountDownLatch(hosts.size());
+        final Map<Long, Future<?>> calls = new LinkedHashMap<Long, Future<?>>();
+
+        for (final HostVO host : hosts) {
+            calls.put(host.getId(), executor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    long callStart = System.nanoTime();
+                    try {
+                        T answer = call.call(host);
+                        if (answer != null) {
+                            answers.put(host.getId(), answer);
+                        }
+                        cycleStats.hostLatencies.put(host.getId(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callStart));
+                    } catch (Exception e) {
+                        cycleStats.hostsFailed.incrementAndGet();
+                        s_logger.debug(collector + " failed to get the stats of host " + host.getId() + ": " + e.getMessage());
+                    } finally {
+                        finished.add(host.getId());
+                        answered.countDown();
+                    }
+                }
+            }));
+        }
+
+        try {
+            answered.await(deadlineMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Long> skipped = new ArrayList<Long>();
+        Map<Long, T> result = new LinkedHashMap<Long, T>();
+        for (Map.Entry<Long, Future<?>> hostCall : calls.entrySet()) {
+            long hostId = hostCall.getKey();
+            if (!finished.contains(hostId)) {
+                hostCall.getValue().cancel(true);
+                skipped.add(hostId);
+            } else if (answers.containsKey(hostId)) {
+                result.put(hostId, answers.get(hostId));
+            }
+        }
+
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        cycleStats.hostLatencies.keySet().retainAll(calls.keySet());
+        cycleStats.cycles.incrementAndGet();
+        cycleStats.hostsSkipped.addAndGet(skipped.size());
+        cycleStats.lastDuration = duration;
+        cycleStats.lastHosts = hosts.size();
+        cycleStats.lastHostsSkipped = skipped.size();
+        if (!skipped.isEmpty()) {
+            s_logger.warn(collector + " skipped hosts " + skipped + " as they did not answer within " + deadlineMs + " ms");
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(collector + " got the stats of " + result.size() + " of " + hosts.size() + " hosts in " + duration + " ms");
+        }
+        return result;
+    }
+}
@@ -21,6 +21,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -28,9 +29,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -45,18 +48,15 @@ import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.apache.cloudstack.utils.graphite.GraphiteClient;
-import org.apache.cloudstack.utils.graphite.GraphiteException;
 import org.apache.cloudstack.utils.usage.UsageUtils;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.influxdb.BatchOptions;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
 import org.influxdb.dto.BatchPoints;
 import org.influxdb.dto.Point;
-import org.influxdb.dto.Pong;
 import org.springframework.stereotype.Component;
 
 import com.cloud.agent.AgentManager;
@@ -147,7 +147,7 @@ import com.cloud.vm.dao.VMInstanceDao;
  *
  */
 @Component
-public class StatsCollector extends ManagerBase implements ComponentMethodInterceptable, Configurable {
+public class StatsCollector extends ManagerBase implements ComponentMethodInterceptable, Configurable, StatsCollectorMBean {
 
     public static enum ExternalStatsProtocol {
         NONE("none"), GRAPHITE("graphite"), INFLUXDB("influxdb");
@@ -163,8 +163,25 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
     }
 
+    /**
+     * Metrics of the VM stats history, in the order of the values of its samples.
+     */
+    public static enum VmHistoryMetric {
+        CPU_UTILIZATION, NETWORK_READ_KBS, NETWORK_WRITE_KBS, DISK_READ_KBS, DISK_WRITE_KBS, DISK_READ_IOPS, DISK_WRITE_IOPS, MEMORY_INTERNAL_FREE_KBS
+    }
+
+    /**
+     * Metrics of the host stats history, in the order of the values of its samples.
+     */
+    public static enum HostHistoryMetric {
+        CPU_UTILIZATION, FREE_MEMORY_KBS, NETWORK_READ_KBS, NETWORK_WRITE_KBS
+    }
+
     public static final Logger s_logger = Logger.getLogger(StatsCollector.class.getName());
 
+    private static final int VM_HISTORY_METRICS = VmHistoryMetric.values().length;
+    private static final int HOST_HISTORY_METRICS = HostHistoryMetric.values().length;
+
     private static final int UNDEFINED_PORT_VALUE = -1;
 
     /**
@@ -209,12 +226,28 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             "The timeout for stats call in milli seconds.", true,
             ConfigKey.Scope.Cluster);
     private static final ConfigKey<String> statsOutputUri = new ConfigKey<String>("Advanced", String.class, "stats.output.uri", "",
-            "URI to send StatsCollector statistics to. The collector is defined on the URI scheme. Example: graphite://graphite-hostaddress:port or influxdb://influxdb-hostaddress/dbname. Note that the port is optional, if not added the default port for the respective collector (graphite or influxdb) will be used. Additionally, the database name '/dbname' is  also optional; default db name is 'cloudstack'. You must create and configure the database if using influxdb.",
+            "URI to send StatsCollector statistics to. The collector is defined on the URI scheme. Example: graphite://graphite-hostaddress:port, graphite://graphite-hostaddress:port?transport=tcp to send over TCP instead of UDP, or influxdb://influxdb-hostaddress/dbname. Note that the port is optional, if not added the default port for the respective collector (graphite or influxdb) will be used. Additionally, the database name '/dbname' is  also optional; default db name is 'cloudstack'. You must create and configure the database if using influxdb.",
             true);
+    private static final ConfigKey<Integer> statsHostParallelism = new ConfigKey<Integer>("Advanced", Integer.class, "stats.host.parallelism", "16",
+            "Number of hosts the host and VM stats are collected from at the same time. Hosts that do not answer within the collection interval are skipped for that interval.",
+            false);
+    private static final ConfigKey<Integer> statsOutputBufferSize = new ConfigKey<Integer>("Advanced", Integer.class, "stats.output.buffer.size", "100000",
+            "Number of stats queued at most to be sent to the stats.output.uri host. The stats collected while the queue is full are dropped.", false);
+    private static final ConfigKey<Integer> statsOutputBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "stats.output.batch.size", "1000",
+            "Number of stats sent at once at most to the stats.output.uri host.", false);
+    private static final ConfigKey<Integer> statsOutputFlushInterval = new ConfigKey<Integer>("Advanced", Integer.class, "stats.output.flush.interval", "1000",
+            "Milliseconds the stats wait at most for a batch to fill up before they are sent to the stats.output.uri host.", false);
+    // StatsHistory.bytesPerEntity is 6968 bytes for a VM and 4088 for a host, the default covers 100k VMs on 5000 hosts
+    static final ConfigKey<Integer> statsHistoryMemory = new ConfigKey<Integer>("Advanced", Integer.class, "stats.history.memory", "700",
+            "Memory in MiB used at most to keep the history of the host and VM stats of the last two days, about 6.8 KiB per VM and 4 KiB per host, " +
+            "the default is enough for 100000 VMs. Only the memory of the VMs and hosts recorded is used. The stats of the VMs beyond it are not kept, 0 disables the history.",
+            false);
 
     private static StatsCollector s_instance = null;
 
     private ScheduledExecutorService _executor = null;
+    private ExecutorService _hostStatsExecutor = null;
+    private HostStatsFanOut hostStatsFanOut;
     @Inject
     private AgentManager _agentMgr;
     @Inject
@@ -281,6 +314,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private final Map<String, VolumeStats> _volumeStats = new ConcurrentHashMap<String, VolumeStats>();
     private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
     private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+    private StatsHistory vmStatsHistory;
+    private StatsHistory hostStatsHistory;
 
     private long hostStatsInterval = -1L;
     private long hostAndVmStatsInterval = -1L;
@@ -295,6 +330,9 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     int externalStatsPort = -1;
     private String externalStatsScheme;
     ExternalStatsProtocol externalStatsType = ExternalStatsProtocol.NONE;
+    private boolean externalStatsTcp = false;
+    private StatsExporter<String> graphiteExporter;
+    private StatsExporter<Point> influxDbExporter;
     private String databaseName = DEFAULT_DATABASE_NAME;
 
     private ScheduledExecutorService _diskStatsUpdateExecutor;
@@ -325,8 +363,36 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return true;
     }
 
+    @Override
+    public boolean stop() {
+        // the executors are only created once the collector has started
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        if (_hostStatsExecutor != null) {
+            _hostStatsExecutor.shutdownNow();
+        }
+        if (_diskStatsUpdateExecutor != null) {
+            _diskStatsUpdateExecutor.shutdownNow();
+        }
+        if (graphiteExporter != null) {
+            graphiteExporter.close();
+        }
+        if (influxDbExporter != null) {
+            influxDbExporter.close();
+        }
+        return true;
+    }
+
     protected void init(Map<String, String> configs) {
         _executor = Executors.newScheduledThreadPool(6, new NamedThreadFactory("StatsCollector"));
+        _hostStatsExecutor = Executors.newFixedThreadPool(statsHostParallelism.value(), new NamedThreadFactory("StatsCollector-Host"));
+        hostStatsFanOut = new HostStatsFanOut(_hostStatsExecutor);
+
+        AtomicLong statsHistoryBudget = new AtomicLong(statsHistoryMemory.value() * 1024L * 1024L);
+        vmStatsHistory = new StatsHistory(VM_HISTORY_METRICS, statsHistoryBudget);
+        hostStatsHistory = new StatsHistory(HOST_HISTORY_METRICS, statsHistoryBudget);
+        _executor.scheduleWithFixedDelay(new StatsHistoryCleaner(), 1L, 1L, TimeUnit.HOURS);
 
         hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
         hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
@@ -365,6 +431,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                     externalStatsPrefix = "";
                 }
 
+                externalStatsTcp = "transport=tcp".equalsIgnoreCase(uri.getQuery());
+                createExternalStatsExporter();
             } catch (URISyntaxException e) {
                 s_logger.error("Failed to parse external statistics URI: ", e);
             }
@@ -459,6 +527,51 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     }
 
+    /**
+     * Creates the exporter sending the stats to the external stats host, which keeps its connection open between sends.
+     */
+    private void createExternalStatsExporter() {
+        if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+            final GraphiteClient graphiteClient = new GraphiteClient(externalStatsHost, externalStatsPort, externalStatsTcp);
+            graphiteExporter = new StatsExporter<String>("StatsExporter-Graphite", new StatsExporter.Sink<String>() {
+                @Override
+                public void write(List<String> batch) {
+                    graphiteClient.sendLines(batch);
+                }
+
+                @Override
+                public void close() {
+                    graphiteClient.close();
+                }
+            }, statsOutputBufferSize.value(), statsOutputBatchSize.value(), statsOutputFlushInterval.value());
+        } else if (externalStatsType == ExternalStatsProtocol.INFLUXDB) {
+            influxDbExporter = new StatsExporter<Point>("StatsExporter-InfluxDB", new StatsExporter.Sink<Point>() {
+                private InfluxDB influxDbConnection;
+
+                @Override
+                public void write(List<Point> batch) {
+                    if (influxDbConnection == null) {
+                        influxDbConnection = createInfluxDbConnection();
+                    }
+                    try {
+                        writeBatches(influxDbConnection, databaseName, batch);
+                    } catch (RuntimeException e) {
+                        close();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    if (influxDbConnection != null) {
+                        influxDbConnection.close();
+                        influxDbConnection = null;
+                    }
+                }
+            }, statsOutputBufferSize.value(), statsOutputBatchSize.value(), statsOutputFlushInterval.value());
+        }
+    }
+
     /**
      * Configures the database name according to the URI path. For instance, if the URI is as influxdb://address:port/dbname, the database name will be 'dbname'.
      */
@@ -505,8 +618,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 Map<Object, Object> metrics = new HashMap<>();
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
+                Map<Long, HostStats> hostStatsById = hostStatsFanOut.collect("HostCollector", hosts, hostStatsInterval, new HostStatsFanOut.HostCall<HostStats>() {
+                    @Override
+                    public HostStats call(HostVO host) {
+                        return _resourceMgr.getHostStatistics(host.getId());
+                    }
+                });
                 for (HostVO host : hosts) {
-                    HostStatsEntry hostStatsEntry = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                    HostStatsEntry hostStatsEntry = (HostStatsEntry)hostStatsById.get(host.getId());
                     if (hostStatsEntry != null) {
                         hostStatsEntry.setHostVo(host);
                         metrics.put(hostStatsEntry.getHostId(), hostStatsEntry);
@@ -515,6 +634,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         s_logger.warn("The Host stats is null for host: " + host.getId());
                     }
                 }
+                recordHostStatsHistory(hostStatsById);
 
                 if (externalStatsType == ExternalStatsProtocol.INFLUXDB) {
                     sendMetricsToInfluxdb(metrics);
@@ -526,6 +646,20 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             }
         }
 
+        private final double[] sample = new double[HOST_HISTORY_METRICS];
+
+        private void recordHostStatsHistory(Map<Long, HostStats> hostStatsById) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, HostStats> entry : hostStatsById.entrySet()) {
+                HostStats hostStats = entry.getValue();
+                sample[HostHistoryMetric.CPU_UTILIZATION.ordinal()] = hostStats.getCpuUtilization();
+                sample[HostHistoryMetric.FREE_MEMORY_KBS.ordinal()] = hostStats.getFreeMemoryKBs();
+                sample[HostHistoryMetric.NETWORK_READ_KBS.ordinal()] = hostStats.getNetworkReadKBs();
+                sample[HostHistoryMetric.NETWORK_WRITE_KBS.ordinal()] = hostStats.getNetworkWriteKBs();
+                hostStatsHistory.record(entry.getKey(), now, sample);
+            }
+        }
+
         /**
          * Updates GPU details on hosts supporting GPU.
          */
@@ -555,6 +689,20 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     }
 
     class VmStatsCollector extends AbstractStatsCollector {
+        private final double[] sample = new double[VM_HISTORY_METRICS];
+
+        private void recordVmStatsHistory(Long vmId, long now, VmStatsEntry vmStats) {
+            sample[VmHistoryMetric.CPU_UTILIZATION.ordinal()] = vmStats.getCPUUtilization();
+            sample[VmHistoryMetric.NETWORK_READ_KBS.ordinal()] = vmStats.getNetworkReadKBs();
+            sample[VmHistoryMetric.NETWORK_WRITE_KBS.ordinal()] = vmStats.getNetworkWriteKBs();
+            sample[VmHistoryMetric.DISK_READ_KBS.ordinal()] = vmStats.getDiskReadKBs();
+            sample[VmHistoryMetric.DISK_WRITE_KBS.ordinal()] = vmStats.getDiskWriteKBs();
+            sample[VmHistoryMetric.DISK_READ_IOPS.ordinal()] = vmStats.getDiskReadIOs();
+            sample[VmHistoryMetric.DISK_WRITE_IOPS.ordinal()] = vmStats.getDiskWriteIOs();
+            sample[VmHistoryMetric.MEMORY_INTERNAL_FREE_KBS.ordinal()] = vmStats.getIntFreeMemoryKBs();
+            vmStatsHistory.record(vmId, now, sample);
+        }
+
         @Override
         protected void runInContext() {
             try {
@@ -565,16 +713,18 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
                 Map<Object, Object> metrics = new HashMap<>();
 
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
-
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
-                    }
+                Map<Long, HashMap<Long, VmStatsEntry>> vmStatsByHost = hostStatsFanOut.collect("VmStatsCollector", hosts, hostAndVmStatsInterval,
+                        new HostStatsFanOut.HostCall<HashMap<Long, VmStatsEntry>>() {
+                            @Override
+                            public HashMap<Long, VmStatsEntry> call(HostVO host) {
+                                return _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), listRunningVmIds(host, false));
+                            }
+                        });
 
+                long now = System.currentTimeMillis();
+                for (HostVO host : hosts) {
                     try {
-                        Map<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+                        Map<Long, VmStatsEntry> vmStatsById = vmStatsByHost.get(host.getId());
 
                         if (vmStatsById != null) {
                             Set<Long> vmIdSet = vmStatsById.keySet();
@@ -585,6 +735,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                 statsForCurrentIteration.setUserVmVO(userVmVo);
 
                                 storeVirtualMachineStatsInMemory(statsForCurrentIteration);
+                                recordVmStatsHistory(vmId, now, statsForCurrentIteration);
 
                                 if (externalStatsType == ExternalStatsProtocol.GRAPHITE) {
                                     prepareVmMetricsForGraphite(metrics, statsForCurrentIteration);
@@ -620,10 +771,47 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
     }
 
+    /**
+     * @return the ids of the VMs running on the host, of the user VMs only if userVmsOnly is true
+     */
+    private List<Long> listRunningVmIds(HostVO host, boolean userVmsOnly) {
+        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+        List<Long> vmIds = new ArrayList<Long>();
+
+        for (UserVmVO vm : vms) {
+            if (!userVmsOnly || vm.getType() == VirtualMachine.Type.User)
+                vmIds.add(vm.getId());
+        }
+        return vmIds;
+    }
+
     public VmStats getVmStats(long id) {
         return _VmStats.get(id);
     }
 
+    /**
+     * @return the history of the VM stats, the values of its samples are in the order of {@link VmHistoryMetric}
+     */
+    public StatsHistory getVmStatsHistory() {
+        return vmStatsHistory;
+    }
+
+    /**
+     * @return the history of the host stats, the values of its samples are in the order of {@link HostHistoryMetric}
+     */
+    public StatsHistory getHostStatsHistory() {
+        return hostStatsHistory;
+    }
+
+    class StatsHistoryCleaner extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            long now = System.currentTimeMillis();
+            vmStatsHistory.removeStale(now);
+            hostStatsHistory.removeStale(now);
+        }
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -684,115 +872,121 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             // collect the vm disk statistics(total) from hypervisor. added by weizhou, 2013.03.
             s_logger.trace("Running VM disk stats ...");
             try {
-                Transaction.execute(new TransactionCallbackNoReturn() {
-                    @Override
-                    public void doInTransactionWithoutResult(TransactionStatus status) {
-                        s_logger.debug("VmDiskStatsTask is running...");
-
-                        SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
-                        sc.addAnd("hypervisorType", SearchCriteria.Op.IN, HypervisorType.KVM, HypervisorType.VMware);
-                        List<HostVO> hosts = _hostDao.search(sc, null);
+                s_logger.debug("VmDiskStatsTask is running...");
 
-                        for (HostVO host : hosts) {
-                            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                            List<Long> vmIds = new ArrayList<Long>();
+                SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
+                sc.addAnd("hypervisorType", SearchCriteria.Op.IN, HypervisorType.KVM, HypervisorType.VMware);
+                List<HostVO> hosts = _hostDao.search(sc, null);
 
-                            for (UserVmVO  vm : vms) {
-                                if (vm.getType() == VirtualMachine.Type.User) // user vm
-                                    vmIds.add(vm.getId());
+                long interval = TimeUnit.SECONDS.toMillis(Math.max(vmDiskStatsInterval.value(), vmDiskStatsIntervalMin.value()));
+                Map<Long, HashMap<Long, List<VmDiskStatsEntry>>> vmDiskStatsByHost = hostStatsFanOut.collect("VmDiskStatsTask", hosts, interval,
+                        new HostStatsFanOut.HostCall<HashMap<Long, List<VmDiskStatsEntry>>>() {
+                            @Override
+                            public HashMap<Long, List<VmDiskStatsEntry>> call(HostVO host) {
+                                return _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), listRunningVmIds(host, true));
                             }
+                        });
 
-                            HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById = _userVmMgr.getVmDiskStatistics(host.getId(), host.getName(), vmIds);
-                            if (vmDiskStatsById == null)
-                                continue;
-
-                            Set<Long> vmIdSet = vmDiskStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
-                                if (vmDiskStats == null)
-                                    continue;
-                                UserVmVO userVm = _userVmDao.findById(vmId);
-                                for (VmDiskStatsEntry vmDiskStat : vmDiskStats) {
-                                    SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
-                                    sc_volume.addAnd("path", SearchCriteria.Op.EQ, vmDiskStat.getPath());
-                                    List<VolumeVO> volumes = _volsDao.search(sc_volume, null);
-
-                                    if (CollectionUtils.isEmpty(volumes))
-                                        break;
-
-                                    VolumeVO volume = volumes.get(0);
-                                    VmDiskStatisticsVO previousVmDiskStats = _vmDiskStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
-                                    VmDiskStatisticsVO vmDiskStat_lock = _vmDiskStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+                for (final HostVO host : hosts) {
+                    final HashMap<Long, List<VmDiskStatsEntry>> vmDiskStatsById = vmDiskStatsByHost.get(host.getId());
+                    if (vmDiskStatsById == null)
+                        continue;
 
-                                    if (areAllDiskStatsZero(vmDiskStat)) {
-                                        s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
+                    // the stats of each host are stored in a transaction of their own, none is open while waiting for the hosts
+                    try {
+                        Transaction.execute(new TransactionCallbackNoReturn() {
+                            @Override
+                            public void doInTransactionWithoutResult(TransactionStatus status) {
+                                Set<Long> vmIdSet = vmDiskStatsById.keySet();
+                                for (Long vmId : vmIdSet) {
+                                    List<VmDiskStatsEntry> vmDiskStats = vmDiskStatsById.get(vmId);
+                                    if (vmDiskStats == null)
                                         continue;
-                                    }
+                                    UserVmVO userVm = _userVmDao.findById(vmId);
+                                    for (VmDiskStatsEntry vmDiskStat : vmDiskStats) {
+                                        SearchCriteria<VolumeVO> sc_volume = _volsDao.createSearchCriteria();
+                                        sc_volume.addAnd("path", SearchCriteria.Op.EQ, vmDiskStat.getPath());
+                                        List<VolumeVO> volumes = _volsDao.search(sc_volume, null);
+
+                                        if (CollectionUtils.isEmpty(volumes))
+                                            break;
+
+                                        VolumeVO volume = volumes.get(0);
+                                        VmDiskStatisticsVO previousVmDiskStats = _vmDiskStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+                                        VmDiskStatisticsVO vmDiskStat_lock = _vmDiskStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), vmId, volume.getId());
+
+                                        if (areAllDiskStatsZero(vmDiskStat)) {
+                                            s_logger.debug("IO/bytes read and write are all 0. Not updating vm_disk_statistics");
+                                            continue;
+                                        }
 
-                                    if (vmDiskStat_lock == null) {
-                                        s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
-                                                + " and volumeId:" + volume.getId());
-                                        continue;
-                                    }
+                                        if (vmDiskStat_lock == null) {
+                                            s_logger.warn("unable to find vm disk stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
+                                                    + " and volumeId:" + volume.getId());
+                                            continue;
+                                        }
 
-                                    if (isCurrentVmDiskStatsDifferentFromPrevious(previousVmDiskStats, vmDiskStat_lock)) {
-                                        s_logger.debug("vm disk stats changed from the time GetVmDiskStatsCommand was sent. " + "Ignoring current answer. Host: " + host.getName()
-                                                + " . VM: " + vmDiskStat.getVmName() + " Read(Bytes): " + vmDiskStat.getBytesRead() + " write(Bytes): " + vmDiskStat.getBytesWrite()
-                                                + " Read(IO): " + vmDiskStat.getIORead() + " write(IO): " + vmDiskStat.getIOWrite());
-                                        continue;
-                                    }
+                                        if (isCurrentVmDiskStatsDifferentFromPrevious(previousVmDiskStats, vmDiskStat_lock)) {
+                                            s_logger.debug("vm disk stats changed from the time GetVmDiskStatsCommand was sent. " + "Ignoring current answer. Host: " + host.getName()
+                                                    + " . VM: " + vmDiskStat.getVmName() + " Read(Bytes): " + vmDiskStat.getBytesRead() + " write(Bytes): " + vmDiskStat.getBytesWrite()
+                                                    + " Read(IO): " + vmDiskStat.getIORead() + " write(IO): " + vmDiskStat.getIOWrite());
+                                            continue;
+                                        }
 
-                                    if (vmDiskStat_lock.getCurrentBytesRead() > vmDiskStat.getBytesRead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getBytesRead() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentBytesRead());
+                                        if (vmDiskStat_lock.getCurrentBytesRead() > vmDiskStat.getBytesRead()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Read # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getBytesRead() + " Stored: "
+                                                        + vmDiskStat_lock.getCurrentBytesRead());
+                                            }
+                                            vmDiskStat_lock.setNetBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
                                         }
-                                        vmDiskStat_lock.setNetBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesRead(vmDiskStat.getBytesRead());
-                                    if (vmDiskStat_lock.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getBytesWrite() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentBytesWrite());
+                                        vmDiskStat_lock.setCurrentBytesRead(vmDiskStat.getBytesRead());
+                                        if (vmDiskStat_lock.getCurrentBytesWrite() > vmDiskStat.getBytesWrite()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Write # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getBytesWrite() + " Stored: "
+                                                        + vmDiskStat_lock.getCurrentBytesWrite());
+                                            }
+                                            vmDiskStat_lock.setNetBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
                                         }
-                                        vmDiskStat_lock.setNetBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
-                                    if (vmDiskStat_lock.getCurrentIORead() > vmDiskStat.getIORead()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Read # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIORead() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentIORead());
+                                        vmDiskStat_lock.setCurrentBytesWrite(vmDiskStat.getBytesWrite());
+                                        if (vmDiskStat_lock.getCurrentIORead() > vmDiskStat.getIORead()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Read # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIORead() + " Stored: "
+                                                        + vmDiskStat_lock.getCurrentIORead());
+                                            }
+                                            vmDiskStat_lock.setNetIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                                         }
-                                        vmDiskStat_lock.setNetIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
-                                    }
-                                    vmDiskStat_lock.setCurrentIORead(vmDiskStat.getIORead());
-                                    if (vmDiskStat_lock.getCurrentIOWrite() > vmDiskStat.getIOWrite()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Write # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIOWrite() + " Stored: "
-                                                    + vmDiskStat_lock.getCurrentIOWrite());
+                                        vmDiskStat_lock.setCurrentIORead(vmDiskStat.getIORead());
+                                        if (vmDiskStat_lock.getCurrentIOWrite() > vmDiskStat.getIOWrite()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Write # of IO that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmDiskStat.getVmName() + " Reported: " + vmDiskStat.getIOWrite() + " Stored: "
+                                                        + vmDiskStat_lock.getCurrentIOWrite());
+                                            }
+                                            vmDiskStat_lock.setNetIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
+                                        }
+                                        vmDiskStat_lock.setCurrentIOWrite(vmDiskStat.getIOWrite());
+
+                                        if (!_dailyOrHourly) {
+                                            //update agg bytes
+                                            vmDiskStat_lock.setAggBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
+                                            vmDiskStat_lock.setAggBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
+                                            vmDiskStat_lock.setAggIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
+                                            vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
                                         }
-                                        vmDiskStat_lock.setNetIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                    }
-                                    vmDiskStat_lock.setCurrentIOWrite(vmDiskStat.getIOWrite());
 
-                                    if (!_dailyOrHourly) {
-                                        //update agg bytes
-                                        vmDiskStat_lock.setAggBytesWrite(vmDiskStat_lock.getNetBytesWrite() + vmDiskStat_lock.getCurrentBytesWrite());
-                                        vmDiskStat_lock.setAggBytesRead(vmDiskStat_lock.getNetBytesRead() + vmDiskStat_lock.getCurrentBytesRead());
-                                        vmDiskStat_lock.setAggIOWrite(vmDiskStat_lock.getNetIOWrite() + vmDiskStat_lock.getCurrentIOWrite());
-                                        vmDiskStat_lock.setAggIORead(vmDiskStat_lock.getNetIORead() + vmDiskStat_lock.getCurrentIORead());
+                                        _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
                                     }
-
-                                    _vmDiskStatsDao.update(vmDiskStat_lock.getId(), vmDiskStat_lock);
                                 }
                             }
-                        }
+                        });
+                    } catch (Exception e) {
+                        s_logger.warn("Error while storing vm disk stats of host " + host.getId(), e);
                     }
-                });
+                }
             } catch (Exception e) {
                 s_logger.warn("Error while collecting vm disk stats from hosts", e);
             }
@@ -811,107 +1005,113 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             }
             // collect the vm network statistics(total) from hypervisor
             try {
-                Transaction.execute(new TransactionCallbackNoReturn() {
-                    @Override
-                    public void doInTransactionWithoutResult(TransactionStatus status) {
-                        s_logger.debug("VmNetworkStatsTask is running...");
+                s_logger.debug("VmNetworkStatsTask is running...");
 
-                        SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
-                        List<HostVO> hosts = _hostDao.search(sc, null);
-
-                        for (HostVO host : hosts) {
-                            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                            List<Long> vmIds = new ArrayList<Long>();
+                SearchCriteria<HostVO> sc = createSearchCriteriaForHostTypeRoutingStateUpAndNotInMaintenance();
+                List<HostVO> hosts = _hostDao.search(sc, null);
 
-                            for (UserVmVO vm : vms) {
-                                if (vm.getType() == VirtualMachine.Type.User) // user vm
-                                    vmIds.add(vm.getId());
+                long interval = TimeUnit.SECONDS.toMillis(Math.max(vmNetworkStatsInterval.value(), vmNetworkStatsIntervalMin.value()));
+                Map<Long, HashMap<Long, List<VmNetworkStatsEntry>>> vmNetworkStatsByHost = hostStatsFanOut.collect("VmNetworkStatsTask", hosts, interval,
+                        new HostStatsFanOut.HostCall<HashMap<Long, List<VmNetworkStatsEntry>>>() {
+                            @Override
+                            public HashMap<Long, List<VmNetworkStatsEntry>> call(HostVO host) {
+                                return _userVmMgr.getVmNetworkStatistics(host.getId(), host.getName(), listRunningVmIds(host, true));
                             }
+                        });
 
-                            HashMap<Long, List<VmNetworkStatsEntry>> vmNetworkStatsById = _userVmMgr.getVmNetworkStatistics(host.getId(), host.getName(), vmIds);
-                            if (vmNetworkStatsById == null)
-                                continue;
-
-                            Set<Long> vmIdSet = vmNetworkStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                List<VmNetworkStatsEntry> vmNetworkStats = vmNetworkStatsById.get(vmId);
-                                if (vmNetworkStats == null)
-                                    continue;
-                                UserVmVO userVm = _userVmDao.findById(vmId);
-                                if (userVm == null) {
-                                    s_logger.debug("Cannot find uservm with id: " + vmId + " , continue");
-                                    continue;
-                                }
-                                s_logger.debug("Now we are updating the user_statistics table for VM: " + userVm.getInstanceName()
-                                        + " after collecting vm network statistics from host: " + host.getName());
-                                for (VmNetworkStatsEntry vmNetworkStat : vmNetworkStats) {
-                                    SearchCriteria<NicVO> sc_nic = _nicDao.createSearchCriteria();
-                                    sc_nic.addAnd("macAddress", SearchCriteria.Op.EQ, vmNetworkStat.getMacAddress());
-                                    NicVO nic = _nicDao.search(sc_nic, null).get(0);
-                                    List<VlanVO> vlan = _vlanDao.listVlansByNetworkId(nic.getNetworkId());
-                                    if (vlan == null || vlan.size() == 0 || vlan.get(0).getVlanType() != VlanType.DirectAttached)
-                                        continue; // only get network statistics for DirectAttached network (shared networks in Basic zone and Advanced zone with/without SG)
-                                    UserStatisticsVO previousvmNetworkStats = _userStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
-                                            nic.getIPv4Address(), vmId, "UserVm");
-                                    if (previousvmNetworkStats == null) {
-                                        previousvmNetworkStats = new UserStatisticsVO(userVm.getAccountId(), userVm.getDataCenterId(), nic.getIPv4Address(), vmId, "UserVm",
-                                                nic.getNetworkId());
-                                        _userStatsDao.persist(previousvmNetworkStats);
-                                    }
-                                    UserStatisticsVO vmNetworkStat_lock = _userStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
-                                            nic.getIPv4Address(), vmId, "UserVm");
+                for (final HostVO host : hosts) {
+                    final HashMap<Long, List<VmNetworkStatsEntry>> vmNetworkStatsById = vmNetworkStatsByHost.get(host.getId());
+                    if (vmNetworkStatsById == null)
+                        continue;
 
-                                    if ((vmNetworkStat.getBytesSent() == 0) && (vmNetworkStat.getBytesReceived() == 0)) {
-                                        s_logger.debug("bytes sent and received are all 0. Not updating user_statistics");
+                    // the stats of each host are stored in a transaction of their own, none is open while waiting for the hosts
+                    try {
+                        Transaction.execute(new TransactionCallbackNoReturn() {
+                            @Override
+                            public void doInTransactionWithoutResult(TransactionStatus status) {
+                                Set<Long> vmIdSet = vmNetworkStatsById.keySet();
+                                for (Long vmId : vmIdSet) {
+                                    List<VmNetworkStatsEntry> vmNetworkStats = vmNetworkStatsById.get(vmId);
+                                    if (vmNetworkStats == null)
                                         continue;
-                                    }
-
-                                    if (vmNetworkStat_lock == null) {
-                                        s_logger.warn("unable to find vm network stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
-                                                + " and nicId:" + nic.getId());
+                                    UserVmVO userVm = _userVmDao.findById(vmId);
+                                    if (userVm == null) {
+                                        s_logger.debug("Cannot find uservm with id: " + vmId + " , continue");
                                         continue;
                                     }
+                                    s_logger.debug("Now we are updating the user_statistics table for VM: " + userVm.getInstanceName()
+                                            + " after collecting vm network statistics from host: " + host.getName());
+                                    for (VmNetworkStatsEntry vmNetworkStat : vmNetworkStats) {
+                                        SearchCriteria<NicVO> sc_nic = _nicDao.createSearchCriteria();
+                                        sc_nic.addAnd("macAddress", SearchCriteria.Op.EQ, vmNetworkStat.getMacAddress());
+                                        NicVO nic = _nicDao.search(sc_nic, null).get(0);
+                                        List<VlanVO> vlan = _vlanDao.listVlansByNetworkId(nic.getNetworkId());
+                                        if (vlan == null || vlan.size() == 0 || vlan.get(0).getVlanType() != VlanType.DirectAttached)
+                                            continue; // only get network statistics for DirectAttached network (shared networks in Basic zone and Advanced zone with/without SG)
+                                        UserStatisticsVO previousvmNetworkStats = _userStatsDao.findBy(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
+                                                nic.getIPv4Address(), vmId, "UserVm");
+                                        if (previousvmNetworkStats == null) {
+                                            previousvmNetworkStats = new UserStatisticsVO(userVm.getAccountId(), userVm.getDataCenterId(), nic.getIPv4Address(), vmId, "UserVm",
+                                                    nic.getNetworkId());
+                                            _userStatsDao.persist(previousvmNetworkStats);
+                                        }
+                                        UserStatisticsVO vmNetworkStat_lock = _userStatsDao.lock(userVm.getAccountId(), userVm.getDataCenterId(), nic.getNetworkId(),
+                                                nic.getIPv4Address(), vmId, "UserVm");
 
-                                    if (previousvmNetworkStats != null && ((previousvmNetworkStats.getCurrentBytesSent() != vmNetworkStat_lock.getCurrentBytesSent())
-                                            || (previousvmNetworkStats.getCurrentBytesReceived() != vmNetworkStat_lock.getCurrentBytesReceived()))) {
-                                        s_logger.debug("vm network stats changed from the time GetNmNetworkStatsCommand was sent. " + "Ignoring current answer. Host: "
-                                                + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Sent(Bytes): " + vmNetworkStat.getBytesSent() + " Received(Bytes): "
-                                                + vmNetworkStat.getBytesReceived());
-                                        continue;
-                                    }
+                                        if ((vmNetworkStat.getBytesSent() == 0) && (vmNetworkStat.getBytesReceived() == 0)) {
+                                            s_logger.debug("bytes sent and received are all 0. Not updating user_statistics");
+                                            continue;
+                                        }
 
-                                    if (vmNetworkStat_lock.getCurrentBytesSent() > vmNetworkStat.getBytesSent()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Sent # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + vmNetworkStat.getBytesSent() + " Stored: "
-                                                    + vmNetworkStat_lock.getCurrentBytesSent());
+                                        if (vmNetworkStat_lock == null) {
+                                            s_logger.warn("unable to find vm network stats from host for account: " + userVm.getAccountId() + " with vmId: " + userVm.getId()
+                                                    + " and nicId:" + nic.getId());
+                                            continue;
                                         }
-                                        vmNetworkStat_lock.setNetBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
-                                    }
-                                    vmNetworkStat_lock.setCurrentBytesSent(vmNetworkStat.getBytesSent());
 
-                                    if (vmNetworkStat_lock.getCurrentBytesReceived() > vmNetworkStat.getBytesReceived()) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("Received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
-                                                    + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + vmNetworkStat.getBytesReceived() + " Stored: "
-                                                    + vmNetworkStat_lock.getCurrentBytesReceived());
+                                        if (previousvmNetworkStats != null && ((previousvmNetworkStats.getCurrentBytesSent() != vmNetworkStat_lock.getCurrentBytesSent())
+                                                || (previousvmNetworkStats.getCurrentBytesReceived() != vmNetworkStat_lock.getCurrentBytesReceived()))) {
+                                            s_logger.debug("vm network stats changed from the time GetNmNetworkStatsCommand was sent. " + "Ignoring current answer. Host: "
+                                                    + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Sent(Bytes): " + vmNetworkStat.getBytesSent() + " Received(Bytes): "
+                                                    + vmNetworkStat.getBytesReceived());
+                                            continue;
                                         }
-                                        vmNetworkStat_lock.setNetBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
-                                    }
-                                    vmNetworkStat_lock.setCurrentBytesReceived(vmNetworkStat.getBytesReceived());
 
-                                    if (!_dailyOrHourly) {
-                                        //update agg bytes
-                                        vmNetworkStat_lock.setAggBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
-                                        vmNetworkStat_lock.setAggBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
-                                    }
+                                        if (vmNetworkStat_lock.getCurrentBytesSent() > vmNetworkStat.getBytesSent()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Sent # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + vmNetworkStat.getBytesSent() + " Stored: "
+                                                        + vmNetworkStat_lock.getCurrentBytesSent());
+                                            }
+                                            vmNetworkStat_lock.setNetBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
+                                        }
+                                        vmNetworkStat_lock.setCurrentBytesSent(vmNetworkStat.getBytesSent());
 
-                                    _userStatsDao.update(vmNetworkStat_lock.getId(), vmNetworkStat_lock);
+                                        if (vmNetworkStat_lock.getCurrentBytesReceived() > vmNetworkStat.getBytesReceived()) {
+                                            if (s_logger.isDebugEnabled()) {
+                                                s_logger.debug("Received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Host: "
+                                                        + host.getName() + " . VM: " + vmNetworkStat.getVmName() + " Reported: " + vmNetworkStat.getBytesReceived() + " Stored: "
+                                                        + vmNetworkStat_lock.getCurrentBytesReceived());
+                                            }
+                                            vmNetworkStat_lock.setNetBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
+                                        }
+                                        vmNetworkStat_lock.setCurrentBytesReceived(vmNetworkStat.getBytesReceived());
+
+                                        if (!_dailyOrHourly) {
+                                            //update agg bytes
+                                            vmNetworkStat_lock.setAggBytesReceived(vmNetworkStat_lock.getNetBytesReceived() + vmNetworkStat_lock.getCurrentBytesReceived());
+                                            vmNetworkStat_lock.setAggBytesSent(vmNetworkStat_lock.getNetBytesSent() + vmNetworkStat_lock.getCurrentBytesSent());
+                                        }
+
+                                        _userStatsDao.update(vmNetworkStat_lock.getId(), vmNetworkStat_lock);
+                                    }
                                 }
                             }
-                        }
+                        });
+                    } catch (Exception e) {
+                        s_logger.warn("Error while storing vm network stats of host " + host.getId(), e);
                     }
-                });
+                }
             } catch (Exception e) {
                 s_logger.warn("Error while collecting vm network stats from hosts", e);
             }
@@ -1333,26 +1533,22 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
      */
     abstract class AbstractStatsCollector extends ManagedContextRunnable {
         /**
-         * Sends metrics to influxdb host. This method supports both VM and Host metrics
+         * Queues metrics to be sent to the influxdb host. This method supports both VM and Host metrics
          */
         protected void sendMetricsToInfluxdb(Map<Object, Object> metrics) {
-            InfluxDB influxDbConnection = createInfluxDbConnection();
-
-            Pong response = influxDbConnection.ping();
-            if (response.getVersion().equalsIgnoreCase("unknown")) {
-                throw new CloudRuntimeException(String.format("Cannot ping influxdb host %s:%s.", externalStatsHost, externalStatsPort));
+            if (influxDbExporter == null) {
+                return;
             }
-
             Collection<Object> metricsObjects = metrics.values();
             List<Point> points = new ArrayList<>();
 
-            s_logger.debug(String.format("Sending stats to %s host %s:%s", externalStatsType, externalStatsHost, externalStatsPort));
+            s_logger.debug(String.format("Queueing stats for %s host %s:%s", externalStatsType, externalStatsHost, externalStatsPort));
 
             for (Object metricsObject : metricsObjects) {
                 Point vmPoint = creteInfluxDbPoint(metricsObject);
                 points.add(vmPoint);
             }
-            writeBatches(influxDbConnection, databaseName, points);
+            influxDbExporter.export(points);
         }
 
         /**
@@ -1370,16 +1566,19 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     }
 
     /**
-     * Sends VMs metrics to the configured graphite host.
+     * Queues VMs metrics to be sent to the configured graphite host, with the time they were collected at.
      */
     protected void sendVmMetricsToGraphiteHost(Map<Object, Object> metrics, HostVO host) {
-        s_logger.debug(String.format("Sending VmStats of host %s to %s host %s:%s", host.getId(), externalStatsType, externalStatsHost, externalStatsPort));
-        try {
-            GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-            g.sendMetrics(metrics);
-        } catch (GraphiteException e) {
-            s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
+        if (graphiteExporter == null) {
+            return;
         }
+        s_logger.debug(String.format("Queueing VmStats of host %s for %s host %s:%s", host.getId(), externalStatsType, externalStatsHost, externalStatsPort));
+        long timeStamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        List<String> lines = new ArrayList<String>(metrics.size());
+        for (Map.Entry<Object, Object> metric : metrics.entrySet()) {
+            lines.add(GraphiteClient.formatMetric(metric.getKey(), metric.getValue(), timeStamp));
+        }
+        graphiteExporter.export(lines);
     }
 
     /**
@@ -1499,11 +1698,11 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     }
 
     /**
-     * Writes batches of InfluxDB database points into a given database.
+     * Writes batches of InfluxDB database points into a given database, as one request in the line protocol.
+     * The points are batched by the {@link StatsExporter}, the batching of the connection is not enabled as the connection is reused.
      */
     protected void writeBatches(InfluxDB influxDbConnection, String dbName, List<Point> points) {
         BatchPoints batchPoints = BatchPoints.database(dbName).build();
-        influxDbConnection.enableBatch(BatchOptions.DEFAULTS);
 
         for (Point point : points) {
             batchPoints.point(point);
@@ -1565,6 +1764,112 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return _storagePoolStats.get(id);
     }
 
+    private Map<String, HostStatsFanOut.CycleStats> getFanOutStats() {
+        return hostStatsFanOut != null ? hostStatsFanOut.getStats() : Collections.<String, HostStatsFanOut.CycleStats>emptyMap();
+    }
+
+    @Override
+    public Map<String, Long> getCycleDurations() {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        for (Map.Entry<String, HostStatsFanOut.CycleStats> entry : getFanOutStats().entrySet()) {
+            durations.put(entry.getKey(), entry.getValue().getLastDuration());
+        }
+        return durations;
+    }
+
+    @Override
+    public Map<String, Long> getHostsSkipped() {
+        Map<String, Long> skipped = new HashMap<String, Long>();
+        for (Map.Entry<String, HostStatsFanOut.CycleStats> entry : getFanOutStats().entrySet()) {
+            skipped.put(entry.getKey(), entry.getValue().getHostsSkipped());
+        }
+        return skipped;
+    }
+
+    @Override
+    public Map<String, Long> getHostsFailed() {
+        Map<String, Long> failed = new HashMap<String, Long>();
+        for (Map.Entry<String, HostStatsFanOut.CycleStats> entry : getFanOutStats().entrySet()) {
+            failed.put(entry.getKey(), entry.getValue().getHostsFailed());
+        }
+        return failed;
+    }
+
+    @Override
+    public int getStatsHistorySize() {
+        return vmStatsHistory.size() + hostStatsHistory.size();
+    }
+
+    @Override
+    public long getStatsHistoryRejected() {
+        return vmStatsHistory.getRejected() + hostStatsHistory.getRejected();
+    }
+
+    private List<StatsExporter<?>> listExporters() {
+        List<StatsExporter<?>> exporters = new ArrayList<StatsExporter<?>>();
+        if (graphiteExporter != null) {
+            exporters.add(graphiteExporter);
+        }
+        if (influxDbExporter != null) {
+            exporters.add(influxDbExporter);
+        }
+        return exporters;
+    }
+
+    @Override
+    public long getExportedStats() {
+        long exported = 0;
+        for (StatsExporter<?> exporter : listExporters()) {
+            exported += exporter.getExported();
+        }
+        return exported;
+    }
+
+    @Override
+    public long getExportDropped() {
+        long dropped = 0;
+        for (StatsExporter<?> exporter : listExporters()) {
+            dropped += exporter.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public int getExportQueued() {
+        int queued = 0;
+        for (StatsExporter<?> exporter : listExporters()) {
+            queued += exporter.getQueued();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getExportLag() {
+        long lag = 0;
+        for (StatsExporter<?> exporter : listExporters()) {
+            lag = Math.max(lag, exporter.getLag());
+        }
+        return lag;
+    }
+
+    @Override
+    public long getExportMaxLag() {
+        long lag = 0;
+        for (StatsExporter<?> exporter : listExporters()) {
+            lag = Math.max(lag, exporter.getMaxLag());
+        }
+        return lag;
+    }
+
+    @Override
+    public Map<String, Map<Long, Long>> getHostLatencies() {
+        Map<String, Map<Long, Long>> latencies = new HashMap<String, Map<Long, Long>>();
+        for (Map.Entry<String, HostStatsFanOut.CycleStats> entry : getFanOutStats().entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().getHostLatencies());
+        }
+        return latencies;
+    }
+
     @Override
     public String getConfigComponentName() {
         return StatsCollector.class.getSimpleName();
@@ -1572,6 +1877,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout, statsOutputUri};
+        return new ConfigKey<?>[] {vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout, statsOutputUri, statsHostParallelism,
+            statsOutputBufferSize, statsOutputBatchSize, statsOutputFlushInterval, statsHistoryMemory};
     }
 }
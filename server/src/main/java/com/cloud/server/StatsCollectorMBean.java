@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.Map;
+
+import com.cloud.utils.mgmt.ManagementBean;
+
+public interface StatsCollectorMBean extends ManagementBean {
+    /**
+     * @return milliseconds the last cycle of each collector took to get the stats of the hosts
+     */
+    Map<String, Long> getCycleDurations();
+
+    /**
+     * @return number of hosts each collector skipped as they did not answer within the collection interval
+     */
+    Map<String, Long> getHostsSkipped();
+
+    Map<String, Long> getHostsFailed();
+
+    /**
+     * @return milliseconds each host took to answer, by collector and host id
+     */
+    Map<String, Map<Long, Long>> getHostLatencies();
+
+    /**
+     * @return number of hosts and VMs with a stats history
+     */
+    int getStatsHistorySize();
+
+    /**
+     * @return number of samples not kept in the history as stats.history.memory is used up
+     */
+    long getStatsHistoryRejected();
+
+    /**
+     * @return number of stats sent to the stats.output.uri host
+     */
+    long getExportedStats();
+
+    /**
+     * @return number of stats not sent to the stats.output.uri host as the queue was full or sending them failed
+     */
+    long getExportDropped();
+
+    /**
+     * @return number of stats waiting to be sent to the stats.output.uri host
+     */
+    int getExportQueued();
+
+    /**
+     * @return milliseconds the oldest stats of the last batch sent to the stats.output.uri host waited in the queue
+     */
+    long getExportLag();
+
+    long getExportMaxLag();
+}
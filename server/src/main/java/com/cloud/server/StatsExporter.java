@@ -0,0 +1,199 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends the stats to an external stats host off the collector threads. The collectors only queue the stats, a single
+ * thread writes them in batches of up to the batch size, at the latest the flush interval after the oldest of a batch
+ * was queued. The queue is bounded: the stats queued while it is full are dropped, as are the batches the sink fails to
+ * write, so a slow or unreachable stats host never holds up the collectors nor takes more memory than the queue.
+ */
+public class StatsExporter<T> {
+    private static final Logger s_logger = Logger.getLogger(StatsExporter.class);
+
+    public interface Sink<T> {
+        /**
+         * Writes a batch over the connection kept by the sink, opening it again if a previous write failed.
+         */
+        void write(List<T> batch) throws Exception;
+
+        void close();
+    }
+
+    private static final class Queued<T> {
+        private final T stats;
+        private final long queuedAt;
+
+        Queued(T stats, long queuedAt) {
+            this.stats = stats;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final String name;
+    private final Sink<T> sink;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final BlockingQueue<Queued<T>> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private volatile long lag;
+    private volatile long maxLag;
+
+    /**
+     * @param bufferSize the number of stats queued at most
+     * @param batchSize the number of stats written at once at most
+     * @param flushIntervalMs milliseconds the stats wait at most for a batch to fill up
+     */
+    public StatsExporter(String name, Sink<T> sink, int bufferSize, int batchSize, long flushIntervalMs) {
+        this.name = name;
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.queue = new ArrayBlockingQueue<Queued<T>>(Math.max(1, bufferSize));
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues the stats, dropping those that do not fit in the queue.
+     */
+    public void export(Collection<T> stats) {
+        long now = System.nanoTime();
+        for (T item : stats) {
+            if (!queue.offer(new Queued<T>(item, now))) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        List<Queued<T>> batch = new ArrayList<Queued<T>>(batchSize);
+        List<T> stats = new ArrayList<T>(batchSize);
+        while (running) {
+            try {
+                Queued<T> oldest = queue.poll(1, TimeUnit.SECONDS);
+                if (oldest == null) {
+                    continue;
+                }
+                batch.add(oldest);
+                long flushAt = oldest.queuedAt + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = flushAt - System.nanoTime();
+                    if (batch.size() >= batchSize || wait <= 0) {
+                        break;
+                    }
+                    Queued<T> next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                for (Queued<T> queued : batch) {
+                    stats.add(queued.stats);
+                }
+                write(stats, oldest.queuedAt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+                stats.clear();
+            }
+        }
+    }
+
+    private void write(List<T> stats, long oldestQueuedAt) {
+        try {
+            sink.write(stats);
+            exported.addAndGet(stats.size());
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            dropped.addAndGet(stats.size());
+            s_logger.warn(name + " dropped " + stats.size() + " stats as writing them failed: " + e.getMessage());
+        }
+        lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestQueuedAt);
+        maxLag = Math.max(maxLag, lag);
+    }
+
+    /**
+     * Stops the flushing thread and closes the sink, the stats still queued are dropped.
+     */
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.addAndGet(queue.size());
+        queue.clear();
+        sink.close();
+    }
+
+    public long getExported() {
+        return exported.get();
+    }
+
+    /**
+     * @return the number of stats dropped as the queue was full or writing them failed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * @return milliseconds the oldest stats of the last batch were queued before they were written
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+}
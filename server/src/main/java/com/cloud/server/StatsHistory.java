@@ -0,0 +1,258 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the recent history of the stats of an entity type, e.g. of the VMs, in memory.
+ *
+ * Every sample is averaged into a slot of each {@link Resolution}, the slots of a resolution form a ring so each keeps
+ * a fixed window: the last hour by minute, the last six hours by five minutes and the last two days by hour. The
+ * history of an entity is a few primitive arrays allocated once, recording a sample allocates nothing. The memory of
+ * all the histories sharing a budget is bounded by it, entities beyond it are not recorded.
+ */
+public class StatsHistory {
+
+    public enum Resolution {
+        MINUTE(60, 60), FIVE_MINUTES(300, 72), HOUR(3600, 48);
+
+        private final int seconds;
+        private final int slots;
+
+        Resolution(int seconds, int slots) {
+            this.seconds = seconds;
+            this.slots = slots;
+        }
+
+        public int getSeconds() {
+            return seconds;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+
+        private int offset() {
+            int offset = 0;
+            for (Resolution resolution : values()) {
+                if (resolution == this) {
+                    break;
+                }
+                offset += resolution.slots;
+            }
+            return offset;
+        }
+    }
+
+    // values() copies the array every time
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+    private static final int SLOTS;
+    private static final int[] OFFSETS = new int[RESOLUTIONS.length];
+    static {
+        int slots = 0;
+        for (Resolution resolution : RESOLUTIONS) {
+            OFFSETS[resolution.ordinal()] = resolution.offset();
+            slots += resolution.slots;
+        }
+        SLOTS = slots;
+    }
+
+    /**
+     * Values of the metrics averaged over the slot starting at the timestamp.
+     */
+    public static class Sample {
+        private final long timestamp;
+        private final double[] values;
+
+        Sample(long timestamp, double[] values) {
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public double getValue(int metric) {
+            return values[metric];
+        }
+    }
+
+    private final class Series {
+        // the slot number, seconds since the epoch divided by the seconds of the resolution, each slot holds
+        private final int[] slots = new int[SLOTS];
+        private final short[] counts = new short[SLOTS];
+        private final float[] values = new float[SLOTS * metrics];
+        private volatile long lastRecorded;
+
+        synchronized void record(long seconds, double[] sample) {
+            for (Resolution resolution : RESOLUTIONS) {
+                int slotNumber = (int)(seconds / resolution.seconds);
+                int slot = OFFSETS[resolution.ordinal()] + slotNumber % resolution.slots;
+                if (slots[slot] != slotNumber) {
+                    slots[slot] = slotNumber;
+                    counts[slot] = 0;
+                }
+                if (counts[slot] < Short.MAX_VALUE) {
+                    counts[slot]++;
+                }
+                int count = counts[slot];
+                int base = slot * metrics;
+                for (int metric = 0; metric < metrics; metric++) {
+                    values[base + metric] += (float)((sample[metric] - values[base + metric]) / count);
+                }
+            }
+            lastRecorded = seconds;
+        }
+
+        synchronized List<Sample> read(Resolution resolution, long fromSeconds, long toSeconds, long nowSeconds) {
+            int oldest = (int)(Math.max(fromSeconds, nowSeconds - (long)resolution.seconds * (resolution.slots - 1)) / resolution.seconds);
+            int newest = (int)(Math.min(toSeconds, nowSeconds) / resolution.seconds);
+            List<Sample> samples = new ArrayList<Sample>();
+            for (int slotNumber = oldest; slotNumber <= newest; slotNumber++) {
+                int slot = OFFSETS[resolution.ordinal()] + slotNumber % resolution.slots;
+                if (slots[slot] != slotNumber || counts[slot] == 0) {
+                    continue;
+                }
+                double[] sample = new double[metrics];
+                for (int metric = 0; metric < metrics; metric++) {
+                    sample[metric] = values[slot * metrics + metric];
+                }
+                samples.add(new Sample(TimeUnit.SECONDS.toMillis((long)slotNumber * resolution.seconds), sample));
+            }
+            return samples;
+        }
+
+        synchronized double average(Resolution resolution, int metric, long fromSeconds, long nowSeconds) {
+            int oldest = (int)(Math.max(fromSeconds, nowSeconds - (long)resolution.seconds * (resolution.slots - 1)) / resolution.seconds);
+            int newest = (int)(nowSeconds / resolution.seconds);
+            double sum = 0;
+            long count = 0;
+            for (int slotNumber = oldest; slotNumber <= newest; slotNumber++) {
+                int slot = OFFSETS[resolution.ordinal()] + slotNumber % resolution.slots;
+                if (slots[slot] == slotNumber && counts[slot] > 0) {
+                    sum += values[slot * metrics + metric] * counts[slot];
+                    count += counts[slot];
+                }
+            }
+            return count == 0 ? Double.NaN : sum / count;
+        }
+    }
+
+    private final int metrics;
+    private final AtomicLong budget;
+    private final ConcurrentMap<Long, Series> series = new ConcurrentHashMap<Long, Series>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param metrics the number of metrics of every sample
+     * @param budget the bytes left for the histories, shared by all the histories it is given to
+     */
+    public StatsHistory(int metrics, AtomicLong budget) {
+        this.metrics = metrics;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the bytes the history of an entity takes
+     */
+    public static long bytesPerEntity(int metrics) {
+        // the headers of the three arrays, the series and its map entry with the boxed id
+        long headers = 3 * 16 + 32 + 48;
+        return headers + SLOTS * (Integer.SIZE + Short.SIZE + (long)metrics * Float.SIZE) / Byte.SIZE;
+    }
+
+    /**
+     * Records a sample of the entity. The id is taken boxed as the collectors have it, the sample array can be reused by the caller.
+     *
+     * @return false if the budget is exhausted and the entity has no history
+     */
+    public boolean record(Long id, long timestamp, double[] sample) {
+        Series entity = series.get(id);
+        if (entity == null) {
+            long bytes = bytesPerEntity(metrics);
+            if (budget.addAndGet(-bytes) < 0) {
+                budget.addAndGet(bytes);
+                rejected.incrementAndGet();
+                return false;
+            }
+            Series created = new Series();
+            entity = series.putIfAbsent(id, created);
+            if (entity == null) {
+                entity = created;
+            } else {
+                budget.addAndGet(bytes);
+            }
+        }
+        entity.record(TimeUnit.MILLISECONDS.toSeconds(timestamp), sample);
+        return true;
+    }
+
+    /**
+     * @return the samples of the entity between the timestamps at the resolution, oldest first
+     */
+    public List<Sample> read(long id, Resolution resolution, long from, long to, long now) {
+        Series entity = series.get(id);
+        if (entity == null) {
+            return new ArrayList<Sample>();
+        }
+        return entity.read(resolution, TimeUnit.MILLISECONDS.toSeconds(from), TimeUnit.MILLISECONDS.toSeconds(to), TimeUnit.MILLISECONDS.toSeconds(now));
+    }
+
+    /**
+     * @return the average of the metric since the timestamp at the resolution, NaN if there are no samples
+     */
+    public double average(long id, Resolution resolution, int metric, long from, long now) {
+        Series entity = series.get(id);
+        if (entity == null) {
+            return Double.NaN;
+        }
+        return entity.average(resolution, metric, TimeUnit.MILLISECONDS.toSeconds(from), TimeUnit.MILLISECONDS.toSeconds(now));
+    }
+
+    /**
+     * Drops the histories of the entities without a sample within the window of the coarsest resolution.
+     */
+    public void removeStale(long now) {
+        Resolution coarsest = RESOLUTIONS[RESOLUTIONS.length - 1];
+        long oldest = TimeUnit.MILLISECONDS.toSeconds(now) - (long)coarsest.seconds * coarsest.slots;
+        for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+            if (it.next().lastRecorded < oldest) {
+                it.remove();
+                budget.addAndGet(bytesPerEntity(metrics));
+            }
+        }
+    }
+
+    public int size() {
+        return series.size();
+    }
+
+    /**
+     * @return the number of samples not recorded as the budget was exhausted
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
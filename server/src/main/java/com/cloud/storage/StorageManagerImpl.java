@@ -114,6 +114,7 @@ import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityState;
 import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.StoragePoolAllocationIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.configuration.Config;
@@ -251,6 +252,8 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
     @Inject
     protected CapacityManager _capacityMgr;
     @Inject
+    protected StoragePoolAllocationIndex _poolAllocationIndex;
+    @Inject
     protected DataCenterDao _dcDao = null;
     @Inject
     protected VMTemplateDao _templateDao;
@@ -1759,7 +1762,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         }
 
         StoragePoolVO storagePoolVo = _storagePoolDao.findById(pool.getId());
-        long currentIops = _capacityMgr.getUsedIops(storagePoolVo);
+        long currentIops = _poolAllocationIndex.getUsedIops(storagePoolVo);
 
         long requestedIops = 0;
 
@@ -1797,7 +1800,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         }
         // allocated space includes templates
         final StoragePoolVO poolVO = _storagePoolDao.findById(pool.getId());
-        long allocatedSizeWithTemplate = _capacityMgr.getAllocatedPoolCapacity(poolVO, null);
+        long allocatedSizeWithTemplate = _poolAllocationIndex.getAllocatedPoolCapacity(poolVO, null);
         long totalAskingSize = 0;
 
         for (Volume volume : volumes) {
@@ -1820,7 +1823,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
                 VMTemplateVO tmpl = _templateDao.findByIdIncludingRemoved(volume.getTemplateId());
 
                 if (tmpl != null && !ImageFormat.ISO.equals(tmpl.getFormat())) {
-                    allocatedSizeWithTemplate = _capacityMgr.getAllocatedPoolCapacity(poolVO, tmpl);
+                    allocatedSizeWithTemplate = _poolAllocationIndex.getAllocatedPoolCapacity(poolVO, tmpl);
                 }
             }
 
@@ -1854,7 +1857,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
             return true;
         } else {
             final StoragePoolVO poolVO = _storagePoolDao.findById(pool.getId());
-            final long allocatedSizeWithTemplate = _capacityMgr.getAllocatedPoolCapacity(poolVO, null);
+            final long allocatedSizeWithTemplate = _poolAllocationIndex.getAllocatedPoolCapacity(poolVO, null);
             return checkPoolforSpace(pool, allocatedSizeWithTemplate, totalAskingSize);
         }
     }
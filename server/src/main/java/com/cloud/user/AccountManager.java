@@ -184,6 +184,16 @@ public interface AccountManager extends AccountService, Configurable {
 
     String MESSAGE_REMOVE_ACCOUNT_EVENT = "Message.RemoveAccount.Event";
 
+    /**
+     * Published, also to the other management servers, with the user id whenever the state, keys or account of a user change
+     */
+    String MESSAGE_USER_ACCESS_CHANGED_EVENT = "Message.UserAccessChanged.Event";
+
+    /**
+     * Published, also to the other management servers, with the account id whenever the state or role of an account change
+     */
+    String MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT = "Message.AccountAccessChanged.Event";
+
     ConfigKey<Boolean> UseSecretKeyInResponse = new ConfigKey<Boolean>("Advanced", Boolean.class, "use.secret.key.in.response", "false",
             "This parameter allows the users to enable or disable of showing secret key as a part of response for various APIs. By default it is set to false.", true);
 
@@ -70,6 +70,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.vo.ControlledViewEntity;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceOwnerType;
@@ -160,6 +161,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
@@ -275,6 +277,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
 
     @Inject
     private MessageBus _messageBus;
+    @Inject
+    private ClusterManager _clusterMgr;
 
     @Inject
     private GlobalLoadBalancingRulesService _gslbService;
@@ -564,11 +568,11 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         }
 
         for (Map.Entry<Long, List<ControlledEntity>> domain : domains.entrySet()) {
+            Domain d = _domainMgr.getDomain(domain.getKey());
+            if (d == null || d.getRemoved() != null) {
+                throw new PermissionDeniedException("Domain is not found.", caller, domain.getValue());
+            }
             for (SecurityChecker checker : _securityCheckers) {
-                Domain d = _domainMgr.getDomain(domain.getKey());
-                if (d == null || d.getRemoved() != null) {
-                    throw new PermissionDeniedException("Domain is not found.", caller, domain.getValue());
-                }
                 try {
                     checker.checkAccess(caller, d);
                 } catch (PermissionDeniedException e) {
@@ -625,6 +629,9 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                     _userAccountDao.update(id, user);
                 }
             });
+            if (toDisable) {
+                notifyUserAccessChanged(id);
+            }
         } catch (Exception e) {
             s_logger.error("Failed to update login attempts for user with id " + id);
         }
@@ -633,7 +640,31 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
     private boolean doSetUserStatus(long userId, State state) {
         UserVO userForUpdate = _userDao.createForUpdate();
         userForUpdate.setState(state);
-        return _userDao.update(Long.valueOf(userId), userForUpdate);
+        boolean success = _userDao.update(Long.valueOf(userId), userForUpdate);
+        notifyUserAccessChanged(userId);
+        return success;
+    }
+
+    /**
+     * Lets everything that caches credentials of the user, on this and on the other management servers, drop them. When
+     * called in a transaction, they are dropped once it is over, so that they are not loaded again before the change is visible.
+     */
+    protected void notifyUserAccessChanged(final long userId) {
+        TransactionLegacy.runAfterCompletion(() -> {
+            _messageBus.publish(_name, MESSAGE_USER_ACCESS_CHANGED_EVENT, PublishScope.LOCAL, userId);
+            _clusterMgr.publishEvent(MESSAGE_USER_ACCESS_CHANGED_EVENT, String.valueOf(userId));
+        });
+    }
+
+    /**
+     * Lets everything that caches credentials of the users of the account, on this and on the other management servers, drop them.
+     * When called in a transaction, they are dropped once it is over.
+     */
+    protected void notifyAccountAccessChanged(final long accountId) {
+        TransactionLegacy.runAfterCompletion(() -> {
+            _messageBus.publish(_name, MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT, PublishScope.LOCAL, accountId);
+            _clusterMgr.publishEvent(MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT, String.valueOf(accountId));
+        });
     }
 
     @Override
@@ -643,6 +674,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         acctForUpdate.setState(State.enabled);
         acctForUpdate.setNeedsCleanup(false);
         success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+        notifyAccountAccessChanged(accountId);
         return success;
     }
 
@@ -656,6 +688,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 AccountVO acctForUpdate = _accountDao.createForUpdate();
                 acctForUpdate.setState(State.locked);
                 success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+                notifyAccountAccessChanged(accountId);
             } else {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("Attempting to lock a non-enabled account, current state is " + account.getState() + " (accountId: " + accountId + "), locking failed.");
@@ -680,6 +713,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Removed account " + accountId);
         }
+        notifyAccountAccessChanged(accountId);
 
         return cleanupAccount(account, callerUserId, caller);
     }
@@ -966,6 +1000,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             AccountVO acctForUpdate = _accountDao.createForUpdate();
             acctForUpdate.setState(State.disabled);
             success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+            notifyAccountAccessChanged(accountId);
 
             if (success) {
                 boolean disableAccountResult = false;
@@ -1180,6 +1215,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             user.setTimezone(timezone);
         }
         _userDao.update(user.getId(), user);
+        notifyUserAccessChanged(user.getId());
         return _userAccountDao.findById(user.getId());
     }
 
@@ -1786,6 +1822,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         });
 
         if (success) {
+            notifyAccountAccessChanged(account.getId());
             CallContext.current().putContextParameter(Account.class, account.getUuid());
             return _accountDao.findById(account.getId());
         } else {
@@ -1802,7 +1839,9 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
 
         // don't allow to delete the user from the account of type Project
         checkAccountAndAccess(user, account);
-        return _userDao.remove(deleteUserCmd.getId());
+        boolean success = _userDao.remove(deleteUserCmd.getId());
+        notifyUserAccessChanged(user.getId());
+        return success;
     }
 
     @Override
@@ -1834,7 +1873,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             return true; // no need to create a new user object for this user
         }
 
-        return Transaction.execute(new TransactionCallback<Boolean>() {
+        boolean moved = Transaction.execute(new TransactionCallback<Boolean>() {
             @Override
             public Boolean doInTransaction(TransactionStatus status) {
                 UserVO newUser = new UserVO(user);
@@ -1849,6 +1888,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 return success && persisted.getUuid().equals(user.getExternalEntity());
             }
         });
+        notifyUserAccessChanged(user.getId());
+        return moved;
     }
 
     private long getNewAccountId(long domainId, String accountName, Long accountId) {
@@ -2484,6 +2525,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 keys[1] = createUserSecretKey(userId);
             }
         });
+        notifyUserAccessChanged(userId);
 
         return keys;
     }
@@ -2504,6 +2546,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
                 keys[1] = AccountManagerImpl.this.createUserSecretKey(userId);
             }
         });
+        notifyUserAccessChanged(userId);
         return keys;
     }
 
@@ -51,4 +51,5 @@ public interface DomainManager extends DomainService {
     public static final String MESSAGE_ADD_DOMAIN_EVENT = "Message.AddDomain.Event";
     public static final String MESSAGE_PRE_REMOVE_DOMAIN_EVENT = "Message.PreRemoveDomain.Event";
     public static final String MESSAGE_REMOVE_DOMAIN_EVENT = "Message.RemoveDomain.Event";
+    public static final String MESSAGE_DOMAIN_HIERARCHY_CHANGED_EVENT = "Message.DomainHierarchyChanged.Event";
 }
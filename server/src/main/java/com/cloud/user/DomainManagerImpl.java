@@ -19,10 +19,12 @@ package com.cloud.user;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.inject.Inject;
+import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.cloudstack.api.command.admin.domain.ListDomainChildrenCmd;
@@ -31,6 +33,7 @@ import org.apache.cloudstack.api.command.admin.domain.UpdateDomainCmd;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.region.RegionManager;
 import org.apache.cloudstack.resourcedetail.dao.DiskOfferingDetailsDao;
@@ -43,6 +46,7 @@ import com.cloud.api.query.dao.DiskOfferingJoinDao;
 import com.cloud.api.query.dao.ServiceOfferingJoinDao;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
 import com.cloud.api.query.vo.ServiceOfferingJoinVO;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceOwnerType;
 import com.cloud.configuration.ResourceLimit;
@@ -77,6 +81,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
@@ -125,9 +130,68 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
     @Inject
     private ConfigurationManager _configMgr;
 
+    @Inject
+    private ClusterManager _clusterMgr;
+
     @Inject
     MessageBus _messageBus;
 
+    private volatile DomainTree _domainTree;
+
+    @Override
+    public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+
+        MessageSubscriber hierarchyChangeSubscriber = new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                final String domainId = String.valueOf(args instanceof Domain ? ((Domain)args).getId() : args);
+                // the domain is added or removed in a transaction, a tree loaded before the commit would not see the change
+                TransactionLegacy.runAfterCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        invalidateDomainTree();
+                        _clusterMgr.publishEvent(MESSAGE_DOMAIN_HIERARCHY_CHANGED_EVENT, domainId);
+                    }
+                });
+            }
+        };
+        _messageBus.subscribe(MESSAGE_ADD_DOMAIN_EVENT, hierarchyChangeSubscriber);
+        _messageBus.subscribe(MESSAGE_REMOVE_DOMAIN_EVENT, hierarchyChangeSubscriber);
+        // published by the peer management servers
+        _messageBus.subscribe(MESSAGE_DOMAIN_HIERARCHY_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                invalidateDomainTree();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops the domain tree, waiting for a tree being loaded to be in place so that one is dropped as well.
+     */
+    protected synchronized void invalidateDomainTree() {
+        _domainTree = null;
+    }
+
+    protected DomainTree getDomainTree() {
+        DomainTree tree = _domainTree;
+        if (tree == null) {
+            synchronized (this) {
+                tree = _domainTree;
+                if (tree == null) {
+                    tree = DomainTree.build(_domainDao.listAll());
+                    _domainTree = tree;
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Loaded domain hierarchy of " + tree.size() + " domains");
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
     protected GlobalLock getGlobalLock(String name) {
         return GlobalLock.getInternLock(name);
     }
@@ -172,6 +236,17 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
 
     @Override
     public boolean isChildDomain(Long parentId, Long childId) {
+        if (parentId == null || childId == null) {
+            return false;
+        }
+        if (parentId.equals(childId)) {
+            return true;
+        }
+        DomainTree tree = getDomainTree();
+        if (tree.contains(parentId) && tree.contains(childId)) {
+            return tree.isChildDomain(parentId, childId);
+        }
+        // domain created on a peer which has not notified us yet, or a removed domain
         return _domainDao.isChildDomain(parentId, childId);
     }
 
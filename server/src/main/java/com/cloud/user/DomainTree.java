@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.user;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.domain.Domain;
+
+/**
+ * Immutable snapshot of the domain hierarchy.
+ *
+ * Every domain is numbered with the entry and exit position of a depth first walk of the tree,
+ * so a domain is an ancestor of another one if and only if its interval encloses the interval
+ * of the other domain. Ancestor checks are two array reads and do not touch the database.
+ */
+public class DomainTree {
+    private final Map<Long, Integer> _indexById;
+    private final int[] _enter;
+    private final int[] _exit;
+
+    private DomainTree(Map<Long, Integer> indexById, int[] enter, int[] exit) {
+        _indexById = indexById;
+        _enter = enter;
+        _exit = exit;
+    }
+
+    public static DomainTree build(Collection<? extends Domain> domains) {
+        Map<Long, Integer> indexById = new HashMap<Long, Integer>(domains.size() * 2);
+        List<Domain> byIndex = new ArrayList<Domain>(domains.size());
+        for (Domain domain : domains) {
+            indexById.put(domain.getId(), byIndex.size());
+            byIndex.add(domain);
+        }
+
+        Map<Long, List<Integer>> children = new HashMap<Long, List<Integer>>();
+        List<Integer> roots = new ArrayList<Integer>();
+        for (int i = 0; i < byIndex.size(); i++) {
+            Long parent = byIndex.get(i).getParent();
+            if (parent == null || parent.longValue() == byIndex.get(i).getId() || !indexById.containsKey(parent)) {
+                roots.add(i);
+                continue;
+            }
+            List<Integer> siblings = children.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<Integer>();
+                children.put(parent, siblings);
+            }
+            siblings.add(i);
+        }
+
+        int[] enter = new int[byIndex.size()];
+        int[] exit = new int[byIndex.size()];
+        boolean[] visited = new boolean[byIndex.size()];
+        int clock = 0;
+        // iterative walk, domain trees can be deep enough to make recursion a liability
+        Deque<int[]> stack = new ArrayDeque<int[]>();
+        for (int root : roots) {
+            stack.push(new int[] {root, 0});
+            visited[root] = true;
+            enter[root] = clock++;
+            while (!stack.isEmpty()) {
+                int[] frame = stack.peek();
+                List<Integer> siblings = children.get(byIndex.get(frame[0]).getId());
+                if (siblings != null && frame[1] < siblings.size()) {
+                    int child = siblings.get(frame[1]++);
+                    visited[child] = true;
+                    enter[child] = clock++;
+                    stack.push(new int[] {child, 0});
+                } else {
+                    exit[frame[0]] = clock++;
+                    stack.pop();
+                }
+            }
+        }
+        // domains caught in a parent cycle are never reached from a root, leave them out so the
+        // callers fall back to the database for them
+        for (int i = 0; i < visited.length; i++) {
+            if (!visited[i]) {
+                indexById.remove(byIndex.get(i).getId());
+            }
+        }
+        return new DomainTree(indexById, enter, exit);
+    }
+
+    public boolean contains(long domainId) {
+        return _indexById.containsKey(domainId);
+    }
+
+    public int size() {
+        return _indexById.size();
+    }
+
+    /**
+     * @return true if childId is parentId or one of its descendants, false otherwise or if
+     *         either of the domains is not part of this snapshot
+     */
+    public boolean isChildDomain(long parentId, long childId) {
+        Integer parent = _indexById.get(parentId);
+        Integer child = _indexById.get(childId);
+        if (parent == null || child == null) {
+            return false;
+        }
+        return _enter[parent] <= _enter[child] && _exit[child] <= _exit[parent];
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,6 +33,7 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -62,6 +64,7 @@ import org.apache.cloudstack.api.command.user.vm.RestoreVMCmd;
 import org.apache.cloudstack.api.command.user.vm.ScaleVMCmd;
 import org.apache.cloudstack.api.command.user.vm.SecurityGroupAction;
 import org.apache.cloudstack.api.command.user.vm.StartVMCmd;
+import org.apache.cloudstack.api.command.user.vm.StartVMsCmd;
 import org.apache.cloudstack.api.command.user.vm.UpdateDefaultNicForVMCmd;
 import org.apache.cloudstack.api.command.user.vm.UpdateVMCmd;
 import org.apache.cloudstack.api.command.user.vm.UpdateVmNicIpCmd;
@@ -86,6 +89,7 @@ import org.apache.cloudstack.framework.async.AsyncCallFuture;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.jobs.AsyncJobExecutionContext;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.query.QueryService;
 import org.apache.cloudstack.storage.command.DeleteCommand;
@@ -152,6 +156,7 @@ import com.cloud.deploy.DeploymentPlanner;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.deploy.DeploymentPlanningManager;
 import com.cloud.deploy.PlannerHostReservationVO;
+import com.cloud.deploy.PlanningTrace;
 import com.cloud.deploy.dao.PlannerHostReservationDao;
 import com.cloud.domain.Domain;
 import com.cloud.domain.DomainVO;
@@ -492,6 +497,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     private boolean _dailyOrHourly = false;
     private int capacityReleaseInterval;
     private ExecutorService _vmIpFetchThreadExecutor;
+    private ExecutorService _batchStartExecutor;
 
 
     private String _instance;
@@ -528,6 +534,9 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
 
     private static final ConfigKey<Boolean> EnableAdditionalVmConfig = new ConfigKey<>("Advanced", Boolean.class, "enable.additional.vm.configuration",
             "false", "allow additional arbitrary configuration to vm", true, ConfigKey.Scope.Account);
+    private static final ConfigKey<Integer> VmBatchStartConcurrency = new ConfigKey<Integer>("Advanced", Integer.class, "vm.batch.start.concurrency", "10",
+            "The number of VMs started at the same time by a batch start, after their deployment is planned", false);
+
     private static final ConfigKey<Boolean> VmDestroyForcestop = new ConfigKey<Boolean>("Advanced", Boolean.class, "vm.destroy.forcestop", "false",
             "On destroy, force-stop takes this value ", true);
 
@@ -2102,6 +2111,8 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
 
         _vmIpFetchThreadExecutor = Executors.newFixedThreadPool(VmIpFetchThreadPoolMax.value(), new NamedThreadFactory("vmIpFetchThread"));
 
+        _batchStartExecutor = Executors.newFixedThreadPool(VmBatchStartConcurrency.value(), new NamedThreadFactory("UserVm-BatchStart"));
+
         s_logger.info("User VM Manager is configured.");
 
         return true;
@@ -2150,6 +2161,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     public boolean stop() {
         _executor.shutdown();
         _vmIpFetchExecutor.shutdown();
+        _batchStartExecutor.shutdown();
         return true;
     }
 
@@ -2760,6 +2772,90 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         return startVirtualMachine(cmd.getId(), cmd.getPodId(), cmd.getClusterId(), cmd.getHostId(), null, cmd.getDeploymentPlanner()).first();
     }
 
+    @Override
+    @ActionEvent(eventType = EventTypes.EVENT_VM_START, eventDescription = "starting Vms", async = true)
+    public List<Pair<UserVm, String>> startVirtualMachines(StartVMsCmd cmd) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        final Account caller = CallContext.current().getCallingAccount();
+        final User callerUser = CallContext.current().getCallingUser();
+        final String deploymentPlannerToUse = cmd.getDeploymentPlanner();
+
+        DeploymentPlanner planner = null;
+        if (deploymentPlannerToUse != null) {
+            planner = _planningMgr.getDeploymentPlannerByName(deploymentPlannerToUse);
+            if (planner == null) {
+                throw new InvalidParameterValueException("Can't find a planner by name " + deploymentPlannerToUse);
+            }
+        }
+
+        // VMs that were started before go back to their last host or the storage of their volumes, the planner is
+        // left to place them one by one
+        List<VirtualMachineProfile> vmProfiles = new ArrayList<VirtualMachineProfile>();
+        final List<Long> vmIds = new ArrayList<Long>(new LinkedHashSet<Long>(cmd.getIds()));
+        for (Long vmId : vmIds) {
+            UserVmVO vm = _vmDao.findById(vmId);
+            if (vm == null) {
+                throw new InvalidParameterValueException("unable to find a virtual machine with id " + vmId);
+            }
+            _accountMgr.checkAccess(caller, null, true, vm);
+            if (vm.getState() != State.Stopped) {
+                throw new InvalidParameterValueException("VM " + vm.getUuid() + " is not in the Stopped state, it cannot be started with the others");
+            }
+            if (vm.getLastHostId() == null && _volsDao.findReadyRootVolumesByInstance(vm.getId()).isEmpty()) {
+                ServiceOffering offering = _serviceOfferingDao.findByIdIncludingRemoved(vm.getId(), vm.getServiceOfferingId());
+                vmProfiles.add(new VirtualMachineProfileImpl(vm, null, offering, null, null));
+            }
+        }
+
+        final Map<Long, String> reservations = vmProfiles.isEmpty() ? new HashMap<Long, String>() : _planningMgr.planAndReserveDeployments(vmProfiles, planner);
+        s_logger.debug("Planned the deployment of " + reservations.size() + " of " + vmIds.size() + " VMs together, starting them");
+
+        // the VMs are started as part of this job, the work jobs of their starts are joined to it
+        final AsyncJobExecutionContext jobContext = AsyncJobExecutionContext.getCurrent();
+        final Map<Long, UserVm> started = new ConcurrentHashMap<Long, UserVm>();
+        final Map<Long, String> failures = new ConcurrentHashMap<Long, String>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Long vmId : vmIds) {
+            futures.add(_batchStartExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        CallContext.register(callerUser, caller);
+                        AsyncJobExecutionContext.setCurrentExecutionContext(jobContext);
+                        started.put(vmId, startVirtualMachine(vmId, null, null, null, null, deploymentPlannerToUse, reservations.get(vmId)).first());
+                    } catch (Exception e) {
+                        s_logger.warn("Unable to start VM " + vmId + " of the batch", e);
+                        failures.put(vmId, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+                    } finally {
+                        AsyncJobExecutionContext.setCurrentExecutionContext(null);
+                        CallContext.unregister();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | java.util.concurrent.ExecutionException e) {
+                s_logger.warn("Interrupted while waiting for the VMs of the batch to start", e);
+            }
+        }
+
+        if (started.isEmpty()) {
+            throw new CloudRuntimeException("Unable to start any of the " + vmIds.size() + " VMs");
+        }
+        // the VMs that did not start are returned as they are now, with the reason
+        List<Pair<UserVm, String>> result = new ArrayList<Pair<UserVm, String>>();
+        for (Long vmId : vmIds) {
+            if (started.containsKey(vmId)) {
+                result.add(new Pair<UserVm, String>(started.get(vmId), null));
+            } else {
+                String failure = failures.get(vmId);
+                result.add(new Pair<UserVm, String>(_vmDao.findById(vmId), failure != null ? failure : "The start of the VM did not complete"));
+            }
+        }
+        return result;
+    }
+
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_VM_REBOOT, eventDescription = "rebooting Vm", async = true)
     public UserVm rebootVirtualMachine(RebootVMCmd cmd) throws InsufficientCapacityException, ResourceUnavailableException {
@@ -4503,6 +4599,15 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Override
     public Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long podId, Long clusterId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams, String deploymentPlannerToUse)
             throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        return startVirtualMachine(vmId, podId, clusterId, hostId, additionalParams, deploymentPlannerToUse, null);
+    }
+
+    /**
+     * Starts the VM, on the destination of the given reservation when there is one, the planner finds a destination
+     * for the VM otherwise.
+     */
+    private Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long podId, Long clusterId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams, String deploymentPlannerToUse,
+            String reservationId) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
         // Input validation
         final Account callerAccount = CallContext.current().getCallingAccount();
         UserVO callerUser = _userDao.findById(CallContext.current().getCallingUserId());
@@ -4618,7 +4723,9 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
             }
         }
 
-        String reservationId = vmEntity.reserve(planner, plan, new ExcludeList(), Long.toString(callerUser.getId()));
+        if (reservationId == null) {
+            reservationId = vmEntity.reserve(planner, plan, new ExcludeList(), Long.toString(callerUser.getId()));
+        }
         vmEntity.deploy(reservationId, Long.toString(callerUser.getId()), params, deployOnGivenHost);
 
         Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> vmParamPair = new Pair(vm, params);
@@ -5182,6 +5289,11 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         return _vmDao.findById(vmId);
     }
 
+    @Override
+    public List<PlanningTrace> getPlanningTraces(long vmId) {
+        return _planningMgr.getPlanningTraces(vmId);
+    }
+
     @Override
     public VirtualMachine vmStorageMigration(Long vmId, StoragePool destPool) {
         // access check - only root admin can migrate VM
@@ -6671,7 +6783,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {EnableDynamicallyScaleVm, AllowUserExpungeRecoverVm, VmIpFetchWaitInterval, VmIpFetchTrialMax, VmIpFetchThreadPoolMax,
-            VmIpFetchTaskWorkers, AllowDeployVmIfGivenHostFails, EnableAdditionalVmConfig};
+            VmIpFetchTaskWorkers, AllowDeployVmIfGivenHostFails, EnableAdditionalVmConfig, VmBatchStartConcurrency};
     }
 
     @Override
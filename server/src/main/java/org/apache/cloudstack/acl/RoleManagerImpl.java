@@ -38,10 +38,13 @@ import org.apache.cloudstack.api.command.admin.acl.UpdateRolePermissionCmd;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.event.ActionEvent;
 import com.cloud.event.EventTypes;
 import com.cloud.exception.PermissionDeniedException;
@@ -68,6 +71,10 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
     private RolePermissionsDao rolePermissionsDao;
     @Inject
     private AccountManager accountManager;
+    @Inject
+    private MessageBus messageBus;
+    @Inject
+    private ClusterManager clusterManager;
 
     private void checkCallerAccess() {
         if (!isEnabled()) {
@@ -83,6 +90,14 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
         }
     }
 
+    /**
+     * Lets the API access checkers of this and the peer management servers drop what they compiled from the role.
+     */
+    protected void notifyRolePermissionsChanged(final long roleId) {
+        messageBus.publish(getName(), MESSAGE_ROLE_PERMISSIONS_CHANGED_EVENT, PublishScope.LOCAL, roleId);
+        clusterManager.publishEvent(MESSAGE_ROLE_PERMISSIONS_CHANGED_EVENT, String.valueOf(roleId));
+    }
+
     @Override
     public boolean isEnabled() {
         return RoleService.EnableDynamicApiChecker.value();
@@ -174,6 +189,7 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
         }
 
         roleDao.update(role.getId(), roleVO);
+        notifyRolePermissionsChanged(role.getId());
         return role;
     }
 
@@ -189,7 +205,7 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
         }
         List<? extends Account> accounts = accountDao.findAccountsByRole(role.getId());
         if (accounts == null || accounts.size() == 0) {
-            return Transaction.execute(new TransactionCallback<Boolean>() {
+            boolean deleted = Transaction.execute(new TransactionCallback<Boolean>() {
                 @Override
                 public Boolean doInTransaction(TransactionStatus status) {
                     List<? extends RolePermission> rolePermissions = rolePermissionsDao.findAllByRoleIdSorted(role.getId());
@@ -206,6 +222,8 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
                     return false;
                 }
             });
+            notifyRolePermissionsChanged(role.getId());
+            return deleted;
         }
         throw new PermissionDeniedException("Found accounts that have role in use, won't allow to delete role");
     }
@@ -214,32 +232,49 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
     @ActionEvent(eventType = EventTypes.EVENT_ROLE_PERMISSION_CREATE, eventDescription = "creating Role Permission")
     public RolePermission createRolePermission(final Role role, final Rule rule, final RolePermission.Permission permission, final String description) {
         checkCallerAccess();
-        return Transaction.execute(new TransactionCallback<RolePermissionVO>() {
+        RolePermission rolePermission = Transaction.execute(new TransactionCallback<RolePermissionVO>() {
             @Override
             public RolePermissionVO doInTransaction(TransactionStatus status) {
                 return rolePermissionsDao.persist(new RolePermissionVO(role.getId(), rule.toString(), permission, description));
             }
         });
+        notifyRolePermissionsChanged(role.getId());
+        return rolePermission;
     }
 
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_ROLE_PERMISSION_UPDATE, eventDescription = "updating Role Permission order")
     public boolean updateRolePermission(final Role role, final List<RolePermission> newOrder) {
         checkCallerAccess();
-        return role != null && newOrder != null && rolePermissionsDao.update(role, newOrder);
+        if (role == null || newOrder == null) {
+            return false;
+        }
+        boolean updated = rolePermissionsDao.update(role, newOrder);
+        notifyRolePermissionsChanged(role.getId());
+        return updated;
     }
 
     @Override
     public boolean updateRolePermission(Role role, RolePermission rolePermission, RolePermission.Permission permission) {
         checkCallerAccess();
-        return role != null && rolePermissionsDao.update(role, rolePermission, permission);
+        if (role == null) {
+            return false;
+        }
+        boolean updated = rolePermissionsDao.update(role, rolePermission, permission);
+        notifyRolePermissionsChanged(role.getId());
+        return updated;
     }
 
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_ROLE_PERMISSION_DELETE, eventDescription = "deleting Role Permission")
     public boolean deleteRolePermission(final RolePermission rolePermission) {
         checkCallerAccess();
-        return rolePermission != null && rolePermissionsDao.remove(rolePermission.getId());
+        if (rolePermission == null) {
+            return false;
+        }
+        boolean removed = rolePermissionsDao.remove(rolePermission.getId());
+        notifyRolePermissionsChanged(rolePermission.getRoleId());
+        return removed;
     }
 
     @Override
@@ -0,0 +1,744 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.affinity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
+import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.engine.cloud.entity.api.db.VMReservationVO;
+import org.apache.cloudstack.engine.cloud.entity.api.db.dao.VMReservationDao;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.configuration.Config;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachine.Event;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * The VMs of a group are looked up when the group is first asked for, after that the hosts they are on are kept up to
+ * date from the transitions of the VMs through the VM state machine. The groups are also looked up again
+ * periodically, which picks up the VMs started and stopped by the other management servers; how many VMs of the
+ * indexed groups were found on another host than the index had them on is counted as drift.
+ *
+ * The claims of the VMs that are being planned are only known to this management server. The reservations of the VMs
+ * are looked up with the VMs of the group, which happens again whenever the group is refreshed at a placement version
+ * another management server moved it on to.
+ */
+public class AffinityGroupHostIndexImpl extends ManagerBase implements AffinityGroupHostIndex, Configurable {
+    private static final Logger s_logger = Logger.getLogger(AffinityGroupHostIndexImpl.class);
+
+    static final ConfigKey<Integer> AffinityGroupHostIndexReconcileInterval = new ConfigKey<Integer>("Advanced", Integer.class,
+            "affinity.group.host.index.reconcile.interval", "60",
+            "Interval in seconds to look up the VMs of the affinity groups the processors use again from the database, 0 to have them looked up on every call instead",
+            false);
+
+    /**
+     * Where a VM of a group is, a VM that is on no host has no host id.
+     */
+    static class Placement {
+        private final Long hostId;
+        private final Long clusterId;
+        private final long expires;
+        private final long placed;
+
+        Placement(Long hostId, Long clusterId, long expires) {
+            this.hostId = hostId;
+            this.clusterId = clusterId;
+            this.expires = expires;
+            placed = System.nanoTime();
+        }
+
+        boolean isOnHost(long now) {
+            return hostId != null && expires > now;
+        }
+    }
+
+    static final long UNKNOWN_PLACEMENT_VERSION = -1;
+
+    /**
+     * The VMs of a group, the hosts they are on, reserved and claimed, guarded by the group.
+     */
+    static class GroupHosts {
+        private final long groupId;
+        private final Set<Long> vmIds = new HashSet<Long>();
+        private final Map<Long, Placement> placements = new HashMap<Long, Placement>();
+        private final Map<Long, Set<Long>> vmsOnHosts = new HashMap<Long, Set<Long>>();
+        private final Map<Long, Placement> claims = new HashMap<Long, Placement>();
+        private final Map<Long, Long> claimedHosts = new HashMap<Long, Long>();
+        private final Map<Long, Placement> reservations = new HashMap<Long, Placement>();
+        private volatile long placementVersion = UNKNOWN_PLACEMENT_VERSION;
+        private volatile boolean wasLoaded;
+        private volatile long loaded;
+        private volatile long invalidated = System.nanoTime();
+
+        GroupHosts(long groupId) {
+            this.groupId = groupId;
+        }
+
+        boolean isCurrent() {
+            return wasLoaded && invalidated - loaded < 0;
+        }
+
+        synchronized boolean addVm(long vmId) {
+            return vmIds.add(vmId);
+        }
+
+        synchronized void removeVm(long vmId) {
+            vmIds.remove(vmId);
+            place(vmId, null);
+            started(vmId);
+        }
+
+        synchronized void place(long vmId, Placement placement) {
+            Placement previous = placement != null ? placements.put(vmId, placement) : placements.remove(vmId);
+            if (previous != null && previous.hostId != null) {
+                Set<Long> vmsOnHost = vmsOnHosts.get(previous.hostId);
+                if (vmsOnHost != null) {
+                    vmsOnHost.remove(vmId);
+                    if (vmsOnHost.isEmpty()) {
+                        vmsOnHosts.remove(previous.hostId);
+                    }
+                }
+            }
+            if (placement != null && placement.hostId != null) {
+                Set<Long> vmsOnHost = vmsOnHosts.get(placement.hostId);
+                if (vmsOnHost == null) {
+                    vmsOnHost = new HashSet<Long>();
+                    vmsOnHosts.put(placement.hostId, vmsOnHost);
+                }
+                vmsOnHost.add(vmId);
+            }
+        }
+
+        synchronized Placement getPlacement(long vmId) {
+            return placements.get(vmId);
+        }
+
+        synchronized boolean claim(long vmId, Placement claim, long now) {
+            Long claimedBy = claimedHosts.get(claim.hostId);
+            if (claimedBy != null && claimedBy != vmId) {
+                return false;
+            }
+            if (isOccupiedByOthers(claim.hostId, vmId, now) || isReservedByOthers(claim.hostId, vmId)) {
+                return false;
+            }
+            release(vmId);
+            claims.put(vmId, claim);
+            claimedHosts.put(claim.hostId, vmId);
+            return true;
+        }
+
+        synchronized void release(long vmId) {
+            Placement claim = claims.remove(vmId);
+            if (claim != null) {
+                claimedHosts.remove(claim.hostId);
+            }
+        }
+
+        /**
+         * Releases the claim of a VM that is no longer starting, its reservation is gone as well.
+         */
+        synchronized void started(long vmId) {
+            release(vmId);
+            reservations.remove(vmId);
+        }
+
+        synchronized long getPlacementVersion() {
+            return placementVersion;
+        }
+
+        synchronized void advance(long fromPlacementVersion) {
+            if (placementVersion == fromPlacementVersion) {
+                placementVersion = fromPlacementVersion + 1;
+            }
+        }
+
+        private boolean isReservedByOthers(long hostId, long vmId) {
+            for (Map.Entry<Long, Placement> reservation : reservations.entrySet()) {
+                if (reservation.getKey() != vmId && reservation.getValue().hostId == hostId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isOccupiedByOthers(long hostId, long vmId, long now) {
+            Set<Long> vmsOnHost = vmsOnHosts.get(hostId);
+            if (vmsOnHost != null) {
+                for (Long vmOnHost : vmsOnHost) {
+                    if (vmOnHost != vmId && placements.get(vmOnHost).isOnHost(now)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        synchronized Set<Long> getOccupiedHosts(long vmId, long now) {
+            Set<Long> hostIds = new HashSet<Long>();
+            for (Long hostId : vmsOnHosts.keySet()) {
+                if (isOccupiedByOthers(hostId, vmId, now)) {
+                    hostIds.add(hostId);
+                }
+            }
+            for (Map.Entry<Long, Long> claimed : claimedHosts.entrySet()) {
+                if (claimed.getValue() != vmId) {
+                    hostIds.add(claimed.getKey());
+                }
+            }
+            for (Map.Entry<Long, Placement> reservation : reservations.entrySet()) {
+                if (reservation.getKey() != vmId) {
+                    hostIds.add(reservation.getValue().hostId);
+                }
+            }
+            return hostIds;
+        }
+
+        synchronized Set<Long> getOccupiedClusters(long vmId, long now) {
+            Set<Long> clusterIds = new HashSet<Long>();
+            for (Map.Entry<Long, Set<Long>> vmsOnHost : vmsOnHosts.entrySet()) {
+                for (Long vmOnHost : vmsOnHost.getValue()) {
+                    Placement placement = placements.get(vmOnHost);
+                    if (vmOnHost != vmId && placement.isOnHost(now) && placement.clusterId != null) {
+                        clusterIds.add(placement.clusterId);
+                        break;
+                    }
+                }
+            }
+            for (Map.Entry<Long, Placement> claim : claims.entrySet()) {
+                if (claim.getKey() != vmId && claim.getValue().clusterId != null) {
+                    clusterIds.add(claim.getValue().clusterId);
+                }
+            }
+            for (Map.Entry<Long, Placement> reservation : reservations.entrySet()) {
+                if (reservation.getKey() != vmId && reservation.getValue().clusterId != null) {
+                    clusterIds.add(reservation.getValue().clusterId);
+                }
+            }
+            return clusterIds;
+        }
+
+        /**
+         * Replaces the VMs of the group, where they are and their reservations with what was looked up in the database
+         * at the placement version, the VMs that moved since the lookup started are kept where they are now. The claims
+         * are kept.
+         *
+         * @return the number of VMs the group had on another host than the database
+         */
+        synchronized int reload(long started, long placementVersionInDb, Collection<Long> vmIdsInDb, Map<Long, Placement> placementsInDb,
+                Map<Long, Placement> reservationsInDb, Set<Long> removedVmIds) {
+            for (Long vmId : vmIds) {
+                if (!vmIdsInDb.contains(vmId)) {
+                    removedVmIds.add(vmId);
+                }
+            }
+            vmIds.clear();
+            vmIds.addAll(vmIdsInDb);
+            int drifted = 0;
+            for (Long vmId : new ArrayList<Long>(placements.keySet())) {
+                Placement indexed = placements.get(vmId);
+                if (indexed.placed - started < 0 && !placementsInDb.containsKey(vmId)) {
+                    place(vmId, null);
+                    if (indexed.hostId != null && wasLoaded) {
+                        drifted++;
+                    }
+                }
+            }
+            for (Map.Entry<Long, Placement> placement : placementsInDb.entrySet()) {
+                Placement indexed = placements.get(placement.getKey());
+                if (indexed == null || indexed.placed - started < 0) {
+                    if (wasLoaded && (indexed == null || !Objects.equals(indexed.hostId, placement.getValue().hostId))) {
+                        drifted++;
+                    }
+                    place(placement.getKey(), placement.getValue());
+                }
+            }
+            reservations.clear();
+            for (Map.Entry<Long, Placement> reservation : reservationsInDb.entrySet()) {
+                Placement indexed = placements.get(reservation.getKey());
+                if (indexed == null || indexed.placed - started < 0) {
+                    reservations.put(reservation.getKey(), reservation.getValue());
+                }
+            }
+            placementVersion = placementVersionInDb;
+            loaded = started;
+            wasLoaded = true;
+            return drifted;
+        }
+
+        synchronized boolean isUnused() {
+            return vmIds.isEmpty() && claims.isEmpty();
+        }
+    }
+
+    @Inject
+    AffinityGroupDao _affinityGroupDao;
+    @Inject
+    AffinityGroupVMMapDao _affinityGroupVMMapDao;
+    @Inject
+    VMReservationDao _reservationDao;
+    @Inject
+    VMInstanceDao _vmInstanceDao;
+    @Inject
+    HostDao _hostDao;
+    @Inject
+    ConfigurationDao _configDao;
+
+    private final ConcurrentMap<Long, GroupHosts> _groups = new ConcurrentHashMap<Long, GroupHosts>();
+    private final ConcurrentMap<Long, Set<Long>> _groupsOfVms = new ConcurrentHashMap<Long, Set<Long>>();
+    private final ConcurrentMap<Long, Long> _clustersOfHosts = new ConcurrentHashMap<Long, Long>();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _reconciliations = new AtomicLong();
+    private final AtomicLong _driftedVms = new AtomicLong();
+    private final AtomicLong _refusedClaims = new AtomicLong();
+
+    private int _reconcileInterval;
+    private int _vmCapacityReleaseInterval;
+    private ScheduledExecutorService _executor;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _reconcileInterval = AffinityGroupHostIndexReconcileInterval.value();
+        _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
+        VirtualMachine.State.getStateMachine().registerListener(new VmPlacementListener());
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        if (_reconcileInterval > 0) {
+            _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AffinityGroupHostIndex"));
+            _executor.scheduleWithFixedDelay(new ReconcileTask(), _reconcileInterval, _reconcileInterval, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _reconcileInterval > 0;
+    }
+
+    void setReconcileInterval(int reconcileInterval) {
+        _reconcileInterval = reconcileInterval;
+    }
+
+    void setVmCapacityReleaseInterval(int vmCapacityReleaseInterval) {
+        _vmCapacityReleaseInterval = vmCapacityReleaseInterval;
+    }
+
+    @Override
+    public Set<Long> getOccupiedHosts(long groupId, long vmId) {
+        return getGroupOfVm(groupId, vmId).getOccupiedHosts(vmId, now());
+    }
+
+    @Override
+    public Set<Long> getOccupiedClusters(long groupId, long vmId) {
+        return getGroupOfVm(groupId, vmId).getOccupiedClusters(vmId, now());
+    }
+
+    @Override
+    public boolean claimHost(long groupId, long vmId, long hostId) {
+        GroupHosts group = getGroupOfVm(groupId, vmId);
+        if (group.claim(vmId, new Placement(hostId, getClusterOfHost(hostId), Long.MAX_VALUE), now())) {
+            return true;
+        }
+        _refusedClaims.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public void refresh(long groupId, long placementVersion) {
+        GroupHosts group = getGroup(groupId);
+        if (group.getPlacementVersion() != placementVersion) {
+            _misses.incrementAndGet();
+            load(group, placementVersion);
+        }
+    }
+
+    @Override
+    public void advance(long groupId, long placementVersion) {
+        GroupHosts group = _groups.get(groupId);
+        if (group != null) {
+            group.advance(placementVersion);
+        }
+    }
+
+    @Override
+    public void releaseClaims(long vmId) {
+        Set<Long> groupIds = _groupsOfVms.get(vmId);
+        if (groupIds == null) {
+            return;
+        }
+        for (Long groupId : groupIds) {
+            GroupHosts group = _groups.get(groupId);
+            if (group != null) {
+                group.release(vmId);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(long groupId) {
+        GroupHosts group = _groups.get(groupId);
+        if (group != null) {
+            group.invalidated = System.nanoTime();
+            _invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the group, with the VM known to be one of its VMs so its transitions are followed
+     */
+    private GroupHosts getGroupOfVm(long groupId, long vmId) {
+        GroupHosts group = getGroup(groupId);
+        if (group.addVm(vmId)) {
+            addGroupOfVm(vmId, groupId);
+        }
+        return group;
+    }
+
+    private GroupHosts getGroup(long groupId) {
+        GroupHosts group = _groups.get(groupId);
+        if (group == null) {
+            GroupHosts created = new GroupHosts(groupId);
+            group = _groups.putIfAbsent(groupId, created);
+            if (group == null) {
+                group = created;
+            }
+        }
+        if (group.isCurrent()) {
+            _hits.incrementAndGet();
+            return group;
+        }
+        _misses.incrementAndGet();
+        load(group, readPlacementVersion(groupId));
+        return group;
+    }
+
+    private long readPlacementVersion(long groupId) {
+        Long placementVersion = _affinityGroupDao.listPlacementVersions(Collections.singletonList(groupId)).get(groupId);
+        return placementVersion != null ? placementVersion : UNKNOWN_PLACEMENT_VERSION;
+    }
+
+    /**
+     * Looks up the VMs of the group, where they are and their reservations, the placement version has to be read before
+     * so that what is looked up is at least as new as the version.
+     */
+    private int load(GroupHosts group, long placementVersion) {
+        long started = System.nanoTime();
+        List<Long> vmIds = _affinityGroupVMMapDao.listVmIdsByAffinityGroup(group.groupId);
+        Map<Long, Placement> placements = lookUpPlacements(vmIds);
+        Map<Long, Placement> reservations = lookUpReservations(vmIds);
+        Set<Long> removedVmIds = new HashSet<Long>();
+        int drifted = group.reload(started, placementVersion, vmIds, placements, reservations, removedVmIds);
+        for (Long vmId : vmIds) {
+            addGroupOfVm(vmId, group.groupId);
+        }
+        for (Long vmId : removedVmIds) {
+            Set<Long> groupIds = _groupsOfVms.get(vmId);
+            if (groupIds != null) {
+                groupIds.remove(group.groupId);
+            }
+        }
+        return drifted;
+    }
+
+    private void addGroupOfVm(long vmId, long groupId) {
+        Set<Long> groupIds = _groupsOfVms.get(vmId);
+        if (groupIds == null) {
+            Set<Long> created = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            groupIds = _groupsOfVms.putIfAbsent(vmId, created);
+            if (groupIds == null) {
+                groupIds = created;
+            }
+        }
+        groupIds.add(groupId);
+    }
+
+    /**
+     * Looks up where the VMs are, with one query for the VMs and one for the clusters of their hosts not known yet.
+     */
+    Map<Long, Placement> lookUpPlacements(List<Long> vmIds) {
+        Map<Long, Placement> placements = new HashMap<Long, Placement>();
+        if (vmIds.isEmpty()) {
+            return placements;
+        }
+        SearchCriteria<VMInstanceVO> sc = _vmInstanceDao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.IN, vmIds.toArray());
+        List<VMInstanceVO> vms = _vmInstanceDao.search(sc, null);
+
+        Set<Long> hostIds = new HashSet<Long>();
+        for (VMInstanceVO vm : vms) {
+            Long hostId = getHostOf(vm, vm.getState());
+            if (hostId != null && !_clustersOfHosts.containsKey(hostId)) {
+                hostIds.add(hostId);
+            }
+        }
+        if (!hostIds.isEmpty()) {
+            SearchCriteria<HostVO> hostSc = _hostDao.createSearchCriteria();
+            hostSc.addAnd("id", SearchCriteria.Op.IN, hostIds.toArray());
+            for (HostVO host : _hostDao.search(hostSc, null)) {
+                if (host.getClusterId() != null) {
+                    _clustersOfHosts.put(host.getId(), host.getClusterId());
+                }
+            }
+        }
+
+        for (VMInstanceVO vm : vms) {
+            Long hostId = getHostOf(vm, vm.getState());
+            if (hostId == null) {
+                continue;
+            }
+            long expires = Long.MAX_VALUE;
+            if (vm.getHostId() == null) {
+                expires = vm.getUpdateTime() != null ? vm.getUpdateTime().getTime() + _vmCapacityReleaseInterval * 1000L : 0;
+            }
+            placements.put(vm.getId(), new Placement(hostId, _clustersOfHosts.get(hostId), expires));
+        }
+        return placements;
+    }
+
+    /**
+     * Looks up the hosts the VMs are reserved on with one query.
+     */
+    Map<Long, Placement> lookUpReservations(List<Long> vmIds) {
+        Map<Long, Placement> reservations = new HashMap<Long, Placement>();
+        if (vmIds.isEmpty()) {
+            return reservations;
+        }
+        SearchCriteria<VMReservationVO> sc = _reservationDao.createSearchCriteria();
+        sc.addAnd("vmId", SearchCriteria.Op.IN, vmIds.toArray());
+        for (VMReservationVO reservation : _reservationDao.search(sc, null)) {
+            if (reservation.getHostId() != null) {
+                reservations.put(reservation.getVmId(), new Placement(reservation.getHostId(), reservation.getClusterId(), Long.MAX_VALUE));
+            }
+        }
+        return reservations;
+    }
+
+    /**
+     * @return the host the VM is on, the last host for a stopped VM that may still have capacity reserved on it
+     */
+    private static Long getHostOf(VirtualMachine vm, State state) {
+        if (vm.getHostId() != null) {
+            return vm.getHostId();
+        }
+        return state == State.Stopped ? vm.getLastHostId() : null;
+    }
+
+    private Long getClusterOfHost(long hostId) {
+        Long clusterId = _clustersOfHosts.get(hostId);
+        if (clusterId == null) {
+            HostVO host = _hostDao.findById(hostId);
+            if (host != null && host.getClusterId() != null) {
+                clusterId = host.getClusterId();
+                _clustersOfHosts.put(hostId, clusterId);
+            }
+        }
+        return clusterId;
+    }
+
+    private static long now() {
+        return DateUtil.currentGMTTime().getTime();
+    }
+
+    /**
+     * Looks up the VMs of the indexed groups again, the VMs that moved since the reconciliation started are kept where
+     * they are.
+     */
+    public void reconcile() {
+        long started = System.nanoTime();
+        int drifted = 0;
+        Map<Long, Long> placementVersions = _affinityGroupDao.listPlacementVersions(new ArrayList<Long>(_groups.keySet()));
+        for (Iterator<GroupHosts> it = _groups.values().iterator(); it.hasNext();) {
+            GroupHosts group = it.next();
+            Long placementVersion = placementVersions.get(group.groupId);
+            drifted += load(group, placementVersion != null ? placementVersion : UNKNOWN_PLACEMENT_VERSION);
+            if (group.isUnused()) {
+                it.remove();
+            }
+        }
+        _driftedVms.addAndGet(drifted);
+        _reconciliations.incrementAndGet();
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reconciled the host index of " + _groups.size() + " affinity groups with the database in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms, " + drifted + " VMs had moved");
+        }
+    }
+
+    public int size() {
+        return _groups.size();
+    }
+
+    /**
+     * @return the number of lookups answered from the index
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * @return the number of lookups that looked up the VMs of the group in the database
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    public long getReconciliations() {
+        return _reconciliations.get();
+    }
+
+    /**
+     * @return the number of times a reconciliation found a VM of a group on another host than the index had it on
+     */
+    public long getDriftedVms() {
+        return _driftedVms.get();
+    }
+
+    /**
+     * @return the number of claims refused because another VM of the group was on or had claimed the host
+     */
+    public long getRefusedClaims() {
+        return _refusedClaims.get();
+    }
+
+    /**
+     * Moves the VMs of the indexed groups to the host they are on after a transition, and releases their claims and
+     * reservations when they are no longer starting.
+     */
+    class VmPlacementListener implements StateListener<State, Event, VirtualMachine> {
+        @Override
+        public boolean preStateTransitionEvent(State oldState, Event event, State newState, VirtualMachine vm, boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<State, Event> transition, VirtualMachine vm, boolean status, Object opaque) {
+            if (!status) {
+                return false;
+            }
+            Set<Long> groupIds = _groupsOfVms.get(vm.getId());
+            if (groupIds == null || groupIds.isEmpty()) {
+                return true;
+            }
+            State newState = transition.getToState();
+            boolean removed = newState == State.Expunging || newState == State.Error;
+            boolean started = transition.getCurrentState() == State.Starting && newState != State.Starting;
+            for (Long groupId : groupIds) {
+                GroupHosts group = _groups.get(groupId);
+                if (group == null) {
+                    continue;
+                }
+                if (removed) {
+                    group.removeVm(vm.getId());
+                    continue;
+                }
+                group.place(vm.getId(), getPlacement(vm, newState, group.getPlacement(vm.getId())));
+                if (started) {
+                    group.started(vm.getId());
+                }
+            }
+            if (removed) {
+                _groupsOfVms.remove(vm.getId());
+            }
+            return true;
+        }
+
+        private Placement getPlacement(VirtualMachine vm, State state, Placement previous) {
+            Long hostId = getHostOf(vm, state);
+            if (hostId == null && state == State.Stopped && previous != null) {
+                hostId = previous.hostId;
+            }
+            if (hostId == null) {
+                return new Placement(null, null, 0);
+            }
+            long expires = vm.getHostId() == null ? now() + _vmCapacityReleaseInterval * 1000L : Long.MAX_VALUE;
+            return new Placement(hostId, getClusterOfHost(hostId), expires);
+        }
+    }
+
+    private class ReconcileTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                s_logger.warn("Failed to reconcile the affinity group host index with the database", e);
+            }
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return AffinityGroupHostIndex.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {AffinityGroupHostIndexReconcileInterval};
+    }
+}
@@ -85,6 +85,9 @@ public class AffinityGroupServiceImpl extends ManagerBase implements AffinityGro
     @Inject
     AffinityGroupDomainMapDao _affinityGroupDomainMapDao;
 
+    @Inject
+    AffinityGroupHostIndex _affinityGroupHostIndex;
+
     @Inject
     private UserVmDao _userVmDao;
 
@@ -316,6 +319,7 @@ public class AffinityGroupServiceImpl extends ManagerBase implements AffinityGro
 
                     _affinityGroupVMMapDao.lockRows(sc, null, true);
                     _affinityGroupVMMapDao.remove(sc);
+                    _affinityGroupHostIndex.invalidate(affinityGroupId);
                 }
 
                 // call processor to handle the group delete
@@ -470,7 +474,14 @@ public class AffinityGroupServiceImpl extends ManagerBase implements AffinityGro
                 }
             }
         }
+        List<Long> previousAffinityGroupIds = _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vmId);
         _affinityGroupVMMapDao.updateMap(vmId, affinityGroupIds);
+        for (Long affinityGroupId : previousAffinityGroupIds) {
+            _affinityGroupHostIndex.invalidate(affinityGroupId);
+        }
+        for (Long affinityGroupId : affinityGroupIds) {
+            _affinityGroupHostIndex.invalidate(affinityGroupId);
+        }
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Updated VM :" + vmId + " affinity groups to =" + affinityGroupIds);
         }
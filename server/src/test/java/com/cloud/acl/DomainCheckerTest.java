@@ -0,0 +1,105 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.acl;
+
+import org.apache.cloudstack.acl.ControlledEntity;
+import org.apache.cloudstack.context.CallContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.domain.Domain;
+import com.cloud.user.Account;
+import com.cloud.user.AccountService;
+import com.cloud.user.AccountVO;
+import com.cloud.user.DomainManager;
+import com.cloud.user.UserVO;
+import com.cloud.user.dao.AccountDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DomainCheckerTest {
+    @Mock
+    AccountDao _accountDao;
+    @Mock
+    AccountService _accountService;
+    @Mock
+    DomainManager _domainMgr;
+    @Mock
+    DedicatedResourceDao _dedicatedDao;
+
+    @InjectMocks
+    DomainChecker domainChecker = new DomainChecker();
+
+    private AccountVO account(long id, long domainId, short type) {
+        AccountVO account = new AccountVO("account" + id, domainId, null, type, "uuid" + id);
+        account.setId(id);
+        return account;
+    }
+
+    private DataCenter zone(long domainId) {
+        DataCenter zone = Mockito.mock(DataCenter.class);
+        Mockito.when(zone.getId()).thenReturn(1L);
+        Mockito.when(zone.getDomainId()).thenReturn(domainId);
+        return zone;
+    }
+
+    @After
+    public void cleanup() {
+        CallContext.unregisterAll();
+    }
+
+    @Test
+    public void testZoneAccessIsCheckedOnTheDomainTree() {
+        AccountVO user = account(10L, 3L, Account.ACCOUNT_TYPE_NORMAL);
+        AccountVO domainAdmin = account(11L, 3L, Account.ACCOUNT_TYPE_DOMAIN_ADMIN);
+        Mockito.when(_accountService.isNormalUser(10L)).thenReturn(true);
+        Mockito.when(_accountService.isDomainAdmin(11L)).thenReturn(true);
+        Mockito.when(_domainMgr.isChildDomain(2L, 3L)).thenReturn(true);
+        Mockito.when(_domainMgr.isChildDomain(3L, 4L)).thenReturn(true);
+
+        Assert.assertTrue("The account is in a subdomain of the zone", domainChecker.checkAccess(user, zone(2L)));
+        Assert.assertFalse("The zone is in a subdomain of the account", domainChecker.checkAccess(user, zone(4L)));
+        Assert.assertTrue(domainChecker.checkAccess(domainAdmin, zone(2L)));
+        Assert.assertTrue("A domain admin may use the zones of its subdomains", domainChecker.checkAccess(domainAdmin, zone(4L)));
+        Assert.assertFalse(domainChecker.checkAccess(domainAdmin, zone(5L)));
+    }
+
+    @Test
+    public void testOwnEntityAndCallerAreNotLookedUp() {
+        AccountVO caller = account(10L, 3L, Account.ACCOUNT_TYPE_NORMAL);
+        UserVO user = new UserVO(20L);
+        user.setAccountId(10L);
+        caller.setState(Account.State.enabled);
+        CallContext.register(user, caller);
+        Mockito.when(_accountService.isNormalUser(10L)).thenReturn(true);
+        ControlledEntity entity = Mockito.mock(ControlledEntity.class);
+        Mockito.when(entity.getAccountId()).thenReturn(10L);
+        Domain domain = Mockito.mock(Domain.class);
+        Mockito.when(domain.getId()).thenReturn(3L);
+
+        Assert.assertTrue(domainChecker.checkAccess(user, entity));
+        Assert.assertTrue(domainChecker.checkAccess(user, domain));
+        Mockito.verify(_accountDao, Mockito.never()).findById(Mockito.anyLong());
+    }
+}
@@ -0,0 +1,252 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.internal.stubbing.defaultanswers.ReturnsEmptyValues;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManagerImpl;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.resource.ResourceManager;
+import com.cloud.service.dao.ServiceOfferingDetailsDao;
+import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.GuestOSVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.GuestOSCategoryDao;
+import com.cloud.storage.dao.GuestOSDao;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * Places VMs on simulated hosts whose DAOs take a round trip to the database, with and without the capacity index.
+ */
+public class FirstFitAllocatorTest {
+
+    private static final int CLUSTERS = 4;
+    private static final long CPU = 4 * 2000;
+    private static final long MEMORY = 16L * 1024 * 1024 * 1024;
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final List<HostVO> hosts = new ArrayList<>();
+    private final List<CapacityVO> capacities = new ArrayList<>();
+    private FirstFitAllocator allocator;
+    private HostCapacityIndex index;
+    private ServiceOffering offering;
+    private VMTemplateVO template;
+
+    private Answer<Object> roundTrip(final Object result) {
+        return new Answer<Object>() {
+            private final Answer<Object> defaults = new ReturnsEmptyValues();
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                queries.incrementAndGet();
+                Thread.sleep(1);
+                return result != null ? result : defaults.answer(invocation);
+            }
+        };
+    }
+
+    @Before
+    public void setup() {
+        HostDao hostDao = Mockito.mock(HostDao.class, roundTrip(null));
+        CapacityDao capacityDao = Mockito.mock(CapacityDao.class, roundTrip(null));
+        ClusterDao clusterDao = Mockito.mock(ClusterDao.class, roundTrip(null));
+        ClusterDetailsDao clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class, roundTrip(null));
+        VMInstanceDao vmDao = Mockito.mock(VMInstanceDao.class, roundTrip(null));
+        HypervisorCapabilitiesDao hypervisorCapabilitiesDao = Mockito.mock(HypervisorCapabilitiesDao.class, roundTrip(null));
+        HostDetailsDao hostDetailsDao = Mockito.mock(HostDetailsDao.class, roundTrip(null));
+        GuestOSDao guestOSDao = Mockito.mock(GuestOSDao.class, roundTrip(null));
+        GuestOSCategoryDao guestOSCategoryDao = Mockito.mock(GuestOSCategoryDao.class, roundTrip(null));
+        ResourceManager resourceMgr = Mockito.mock(ResourceManager.class, roundTrip(null));
+        ServiceOfferingDetailsDao serviceOfferingDetailsDao = Mockito.mock(ServiceOfferingDetailsDao.class, roundTrip(null));
+
+        for (long id = 1; id <= CLUSTERS; id++) {
+            ClusterVO cluster = Mockito.mock(ClusterVO.class);
+            Mockito.when(cluster.getId()).thenReturn(id);
+            Mockito.doAnswer(roundTrip(cluster)).when(clusterDao).findById(id);
+            Mockito.doAnswer(roundTrip(new ClusterDetailsVO(id, "cpuOvercommitRatio", "2"))).when(clusterDetailsDao).findDetail(id, "cpuOvercommitRatio");
+            Mockito.doAnswer(roundTrip(new ClusterDetailsVO(id, "memoryOvercommitRatio", "1"))).when(clusterDetailsDao).findDetail(id, "memoryOvercommitRatio");
+        }
+        Mockito.doAnswer(roundTrip(5L)).when(vmDao).countActiveByHostId(Mockito.anyLong());
+        Mockito.doAnswer(roundTrip(50L)).when(hypervisorCapabilitiesDao).getMaxGuestsLimit(HypervisorType.KVM, "1");
+        Mockito.doAnswer(roundTrip(capacities)).when(capacityDao).listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        Mockito.doAnswer(new Answer<CapacityVO>() {
+            @Override
+            public CapacityVO answer(InvocationOnMock invocation) throws Throwable {
+                queries.incrementAndGet();
+                Thread.sleep(1);
+                long hostId = (Long)invocation.getArguments()[0];
+                short type = (Short)invocation.getArguments()[1];
+                for (CapacityVO capacity : capacities) {
+                    if (capacity.getHostOrPoolId() == hostId && capacity.getCapacityType() == type) {
+                        return capacity;
+                    }
+                }
+                return null;
+            }
+        }).when(capacityDao).findByHostIdType(Mockito.anyLong(), Mockito.anyShort());
+        Mockito.doAnswer(new Answer<HostVO>() {
+            @Override
+            public HostVO answer(InvocationOnMock invocation) throws Throwable {
+                queries.incrementAndGet();
+                Thread.sleep(1);
+                return hosts.get(((Long)invocation.getArguments()[0]).intValue() - 1);
+            }
+        }).when(hostDao).findById(Mockito.anyLong());
+
+        GuestOSVO guestOS = Mockito.mock(GuestOSVO.class);
+        Mockito.when(guestOS.getCategoryId()).thenReturn(1L);
+        Mockito.doAnswer(roundTrip(guestOS)).when(guestOSDao).findById(1L);
+        GuestOSCategoryVO guestOSCategory = Mockito.mock(GuestOSCategoryVO.class);
+        Mockito.when(guestOSCategory.getName()).thenReturn("Ubuntu");
+        Mockito.doAnswer(roundTrip(guestOSCategory)).when(guestOSCategoryDao).findById(1L);
+
+        CapacityManagerImpl capacityMgr = new CapacityManagerImpl();
+        ReflectionTestUtils.setField(capacityMgr, "_capacityDao", capacityDao);
+        ReflectionTestUtils.setField(capacityMgr, "_hostDao", hostDao);
+        ReflectionTestUtils.setField(capacityMgr, "_vmDao", vmDao);
+        ReflectionTestUtils.setField(capacityMgr, "_hypervisorCapabilitiesDao", hypervisorCapabilitiesDao);
+
+        index = new HostCapacityIndex();
+        ReflectionTestUtils.setField(index, "_capacityDao", capacityDao);
+        ReflectionTestUtils.setField(index, "_clusterDetailsDao", clusterDetailsDao);
+        ReflectionTestUtils.setField(index, "_vmDao", vmDao);
+        ReflectionTestUtils.setField(index, "_hypervisorCapabilitiesDao", hypervisorCapabilitiesDao);
+        ReflectionTestUtils.setField(index, "_hostDetailsDao", hostDetailsDao);
+        ReflectionTestUtils.setField(index, "_guestOSCategoryDao", guestOSCategoryDao);
+        ReflectionTestUtils.setField(index, "_resourceMgr", resourceMgr);
+
+        allocator = new FirstFitAllocator();
+        allocator._hostDao = hostDao;
+        allocator._capacityDao = capacityDao;
+        allocator._clusterDao = clusterDao;
+        allocator._clusterDetailsDao = clusterDetailsDao;
+        allocator._hostDetailsDao = hostDetailsDao;
+        allocator._guestOSDao = guestOSDao;
+        allocator._guestOSCategoryDao = guestOSCategoryDao;
+        allocator._resourceMgr = resourceMgr;
+        allocator._serviceOfferingDetailsDao = serviceOfferingDetailsDao;
+        allocator._capacityMgr = capacityMgr;
+        allocator._capacityIndex = index;
+        allocator._allocationAlgorithm = "firstfit";
+
+        offering = Mockito.mock(ServiceOffering.class);
+        Mockito.when(offering.getId()).thenReturn(1L);
+        Mockito.when(offering.getCpu()).thenReturn(2);
+        Mockito.when(offering.getSpeed()).thenReturn(1000);
+        Mockito.when(offering.getRamSize()).thenReturn(2048);
+        template = Mockito.mock(VMTemplateVO.class);
+        Mockito.when(template.getGuestOSId()).thenReturn(1L);
+    }
+
+    /**
+     * Adds hosts of which every third has no free CPU left.
+     */
+    private void addHosts(int count) {
+        hosts.clear();
+        capacities.clear();
+        for (long id = 1; id <= count; id++) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            Mockito.when(host.getClusterId()).thenReturn(id % CLUSTERS + 1);
+            Mockito.when(host.getCpus()).thenReturn(4);
+            Mockito.when(host.getSpeed()).thenReturn(2000L);
+            Mockito.when(host.getHypervisorType()).thenReturn(HypervisorType.KVM);
+            Mockito.when(host.getHypervisorVersion()).thenReturn("1");
+            hosts.add(host);
+            capacities.add(new CapacityVO(id, 1L, 1L, id % CLUSTERS + 1, id % 3 == 0 ? 2 * CPU : 0, CPU, Capacity.CAPACITY_TYPE_CPU));
+            capacities.add(new CapacityVO(id, 1L, 1L, id % CLUSTERS + 1, 0, MEMORY, Capacity.CAPACITY_TYPE_MEMORY));
+        }
+    }
+
+    private List<Host> place() {
+        return allocator.allocateTo(new DataCenterDeployment(1L), offering, template, new ExcludeList(), new ArrayList<Host>(hosts), -1, true, null);
+    }
+
+    @Test
+    public void testIndexFindsTheSameHosts() {
+        addHosts(30);
+        ReflectionTestUtils.setField(index, "_reconcileInterval", 0);
+        List<Host> withoutIndex = place();
+        Assert.assertEquals(20, withoutIndex.size());
+
+        ReflectionTestUtils.setField(index, "_reconcileInterval", 60);
+        Assert.assertEquals(withoutIndex, place());
+        Assert.assertEquals(withoutIndex, place());
+    }
+
+    /**
+     * Places VMs on few and on many hosts, checks the number of queries for a placement does not grow with the hosts
+     * once the index is loaded and that the index saves queries.
+     */
+    @Test
+    public void testQueriesAreIndependentOfHostCount() {
+        int[] hostCounts = {10, 100};
+        int placements = 3;
+        int[] indexQueries = new int[hostCounts.length];
+        for (int i = 0; i < hostCounts.length; i++) {
+            addHosts(hostCounts[i]);
+
+            ReflectionTestUtils.setField(index, "_reconcileInterval", 0);
+            queries.set(0);
+            for (int j = 0; j < placements; j++) {
+                place();
+            }
+            int withoutIndexQueries = queries.get() / placements;
+
+            ReflectionTestUtils.setField(index, "_reconcileInterval", 60);
+            index.reconcile();
+            place();
+            queries.set(0);
+            for (int j = 0; j < placements; j++) {
+                place();
+            }
+            indexQueries[i] = queries.get() / placements;
+
+            Assert.assertTrue(hostCounts[i] + " hosts: a placement took " + indexQueries[i] + " queries with the index, " + withoutIndexQueries + " without",
+                    indexQueries[i] < withoutIndexQueries);
+        }
+        Assert.assertEquals("A placement takes as many queries for any number of hosts", indexQueries[0], indexQueries[1]);
+        Assert.assertTrue(index.getHits() > index.getMisses());
+    }
+}
@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.alert;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityState;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.capacity.dao.CapacityDaoImpl.SummedCapacity;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.StorageManager;
+import com.cloud.utils.Pair;
+
+public class AlertManagerImplTest {
+    @Mock
+    CapacityManager capacityMgr;
+    @Mock
+    StorageManager storageMgr;
+    @Mock
+    CapacityDao capacityDao;
+    @Mock
+    DataCenterDao dcDao;
+    @Mock
+    HostPodDao podDao;
+    @Mock
+    PrimaryDataStoreDao storagePoolDao;
+    @Mock
+    ResourceManager resourceMgr;
+    @Mock
+    HostDao hostDao;
+    @Mock
+    HostCapacityIndex capacityIndex;
+
+    @InjectMocks
+    private AlertManagerImpl alertManager = new AlertManagerImpl();
+
+    private static HostVO host(long id, ResourceState state) {
+        HostVO host = Mockito.mock(HostVO.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getType()).thenReturn(Host.Type.Routing);
+        Mockito.when(host.getResourceState()).thenReturn(state);
+        return host;
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(dcDao.listAll()).thenReturn(Collections.<DataCenterVO>emptyList());
+        Mockito.when(podDao.listAll()).thenReturn(Collections.<HostPodVO>emptyList());
+        Mockito.when(storagePoolDao.listAll()).thenReturn(Collections.<StoragePoolVO>emptyList());
+        Mockito.when(resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null)).thenReturn(Collections.<HostVO>emptyList());
+    }
+
+    @Test
+    public void testOnlyDirtyHostsAndPoolsAreRecalculatedAfterTheFullRun() {
+        HostVO host = host(1L, ResourceState.Enabled);
+        HostVO hostInMaintenance = host(2L, ResourceState.Maintenance);
+        Mockito.when(hostDao.findById(1L)).thenReturn(host);
+        Mockito.when(hostDao.findById(2L)).thenReturn(hostInMaintenance);
+        StoragePoolVO pool = Mockito.mock(StoragePoolVO.class);
+        Mockito.when(pool.isShared()).thenReturn(true);
+        Mockito.when(storagePoolDao.findById(5L)).thenReturn(pool);
+        Mockito.when(capacityMgr.getAllocatedPoolCapacity(pool, null)).thenReturn(100L);
+
+        alertManager.recalculateCapacity();
+        Mockito.verify(resourceMgr, Mockito.times(1)).listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
+
+        alertManager.markHostDirty(1L);
+        alertManager.markHostDirty(2L);
+        alertManager.markPoolDirty(5L);
+        alertManager.recalculateCapacity();
+        Mockito.verify(resourceMgr, Mockito.times(1)).listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
+        Mockito.verify(storagePoolDao, Mockito.times(1)).listAll();
+        Mockito.verify(capacityMgr, Mockito.times(1)).updateCapacityForHost(host);
+        Mockito.verify(capacityMgr, Mockito.times(1)).updateCapacityForHost(Matchers.any(Host.class));
+        Mockito.verify(storageMgr).createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, 100L);
+        Assert.assertEquals(0, alertManager.getDirtyHostCount());
+        Assert.assertEquals(0, alertManager.getDirtyPoolCount());
+    }
+
+    @Test
+    public void testFailedHostStaysDirty() {
+        HostVO host = host(1L, ResourceState.Enabled);
+        Mockito.when(hostDao.findById(1L)).thenReturn(host);
+        alertManager.recalculateCapacity();
+
+        Mockito.doThrow(new RuntimeException("db down")).when(capacityMgr).updateCapacityForHost(host);
+        alertManager.markHostDirty(1L);
+        alertManager.recalculateCapacity();
+        Assert.assertEquals(1, alertManager.getDirtyHostCount());
+    }
+
+    @Test
+    public void testRollUpSumsPerLevelAndAppliesOvercommit() {
+        Mockito.when(capacityIndex.getOvercommitRatios(1L)).thenReturn(new Pair<Float, Float>(2f, 1f));
+        CapacityVO disabled = new CapacityVO(3L, 1L, 1L, 1L, 100, 1000, Capacity.CAPACITY_TYPE_CPU);
+        disabled.setCapacityState(CapacityState.Disabled);
+        CapacityVO reserved = new CapacityVO(2L, 1L, 1L, 1L, 200, 1000, Capacity.CAPACITY_TYPE_CPU);
+        reserved.setReservedCapacity(300);
+
+        Map<String, SummedCapacity> rollUp = alertManager.rollUpCapacities(Arrays.asList(new CapacityVO(1L, 1L, 1L, 1L, 100, 1000, Capacity.CAPACITY_TYPE_CPU),
+                reserved, disabled, new CapacityVO(null, 1L, null, null, 10, 20, Capacity.CAPACITY_TYPE_VLAN)));
+
+        SummedCapacity cluster = rollUp.get("cluster-1-" + Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(300, cluster.getUsedCapacity().longValue());
+        Assert.assertEquals(300, cluster.getReservedCapacity());
+        Assert.assertEquals(4000, cluster.getTotalCapacity().longValue());
+        Assert.assertEquals(4000, rollUp.get("pod-1-" + Capacity.CAPACITY_TYPE_CPU).getTotalCapacity().longValue());
+        Assert.assertEquals(10, rollUp.get("zone-1-" + Capacity.CAPACITY_TYPE_VLAN).getUsedCapacity().longValue());
+        Assert.assertNull(rollUp.get("pod-1-" + Capacity.CAPACITY_TYPE_VLAN));
+        Mockito.verify(capacityIndex, Mockito.times(1)).getOvercommitRatios(1L);
+    }
+}
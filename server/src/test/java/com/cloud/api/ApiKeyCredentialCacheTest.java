@@ -0,0 +1,147 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.User;
+import com.cloud.user.UserVO;
+import com.cloud.utils.Pair;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiKeyCredentialCacheTest {
+
+    @Mock
+    AccountManager accountMgr;
+    @Mock
+    MessageBus messageBus;
+
+    @InjectMocks
+    ApiKeyCredentialCache cache = new ApiKeyCredentialCache();
+
+    private UserVO user;
+    private AccountVO account;
+
+    @Before
+    public void setup() throws Exception {
+        account = new AccountVO("account", 1L, null, Account.ACCOUNT_TYPE_NORMAL, "uuid");
+        account.setId(10L);
+        user = new UserVO(20L);
+        user.setAccountId(account.getId());
+        user.setApiKey("apikey");
+        user.setSecretKey("secretkey");
+        Mockito.when(accountMgr.findUserByApiKey("apikey")).thenReturn(new Pair<User, Account>(user, account));
+        cache.configure("apiKeyCredentialCache", new HashMap<String, Object>());
+    }
+
+    private MessageSubscriber subscriber(String subject) {
+        ArgumentCaptor<MessageSubscriber> captor = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(messageBus).subscribe(Mockito.eq(subject), captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        Assert.assertEquals(user.getId(), cache.get("apikey").getUser().getId());
+        Assert.assertEquals(account.getId(), cache.get("apikey").getAccount().getId());
+        Assert.assertNull(cache.get("unknown"));
+        Assert.assertNull(cache.get("unknown"));
+
+        Mockito.verify(accountMgr, Mockito.times(1)).findUserByApiKey("apikey");
+        Mockito.verify(accountMgr, Mockito.times(2)).findUserByApiKey("unknown");
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testRequestsGetTheirOwnUserAndAccount() throws Exception {
+        user.setState(Account.State.enabled);
+        UserVO first = (UserVO)cache.get("apikey").getUser();
+        AccountVO firstAccount = (AccountVO)cache.get("apikey").getAccount();
+        Assert.assertNotSame(user, first);
+        Assert.assertNotSame(account, firstAccount);
+        first.setState(Account.State.disabled);
+        firstAccount.setState(Account.State.locked);
+
+        User second = cache.get("apikey").getUser();
+        Account secondAccount = cache.get("apikey").getAccount();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(Account.State.enabled, second.getState());
+        Assert.assertEquals(Account.State.enabled, secondAccount.getState());
+        Assert.assertEquals("apikey", second.getApiKey());
+        Mockito.verify(accountMgr, Mockito.times(1)).findUserByApiKey("apikey");
+    }
+
+    @Test
+    public void testSignature() throws Exception {
+        Mac expected = Mac.getInstance("HmacSHA1");
+        expected.init(new SecretKeySpec("secretkey".getBytes(), "HmacSHA1"));
+        byte[] request = "apikey=apikey&command=listzones".getBytes();
+
+        Mac first = cache.get("apikey").newMac();
+        Mac second = cache.get("apikey").newMac();
+        Assert.assertNotSame(first, second);
+        first.update("garbage".getBytes());
+        second.update(request);
+        Assert.assertArrayEquals(expected.doFinal(request), second.doFinal());
+    }
+
+    @Test
+    public void testNoSecretKey() throws Exception {
+        user.setSecretKey(null);
+        Assert.assertNull(cache.get("apikey").newMac());
+    }
+
+    @Test
+    public void testEvictUser() throws Exception {
+        cache.get("apikey");
+        subscriber(AccountManager.MESSAGE_USER_ACCESS_CHANGED_EVENT).onPublishMessage(null, AccountManager.MESSAGE_USER_ACCESS_CHANGED_EVENT, 21L);
+        Assert.assertEquals(1, cache.getSize());
+
+        // events relayed from the other management servers carry the id as a string
+        subscriber(AccountManager.MESSAGE_USER_ACCESS_CHANGED_EVENT).onPublishMessage(null, AccountManager.MESSAGE_USER_ACCESS_CHANGED_EVENT, String.valueOf(user.getId()));
+        Assert.assertEquals(0, cache.getSize());
+        cache.get("apikey");
+        Mockito.verify(accountMgr, Mockito.times(2)).findUserByApiKey("apikey");
+    }
+
+    @Test
+    public void testEvictAccount() throws Exception {
+        cache.get("apikey");
+        subscriber(AccountManager.MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT).onPublishMessage(null, AccountManager.MESSAGE_ACCOUNT_ACCESS_CHANGED_EVENT, account.getId());
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
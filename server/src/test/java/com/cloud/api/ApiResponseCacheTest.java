@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.api.command.admin.host.ListHostsCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+import org.apache.cloudstack.api.command.user.zone.ListZonesCmd;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.dc.DataCenter;
+import com.cloud.host.Host;
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.EntityManager;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiResponseCacheTest {
+
+    @Mock
+    MessageBus messageBus;
+    @Mock
+    ClusterManager clusterMgr;
+
+    private long now = 0;
+
+    @InjectMocks
+    ApiResponseCache cache = new ApiResponseCache() {
+        @Override
+        protected boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    };
+
+    private AccountVO account;
+    private Map<String, String> params;
+
+    @Before
+    public void setup() throws Exception {
+        account = new AccountVO("account", 1L, null, Account.ACCOUNT_TYPE_NORMAL, 4L, "uuid");
+        account.setId(10L);
+        params = new HashMap<String, String>();
+        params.put("available", "true");
+        params.put("apiKey", "key");
+        params.put("signature", "signature");
+        cache.configure("apiResponseCache", new HashMap<String, Object>());
+    }
+
+    private MessageSubscriber subscriber(String subject) {
+        ArgumentCaptor<MessageSubscriber> captor = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(messageBus).subscribe(Mockito.eq(subject), captor.capture());
+        return captor.getValue();
+    }
+
+    private ApiResponseCache.Lookup cached(ListZonesCmd cmd, Account caller, String response) {
+        ApiResponseCache.Lookup lookup = cache.lookup(cmd, params, caller);
+        Assert.assertNull(cache.get(lookup, new StringBuilder()));
+        cache.put(lookup, response, "log of " + response);
+        return lookup;
+    }
+
+    @Test
+    public void testHit() {
+        cached(new ListZonesCmd(), account, "zones");
+
+        StringBuilder log = new StringBuilder();
+        Map<String, String> otherRequest = new HashMap<String, String>();
+        otherRequest.put("AVAILABLE", "true");
+        otherRequest.put("apiKey", "other key");
+        otherRequest.put("ctxAccountId", "10");
+        Assert.assertEquals("zones", cache.get(cache.lookup(new ListZonesCmd(), otherRequest, account), log));
+        Assert.assertEquals("log of zones", log.toString());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getSize());
+
+        params.put("available", "false");
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), log));
+    }
+
+    @Test
+    public void testResponsesAreNotSharedBetweenCallers() {
+        cached(new ListZonesCmd(), account, "zones");
+
+        AccountVO other = new AccountVO("other", 1L, null, Account.ACCOUNT_TYPE_NORMAL, 4L, "uuid2");
+        other.setId(11L);
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, other), new StringBuilder()));
+
+        AccountVO sameAccountOtherRole = new AccountVO("account", 1L, null, Account.ACCOUNT_TYPE_DOMAIN_ADMIN, 3L, "uuid");
+        sameAccountOtherRole.setId(account.getId());
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, sameAccountOtherRole), new StringBuilder()));
+    }
+
+    @Test
+    public void testOnlyAnnotatedCommandsAreCached() {
+        Assert.assertNull(cache.lookup(new ListVMsCmd(), params, account));
+        Assert.assertNotNull(cache.lookup(new ListHostsCmd(), params, account));
+    }
+
+    @Test
+    public void testEntityChangeInvalidates() {
+        cached(new ListZonesCmd(), account, "zones");
+        subscriber(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT).onPublishMessage(null, EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, Host.class.getName());
+        Assert.assertNotNull("Zones are not built from hosts", cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+
+        subscriber(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT).onPublishMessage(null, EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, DataCenter.class.getName());
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+        Mockito.verify(clusterMgr).publishEvent(ApiResponseCache.MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT, DataCenter.class.getName());
+    }
+
+    @Test
+    public void testChangeOnOtherManagementServerInvalidates() {
+        cached(new ListZonesCmd(), account, "zones");
+        subscriber(ApiResponseCache.MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT).onPublishMessage(null, ApiResponseCache.MESSAGE_ENTITY_CHANGED_CLUSTER_EVENT,
+                DataCenter.class.getName());
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+        Mockito.verify(clusterMgr, Mockito.never()).publishEvent(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testAccountChangeInvalidatesEverything() {
+        cached(new ListZonesCmd(), account, "zones");
+        subscriber(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT).onPublishMessage(null, EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, Account.class.getName());
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+    }
+
+    @Test
+    public void testChangeWhileBuildingIsNotCached() {
+        ApiResponseCache.Lookup lookup = cache.lookup(new ListZonesCmd(), params, account);
+        cache.entityChanged(DataCenter.class.getName());
+        cache.put(lookup, "zones", "");
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testExpiry() {
+        cached(new ListZonesCmd(), account, "zones");
+        now += TimeUnit.SECONDS.toNanos(59);
+        Assert.assertNotNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+        now += TimeUnit.SECONDS.toNanos(2);
+        Assert.assertNull(cache.get(cache.lookup(new ListZonesCmd(), params, account), new StringBuilder()));
+    }
+}
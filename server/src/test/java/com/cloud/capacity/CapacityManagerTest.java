@@ -17,20 +17,31 @@
 
 package com.cloud.capacity;
 
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.locks.Lock;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.VirtualMachine;
 
 public class CapacityManagerTest {
@@ -45,14 +56,42 @@ public class CapacityManagerTest {
     private ClusterDetailsVO clusterDetailCpu = mock(ClusterDetailsVO.class);
     private ClusterDetailsVO clusterDetailRam = mock(ClusterDetailsVO.class);
 
+    HostDao hostDao = mock(HostDao.class);
+    HostCapacityIndex capacityIndex = mock(HostCapacityIndex.class);
+
     public CapacityManagerImpl setUp() {
         CapacityManagerImpl capMgr = new CapacityManagerImpl();
         capMgr._clusterDetailsDao = ClusterDetailsDao;
         capMgr._capacityDao = CDao;
         capMgr._offeringsDao = SOfferingDao;
+        capMgr._hostDao = hostDao;
+        capMgr._capacityIndex = capacityIndex;
         return capMgr;
     }
 
+    private void setUpHost() {
+        HostVO host = mock(HostVO.class);
+        when(host.getClusterId()).thenReturn(1L);
+        when(hostDao.findById(1L)).thenReturn(host);
+        when(ClusterDetailsDao.findDetail(1L, "cpuOvercommitRatio")).thenReturn(clusterDetailCpu);
+        when(ClusterDetailsDao.findDetail(1L, "memoryOvercommitRatio")).thenReturn(clusterDetailRam);
+        when(clusterDetailCpu.getValue()).thenReturn("1");
+        when(clusterDetailRam.getValue()).thenReturn("1");
+        when(vm.getHostId()).thenReturn(1L);
+        when(SOfferingDao.findById(anyLong(), anyLong())).thenReturn(svo);
+        when(svo.getCpu()).thenReturn(2);
+        when(svo.getSpeed()).thenReturn(500);
+        when(svo.getRamSize()).thenReturn(512);
+        when(cvoCpu.getId()).thenReturn(10L);
+        when(cvoRam.getId()).thenReturn(11L);
+        when(cvoCpu.getTotalCapacity()).thenReturn(4000L);
+        when(cvoRam.getTotalCapacity()).thenReturn(4096L * 1024 * 1024);
+        when(CDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU)).thenReturn(cvoCpu);
+        when(CDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(cvoRam);
+        when(CDao.findById(10L)).thenReturn(cvoCpu);
+        when(CDao.findById(11L)).thenReturn(cvoRam);
+    }
+
     @Test
     public void allocateCapacityTest() {
         capMgr = setUp();
@@ -76,4 +115,90 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    @Test
+    public void testAllocateFromLastHostGivesReservedCpuBackWhenReservedMemoryIsShort() {
+        capMgr = setUp();
+        setUpHost();
+        long ram = 512L * 1024 * 1024;
+        when(CDao.updateCapacityDelta(10L, 1000, -1000, null)).thenReturn(true);
+        when(CDao.updateCapacityDelta(11L, ram, -ram, null)).thenReturn(false);
+        when(CDao.updateCapacityDelta(10L, 0, 1000, null)).thenReturn(true);
+        when(CDao.updateCapacityDelta(11L, ram, 0, null)).thenReturn(true);
+
+        capMgr.allocateVmCapacity(vm, true);
+        verify(CDao).updateCapacityDelta(10L, 0, 1000, null);
+        verify(CDao).updateCapacityDelta(11L, ram, 0, null);
+        verify(CDao, never()).lockRow(anyLong(), anyBoolean());
+        verify(capacityIndex).update(1L, cvoCpu, cvoRam);
+        Assert.assertEquals(1, capMgr.getUpdateStats().getGuardFailures());
+    }
+
+    @Test
+    public void testReleaseToReservedMovesCapacityOneByOneWhenReservedIsFull() {
+        capMgr = setUp();
+        setUpHost();
+        when(CDao.updateCapacityDelta(10L, -1000, 1000, 4000L)).thenReturn(false);
+        when(CDao.updateCapacityDelta(10L, -1000, 0, null)).thenReturn(true);
+        when(CDao.updateCapacityDelta(10L, 0, 1000, 4000L)).thenReturn(false);
+        when(CDao.updateCapacityDelta(eq(11L), anyLong(), anyLong(), anyLong())).thenReturn(true);
+
+        Assert.assertTrue(capMgr.releaseVmCapacity(vm, false, true, 1L));
+        verify(CDao).updateCapacityDelta(10L, -1000, 0, null);
+        verify(CDao).updateCapacityDelta(10L, 0, 1000, 4000L);
+        verify(CDao, never()).updateCapacityDelta(eq(11L), anyLong(), eq(0L), isNull(Long.class));
+        Assert.assertEquals(2, capMgr.getUpdateStats().getGuardFailures());
+    }
+
+    @Test
+    public void testUpdatesOfAHostAreRetriedTogetherWhenTheyFailOnTheDatabase() {
+        capMgr = setUp();
+        setUpHost();
+        long ram = 512L * 1024 * 1024;
+        when(CDao.updateCapacityDelta(10L, 1000, 0, null)).thenReturn(true);
+        when(CDao.updateCapacityDelta(11L, ram, 0, null)).thenThrow(new CloudRuntimeException("Deadlock found")).thenReturn(true);
+
+        capMgr.allocateVmCapacity(vm, false);
+        verify(CDao, times(2)).updateCapacityDelta(10L, 1000, 0, null);
+        verify(CDao, times(2)).updateCapacityDelta(11L, ram, 0, null);
+        verify(capacityIndex).update(1L, cvoCpu, cvoRam);
+        Assert.assertEquals(1, capMgr.getUpdateStats().getRetries());
+        Assert.assertEquals(0, capMgr.getUpdateStats().getFailures());
+    }
+
+    @Test
+    public void testUpdatesOfAHostAreNotRetriedInATransactionOfTheCaller() {
+        capMgr = setUp();
+        setUpHost();
+        when(CDao.updateCapacityDelta(10L, 1000, 0, null)).thenThrow(new CloudRuntimeException("Deadlock found"));
+
+        try (TransactionLegacy txn = TransactionLegacy.open("testUpdatesOfAHostAreNotRetriedInATransactionOfTheCaller")) {
+            txn.start();
+            capMgr.allocateVmCapacity(vm, false);
+            txn.rollback();
+        }
+        verify(CDao, times(1)).updateCapacityDelta(10L, 1000, 0, null);
+        verify(capacityIndex).invalidateHost(1L);
+        Assert.assertEquals(0, capMgr.getUpdateStats().getRetries());
+        Assert.assertEquals(1, capMgr.getUpdateStats().getFailures());
+    }
+
+    @Test
+    public void testUpdatesOfTheSameHostAreSerialized() throws Exception {
+        capMgr = setUp();
+        final Lock lock = capMgr.lockHost(1L);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capMgr.lockHost(1L).unlock();
+            }
+        });
+        other.start();
+        Thread.sleep(100);
+        Assert.assertTrue(other.isAlive());
+        lock.unlock();
+        other.join(10000);
+        Assert.assertFalse(other.isAlive());
+        Assert.assertEquals(1, capMgr.getUpdateStats().getContendedUpdates());
+    }
 }
@@ -0,0 +1,230 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class HostCapacityIndexTest {
+    private final CapacityDao capacityDao = Mockito.mock(CapacityDao.class);
+    private final ClusterDetailsDao clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class);
+    private final VMInstanceDao vmDao = Mockito.mock(VMInstanceDao.class);
+    private final HypervisorCapabilitiesDao hypervisorCapabilitiesDao = Mockito.mock(HypervisorCapabilitiesDao.class);
+    private HostCapacityIndex index;
+
+    private static CapacityVO capacity(long hostId, long used, long total, short type) {
+        return new CapacityVO(hostId, 1L, 1L, 1L, used, total, type);
+    }
+
+    @Before
+    public void setup() {
+        index = new HostCapacityIndex();
+        index._capacityDao = capacityDao;
+        index._clusterDetailsDao = clusterDetailsDao;
+        index._vmDao = vmDao;
+        index._hypervisorCapabilitiesDao = hypervisorCapabilitiesDao;
+        index.setReconcileInterval(60);
+
+        Mockito.when(capacityDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU)).thenReturn(capacity(1L, 1000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        Mockito.when(capacityDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(capacity(1L, 1024, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+    }
+
+    @Test
+    public void testCapacityIsLoadedOnce() {
+        HostCapacity capacity = index.getCapacity(1L);
+        Assert.assertEquals(1000, capacity.getUsedCpu());
+        Assert.assertSame(capacity, index.getCapacity(1L));
+        Assert.assertNull("A host without capacity is not indexed", index.getCapacity(2L));
+        Mockito.verify(capacityDao, Mockito.times(1)).findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(1, index.getHits());
+        Assert.assertEquals(2, index.getMisses());
+    }
+
+    @Test
+    public void testHasCapacityAppliesOvercommitRatios() {
+        HostCapacity capacity = index.getCapacity(1L);
+        Assert.assertTrue(capacity.hasCapacity(3000, 3072, 1, 1, true));
+        Assert.assertFalse(capacity.hasCapacity(3001, 3072, 1, 1, true));
+        Assert.assertTrue(capacity.hasCapacity(7000, 3072, 2, 1, true));
+        Assert.assertFalse(capacity.hasCapacity(3000, 4096, 1, 1, true));
+    }
+
+    @Test
+    public void testUpdateReplacesCapacity() {
+        index.getCapacity(1L);
+        index.update(1L, capacity(1L, 3000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 2048, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        Assert.assertEquals(3000, index.getCapacity(1L).getUsedCpu());
+        Mockito.verify(capacityDao, Mockito.times(1)).findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU);
+    }
+
+    @Test
+    public void testUpdateIsIndexedOnceCommitted() {
+        index.getCapacity(1L);
+        TransactionLegacy txn = TransactionLegacy.open("testUpdateIsIndexedOnceCommitted");
+        try {
+            txn.start();
+            index.update(1L, capacity(1L, 3000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 2048, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+            Assert.assertEquals("The capacity is not committed yet", 1000, index.getCapacity(1L).getUsedCpu());
+
+            txn.commit();
+            Assert.assertEquals(3000, index.getCapacity(1L).getUsedCpu());
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testUpdateIsDroppedOnRollback() {
+        index.getCapacity(1L);
+        TransactionLegacy txn = TransactionLegacy.open("testUpdateIsDroppedOnRollback");
+        try {
+            txn.start();
+            index.update(1L, capacity(1L, 3000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 2048, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+
+            txn.rollback();
+            Assert.assertEquals(1000, index.getCapacity(1L).getUsedCpu());
+            Mockito.verify(capacityDao, Mockito.times(1)).findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU);
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testReconcileLoadsAllHostsAndDropsRemovedOnes() {
+        index.update(3L, capacity(3L, 0, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(3L, 0, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        Mockito.when(capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(Arrays.asList(
+                capacity(1L, 2000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 1024, 4096, Capacity.CAPACITY_TYPE_MEMORY),
+                capacity(2L, 0, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(2L, 0, 4096, Capacity.CAPACITY_TYPE_MEMORY)));
+
+        index.reconcile();
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(2000, index.getCapacity(1L).getUsedCpu());
+        Assert.assertNotNull(index.getCapacity(2L));
+        Assert.assertEquals(1, index.getReconciliations());
+        Mockito.verify(capacityDao, Mockito.never()).findByHostIdType(Mockito.anyLong(), Mockito.anyShort());
+    }
+
+    @Test
+    public void testVmCountIsReloadedAfterStateChange() {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(1L);
+        Mockito.when(host.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        Mockito.when(hypervisorCapabilitiesDao.getMaxGuestsLimit(HypervisorType.KVM, null)).thenReturn(2L);
+        Mockito.when(vmDao.countActiveByHostId(1L)).thenReturn(1L, 2L);
+
+        Assert.assertFalse(index.checkIfHostReachMaxGuestLimit(host));
+        Assert.assertFalse(index.checkIfHostReachMaxGuestLimit(host));
+        index.vmStateChanged(null, 1L);
+        Assert.assertTrue(index.checkIfHostReachMaxGuestLimit(host));
+        Mockito.verify(vmDao, Mockito.times(2)).countActiveByHostId(1L);
+        Mockito.verify(hypervisorCapabilitiesDao, Mockito.times(1)).getMaxGuestsLimit(HypervisorType.KVM, null);
+    }
+
+    @Test
+    public void testOvercommitRatiosAreCachedByCluster() {
+        Mockito.when(clusterDetailsDao.findDetail(1L, "cpuOvercommitRatio")).thenReturn(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "2"));
+        Mockito.when(clusterDetailsDao.findDetail(1L, "memoryOvercommitRatio")).thenReturn(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1.5"));
+        Assert.assertEquals(2f, index.getOvercommitRatios(1L).first(), 0);
+        Assert.assertEquals(1.5f, index.getOvercommitRatios(1L).second(), 0);
+        index.configurationChanged("some.other.setting");
+        index.getOvercommitRatios(1L);
+        Mockito.verify(clusterDetailsDao, Mockito.times(1)).findDetail(1L, "cpuOvercommitRatio");
+        index.configurationChanged(CapacityManager.CpuOverprovisioningFactor.key());
+        index.getOvercommitRatios(1L);
+        Mockito.verify(clusterDetailsDao, Mockito.times(2)).findDetail(1L, "cpuOvercommitRatio");
+    }
+
+    private static CapacityVO capacity(long hostId, long clusterId, long used, long total, short type) {
+        return new CapacityVO(hostId, 1L, 1L, clusterId, used, total, type);
+    }
+
+    @Test
+    public void testChangesAreSentToOtherManagementServers() {
+        ClusterManager clusterMgr = Mockito.mock(ClusterManager.class);
+        index._clusterMgr = clusterMgr;
+        index.update(1L, capacity(1L, 3000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 2048, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        index.vmStateChanged(null, 1L, 2L);
+        Mockito.verify(clusterMgr).publishEvent(HostCapacityIndex.MESSAGE_HOST_CAPACITY_CHANGED_EVENT, "1");
+        Mockito.verify(clusterMgr).publishEvent(HostCapacityIndex.MESSAGE_HOST_VMS_CHANGED_EVENT, "1,2");
+    }
+
+    @Test
+    public void testChangeOnOtherManagementServerReloadsHost() throws Exception {
+        MessageBus messageBus = Mockito.mock(MessageBus.class);
+        index._messageBus = messageBus;
+        index.configure("HostCapacityIndex", new HashMap<String, Object>());
+        ArgumentCaptor<MessageSubscriber> subscriber = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(messageBus).subscribe(Mockito.eq(HostCapacityIndex.MESSAGE_HOST_CAPACITY_CHANGED_EVENT), subscriber.capture());
+
+        Assert.assertEquals(1000, index.getCapacity(1L).getUsedCpu());
+        Mockito.when(capacityDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU)).thenReturn(capacity(1L, 2500, 4000, Capacity.CAPACITY_TYPE_CPU));
+        subscriber.getValue().onPublishMessage(null, HostCapacityIndex.MESSAGE_HOST_CAPACITY_CHANGED_EVENT, "1");
+        Assert.assertEquals("The capacity allocated by the other management server is indexed", 2500, index.getCapacity(1L).getUsedCpu());
+        Assert.assertEquals(1, index.getRemoteChanges());
+
+        Mockito.when(capacityDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU)).thenReturn(null);
+        subscriber.getValue().onPublishMessage(null, HostCapacityIndex.MESSAGE_HOST_CAPACITY_CHANGED_EVENT, "1");
+        Assert.assertEquals("A removed host is dropped", 0, index.size());
+    }
+
+    @Test
+    public void testOrderClustersByCapacity() {
+        Mockito.when(clusterDetailsDao.findDetail(Mockito.anyLong(), Mockito.eq("cpuOvercommitRatio"))).thenReturn(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        Mockito.when(clusterDetailsDao.findDetail(Mockito.anyLong(), Mockito.eq("memoryOvercommitRatio"))).thenReturn(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        Mockito.when(capacityDao.listByCapacityTypes(Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(Arrays.asList(
+                // cluster 10 is half used, one host has enough CPU and the other enough memory, which the query counts as enough
+                capacity(1L, 10L, 3000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(1L, 10L, 0, 4096, Capacity.CAPACITY_TYPE_MEMORY),
+                capacity(2L, 10L, 1000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(2L, 10L, 4096, 4096, Capacity.CAPACITY_TYPE_MEMORY),
+                // cluster 11 is a quarter used
+                capacity(3L, 11L, 1000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(3L, 11L, 1024, 4096, Capacity.CAPACITY_TYPE_MEMORY),
+                // cluster 12 is full
+                capacity(4L, 12L, 4000, 4000, Capacity.CAPACITY_TYPE_CPU), capacity(4L, 12L, 4096, 4096, Capacity.CAPACITY_TYPE_MEMORY)));
+        Assert.assertFalse(index.isComplete());
+        index.reconcile();
+        Assert.assertTrue(index.isComplete());
+
+        Pair<List<Long>, Map<Long, Double>> clusters = index.orderClustersByCapacity(1L, true, 2000, 2048, Capacity.CAPACITY_TYPE_CPU);
+        Assert.assertEquals(Arrays.asList(11L, 10L), clusters.first());
+        Assert.assertEquals(0.25, clusters.second().get(11L), 0.001);
+        Assert.assertEquals(0.5, clusters.second().get(10L), 0.001);
+        Assert.assertEquals(1, clusters.second().get(12L), 0.001);
+        Assert.assertTrue("No cluster of another pod", index.orderClustersByCapacity(2L, false, 0, 0, Capacity.CAPACITY_TYPE_CPU).first().isEmpty());
+    }
+}
@@ -0,0 +1,208 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.fsm.StateMachine2;
+
+public class StoragePoolAllocationIndexImplTest {
+    private final PrimaryDataStoreDao storagePoolDao = Mockito.mock(PrimaryDataStoreDao.class);
+    private final VolumeDao volumeDao = Mockito.mock(VolumeDao.class);
+    private final VMTemplatePoolDao templatePoolDao = Mockito.mock(VMTemplatePoolDao.class);
+    private final CapacityManager capacityMgr = Mockito.mock(CapacityManager.class);
+    private StoragePoolAllocationIndexImpl index;
+
+    private StoragePoolVO pool(long id, long capacityBytes) {
+        StoragePoolVO pool = Mockito.mock(StoragePoolVO.class);
+        Mockito.when(pool.getId()).thenReturn(id);
+        Mockito.when(pool.getCapacityBytes()).thenReturn(capacityBytes);
+        Mockito.when(storagePoolDao.findById(id)).thenReturn(pool);
+        Mockito.when(templatePoolDao.listByPoolId(id)).thenReturn(Collections.<VMTemplateStoragePoolVO>emptyList());
+        return pool;
+    }
+
+    @Before
+    public void setup() {
+        index = new StoragePoolAllocationIndexImpl();
+        index._storagePoolDao = storagePoolDao;
+        index._volumeDao = volumeDao;
+        index._templatePoolDao = templatePoolDao;
+        index._capacityMgr = capacityMgr;
+        index.setReconcileInterval(60);
+    }
+
+    @Test
+    public void testAllocationIsCalculatedOnceUntilAVolumeChangesState() {
+        StoragePoolVO pool = pool(1L, 1000);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(2L, 300L), new Pair<Long, Long>(3L, 400L));
+        Mockito.when(volumeDao.getVMSnapshotSizeByPool(1L)).thenReturn(50L);
+
+        Assert.assertEquals(350, index.getAllocatedPoolCapacity(pool, null));
+        Assert.assertEquals(350, index.getAllocatedPoolCapacity(pool, null));
+        Mockito.verify(volumeDao, Mockito.times(1)).getNonDestroyedCountAndTotalByPool(1L);
+
+        VolumeVO volume = Mockito.mock(VolumeVO.class);
+        Mockito.when(volume.getPoolId()).thenReturn(1L);
+        index.new VolumeAllocationListener().postStateTransitionEvent(
+                new StateMachine2.Transition<Volume.State, Volume.Event>(Volume.State.Creating, Volume.Event.OperationSucceeded, Volume.State.Ready, null), volume, true, null);
+        Assert.assertEquals(450, index.getAllocatedPoolCapacity(pool, null));
+        Assert.assertEquals(1, index.getStats().getInvalidations());
+        Assert.assertEquals(2, index.getStats().getMisses());
+    }
+
+    @Test
+    public void testPoolIsInvalidatedOnceTheVolumeChangeIsCommitted() {
+        StoragePoolVO pool = pool(1L, 1000);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(2L, 300L), new Pair<Long, Long>(3L, 400L));
+        VolumeVO volume = Mockito.mock(VolumeVO.class);
+        Mockito.when(volume.getPoolId()).thenReturn(1L);
+
+        TransactionLegacy txn = TransactionLegacy.open("testPoolIsInvalidatedOnceTheVolumeChangeIsCommitted");
+        try {
+            txn.start();
+            index.new VolumeAllocationListener().postStateTransitionEvent(
+                    new StateMachine2.Transition<Volume.State, Volume.Event>(Volume.State.Allocated, Volume.Event.CreateRequested, Volume.State.Creating, null), volume, true, null);
+
+            // another thread calculating the allocation before the commit still sees the volumes as they were
+            Assert.assertEquals(300, index.getAllocatedPoolCapacity(pool, null));
+            Assert.assertEquals(0, index.getStats().getInvalidations());
+
+            txn.commit();
+            Assert.assertEquals(1, index.getStats().getInvalidations());
+            Assert.assertEquals(400, index.getAllocatedPoolCapacity(pool, null));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testInvalidationIsSentToOtherManagementServersOnceCommitted() {
+        ClusterManager clusterMgr = Mockito.mock(ClusterManager.class);
+        index._clusterMgr = clusterMgr;
+        TransactionLegacy txn = TransactionLegacy.open("testInvalidationIsSentToOtherManagementServersOnceCommitted");
+        try {
+            txn.start();
+            index.invalidate(1L);
+            Mockito.verify(clusterMgr, Mockito.never()).publishEvent(Mockito.anyString(), Mockito.anyString());
+
+            txn.commit();
+            Mockito.verify(clusterMgr).publishEvent(StoragePoolAllocationIndexImpl.MESSAGE_POOL_ALLOCATION_CHANGED_EVENT, "1");
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testInvalidationOnOtherManagementServerDropsAllocation() throws Exception {
+        MessageBus messageBus = Mockito.mock(MessageBus.class);
+        index._messageBus = messageBus;
+        index.configure("StoragePoolAllocationIndex", new HashMap<String, Object>());
+        ArgumentCaptor<MessageSubscriber> subscriber = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(messageBus).subscribe(Mockito.eq(StoragePoolAllocationIndexImpl.MESSAGE_POOL_ALLOCATION_CHANGED_EVENT), subscriber.capture());
+        index.setReconcileInterval(60);
+
+        StoragePoolVO pool = pool(1L, 1000);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(2L, 300L), new Pair<Long, Long>(3L, 400L));
+        Assert.assertEquals(300, index.getAllocatedPoolCapacity(pool, null));
+
+        subscriber.getValue().onPublishMessage(null, StoragePoolAllocationIndexImpl.MESSAGE_POOL_ALLOCATION_CHANGED_EVENT, "1");
+        Assert.assertEquals("The volume created by the other management server is counted", 400, index.getAllocatedPoolCapacity(pool, null));
+        Assert.assertEquals(1, index.getStats().getRemoteInvalidations());
+        Assert.assertEquals(1, index.getStats().getInvalidations());
+    }
+
+    @Test
+    public void testTemplateNotOnThePoolIsCountedForVmCreation() {
+        StoragePoolVO pool = pool(1L, 1000);
+        VMTemplateStoragePoolVO templatePool = Mockito.mock(VMTemplateStoragePoolVO.class);
+        Mockito.when(templatePool.getTemplateId()).thenReturn(7L);
+        Mockito.when(templatePool.getTemplateSize()).thenReturn(100L);
+        Mockito.when(templatePoolDao.listByPoolId(1L)).thenReturn(Arrays.asList(templatePool));
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(1L, 200L));
+        VMTemplateVO installed = Mockito.mock(VMTemplateVO.class);
+        Mockito.when(installed.getId()).thenReturn(7L);
+        Mockito.when(installed.getSize()).thenReturn(100L);
+        VMTemplateVO other = Mockito.mock(VMTemplateVO.class);
+        Mockito.when(other.getId()).thenReturn(8L);
+        Mockito.when(other.getSize()).thenReturn(150L);
+
+        Assert.assertEquals(300, index.getAllocatedPoolCapacity(pool, installed));
+        Assert.assertEquals(450, index.getAllocatedPoolCapacity(pool, other));
+    }
+
+    @Test
+    public void testReconcileCountsDrift() {
+        StoragePoolVO pool = pool(1L, 1000);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(2L, 300L), new Pair<Long, Long>(2L, 320L));
+
+        index.getAllocatedPoolCapacity(pool, null);
+        index.reconcile();
+        Assert.assertEquals(320, index.getAllocatedPoolCapacity(pool, null));
+        Assert.assertEquals(1, index.getStats().getDriftedPools());
+        Assert.assertEquals(20, index.getStats().getDriftBytes());
+        Assert.assertEquals(1, index.getStats().getReconciliations());
+    }
+
+    @Test
+    public void testPoolsAreOrderedByUnallocatedShare() {
+        StoragePoolVO full = pool(1L, 1000);
+        StoragePoolVO empty = pool(2L, 1000);
+        StoragePoolVO half = pool(3L, 4000);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(9L, 900L));
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(2L)).thenReturn(new Pair<Long, Long>(0L, 0L));
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(3L)).thenReturn(new Pair<Long, Long>(2L, 2000L));
+
+        Assert.assertEquals(Arrays.<StoragePool>asList(empty, half, full), index.orderPoolsByFreeCapacity(Arrays.<StoragePool>asList(full, empty, half)));
+    }
+
+    @Test
+    public void testPoolsAreOrderedByOverProvisionedCapacity() {
+        StoragePoolVO nfs = pool(1L, 1000);
+        Mockito.when(nfs.getPoolType()).thenReturn(StoragePoolType.NetworkFilesystem);
+        StoragePoolVO clvm = pool(2L, 1000);
+        Mockito.when(clvm.getPoolType()).thenReturn(StoragePoolType.CLVM);
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(1L)).thenReturn(new Pair<Long, Long>(6L, 600L));
+        Mockito.when(volumeDao.getNonDestroyedCountAndTotalByPool(2L)).thenReturn(new Pair<Long, Long>(4L, 400L));
+
+        // with the default factor of 2 the NFS pool has 1400 of 2000 bytes free, the CLVM pool 600 of 1000
+        Assert.assertEquals(Arrays.<StoragePool>asList(nfs, clvm), index.orderPoolsByFreeCapacity(Arrays.<StoragePool>asList(clvm, nfs)));
+    }
+}
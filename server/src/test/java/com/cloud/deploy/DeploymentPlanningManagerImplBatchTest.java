@@ -0,0 +1,358 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.affinity.AffinityGroupHostIndex;
+import org.apache.cloudstack.affinity.AffinityGroupProcessor;
+import org.apache.cloudstack.affinity.AffinityGroupVO;
+import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
+import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.engine.cloud.entity.api.db.VMReservationVO;
+import org.apache.cloudstack.engine.cloud.entity.api.db.dao.VMReservationDao;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.Pod;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.exception.AffinityConflictException;
+import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.host.Host;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.org.Cluster;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.storage.Storage.ProvisioningType;
+import com.cloud.storage.StorageManager;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+public class DeploymentPlanningManagerImplBatchTest {
+    private static final long DC_ID = 1L;
+    private static final long CLUSTER_ID = 1L;
+
+    @Mock
+    AffinityGroupVMMapDao affinityGroupVMMapDao;
+    @Mock
+    AffinityGroupDao affinityGroupDao;
+    @Mock
+    AffinityGroupHostIndex affinityGroupHostIndex;
+    @Mock
+    DataCenterDao dcDao;
+    @Mock
+    HostPodDao podDao;
+    @Mock
+    ClusterDao clusterDao;
+    @Mock
+    HostDao hostDao;
+    @Mock
+    DedicatedResourceDao dedicatedDao;
+    @Mock
+    VMReservationDao reservationDao;
+    @Mock
+    HostCapacityIndex capacityIndex;
+    @Mock
+    FirstFitPlanner planner;
+    @Mock
+    VolumeDao volsDao;
+    @Mock
+    StorageManager storageMgr;
+    @Mock
+    DataCenterVO dc;
+
+    @Spy
+    @InjectMocks
+    private DeploymentPlanningManagerImpl dpm = new DeploymentPlanningManagerImpl();
+
+    private final ServiceOfferingVO offering = new ServiceOfferingVO("testOffering", 1, 512, 500, 1, 1, false, false, false, "test dpm",
+            ProvisioningType.THIN, false, false, null, false, VirtualMachine.Type.User, null, "FirstFitPlanner");
+    private final List<Host> hosts = new ArrayList<Host>();
+    private Pod pod;
+    private Cluster cluster;
+
+    private static CapacityVO capacity(long hostId, long total, short type) {
+        return new CapacityVO(hostId, DC_ID, 1L, CLUSTER_ID, 0, total, type);
+    }
+
+    @Before
+    public void setUp() throws InsufficientServerCapacityException {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(dc.getId()).thenReturn(DC_ID);
+        Mockito.when(dcDao.findById(DC_ID)).thenReturn(dc);
+        Mockito.when(clusterDao.findById(CLUSTER_ID)).thenReturn(new ClusterVO());
+        Mockito.when(planner.canHandle(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeploymentPlan.class), Matchers.any(ExcludeList.class))).thenReturn(true);
+        Mockito.when(planner.orderClusters(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeploymentPlan.class), Matchers.any(ExcludeList.class)))
+                .thenReturn(Arrays.asList(CLUSTER_ID));
+        Mockito.when(capacityIndex.getOvercommitRatios(CLUSTER_ID)).thenReturn(new Pair<Float, Float>(1f, 1f));
+
+        // the first host has room for two VMs of the offering, the second one for five
+        pod = Mockito.mock(Pod.class);
+        Mockito.when(pod.getId()).thenReturn(1L);
+        cluster = Mockito.mock(Cluster.class);
+        Mockito.when(cluster.getId()).thenReturn(CLUSTER_ID);
+        for (long hostId = 1; hostId <= 2; hostId++) {
+            Host host = Mockito.mock(Host.class);
+            Mockito.when(host.getId()).thenReturn(hostId);
+            Mockito.when(host.getClusterId()).thenReturn(CLUSTER_ID);
+            hosts.add(host);
+            long vms = hostId == 1 ? 2 : 5;
+            Mockito.when(capacityIndex.getCapacity(hostId)).thenReturn(new HostCapacity(hostId, capacity(hostId, vms * 500, Capacity.CAPACITY_TYPE_CPU),
+                    capacity(hostId, vms * 512 * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY)));
+            Mockito.doReturn(new DeployDestination(dc, pod, cluster, host, new HashMap<Volume, StoragePool>())).when(dpm)
+                    .planOnHost(Matchers.any(VirtualMachineProfile.class), Matchers.eq(host), Matchers.any(DeploymentPlanner.class));
+        }
+        Mockito.doReturn(hosts).when(dpm).findSuitableHosts(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeploymentPlan.class),
+                Matchers.any(ExcludeList.class), Matchers.anyInt());
+    }
+
+    private List<VirtualMachineProfile> batch(int size) {
+        List<VirtualMachineProfile> batch = new ArrayList<VirtualMachineProfile>();
+        for (long vmId = 1; vmId <= size; vmId++) {
+            VirtualMachine vm = Mockito.mock(VirtualMachine.class);
+            Mockito.when(vm.getId()).thenReturn(vmId);
+            Mockito.when(vm.getDataCenterId()).thenReturn(DC_ID);
+            Mockito.when(vm.getType()).thenReturn(VirtualMachine.Type.User);
+            Mockito.when(vm.getHypervisorType()).thenReturn(HypervisorType.XenServer);
+            VirtualMachineProfile profile = Mockito.mock(VirtualMachineProfile.class);
+            Mockito.when(profile.getId()).thenReturn(vmId);
+            Mockito.when(profile.getVirtualMachine()).thenReturn(vm);
+            Mockito.when(profile.getServiceOffering()).thenReturn(offering);
+            batch.add(profile);
+        }
+        return batch;
+    }
+
+    private List<Long> reservedHosts(int reservations) {
+        ArgumentCaptor<VMReservationVO> captor = ArgumentCaptor.forClass(VMReservationVO.class);
+        Mockito.verify(reservationDao, Mockito.times(reservations)).persist(captor.capture());
+        List<Long> hostIds = new ArrayList<Long>();
+        for (VMReservationVO reservation : captor.getAllValues()) {
+            hostIds.add(reservation.getHostId());
+        }
+        return hostIds;
+    }
+
+    @Test
+    public void testBatchIsPackedOntoHostsInOrder() {
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(4), planner);
+        Assert.assertEquals(4, reservations.size());
+        Assert.assertEquals(Arrays.asList(1L, 1L, 2L, 2L), reservedHosts(4));
+        Mockito.verify(dpm, Mockito.times(1)).findSuitableHosts(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeploymentPlan.class),
+                Matchers.any(ExcludeList.class), Matchers.anyInt());
+    }
+
+    @Test
+    public void testVmsBeyondCapacityAreLeftWithoutReservation() {
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(9), planner);
+        Assert.assertEquals(7, reservations.size());
+        Assert.assertFalse(reservations.containsKey(8L));
+        Assert.assertFalse(reservations.containsKey(9L));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 2L, 2L, 2L, 2L, 2L), reservedHosts(7));
+    }
+
+    @Test
+    public void testPlannerThatCannotHandleTheBatchReservesNothing() {
+        Mockito.when(planner.canHandle(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeploymentPlan.class), Matchers.any(ExcludeList.class))).thenReturn(false);
+        Assert.assertTrue(dpm.planAndReserveDeployments(batch(4), planner).isEmpty());
+        Mockito.verify(reservationDao, Mockito.never()).persist(Matchers.any(VMReservationVO.class));
+    }
+
+    @Test
+    public void testDestinationsArePlannedBeforeTheyAreReserved() {
+        dpm.planAndReserveDeployments(batch(4), planner);
+        InOrder inOrder = Mockito.inOrder(dpm, reservationDao);
+        inOrder.verify(dpm, Mockito.times(2)).planOnHost(Matchers.any(VirtualMachineProfile.class), Matchers.any(Host.class), Matchers.any(DeploymentPlanner.class));
+        inOrder.verify(reservationDao, Mockito.times(4)).persist(Matchers.any(VMReservationVO.class));
+    }
+
+    @Test
+    public void testOnlyTheFirstVmOnAHostIsPlanned() {
+        List<VirtualMachineProfile> batch = batch(4);
+        dpm.planAndReserveDeployments(batch, planner);
+        Mockito.verify(dpm).planOnHost(Matchers.eq(batch.get(0)), Matchers.eq(hosts.get(0)), Matchers.any(DeploymentPlanner.class));
+        Mockito.verify(dpm).planOnHost(Matchers.eq(batch.get(2)), Matchers.eq(hosts.get(1)), Matchers.any(DeploymentPlanner.class));
+        Mockito.verify(dpm).packOnHost(Matchers.eq(batch.get(1)), Matchers.any(DeployDestination.class));
+        Mockito.verify(dpm).packOnHost(Matchers.eq(batch.get(3)), Matchers.any(DeployDestination.class));
+    }
+
+    private Volume newVolume() {
+        VolumeVO volume = Mockito.mock(VolumeVO.class);
+        Mockito.when(volume.getState()).thenReturn(Volume.State.Allocated);
+        Mockito.when(volume.getVolumeType()).thenReturn(Volume.Type.ROOT);
+        Mockito.when(volume.getDiskOfferingId()).thenReturn(1L);
+        return volume;
+    }
+
+    @Test
+    public void testPackedVmsThatDoNotFitTheirPoolAreLeftWithoutReservation() {
+        final StoragePool pool = Mockito.mock(StoragePool.class);
+        Mockito.when(pool.getId()).thenReturn(1L);
+        for (Host host : hosts) {
+            Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+            storage.put(newVolume(), pool);
+            Mockito.doReturn(new DeployDestination(dc, pod, cluster, host, storage)).when(dpm)
+                    .planOnHost(Matchers.any(VirtualMachineProfile.class), Matchers.eq(host), Matchers.any(DeploymentPlanner.class));
+        }
+        Mockito.when(volsDao.findUsableVolumesForInstance(Matchers.anyLong())).thenAnswer(new Answer<List<VolumeVO>>() {
+            @Override
+            public List<VolumeVO> answer(InvocationOnMock invocation) {
+                return new ArrayList<VolumeVO>(Arrays.asList((VolumeVO)newVolume()));
+            }
+        });
+        // the pool has room for the volumes of three VMs
+        Mockito.when(storageMgr.storagePoolHasEnoughIops(Matchers.anyListOf(Volume.class), Matchers.eq(pool))).thenReturn(true);
+        Mockito.when(storageMgr.storagePoolHasEnoughSpace(Matchers.anyListOf(Volume.class), Matchers.eq(pool), Matchers.eq(CLUSTER_ID))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return ((List<?>)invocation.getArguments()[0]).size() <= 3;
+            }
+        });
+
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(4), planner);
+        Assert.assertEquals(3, reservations.size());
+        Assert.assertFalse(reservations.containsKey(4L));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 2L), reservedHosts(3));
+    }
+
+    @Test
+    public void testHostAntiAffinityPlacesOneVmPerHost() throws AffinityConflictException {
+        Mockito.when(affinityGroupVMMapDao.listAffinityGroupIdsByVmId(Matchers.anyLong())).thenAnswer(new Answer<List<Long>>() {
+            @Override
+            public List<Long> answer(InvocationOnMock invocation) {
+                return new ArrayList<Long>(Arrays.asList(1L));
+            }
+        });
+        AffinityGroupVO group = Mockito.mock(AffinityGroupVO.class);
+        Mockito.when(group.getType()).thenReturn("host anti-affinity");
+        Mockito.when(affinityGroupDao.findById(1L)).thenReturn(group);
+        AffinityGroupProcessor processor = Mockito.mock(AffinityGroupProcessor.class);
+        Mockito.when(processor.getType()).thenReturn("host anti-affinity");
+        Mockito.when(processor.getMaxVmsPerHost()).thenReturn(1);
+        Mockito.when(processor.check(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeployDestination.class))).thenReturn(true);
+        dpm.setAffinityGroupProcessors(Arrays.asList(processor));
+
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(4), planner);
+        Assert.assertEquals(2, reservations.size());
+        Assert.assertEquals(Arrays.asList(1L, 2L), reservedHosts(2));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void groupBatch(long... placementVersions) throws AffinityConflictException {
+        Mockito.when(affinityGroupHostIndex.isEnabled()).thenReturn(true);
+        Mockito.when(affinityGroupVMMapDao.listAffinityGroupIdsByVmId(Matchers.anyLong())).thenAnswer(new Answer<List<Long>>() {
+            @Override
+            public List<Long> answer(InvocationOnMock invocation) {
+                return new ArrayList<Long>(Arrays.asList(1L));
+            }
+        });
+        List<Map<Long, Long>> versions = new ArrayList<Map<Long, Long>>();
+        for (long placementVersion : placementVersions) {
+            Map<Long, Long> version = new HashMap<Long, Long>();
+            version.put(1L, placementVersion);
+            versions.add(version);
+        }
+        Mockito.when(affinityGroupDao.listPlacementVersions(Matchers.anyCollectionOf(Long.class))).thenReturn(versions.get(0),
+                versions.subList(1, versions.size()).toArray(new Map[0]));
+    }
+
+    @Test
+    public void testVmsBreakingTheirAffinityGroupsAreLeftWithoutReservation() throws AffinityConflictException {
+        groupBatch(7L);
+        Mockito.when(affinityGroupDao.updatePlacementVersion(1L, 7L)).thenReturn(true);
+        AffinityGroupProcessor processor = Mockito.mock(AffinityGroupProcessor.class);
+        List<VirtualMachineProfile> batch = batch(4);
+        Mockito.when(processor.check(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeployDestination.class))).thenReturn(true);
+        Mockito.when(processor.check(Matchers.eq(batch.get(1)), Matchers.any(DeployDestination.class))).thenReturn(false);
+        dpm.setAffinityGroupProcessors(Arrays.asList(processor));
+
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch, planner);
+        Assert.assertEquals(3, reservations.size());
+        Assert.assertFalse(reservations.containsKey(2L));
+        Mockito.verify(affinityGroupHostIndex).releaseClaims(2L);
+        // the group is checked at its placement version and moved on once for the whole batch
+        InOrder inOrder = Mockito.inOrder(affinityGroupHostIndex, affinityGroupDao);
+        inOrder.verify(affinityGroupHostIndex).refresh(1L, 7L);
+        inOrder.verify(affinityGroupDao).updatePlacementVersion(1L, 7L);
+        inOrder.verify(affinityGroupHostIndex).advance(1L, 7L);
+        Mockito.verify(affinityGroupDao, Mockito.never()).lockRows(Matchers.any(SearchCriteria.class), Matchers.any(Filter.class), Matchers.anyBoolean());
+    }
+
+    @Test
+    public void testBatchIsCheckedAgainWhenTheGroupMovedOn() throws AffinityConflictException {
+        groupBatch(7L, 8L);
+        Mockito.when(affinityGroupDao.updatePlacementVersion(1L, 7L)).thenReturn(false);
+        Mockito.when(affinityGroupDao.updatePlacementVersion(1L, 8L)).thenReturn(true);
+        AffinityGroupProcessor processor = Mockito.mock(AffinityGroupProcessor.class);
+        Mockito.when(processor.check(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeployDestination.class))).thenReturn(true);
+        dpm.setAffinityGroupProcessors(Arrays.asList(processor));
+
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(4), planner);
+        Assert.assertEquals(4, reservations.size());
+        reservedHosts(4);
+        Mockito.verify(affinityGroupHostIndex).refresh(1L, 8L);
+        Mockito.verify(affinityGroupHostIndex).releaseClaims(1L);
+        Mockito.verify(affinityGroupHostIndex).advance(1L, 8L);
+        Mockito.verify(affinityGroupHostIndex, Mockito.never()).advance(1L, 7L);
+    }
+
+    @Test
+    public void testBatchIsLeftWithoutReservationWhenTheGroupKeepsMovingOn() throws AffinityConflictException {
+        groupBatch(7L, 8L, 9L);
+        AffinityGroupProcessor processor = Mockito.mock(AffinityGroupProcessor.class);
+        Mockito.when(processor.check(Matchers.any(VirtualMachineProfile.class), Matchers.any(DeployDestination.class))).thenReturn(true);
+        dpm.setAffinityGroupProcessors(Arrays.asList(processor));
+
+        Map<Long, String> reservations = dpm.planAndReserveDeployments(batch(4), planner);
+        Assert.assertTrue(reservations.isEmpty());
+        reservedHosts(0);
+        Mockito.verify(affinityGroupDao, Mockito.times(3)).updatePlacementVersion(Matchers.eq(1L), Matchers.anyLong());
+        Mockito.verify(affinityGroupHostIndex, Mockito.never()).advance(Matchers.anyLong(), Matchers.anyLong());
+    }
+}
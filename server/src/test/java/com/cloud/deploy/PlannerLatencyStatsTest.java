@@ -0,0 +1,75 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PlannerLatencyStatsTest {
+
+    @Test
+    public void testTraceRecordsStagesAndExclusions() {
+        PlanningTrace trace = PlanningTrace.begin(7L);
+        Assert.assertNull(PlanningTrace.begin(8L));
+        try (PlanningTrace.Stage stage = PlanningTrace.stage("orderClusters")) {
+            stage.candidates("cluster", Arrays.asList(1L, 2L));
+            new DeploymentPlanner.ExcludeList().addCluster(2L);
+        }
+        PlanningTrace.stage("lastHost");
+        PlanningTrace.note("the last host is excluded");
+        trace.end("no destination found");
+
+        Assert.assertNull(PlanningTrace.current());
+        Assert.assertEquals(3, trace.getStages().size());
+        PlanningTrace.Stage orderClusters = trace.getStages().get(1);
+        Assert.assertEquals(Arrays.asList(1L, 2L), orderClusters.getCandidates().get("cluster"));
+        Assert.assertEquals(Arrays.asList(2L), orderClusters.getExcluded().get("cluster"));
+        Assert.assertEquals(Arrays.asList("the last host is excluded"), trace.getStages().get(2).getNotes());
+        Assert.assertTrue(trace.getStages().get(0).getElapsedNanos() >= orderClusters.getElapsedNanos());
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutATrace() {
+        PlanningTrace.Stage stage = PlanningTrace.stage("hostAllocators");
+        stage.candidates("host", Arrays.asList(1L));
+        PlanningTrace.excluded("host", 1L);
+        stage.close();
+        Assert.assertTrue(stage.getCandidates().isEmpty());
+        Assert.assertTrue(stage.getExcluded().isEmpty());
+    }
+
+    @Test
+    public void testStagesAreCountedInLatencyBuckets() {
+        PlannerLatencyStats stats = new PlannerLatencyStats();
+        PlanningTrace trace = PlanningTrace.begin(7L);
+        PlanningTrace.stage("hostAllocators").close();
+        trace.end("failed");
+        stats.record(trace, false, true);
+        trace = PlanningTrace.begin(7L);
+        trace.end("no destination found");
+        stats.record(trace, false, false);
+
+        Assert.assertEquals(2, stats.getPlans());
+        Assert.assertEquals(1, stats.getFailedPlans());
+        Assert.assertEquals(1, stats.getPlansWithoutDestination());
+        Assert.assertEquals(2, stats.getStageLatency("planDeployment").getCount());
+        Assert.assertEquals(1, stats.getStageLatency("hostAllocators").getBucket(0));
+        Assert.assertEquals(2, stats.getStageLatencies().length);
+    }
+}
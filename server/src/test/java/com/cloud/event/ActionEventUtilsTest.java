@@ -29,11 +29,16 @@ import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.events.EventBus;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.api.command.user.zone.ListZonesCmd;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -43,6 +48,8 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 
+import com.cloud.api.ApiResponseCache;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.event.dao.EventDao;
 import com.cloud.network.IpAddress;
@@ -54,6 +61,7 @@ import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.db.EntityManager;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.vm.VirtualMachine;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -97,6 +105,9 @@ public class ActionEventUtilsTest {
     @Mock
     protected EventBus eventBus;
 
+    @Mock
+    protected MessageBus messageBus;
+
     /**
      * This setup method injects the mocked beans into the ActionEventUtils class.
      * Because ActionEventUtils has static methods, we must also remember these fields
@@ -226,4 +237,56 @@ public class ActionEventUtilsTest {
 
         CallContext.unregister();
     }
+
+    @Test
+    public void testEntityChangeIsPublishedAfterCommit() throws Exception {
+        AccountVO account = new AccountVO("testaccount", 1L, "networkdomain", (short) 0, "uuid");
+        account.setId(ACCOUNT_ID);
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone",
+                UUID.randomUUID().toString(), User.Source.UNKNOWN);
+        Mockito.when(accountDao.findById(ACCOUNT_ID)).thenReturn(account);
+        Mockito.when(userDao.findById(USER_ID)).thenReturn(user);
+
+        ApiResponseCache cache = new ApiResponseCache() {
+            @Override
+            protected boolean isEnabled() {
+                return true;
+            }
+        };
+        Field cacheMessageBus = ApiResponseCache.class.getDeclaredField("messageBus");
+        cacheMessageBus.setAccessible(true);
+        cacheMessageBus.set(cache, messageBus);
+        Field cacheClusterMgr = ApiResponseCache.class.getDeclaredField("clusterMgr");
+        cacheClusterMgr.setAccessible(true);
+        cacheClusterMgr.set(cache, Mockito.mock(ClusterManager.class));
+        cache.configure("apiResponseCache", new HashMap<String, Object>());
+        final ArgumentCaptor<MessageSubscriber> subscriber = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(messageBus).subscribe(Mockito.eq(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT), subscriber.capture());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                subscriber.getValue().onPublishMessage(null, EntityManager.MESSAGE_ENTITY_CHANGED_EVENT, invocation.getArguments()[3]);
+                return null;
+            }
+        }).when(messageBus).publish(Mockito.anyString(), Mockito.eq(EntityManager.MESSAGE_ENTITY_CHANGED_EVENT), Mockito.any(PublishScope.class), Mockito.any());
+
+        CallContext.register(user, account);
+        TransactionLegacy txn = TransactionLegacy.open("testEntityChangeIsPublishedAfterCommit");
+        try {
+            txn.start();
+            ActionEventUtils.onCompletedActionEvent(USER_ID, ACCOUNT_ID, EventVO.LEVEL_INFO, EventTypes.EVENT_ZONE_EDIT, true, "Zone edited", 0);
+
+            // another request reading the zones before the commit still gets the old ones
+            ApiResponseCache.Lookup lookup = cache.lookup(new ListZonesCmd(), new HashMap<String, String>(), account);
+            cache.put(lookup, "old zones", "");
+            Assert.assertEquals("old zones", cache.get(lookup, new StringBuilder()));
+
+            txn.commit();
+            Assert.assertNull("The zones read before the commit are not served after it",
+                    cache.get(cache.lookup(new ListZonesCmd(), new HashMap<String, String>(), account), new StringBuilder()));
+        } finally {
+            txn.close();
+            CallContext.unregister();
+        }
+    }
 }
@@ -0,0 +1,138 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.host.HostVO;
+
+public class HostStatsFanOutTest {
+
+    private ExecutorService executor;
+    private HostStatsFanOut fanOut;
+    private List<HostVO> hosts;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+        fanOut = new HostStatsFanOut(executor);
+        hosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= 8; id++) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            Mockito.when(host.getName()).thenReturn("host" + id);
+            hosts.add(host);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHostsAreCalledInParallel() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        // the first calls only return once as many hosts as there are threads are called at once
+        final CountDownLatch allThreadsCalling = new CountDownLatch(4);
+        Map<Long, String> result = fanOut.collect("test", hosts, 10000, new HostStatsFanOut.HostCall<String>() {
+            @Override
+            public String call(HostVO host) throws Exception {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                allThreadsCalling.countDown();
+                allThreadsCalling.await(10, TimeUnit.SECONDS);
+                running.decrementAndGet();
+                return host.getName();
+            }
+        });
+
+        Assert.assertEquals(8, result.size());
+        Assert.assertEquals("Answers are in the order of the hosts", Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), new ArrayList<Long>(result.keySet()));
+        Assert.assertEquals("host3", result.get(3L));
+        Assert.assertEquals("As many hosts as threads are called at once", 0, allThreadsCalling.getCount());
+        Assert.assertTrue("At most as many hosts as threads are called at once", maxRunning.get() <= 4);
+        Assert.assertEquals(8, fanOut.getStats().get("test").getHostLatencies().size());
+    }
+
+    @Test
+    public void testSlowHostsAreSkipped() {
+        final CountDownLatch hostAnswers = new CountDownLatch(1);
+        Map<Long, String> result = fanOut.collect("test", hosts, 500, new HostStatsFanOut.HostCall<String>() {
+            @Override
+            public String call(HostVO host) throws Exception {
+                if (host.getId() == 2L) {
+                    hostAnswers.await();
+                }
+                return host.getName();
+            }
+        });
+        hostAnswers.countDown();
+
+        // the host that never answered ended neither the cycle nor got its stats in
+        Assert.assertEquals(7, result.size());
+        Assert.assertFalse(result.containsKey(2L));
+        Assert.assertEquals(1, fanOut.getStats().get("test").getHostsSkipped());
+        Assert.assertEquals(1, fanOut.getStats().get("test").getLastHostsSkipped());
+    }
+
+    @Test
+    public void testLatenciesAreOnlyKeptForTheHostsOfTheLastCycle() {
+        HostStatsFanOut.HostCall<String> call = new HostStatsFanOut.HostCall<String>() {
+            @Override
+            public String call(HostVO host) throws Exception {
+                return host.getName();
+            }
+        };
+        fanOut.collect("test", hosts, 10000, call);
+        fanOut.collect("test", hosts.subList(0, 2), 10000, call);
+
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L)), fanOut.getStats().get("test").getHostLatencies().keySet());
+    }
+
+    @Test
+    public void testFailedAndEmptyHostsAreLeftOut() {
+        Map<Long, String> result = fanOut.collect("test", hosts, 10000, new HostStatsFanOut.HostCall<String>() {
+            @Override
+            public String call(HostVO host) throws Exception {
+                if (host.getId() == 1L) {
+                    throw new Exception("unreachable");
+                }
+                return host.getId() == 2L ? null : host.getName();
+            }
+        });
+
+        Assert.assertEquals(6, result.size());
+        Assert.assertEquals(1, fanOut.getStats().get("test").getHostsFailed());
+        Assert.assertEquals(0, fanOut.getStats().get("test").getHostsSkipped());
+    }
+}
@@ -224,4 +224,11 @@ public class StatsCollectorTest {
         boolean result = statsCollector.areAllDiskStatsZero(vmDiskStatsEntry);
         Assert.assertEquals(expected, result);
     }
+
+    @Test
+    public void stopTestWithoutStart() {
+        StatsCollector collector = new StatsCollector();
+        Assert.assertTrue(collector.stop());
+        Assert.assertTrue(collector.getHostLatencies().isEmpty());
+    }
 }
@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsExporterTest {
+
+    private final List<List<Integer>> batches = new CopyOnWriteArrayList<List<Integer>>();
+    private volatile CountDownLatch blocked = new CountDownLatch(0);
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private volatile boolean failing = false;
+    private boolean closed = false;
+
+    private final StatsExporter.Sink<Integer> sink = new StatsExporter.Sink<Integer>() {
+        @Override
+        public void write(List<Integer> batch) throws Exception {
+            writing.countDown();
+            blocked.await();
+            if (failing) {
+                throw new Exception("unreachable");
+            }
+            batches.add(new ArrayList<Integer>(batch));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    };
+
+    private StatsExporter<Integer> exporter;
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        exporter.close();
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> range = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    private void awaitExported(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (exporter.getExported() + exporter.getDropped() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testStatsAreWrittenInBatchesOfTheBatchSize() throws Exception {
+        exporter = new StatsExporter<Integer>("test", sink, 1000, 10, 60000);
+        exporter.export(range(0, 25));
+        awaitExported(20);
+
+        Assert.assertEquals(20, exporter.getExported());
+        Assert.assertEquals(range(0, 10), batches.get(0));
+        Assert.assertEquals(range(10, 20), batches.get(1));
+
+        exporter.export(range(25, 30));
+        awaitExported(30);
+        Assert.assertEquals("The rest waits for the batch to fill up", Arrays.asList(range(0, 10), range(10, 20), range(20, 30)), batches);
+    }
+
+    @Test
+    public void testPartialBatchIsWrittenAfterTheFlushInterval() throws Exception {
+        exporter = new StatsExporter<Integer>("test", sink, 1000, 10, 200);
+        exporter.export(Arrays.asList(1, 2, 3));
+        awaitExported(3);
+
+        Assert.assertEquals(3, exporter.getExported());
+        Assert.assertEquals("The batch is written before it fills up", Collections.singletonList(Arrays.asList(1, 2, 3)), batches);
+    }
+
+    @Test
+    public void testStatsBeyondTheBufferAreDropped() throws Exception {
+        blocked = new CountDownLatch(1);
+        exporter = new StatsExporter<Integer>("test", sink, 10, 5, 0);
+        exporter.export(range(0, 1));
+        Assert.assertTrue(writing.await(10, TimeUnit.SECONDS));
+        // the sink is blocked, exporting does not wait for it and drops what does not fit
+        exporter.export(range(1, 100));
+        Assert.assertEquals(89, exporter.getDropped());
+
+        blocked.countDown();
+        awaitExported(100);
+        Assert.assertEquals(11, exporter.getExported());
+    }
+
+    @Test
+    public void testFailedBatchesAreDropped() throws Exception {
+        failing = true;
+        exporter = new StatsExporter<Integer>("test", sink, 100, 5, 60000);
+        exporter.export(range(0, 5));
+        awaitExported(5);
+        Assert.assertEquals(5, exporter.getDropped());
+        Assert.assertEquals(1, exporter.getFailedBatches());
+
+        failing = false;
+        exporter.export(range(5, 10));
+        awaitExported(10);
+        Assert.assertEquals(5, exporter.getExported());
+
+        exporter.close();
+        Assert.assertTrue(closed);
+    }
+}
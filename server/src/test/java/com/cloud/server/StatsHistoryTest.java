@@ -0,0 +1,166 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.server.StatsHistory.Resolution;
+import com.cloud.server.StatsHistory.Sample;
+
+public class StatsHistoryTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    // a whole day, so the slots of every resolution start with it
+    private static final long START = TimeUnit.DAYS.toMillis(17000);
+
+    private final AtomicLong budget = new AtomicLong(Long.MAX_VALUE / 2);
+    private final StatsHistory history = new StatsHistory(2, budget);
+
+    private void record(long id, long time, double first, double second) {
+        history.record(id, time, new double[] {first, second});
+    }
+
+    @Test
+    public void testSamplesAreAveragedBySlot() {
+        record(1, START, 10, 100);
+        record(1, START + 30000, 20, 200);
+        record(1, START + MINUTE, 60, 600);
+
+        List<Sample> minutes = history.read(1, Resolution.MINUTE, START, START + MINUTE, START + MINUTE);
+        Assert.assertEquals(2, minutes.size());
+        Assert.assertEquals(START, minutes.get(0).getTimestamp());
+        Assert.assertEquals(15, minutes.get(0).getValue(0), 0.001);
+        Assert.assertEquals(150, minutes.get(0).getValue(1), 0.001);
+        Assert.assertEquals(60, minutes.get(1).getValue(0), 0.001);
+
+        List<Sample> fiveMinutes = history.read(1, Resolution.FIVE_MINUTES, START, START + HOUR, START + MINUTE);
+        Assert.assertEquals(1, fiveMinutes.size());
+        Assert.assertEquals(30, fiveMinutes.get(0).getValue(0), 0.001);
+
+        Assert.assertEquals(30, history.average(1, Resolution.MINUTE, 0, START, START + MINUTE), 0.001);
+        Assert.assertEquals(60, history.average(1, Resolution.MINUTE, 0, START + MINUTE, START + MINUTE), 0.001);
+        Assert.assertTrue(Double.isNaN(history.average(2, Resolution.MINUTE, 0, START, START + MINUTE)));
+    }
+
+    @Test
+    public void testWindowOfResolution() {
+        for (int minute = 0; minute < 120; minute++) {
+            record(1, START + minute * MINUTE, minute, 0);
+        }
+        long now = START + 119 * MINUTE;
+
+        List<Sample> minutes = history.read(1, Resolution.MINUTE, 0, now, now);
+        Assert.assertEquals("The last hour is kept by minute", 60, minutes.size());
+        Assert.assertEquals(60, minutes.get(0).getValue(0), 0.001);
+        Assert.assertEquals(119, minutes.get(59).getValue(0), 0.001);
+
+        List<Sample> hours = history.read(1, Resolution.HOUR, 0, now, now);
+        Assert.assertEquals(2, hours.size());
+        Assert.assertEquals(29.5, hours.get(0).getValue(0), 0.001);
+        Assert.assertEquals(89.5, hours.get(1).getValue(0), 0.001);
+
+        Assert.assertTrue("Slots older than the window are not read", history.read(1, Resolution.MINUTE, 0, now, now + 2 * HOUR).isEmpty());
+    }
+
+    @Test
+    public void testBudget() {
+        long bytes = StatsHistory.bytesPerEntity(2);
+        budget.set(2 * bytes);
+        Assert.assertTrue(history.record(1L, START, new double[2]));
+        Assert.assertTrue(history.record(2L, START, new double[2]));
+        Assert.assertFalse(history.record(3L, START, new double[2]));
+        Assert.assertEquals(2, history.size());
+        Assert.assertEquals(1, history.getRejected());
+
+        history.removeStale(START + 3 * TimeUnit.DAYS.toMillis(1));
+        Assert.assertEquals(0, history.size());
+        Assert.assertEquals(2 * bytes, budget.get());
+    }
+
+    /**
+     * Checks the estimate the budget is taken with against the arrays an entity holds, and that recording a sample allocates nothing.
+     */
+    @Test
+    public void testFootprintPerVm() throws Exception {
+        int vms = 1000;
+        int metrics = StatsCollector.VmHistoryMetric.values().length;
+        StatsHistory vmHistory = new StatsHistory(metrics, new AtomicLong(Long.MAX_VALUE / 2));
+        Long[] ids = new Long[vms];
+        for (int i = 0; i < vms; i++) {
+            ids[i] = Long.valueOf(i);
+        }
+        double[] sample = new double[metrics];
+        for (int i = 0; i < vms; i++) {
+            vmHistory.record(ids[i], START, sample);
+        }
+
+        Field seriesField = StatsHistory.class.getDeclaredField("series");
+        seriesField.setAccessible(true);
+        Object series = ((Map<?, ?>)seriesField.get(vmHistory)).get(ids[0]);
+        long arrayBytes = 0;
+        for (String name : new String[] {"slots", "counts", "values"}) {
+            Field field = series.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            Object array = field.get(series);
+            arrayBytes += (long)Array.getLength(array) * elementBytes(array.getClass().getComponentType());
+        }
+        long estimate = StatsHistory.bytesPerEntity(metrics);
+        Assert.assertTrue("The estimate of " + estimate + " bytes covers the " + arrayBytes + " bytes of the arrays", estimate >= arrayBytes);
+        Assert.assertTrue("The estimate of " + estimate + " bytes only adds headers to the " + arrayBytes + " bytes of the arrays", estimate - arrayBytes <= 128);
+
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+            long thread = Thread.currentThread().getId();
+            long allocated = allocations.getThreadAllocatedBytes(thread);
+            for (int minute = 1; minute <= 10; minute++) {
+                for (int i = 0; i < vms; i++) {
+                    sample[0] = i;
+                    vmHistory.record(ids[i], START + minute * MINUTE, sample);
+                }
+            }
+            allocated = allocations.getThreadAllocatedBytes(thread) - allocated;
+            Assert.assertTrue("Recording allocates nothing per sample", allocated < vms);
+        }
+        Assert.assertEquals(vms, vmHistory.size());
+    }
+
+    @Test
+    public void testDefaultMemoryKeepsTheHistoryOf100kVms() {
+        long budget = Long.parseLong(StatsCollector.statsHistoryMemory.defaultValue()) * 1024 * 1024;
+        long needed = 100000 * StatsHistory.bytesPerEntity(StatsCollector.VmHistoryMetric.values().length) +
+                5000 * StatsHistory.bytesPerEntity(StatsCollector.HostHistoryMetric.values().length);
+        Assert.assertTrue("The default of " + budget + " bytes covers the " + needed + " bytes of 100k VMs on 5000 hosts", needed <= budget);
+    }
+
+    private static int elementBytes(Class<?> type) {
+        if (type == short.class) {
+            return Short.SIZE / Byte.SIZE;
+        }
+        return type == int.class ? Integer.SIZE / Byte.SIZE : Float.SIZE / Byte.SIZE;
+    }
+}
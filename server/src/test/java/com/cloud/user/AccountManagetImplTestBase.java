@@ -37,6 +37,7 @@ import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.dao.ResourceCountDao;
 import com.cloud.configuration.dao.ResourceLimitDao;
@@ -171,6 +172,8 @@ public class AccountManagetImplTestBase {
     @Mock
     MessageBus _messageBus;
     @Mock
+    ClusterManager _clusterMgr;
+    @Mock
     VMSnapshotManager _vmSnapshotMgr;
     @Mock
     VMSnapshotDao _vmSnapshotDao;
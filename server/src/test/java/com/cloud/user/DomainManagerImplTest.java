@@ -18,19 +18,23 @@
 package com.cloud.user;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.region.RegionManager;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Matchers;
 import org.mockito.Mock;
@@ -39,6 +43,7 @@ import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.cloud.api.query.dao.DiskOfferingJoinDao;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.api.query.dao.ServiceOfferingJoinDao;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceOwnerType;
@@ -58,6 +63,7 @@ import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -92,6 +98,8 @@ public class DomainManagerImplTest {
     MessageBus _messageBus;
     @Mock
     ConfigurationManager _configMgr;
+    @Mock
+    ClusterManager _clusterMgr;
 
     @Spy
     @InjectMocks
@@ -294,4 +302,58 @@ public class DomainManagerImplTest {
             CallContext.unregister();
         }
     }
+
+    private static DomainVO buildDomain(long id, Long parent) {
+        DomainVO domain = new DomainVO("d" + id, ACCOUNT_ID, parent, null);
+        domain.setId(id);
+        return domain;
+    }
+
+    @Test
+    public void testIsChildDomainFromHierarchy() {
+        Mockito.doReturn(Arrays.asList(buildDomain(1L, null), buildDomain(2L, 1L), buildDomain(3L, 2L), buildDomain(4L, 1L))).when(_domainDao).listAll();
+
+        Assert.assertTrue(domainManager.isChildDomain(1L, 3L));
+        Assert.assertTrue(domainManager.isChildDomain(2L, 3L));
+        Assert.assertFalse(domainManager.isChildDomain(4L, 3L));
+        Assert.assertFalse(domainManager.isChildDomain(3L, 1L));
+        Assert.assertFalse(domainManager.isChildDomain(null, 1L));
+
+        Mockito.verify(_domainDao, Mockito.times(1)).listAll();
+        Mockito.verify(_domainDao, Mockito.never()).isChildDomain(Mockito.anyLong(), Mockito.anyLong());
+    }
+
+    @Test
+    public void testIsChildDomainUnknownDomainFallsBackToDao() {
+        Mockito.doReturn(Arrays.asList(buildDomain(1L, null), buildDomain(2L, 1L))).when(_domainDao).listAll();
+        Mockito.when(_domainDao.isChildDomain(1L, 5L)).thenReturn(true);
+
+        Assert.assertTrue(domainManager.isChildDomain(1L, 5L));
+        Mockito.verify(_domainDao).isChildDomain(1L, 5L);
+    }
+
+    @Test
+    public void testDomainTreeIsDroppedOnceTheDomainIsCommitted() throws Exception {
+        Mockito.doReturn(Arrays.asList(buildDomain(1L, null), buildDomain(2L, 1L))).when(_domainDao).listAll();
+        domainManager.configure("DomainManager", new HashMap<String, Object>());
+        ArgumentCaptor<MessageSubscriber> subscriber = ArgumentCaptor.forClass(MessageSubscriber.class);
+        Mockito.verify(_messageBus).subscribe(Mockito.eq(DomainManager.MESSAGE_ADD_DOMAIN_EVENT), subscriber.capture());
+        Assert.assertTrue(domainManager.isChildDomain(1L, 2L));
+
+        Mockito.doReturn(Arrays.asList(buildDomain(1L, null), buildDomain(2L, 1L), buildDomain(3L, 2L))).when(_domainDao).listAll();
+        TransactionLegacy txn = TransactionLegacy.open("testDomainTreeIsDroppedOnceTheDomainIsCommitted");
+        try {
+            txn.start();
+            subscriber.getValue().onPublishMessage(null, DomainManager.MESSAGE_ADD_DOMAIN_EVENT, 3L);
+            Mockito.verify(_clusterMgr, Mockito.never()).publishEvent(Mockito.anyString(), Mockito.anyString());
+
+            txn.commit();
+            Mockito.verify(_clusterMgr).publishEvent(DomainManager.MESSAGE_DOMAIN_HIERARCHY_CHANGED_EVENT, "3");
+        } finally {
+            txn.close();
+        }
+        Assert.assertTrue(domainManager.isChildDomain(1L, 3L));
+        Mockito.verify(_domainDao, Mockito.times(2)).listAll();
+        Mockito.verify(_domainDao, Mockito.never()).isChildDomain(Mockito.anyLong(), Mockito.anyLong());
+    }
 }
@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.domain.DomainVO;
+
+public class DomainTreeTest {
+
+    private static DomainVO domain(long id, Long parent) {
+        DomainVO domain = new DomainVO("d" + id, 2L, parent, null);
+        domain.setId(id);
+        return domain;
+    }
+
+    //        1
+    //      /   \
+    //     2     3
+    //    / \     \
+    //   4   5     6
+    //             |
+    //             7
+    private static DomainTree sampleTree() {
+        return DomainTree.build(Arrays.asList(domain(7, 6L), domain(1, null), domain(2, 1L), domain(3, 1L), domain(4, 2L), domain(5, 2L), domain(6, 3L)));
+    }
+
+    @Test
+    public void testAncestors() {
+        DomainTree tree = sampleTree();
+        Assert.assertEquals(7, tree.size());
+        for (long id = 1; id <= 7; id++) {
+            Assert.assertTrue(tree.isChildDomain(1, id));
+            Assert.assertTrue(tree.isChildDomain(id, id));
+        }
+        Assert.assertTrue(tree.isChildDomain(2, 4));
+        Assert.assertTrue(tree.isChildDomain(2, 5));
+        Assert.assertTrue(tree.isChildDomain(3, 7));
+        Assert.assertTrue(tree.isChildDomain(6, 7));
+    }
+
+    @Test
+    public void testNonAncestors() {
+        DomainTree tree = sampleTree();
+        Assert.assertFalse(tree.isChildDomain(4, 2));
+        Assert.assertFalse(tree.isChildDomain(2, 3));
+        Assert.assertFalse(tree.isChildDomain(2, 7));
+        Assert.assertFalse(tree.isChildDomain(4, 5));
+        Assert.assertFalse(tree.isChildDomain(7, 1));
+    }
+
+    @Test
+    public void testUnknownDomain() {
+        DomainTree tree = sampleTree();
+        Assert.assertFalse(tree.contains(8));
+        Assert.assertFalse(tree.isChildDomain(1, 8));
+        Assert.assertFalse(tree.isChildDomain(8, 1));
+    }
+
+    @Test
+    public void testDeepTree() {
+        List<DomainVO> domains = new ArrayList<DomainVO>();
+        domains.add(domain(1, null));
+        for (long id = 2; id <= 10000; id++) {
+            domains.add(domain(id, id - 1));
+        }
+        DomainTree tree = DomainTree.build(domains);
+        Assert.assertTrue(tree.isChildDomain(1, 10000));
+        Assert.assertTrue(tree.isChildDomain(5000, 5001));
+        Assert.assertFalse(tree.isChildDomain(10000, 1));
+    }
+}
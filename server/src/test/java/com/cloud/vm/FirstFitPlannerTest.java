@@ -61,6 +61,7 @@ import org.springframework.test.context.support.AnnotationConfigContextLoader;
 
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -435,6 +436,11 @@ public class FirstFitPlannerTest {
             return Mockito.mock(CapacityDao.class);
         }
 
+        @Bean
+        public HostCapacityIndex hostCapacityIndex() {
+            return Mockito.mock(HostCapacityIndex.class);
+        }
+
         @Bean
         public AccountManager accountManager() {
             return Mockito.mock(AccountManager.class);
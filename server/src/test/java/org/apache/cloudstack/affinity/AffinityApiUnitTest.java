@@ -286,6 +286,11 @@ public class AffinityApiUnitTest {
             return Mockito.mock(AffinityGroupDomainMapDao.class);
         }
 
+        @Bean
+        public AffinityGroupHostIndex affinityGroupHostIndex() {
+            return Mockito.mock(AffinityGroupHostIndex.class);
+        }
+
         @Bean
         public EntityManager entityManager() {
             return Mockito.mock(EntityManager.class);
@@ -0,0 +1,217 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.affinity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
+import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.engine.cloud.entity.api.db.VMReservationVO;
+import org.apache.cloudstack.engine.cloud.entity.api.db.dao.VMReservationDao;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class AffinityGroupHostIndexImplTest {
+    private static final long GROUP_ID = 1L;
+
+    private final AffinityGroupDao affinityGroupDao = Mockito.mock(AffinityGroupDao.class);
+    private final AffinityGroupVMMapDao affinityGroupVMMapDao = Mockito.mock(AffinityGroupVMMapDao.class);
+    private final VMReservationDao reservationDao = Mockito.mock(VMReservationDao.class);
+    private final VMInstanceDao vmInstanceDao = Mockito.mock(VMInstanceDao.class);
+    private final HostDao hostDao = Mockito.mock(HostDao.class);
+    private final List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+    private final List<HostVO> hosts = new ArrayList<HostVO>();
+    private final List<VMReservationVO> reservations = new ArrayList<VMReservationVO>();
+    private long placementVersion;
+    private AffinityGroupHostIndexImpl index;
+
+    private VMInstanceVO vm(long id, VirtualMachine.State state, Long hostId, Long lastHostId, long updatedSecondsAgo) {
+        VMInstanceVO vm = Mockito.mock(VMInstanceVO.class);
+        Mockito.when(vm.getId()).thenReturn(id);
+        Mockito.when(vm.getState()).thenReturn(state);
+        Mockito.when(vm.getHostId()).thenReturn(hostId);
+        Mockito.when(vm.getLastHostId()).thenReturn(lastHostId);
+        Mockito.when(vm.getUpdateTime()).thenReturn(new Date(System.currentTimeMillis() - updatedSecondsAgo * 1000));
+        return vm;
+    }
+
+    private void host(long id, long clusterId) {
+        HostVO host = Mockito.mock(HostVO.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getClusterId()).thenReturn(clusterId);
+        Mockito.when(hostDao.findById(id)).thenReturn(host);
+        hosts.add(host);
+    }
+
+    private void transit(VMInstanceVO vm, VirtualMachine.State from, VirtualMachine.State to, Long hostId) {
+        Mockito.when(vm.getState()).thenReturn(to);
+        Mockito.when(vm.getHostId()).thenReturn(hostId);
+        index.new VmPlacementListener().postStateTransitionEvent(new StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event>(from,
+                VirtualMachine.Event.OperationSucceeded, to, null), vm, true, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setup() {
+        index = new AffinityGroupHostIndexImpl();
+        index._affinityGroupDao = affinityGroupDao;
+        index._affinityGroupVMMapDao = affinityGroupVMMapDao;
+        index._reservationDao = reservationDao;
+        index._vmInstanceDao = vmInstanceDao;
+        index._hostDao = hostDao;
+        index.setReconcileInterval(60);
+        index.setVmCapacityReleaseInterval(3600);
+
+        host(100L, 10L);
+        host(101L, 10L);
+        host(102L, 11L);
+        host(103L, 12L);
+        Mockito.when(vmInstanceDao.createSearchCriteria()).thenReturn(Mockito.mock(SearchCriteria.class));
+        Mockito.when(hostDao.createSearchCriteria()).thenReturn(Mockito.mock(SearchCriteria.class));
+        Mockito.when(hostDao.search(Matchers.any(SearchCriteria.class), Matchers.isNull(Filter.class))).thenReturn(hosts);
+        Mockito.when(vmInstanceDao.search(Matchers.any(SearchCriteria.class), Matchers.isNull(Filter.class))).thenReturn(vms);
+        Mockito.when(reservationDao.createSearchCriteria()).thenReturn(Mockito.mock(SearchCriteria.class));
+        Mockito.when(reservationDao.search(Matchers.any(SearchCriteria.class), Matchers.isNull(Filter.class))).thenReturn(reservations);
+        Mockito.when(affinityGroupDao.listPlacementVersions(Matchers.anyCollectionOf(Long.class))).thenAnswer(new Answer<Map<Long, Long>>() {
+            @Override
+            public Map<Long, Long> answer(InvocationOnMock invocation) {
+                return ((Collection<Long>)invocation.getArguments()[0]).contains(GROUP_ID) ? Collections.singletonMap(GROUP_ID, placementVersion)
+                        : Collections.<Long, Long>emptyMap();
+            }
+        });
+
+        // running on host 100, stopped with capacity reserved on host 101, stopped long ago on host 102
+        vms.add(vm(2L, VirtualMachine.State.Running, 100L, null, 0));
+        vms.add(vm(3L, VirtualMachine.State.Stopped, null, 101L, 60));
+        vms.add(vm(4L, VirtualMachine.State.Stopped, null, 102L, 7200));
+        Mockito.when(affinityGroupVMMapDao.listVmIdsByAffinityGroup(GROUP_ID)).thenReturn(new ArrayList<Long>(Arrays.asList(2L, 3L, 4L, 5L)));
+    }
+
+    @Test
+    public void testOccupiedHostsAreLookedUpOnceUntilInvalidated() {
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(100L, 101L)), index.getOccupiedHosts(GROUP_ID, 5L));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(101L)), index.getOccupiedHosts(GROUP_ID, 2L));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(10L)), index.getOccupiedClusters(GROUP_ID, 5L));
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(1)).listVmIdsByAffinityGroup(GROUP_ID);
+        Assert.assertEquals(2, index.getHits());
+
+        index.invalidate(GROUP_ID);
+        index.getOccupiedHosts(GROUP_ID, 5L);
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(2)).listVmIdsByAffinityGroup(GROUP_ID);
+        Assert.assertEquals(2, index.getMisses());
+    }
+
+    @Test
+    public void testVmsMoveWithTheirStateTransitions() {
+        index.getOccupiedHosts(GROUP_ID, 5L);
+        VMInstanceVO vm = vms.get(0);
+        transit(vm, VirtualMachine.State.Running, VirtualMachine.State.Stopping, 100L);
+        Mockito.when(vm.getLastHostId()).thenReturn(100L);
+        transit(vm, VirtualMachine.State.Stopping, VirtualMachine.State.Stopped, null);
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(100L, 101L)), index.getOccupiedHosts(GROUP_ID, 5L));
+
+        transit(vm, VirtualMachine.State.Stopped, VirtualMachine.State.Starting, 103L);
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(101L, 103L)), index.getOccupiedHosts(GROUP_ID, 5L));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(10L, 12L)), index.getOccupiedClusters(GROUP_ID, 5L));
+
+        transit(vm, VirtualMachine.State.Running, VirtualMachine.State.Expunging, null);
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(101L)), index.getOccupiedHosts(GROUP_ID, 5L));
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(1)).listVmIdsByAffinityGroup(GROUP_ID);
+    }
+
+    @Test
+    public void testHostIsClaimedByOneVmOfTheGroup() {
+        Assert.assertFalse(index.claimHost(GROUP_ID, 5L, 100L));
+        Assert.assertTrue(index.claimHost(GROUP_ID, 5L, 102L));
+        Assert.assertFalse(index.claimHost(GROUP_ID, 6L, 102L));
+        Assert.assertTrue(index.getOccupiedHosts(GROUP_ID, 6L).contains(102L));
+        Assert.assertEquals(2, index.getRefusedClaims());
+
+        index.releaseClaims(5L);
+        Assert.assertTrue(index.claimHost(GROUP_ID, 6L, 102L));
+
+        // the claim is released once the VM started, it is then on the host
+        VMInstanceVO vm = vm(6L, VirtualMachine.State.Starting, 102L, null, 0);
+        transit(vm, VirtualMachine.State.Starting, VirtualMachine.State.Running, 102L);
+        Assert.assertFalse(index.claimHost(GROUP_ID, 5L, 102L));
+        transit(vm, VirtualMachine.State.Running, VirtualMachine.State.Expunging, null);
+        Assert.assertTrue(index.claimHost(GROUP_ID, 5L, 102L));
+    }
+
+    @Test
+    public void testReconcileCountsVmsThatMoved() {
+        index.getOccupiedHosts(GROUP_ID, 5L);
+        // started on host 103 by another management server
+        Mockito.when(vms.get(1).getHostId()).thenReturn(103L);
+        Mockito.when(vms.get(1).getState()).thenReturn(VirtualMachine.State.Running);
+
+        index.reconcile();
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(100L, 103L)), index.getOccupiedHosts(GROUP_ID, 5L));
+        Assert.assertEquals(1, index.getDriftedVms());
+        Assert.assertEquals(1, index.getReconciliations());
+    }
+
+    @Test
+    public void testGroupIsRefreshedWhenAnotherServerMovedItOn() {
+        index.getOccupiedHosts(GROUP_ID, 5L);
+        index.refresh(GROUP_ID, 0L);
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(1)).listVmIdsByAffinityGroup(GROUP_ID);
+
+        // another management server reserved host 103 for a VM it added to the group
+        Mockito.when(affinityGroupVMMapDao.listVmIdsByAffinityGroup(GROUP_ID)).thenReturn(new ArrayList<Long>(Arrays.asList(2L, 3L, 4L, 5L, 7L)));
+        reservations.add(new VMReservationVO(7L, 1L, 1L, 12L, 103L));
+        placementVersion = 1L;
+        Assert.assertTrue(index.claimHost(GROUP_ID, 5L, 103L));
+
+        index.refresh(GROUP_ID, 1L);
+        Assert.assertFalse(index.claimHost(GROUP_ID, 5L, 103L));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(100L, 101L, 103L)), index.getOccupiedHosts(GROUP_ID, 5L));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(10L, 12L)), index.getOccupiedClusters(GROUP_ID, 5L));
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(2)).listVmIdsByAffinityGroup(GROUP_ID);
+
+        // a reservation made on this management server moves the index on with the group
+        index.advance(GROUP_ID, 1L);
+        index.refresh(GROUP_ID, 2L);
+        Mockito.verify(affinityGroupVMMapDao, Mockito.times(2)).listVmIdsByAffinityGroup(GROUP_ID);
+
+        // the reservation is gone once the VM is no longer starting
+        VMInstanceVO vm = vm(7L, VirtualMachine.State.Starting, 103L, null, 0);
+        transit(vm, VirtualMachine.State.Starting, VirtualMachine.State.Stopped, null);
+        Assert.assertTrue(index.claimHost(GROUP_ID, 5L, 103L));
+    }
+}
@@ -347,6 +347,11 @@ public class AffinityGroupServiceImplTest {
             return Mockito.mock(AffinityGroupDomainMapDao.class);
         }
 
+        @Bean
+        public AffinityGroupHostIndex affinityGroupHostIndex() {
+            return Mockito.mock(AffinityGroupHostIndex.class);
+        }
+
         @Bean
         public EntityManager entityManager() {
             return Mockito.mock(EntityManager.class);
@@ -1100,8 +1100,10 @@ var dictionary = {
 "label.metrics.cpu.allocated":"CPU Allocation",
 "label.metrics.cpu.max.dev":"Deviation",
 "label.metrics.cpu.total":"Total",
+"label.metrics.cpu.trend":"Trend",
 "label.metrics.cpu.usage":"CPU Usage",
 "label.metrics.cpu.used.avg":"Used",
+"label.metrics.cpu.used.hour":"Last hour",
 "label.metrics.disk":"Disk",
 "label.metrics.disk.allocated":"Allocated",
 "label.metrics.disk.iops.total":"IOPS",
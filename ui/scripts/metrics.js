@@ -469,6 +469,12 @@
                         },
                         cpuused: {
                             label: 'label.metrics.cpu.used.avg',
+                        },
+                        cpuusedaverage: {
+                            label: 'label.metrics.cpu.used.hour'
+                        },
+                        cputrend: {
+                            label: 'label.metrics.cpu.trend'
                         }
                     }
                 },
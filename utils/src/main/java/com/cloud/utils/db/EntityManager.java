@@ -81,4 +81,9 @@ public interface EntityManager {
     public static final String MESSAGE_GRANT_ENTITY_EVENT = "Message.GrantEntity.Event";
     public static final String MESSAGE_REVOKE_ENTITY_EVENT = "Message.RevokeEntity.Event";
     public static final String MESSAGE_ADD_DOMAIN_WIDE_ENTITY_EVENT = "Message.AddDomainWideEntity.Event";
+
+    /**
+     * Published with the name of the entity interface, e.g. com.cloud.offering.ServiceOffering, when an action event on such an entity was created or completed
+     */
+    public static final String MESSAGE_ENTITY_CHANGED_EVENT = "Message.EntityChanged.Event";
 }
@@ -0,0 +1,47 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.db;
+
+/**
+ * Counts the statements each thread prepares on the database, so what a piece of work costs in queries can be told
+ * from the count before and after it.
+ */
+public final class StatementCounter {
+    private static final ThreadLocal<long[]> s_count = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private StatementCounter() {
+    }
+
+    public static void prepared() {
+        s_count.get()[0]++;
+    }
+
+    /**
+     * @return the number of statements the current thread has prepared so far
+     */
+    public static long getCount() {
+        return s_count.get()[0];
+    }
+}
@@ -21,9 +21,12 @@ package com.cloud.utils.script;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -32,10 +35,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.cloudstack.utils.security.KeyStoreUtils;
 import org.apache.commons.io.IOUtils;
@@ -43,8 +46,6 @@ import org.apache.log4j.Logger;
 import org.joda.time.Duration;
 
 import com.cloud.utils.PropertiesUtil;
-import com.cloud.utils.concurrency.NamedThreadFactory;
-import com.cloud.utils.script.OutputInterpreter.TimedOutLogger;
 
 public class Script implements Callable<String> {
     private static final Logger s_logger = Logger.getLogger(Script.class);
@@ -58,13 +59,17 @@ public class Script implements Callable<String> {
 
     private boolean _passwordCommand = false;
 
-    private static final ScheduledExecutorService s_executors = Executors.newScheduledThreadPool(10, new NamedThreadFactory("Script"));
+    // between asking a timed out script to terminate and killing it
+    private static final long KILL_GRACE_PERIOD = 5000;
+    // how much of the output of a failed script is kept for its error
+    private static final int MAX_ERROR_OUTPUT = 64 * 1024;
 
     String _workDir;
     ArrayList<String> _command;
     long _timeout;
     Process _process;
     Thread _thread;
+    volatile Future<String> _reader;
 
     public int getExitValue() {
         return _process.exitValue();
@@ -206,7 +211,15 @@ public class Script implements Callable<String> {
             _logger.debug("Executing: " + buildCommandLine(command).split(KeyStoreUtils.KS_FILENAME)[0]);
         }
 
+        ScriptExecutor executor = ScriptExecutor.getInstance();
+        String scriptName = ScriptExecutor.getScriptName(command);
+        ScriptExecutor.Permit permit = null;
+        long start = System.currentTimeMillis();
+        Integer exitValue = null;
         try {
+            permit = executor.acquire(scriptName);
+            start = System.currentTimeMillis();
+
             ProcessBuilder pb = new ProcessBuilder(command);
             pb.redirectErrorStream(true);
             if (_workDir != null)
@@ -218,83 +231,87 @@ public class Script implements Callable<String> {
                 return "Unable to execute the command: " + command[0];
             }
 
-            BufferedReader ir = new BufferedReader(new InputStreamReader(_process.getInputStream()));
+            final boolean drain = interpreter != null && interpreter.drain();
+            // the output is interpreted as it is read, only its tail is kept for the error should the script fail
+            final OutputTail tail = new OutputTail(new InputStreamReader(_process.getInputStream()), drain ? 0 : MAX_ERROR_OUTPUT);
+            final BufferedReader ir = new BufferedReader(tail);
+            final OutputInterpreter outputInterpreter = interpreter;
+            // read by a reader thread, so a timed out script returns at once even when its children keep the output
+            // open, and the calling thread is never blocked on a pipe that does not reach its end
+            _reader = executor.read(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    String read = null;
+                    if (outputInterpreter != null) {
+                        try {
+                            read = outputInterpreter.interpret(ir);
+                        } catch (IOException e) {
+                            read = stackTraceAsString(e);
+                        }
+                    }
+                    // the interpreter may stop before the end, and the script must never block on a full pipe
+                    IOUtils.skip(ir, Long.MAX_VALUE);
+                    waitForProcess();
+                    return read;
+                }
+            });
 
             _thread = Thread.currentThread();
-            ScheduledFuture<String> future = null;
+            ScheduledFuture<?> future = null;
             if (_timeout > 0) {
-                future = s_executors.schedule(this, _timeout, TimeUnit.MILLISECONDS);
-            }
-
-            Task task = null;
-            if (interpreter != null && interpreter.drain()) {
-                task = new Task(interpreter, ir);
-                s_executors.execute(task);
+                future = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        call();
+                    }
+                }, _timeout);
             }
 
-            while (true) {
-                _logger.debug("Executing while with timeout : " + _timeout);
-                try {
-                    //process execution completed within timeout period
-                    if (_process.waitFor(_timeout, TimeUnit.MILLISECONDS)) {
-                        //process completed successfully
-                        if (_process.exitValue() == 0) {
-                            _logger.debug("Execution is successful.");
-                            if (interpreter != null) {
-                                return interpreter.drain() ? task.getResult() : interpreter.interpret(ir);
-                            } else {
-                                // null return exitValue apparently
-                                return String.valueOf(_process.exitValue());
-                            }
-                        } else { //process failed
-                            break;
-                        }
-                    } //timeout
-                } catch (InterruptedException e) {
-                    if (!_isTimeOut) {
-                        /*
-                         * This is not timeout, we are interrupted by others,
-                         * continue
-                         */
-                        _logger.debug("We are interrupted but it's not a timeout, just continue");
-                        continue;
-                    }
-                } finally {
-                    if (future != null) {
-                        future.cancel(false);
-                    }
-                    Thread.interrupted();
+            String result;
+            try {
+                result = waitForOutput();
+            } finally {
+                if (future != null) {
+                    future.cancel(false);
                 }
+            }
 
-                //timeout without completing the process
-                TimedOutLogger log = new TimedOutLogger(_process);
-                Task timedoutTask = new Task(log, ir);
+            if (_reader.isCancelled()) {
+                _isTimeOut = true;
+                _logger.warn("Timed out: " + buildCommandLine(command));
+                return ERR_TIMEOUT;
+            }
 
-                timedoutTask.run();
-                if (!_passwordCommand) {
-                    _logger.warn("Timed out: " + buildCommandLine(command) + ".  Output is: " + timedoutTask.getResult());
+            exitValue = _process.exitValue();
+            if (exitValue == 0) {
+                _logger.debug("Execution is successful.");
+                if (interpreter != null) {
+                    return result;
                 } else {
-                    _logger.warn("Timed out: " + buildCommandLine(command));
+                    // null return exitValue apparently
+                    return String.valueOf(exitValue);
                 }
-
-                return ERR_TIMEOUT;
             }
 
-            _logger.debug("Exit value is " + _process.exitValue());
+            _logger.debug("Exit value is " + exitValue);
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(_process.getInputStream()), 128);
+            BufferedReader reader = new BufferedReader(new StringReader(tail.toString()), 128);
 
             String error;
             if (interpreter != null) {
                 error = interpreter.processError(reader);
             } else {
-                error = String.valueOf(_process.exitValue());
+                error = String.valueOf(exitValue);
             }
 
             if (_logger.isDebugEnabled()) {
                 _logger.debug(error);
             }
             return error;
+        } catch (InterruptedException ex) {
+            _logger.warn("Interrupted while waiting to execute: " + buildCommandLine(command));
+            Thread.currentThread().interrupt();
+            return "Interrupted while waiting to execute the command: " + command[0];
         } catch (SecurityException ex) {
             _logger.warn("Security Exception....not running as root?", ex);
             return stackTraceAsString(ex);
@@ -302,25 +319,82 @@ public class Script implements Callable<String> {
             _logger.warn("Exception: " + buildCommandLine(command), ex);
             return stackTraceAsString(ex);
         } finally {
+            if (permit != null) {
+                executor.release(permit);
+                executor.record(scriptName, permit, System.currentTimeMillis() - start, exitValue, _isTimeOut);
+            }
             if (_process != null) {
                 IOUtils.closeQuietly(_process.getErrorStream());
                 IOUtils.closeQuietly(_process.getOutputStream());
                 IOUtils.closeQuietly(_process.getInputStream());
-                _process.destroyForcibly();
+                // a timed out script is killed by the reaper once its grace period is over
+                if (!_isTimeOut) {
+                    _process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the reader to reach the end of the output and the process to exit, or for the reaper to give up on
+     * them once the script times out.
+     *
+     * @return what the reader read, null if the script timed out
+     */
+    private String waitForOutput() throws Exception {
+        while (true) {
+            try {
+                return _reader.get();
+            } catch (CancellationException e) {
+                return null;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+            } catch (InterruptedException e) {
+                /*
+                 * This is not timeout, we are interrupted by others,
+                 * continue
+                 */
+                _logger.debug("We are interrupted but it's not a timeout, just continue");
+            }
+        }
+    }
+
+    /**
+     * Waits for the process to exit, or to be killed by the reaper once it times out.
+     */
+    private void waitForProcess() {
+        while (true) {
+            try {
+                _process.waitFor();
+                return;
+            } catch (InterruptedException e) {
+                _logger.debug("We are interrupted but it's not a timeout, just continue");
             }
         }
     }
 
+    /**
+     * Called by the reaper once the timeout expires. Unless the output was read to its end and the process exited,
+     * gives up on reading the output, which children of the script may keep open, and kills the process.
+     */
     @Override
     public String call() {
-        try {
-            _logger.trace("Checking exit value of process");
-            _process.exitValue();
-            _logger.trace("Script ran within the alloted time");
-        } catch (IllegalThreadStateException e) {
+        final Future<String> reader = _reader;
+        if (reader != null && reader.cancel(false)) {
             _logger.warn("Interrupting script.");
             _isTimeOut = true;
-            _thread.interrupt();
+            final Process process = _process;
+            if (process.isAlive()) {
+                process.destroy();
+                ScriptExecutor.getInstance().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        process.destroyForcibly();
+                    }
+                }, KILL_GRACE_PERIOD);
+            }
+        } else {
+            _logger.trace("Script ran within the alloted time");
         }
         return null;
     }
@@ -526,4 +600,49 @@ public class Script implements Callable<String> {
         }
     }
 
+
+    /**
+     * Passes the output on to the interpreter, keeping its last characters for the error of a script that fails.
+     */
+    private static class OutputTail extends FilterReader {
+        private final int _capacity;
+        private final StringBuilder _tail = new StringBuilder();
+
+        OutputTail(Reader in, int capacity) {
+            super(in);
+            _capacity = capacity;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if (c != -1 && _capacity > 0) {
+                _tail.append((char)c);
+                trim();
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            final int n = super.read(cbuf, off, len);
+            if (n > 0 && _capacity > 0) {
+                _tail.append(cbuf, off, n);
+                trim();
+            }
+            return n;
+        }
+
+        private void trim() {
+            // trimmed by halves rather than on every read
+            if (_tail.length() > 2 * _capacity) {
+                _tail.delete(0, _tail.length() - _capacity);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return _tail.length() > _capacity ? _tail.substring(_tail.length() - _capacity) : _tail.toString();
+        }
+    }
 }
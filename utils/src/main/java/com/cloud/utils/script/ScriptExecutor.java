@@ -0,0 +1,294 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.script;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Runs the processes of the scripts: bounds how many of them run at once, in total and by script where limits are
+ * configured, queueing the others in order, kills the ones that time out from a single reaper thread, and keeps the stats of the executions by script.
+ * A script is named by its file name, or by the command run by a shell with -c.
+ */
+public class ScriptExecutor extends StandardMBean implements ScriptExecutorMBean {
+    private static final Logger s_logger = Logger.getLogger(ScriptExecutor.class);
+
+    public static final String CONCURRENCY_LIMIT = "script.concurrency.limit";
+    public static final int DEFAULT_CONCURRENCY_LIMIT = 0;
+    // the reader threads kept at most, unless the concurrency limit lets more scripts run
+    static final int MAX_READERS = 256;
+
+    private static final ScriptExecutor s_instance = new ScriptExecutor();
+
+    /**
+     * The concurrency limits held by an execution.
+     */
+    public static class Permit {
+        private final Semaphore scriptLimit;
+        private final Semaphore limit;
+        private final long queuedMillis;
+
+        Permit(Semaphore scriptLimit, Semaphore limit, long queuedMillis) {
+            this.scriptLimit = scriptLimit;
+            this.limit = limit;
+            this.queuedMillis = queuedMillis;
+        }
+
+        public long getQueuedMillis() {
+            return queuedMillis;
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor _reaper;
+    private final ThreadPoolExecutor _readers;
+    private volatile Semaphore _limit;
+    private volatile int _concurrencyLimit;
+    private final ConcurrentMap<String, Semaphore> _scriptLimits = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, ScriptStats> _stats = new ConcurrentHashMap<String, ScriptStats>();
+    private final AtomicInteger _running = new AtomicInteger();
+    private final AtomicInteger _queued = new AtomicInteger();
+
+    ScriptExecutor() {
+        super(ScriptExecutorMBean.class, false);
+        _reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ScriptReaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _reaper.setRemoveOnCancelPolicy(true);
+        // one reader by running script, at most MAX_READERS or the concurrency limit when it is higher, the readers
+        // past it queued
+        _readers = new ThreadPoolExecutor(MAX_READERS, MAX_READERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ScriptReader-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _readers.allowCoreThreadTimeOut(true);
+        setConcurrencyLimit(DEFAULT_CONCURRENCY_LIMIT);
+    }
+
+    public static ScriptExecutor getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * Registers the MBean of the executions, for the processes that want them exposed.
+     */
+    public void registerMBean() {
+        try {
+            JmxUtil.registerMBean("Script", "ScriptExecutor", this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the MBean of the script executions", e);
+        }
+    }
+
+    /**
+     * Sets the limits from script.concurrency.limit, for all scripts, and script.concurrency.limit.[script], for a
+     * script. A limit of 0 or less is no limit.
+     */
+    public void configure(Map<?, ?> params) {
+        for (Map.Entry<?, ?> param : params.entrySet()) {
+            final String name = String.valueOf(param.getKey());
+            if (name.equals(CONCURRENCY_LIMIT)) {
+                setConcurrencyLimit(NumbersUtil.parseInt(String.valueOf(param.getValue()), DEFAULT_CONCURRENCY_LIMIT));
+            } else if (name.startsWith(CONCURRENCY_LIMIT + ".")) {
+                setConcurrencyLimit(name.substring(CONCURRENCY_LIMIT.length() + 1), NumbersUtil.parseInt(String.valueOf(param.getValue()), 0));
+            }
+        }
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return _concurrencyLimit;
+    }
+
+    /**
+     * Sets how many scripts run at once, 0 or less for no limit. The executions running keep the permits they have.
+     */
+    @Override
+    public void setConcurrencyLimit(int limit) {
+        _concurrencyLimit = limit;
+        _limit = limit > 0 ? new Semaphore(limit, true) : null;
+        // never fewer readers than scripts let run, so a running script does not wait on a reader
+        final int readers = Math.max(limit, MAX_READERS);
+        // the maximum first when growing, the core first when shrinking, so the core never goes past the maximum
+        if (readers > _readers.getMaximumPoolSize()) {
+            _readers.setMaximumPoolSize(readers);
+            _readers.setCorePoolSize(readers);
+        } else {
+            _readers.setCorePoolSize(readers);
+            _readers.setMaximumPoolSize(readers);
+        }
+    }
+
+    /**
+     * Sets how many executions of the script run at once, 0 or less for no limit.
+     */
+    public void setConcurrencyLimit(String script, int limit) {
+        if (limit > 0) {
+            _scriptLimits.put(script, new Semaphore(limit, true));
+        } else {
+            _scriptLimits.remove(script);
+        }
+    }
+
+    /**
+     * @return the name the limits and stats of the command are kept by
+     */
+    public static String getScriptName(String[] command) {
+        int i = 0;
+        if (command.length > 1 && "sudo".equals(command[0])) {
+            i = 1;
+        }
+        if (command[i] == null) {
+            return "null";
+        }
+        String name = new File(command[i]).getName();
+        if ((name.equals("bash") || name.equals("sh")) && command.length > i + 2 && "-c".equals(command[i + 1]) && command[i + 2] != null) {
+            final String[] words = command[i + 2].trim().split("\\s+", 2);
+            if (!words[0].isEmpty()) {
+                name = new File(words[0]).getName();
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Waits for the limits of the script, in the order executions asked for them.
+     */
+    public Permit acquire(String script) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Semaphore scriptLimit = _scriptLimits.get(script);
+        final Semaphore limit = _limit;
+        _queued.incrementAndGet();
+        try {
+            // the script limit first, so executions waiting for it do not hold the permits of the other scripts
+            if (scriptLimit != null) {
+                scriptLimit.acquire();
+            }
+            if (limit != null) {
+                try {
+                    limit.acquire();
+                } catch (InterruptedException e) {
+                    if (scriptLimit != null) {
+                        scriptLimit.release();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            _queued.decrementAndGet();
+        }
+        _running.incrementAndGet();
+        return new Permit(scriptLimit, limit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    public void release(Permit permit) {
+        _running.decrementAndGet();
+        if (permit.limit != null) {
+            permit.limit.release();
+        }
+        if (permit.scriptLimit != null) {
+            permit.scriptLimit.release();
+        }
+    }
+
+    /**
+     * Reads the output of a script in a reader thread, which the script gives up on when it times out.
+     */
+    public Future<String> read(Callable<String> reader) {
+        return _readers.submit(reader);
+    }
+
+    /**
+     * Has the reaper thread call the task once the timeout expires, unless it is cancelled before.
+     */
+    public ScheduledFuture<?> schedule(Runnable timeoutTask, long timeoutInMs) {
+        return _reaper.schedule(timeoutTask, timeoutInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param exitCode the exit code of the script, null if it did not exit by itself
+     */
+    public void record(String script, Permit permit, long millis, Integer exitCode, boolean timedOut) {
+        ScriptStats stats = _stats.get(script);
+        if (stats == null) {
+            _stats.putIfAbsent(script, new ScriptStats());
+            stats = _stats.get(script);
+        }
+        stats.record(permit != null ? permit.getQueuedMillis() : 0, millis, exitCode, timedOut);
+    }
+
+    /**
+     * @return the stats of the executions by script
+     */
+    public Map<String, ScriptStats> getStatsByScript() {
+        return new TreeMap<String, ScriptStats>(_stats);
+    }
+
+    @Override
+    public String[] getStats() {
+        final List<String> result = new ArrayList<String>();
+        for (final Map.Entry<String, ScriptStats> entry : getStatsByScript().entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public int getRunning() {
+        return _running.get();
+    }
+
+    @Override
+    public int getQueued() {
+        return _queued.get();
+    }
+}
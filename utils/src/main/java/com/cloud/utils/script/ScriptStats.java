@@ -0,0 +1,98 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.script;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The executions of a script since the JVM started.
+ */
+public class ScriptStats {
+    private long executions;
+    private long failures;
+    private long timeouts;
+    private long totalMillis;
+    private long maxMillis;
+    private long totalQueuedMillis;
+    private final Map<Integer, Long> exitCodes = new TreeMap<Integer, Long>();
+
+    /**
+     * @param exitCode the exit code of the script, null if it did not exit by itself
+     */
+    synchronized void record(long queuedMillis, long millis, Integer exitCode, boolean timedOut) {
+        executions++;
+        totalQueuedMillis += queuedMillis;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+        if (timedOut) {
+            timeouts++;
+        } else if (exitCode != null) {
+            final Long count = exitCodes.get(exitCode);
+            exitCodes.put(exitCode, count == null ? 1 : count + 1);
+        }
+        if (timedOut || exitCode == null || exitCode != 0) {
+            failures++;
+        }
+    }
+
+    public synchronized long getExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return the executions that timed out, exited with a code other than 0 or could not be started
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getAverageMillis() {
+        return executions > 0 ? totalMillis / executions : 0;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return the average time the executions waited for the concurrency limits
+     */
+    public synchronized long getAverageQueuedMillis() {
+        return executions > 0 ? totalQueuedMillis / executions : 0;
+    }
+
+    /**
+     * @return the number of executions by exit code
+     */
+    public synchronized Map<Integer, Long> getExitCodes() {
+        return new TreeMap<Integer, Long>(exitCodes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return executions + " executions, " + failures + " failed, " + timeouts + " timed out, exit codes " + exitCodes + ", avg " + getAverageMillis() + " ms, max " + maxMillis
+                + " ms, avg queued " + getAverageQueuedMillis() + " ms";
+    }
+}
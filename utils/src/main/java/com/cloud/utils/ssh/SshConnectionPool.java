@@ -0,0 +1,392 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.Session;
+
+/**
+ * Keeps one authenticated SSH connection per host, the commands and file transfers to a host are run in channels of
+ * its connection instead of connecting for each of them. Connections are closed once they are idle for longer than the
+ * idle timeout, and opened again when one of their channels fails to open because the connection was lost.
+ */
+public class SshConnectionPool extends StandardMBean implements SshConnectionPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(SshConnectionPool.class);
+
+    // sshd allows 10 sessions per connection by default
+    public static final int MAX_CHANNELS = 8;
+
+    /**
+     * The number, failures and latencies of the commands and file transfers to a host.
+     */
+    public static class Latency {
+        private long count;
+        private long failures;
+        private long totalMillis;
+        private long maxMillis;
+
+        synchronized void record(long millis, boolean success) {
+            count++;
+            if (!success) {
+                failures++;
+            }
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public synchronized long getAverageMillis() {
+            return count > 0 ? totalMillis / count : 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return count + " calls, " + failures + " failed, avg " + getAverageMillis() + " ms, max " + maxMillis + " ms";
+        }
+    }
+
+    private interface ChannelTask<T> {
+        T run(Connection conn) throws Exception;
+    }
+
+    private class PooledConnection implements ConnectionMonitor {
+        private final String host;
+        private final Semaphore channels = new Semaphore(MAX_CHANNELS);
+        private Connection connection;
+        private volatile boolean lost;
+        // guarded by the pool
+        private int users;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(String host) {
+            this.host = host;
+        }
+
+        synchronized boolean isConnected() {
+            return connection != null && !lost;
+        }
+
+        synchronized Connection connect() throws Exception {
+            if (connection == null) {
+                connection = openConnection(host);
+                connection.addConnectionMonitor(this);
+            }
+            return connection;
+        }
+
+        synchronized void close() {
+            lost = true;
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+
+        @Override
+        public void connectionLost(Throwable reason) {
+            lost = true;
+        }
+    }
+
+    private final int port;
+    private final String user;
+    private final File pemKeyFile;
+    private final String password;
+    private final int connectTimeoutInMs;
+    private final int kexTimeoutInMs;
+    private final long idleTimeoutInMs;
+
+    private final Map<String, PooledConnection> connections = new HashMap<String, PooledConnection>();
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    private ScheduledExecutorService evictor;
+
+    public SshConnectionPool(int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs, long idleTimeoutInMs) {
+        super(SshConnectionPoolMBean.class, false);
+        this.port = port;
+        this.user = user;
+        this.pemKeyFile = pemKeyFile;
+        this.password = password;
+        this.connectTimeoutInMs = connectTimeoutInMs;
+        this.kexTimeoutInMs = kexTimeoutInMs;
+        this.idleTimeoutInMs = idleTimeoutInMs;
+    }
+
+    /**
+     * Starts closing the idle connections in the background.
+     */
+    public synchronized void start() {
+        if (evictor == null) {
+            final long period = Math.max(idleTimeoutInMs / 2, 1000);
+            evictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SshConnectionPool-Evictor"));
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evictIdle();
+                    } catch (Throwable th) {
+                        s_logger.warn("Unable to close the idle SSH connections", th);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops closing the idle connections and closes all connections.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        final List<PooledConnection> closing;
+        synchronized (connections) {
+            closing = new ArrayList<PooledConnection>(connections.values());
+            connections.clear();
+        }
+        for (final PooledConnection pooled : closing) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Executes the command on the host in a channel of its connection.
+     *
+     * @return whether the command exited with status 0 and its output
+     */
+    public Pair<Boolean, String> execute(final String host, final String command, final int waitResultTimeoutInMs) throws Exception {
+        return run(host, new ChannelTask<Pair<Boolean, String>>() {
+            @Override
+            public Pair<Boolean, String> run(Connection conn) throws Exception {
+                // only failing to open the channel is retried, the command is not run twice
+                final Session sess = conn.openSession();
+                try {
+                    return SshHelper.execute(sess, command, waitResultTimeoutInMs);
+                } catch (IOException e) {
+                    throw new SshException("Failed to execute " + command + " on " + host + ": " + e.getMessage());
+                } finally {
+                    sess.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the data to a file on the host in a channel of its connection.
+     */
+    public void scpTo(final String host, final String remoteTargetDirectory, final byte[] data, final String remoteFileName, final String fileMode) throws Exception {
+        run(host, new ChannelTask<Pair<Boolean, String>>() {
+            @Override
+            public Pair<Boolean, String> run(Connection conn) throws Exception {
+                SshHelper.scpTo(conn, remoteTargetDirectory, data, remoteFileName, fileMode);
+                return new Pair<Boolean, String>(true, null);
+            }
+        });
+    }
+
+    private <T extends Pair<Boolean, String>> T run(String host, ChannelTask<T> task) throws Exception {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            for (int attempt = 0;; attempt++) {
+                final PooledConnection pooled = borrow(host);
+                try {
+                    final boolean reused = pooled.isConnected();
+                    final Connection conn = pooled.connect();
+                    try {
+                        final T result = task.run(conn);
+                        success = result.first();
+                        return result;
+                    } catch (IOException e) {
+                        discard(pooled);
+                        if (!reused || attempt > 0) {
+                            throw e;
+                        }
+                        s_logger.debug("SSH connection to " + host + " was lost, connecting again: " + e.getMessage());
+                    }
+                } finally {
+                    release(pooled);
+                }
+            }
+        } finally {
+            getLatency(host).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), success);
+        }
+    }
+
+    private PooledConnection borrow(String host) throws InterruptedException {
+        PooledConnection pooled;
+        synchronized (connections) {
+            pooled = connections.get(host);
+            if (pooled == null || pooled.lost) {
+                pooled = new PooledConnection(host);
+                connections.put(host, pooled);
+            }
+            pooled.users++;
+        }
+        try {
+            pooled.channels.acquire();
+        } catch (InterruptedException e) {
+            synchronized (connections) {
+                pooled.users--;
+            }
+            throw e;
+        }
+        return pooled;
+    }
+
+    private void release(PooledConnection pooled) {
+        pooled.channels.release();
+        synchronized (connections) {
+            pooled.users--;
+            pooled.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        synchronized (connections) {
+            if (connections.get(pooled.host) == pooled) {
+                connections.remove(pooled.host);
+            }
+        }
+        pooled.close();
+    }
+
+    /**
+     * Closes the connection to the host, for instance when it is destroyed.
+     */
+    public void close(String host) {
+        final PooledConnection pooled;
+        synchronized (connections) {
+            pooled = connections.remove(host);
+        }
+        if (pooled != null) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * @return a new connection to the host, authenticated
+     */
+    protected Connection openConnection(String host) throws Exception {
+        final Connection conn = new Connection(host, port);
+        conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
+        try {
+            SshHelper.authenticate(conn, host, user, pemKeyFile, password);
+        } catch (Exception e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    private Latency getLatency(String host) {
+        Latency latency = latencies.get(host);
+        if (latency == null) {
+            latencies.putIfAbsent(host, new Latency());
+            latency = latencies.get(host);
+        }
+        return latency;
+    }
+
+    /**
+     * @return the latencies of the commands and file transfers by host
+     */
+    public Map<String, Latency> getLatencyByHost() {
+        return new TreeMap<String, Latency>(latencies);
+    }
+
+    @Override
+    public String[] getLatencies() {
+        final List<String> result = new ArrayList<String>();
+        for (final Map.Entry<String, Latency> entry : getLatencyByHost().entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Closes the connections that are not used and were last used longer than the idle timeout ago.
+     *
+     * @return the number of connections closed
+     */
+    @Override
+    public int evictIdle() {
+        final long now = System.currentTimeMillis();
+        final List<PooledConnection> idle = new ArrayList<PooledConnection>();
+        synchronized (connections) {
+            for (final Iterator<PooledConnection> it = connections.values().iterator(); it.hasNext();) {
+                final PooledConnection pooled = it.next();
+                if (pooled.users == 0 && (pooled.lost || now - pooled.lastUsed >= idleTimeoutInMs)) {
+                    it.remove();
+                    idle.add(pooled);
+                }
+            }
+        }
+        for (final PooledConnection pooled : idle) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Closing the idle SSH connection to " + pooled.host);
+            }
+            pooled.close();
+        }
+        return idle.size();
+    }
+}
@@ -1,3 +1,4 @@
+//
 // Licensed to the Apache Software Foundation (ASF) under one
 // or more contributor license agreements.  See the NOTICE file
 // distributed with this work for additional information
@@ -14,19 +15,17 @@
 // KIND, either express or implied.  See the License for the
 // specific language governing permissions and limitations
 // under the License.
-package org.apache.cloudstack.ratelimit;
-
-/**
- * Interface for each entry in LimitStore.
- *
- */
-public interface StoreEntry {
+//
 
-    int getCounter();
+package com.cloud.utils.ssh;
 
-    int incrementAndGet();
+public interface SshConnectionPoolMBean {
+    int getConnectionCount();
 
-    boolean isExpired();
+    /**
+     * @return the number of commands and file transfers, failures and latencies by host
+     */
+    String[] getLatencies();
 
-    long getExpireDuration(); /* seconds to reset counter */
+    int evictIdle();
 }
@@ -68,19 +68,7 @@ public class SshHelper {
             conn = new com.trilead.ssh2.Connection(host, port);
             conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
 
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            }
+            authenticate(conn, host, user, pemKeyFile, password);
 
             scpClient = conn.createSCPClient();
 
@@ -98,31 +86,14 @@ public class SshHelper {
             String fileMode, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
 
         com.trilead.ssh2.Connection conn = null;
-        com.trilead.ssh2.SCPClient scpClient = null;
 
         try {
             conn = new com.trilead.ssh2.Connection(host, port);
             conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
 
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            }
+            authenticate(conn, host, user, pemKeyFile, password);
 
-            scpClient = conn.createSCPClient();
-            if (fileMode != null)
-                scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
-            else
-                scpClient.put(data, remoteFileName, remoteTargetDirectory);
+            scpTo(conn, remoteTargetDirectory, data, remoteFileName, fileMode);
         } finally {
             if (conn != null)
                 conn.close();
@@ -143,93 +114,120 @@ public class SshHelper {
             conn = new com.trilead.ssh2.Connection(host, port);
             conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
 
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            }
+            authenticate(conn, host, user, pemKeyFile, password);
             sess = openConnectionSession(conn);
 
-            sess.execCommand(command);
+            return execute(sess, command, waitResultTimeoutInMs);
+        } finally {
+            if (sess != null)
+                sess.close();
 
-            InputStream stdout = sess.getStdout();
-            InputStream stderr = sess.getStderr();
+            if (conn != null)
+                conn.close();
+        }
+    }
 
-            byte[] buffer = new byte[8192];
-            StringBuffer sbResult = new StringBuffer();
 
-            int currentReadBytes = 0;
-            while (true) {
-                throwSshExceptionIfStdoutOrStdeerIsNull(stdout, stderr);
+    /**
+     * Authenticates the connection with the key file if there is one, with the password otherwise.
+     */
+    public static void authenticate(Connection conn, String host, String user, File pemKeyFile, String password) throws Exception {
+        if (pemKeyFile == null) {
+            if (!conn.authenticateWithPassword(user, password)) {
+                String msg = "Failed to authentication SSH user " + user + " on host " + host;
+                s_logger.error(msg);
+                throw new Exception(msg);
+            }
+        } else {
+            if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
+                String msg = "Failed to authentication SSH user " + user + " on host " + host;
+                s_logger.error(msg);
+                throw new Exception(msg);
+            }
+        }
+    }
 
-                if ((stdout.available() == 0) && (stderr.available() == 0)) {
-                    int conditions = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF | ChannelCondition.EXIT_STATUS,
-                            waitResultTimeoutInMs);
+    /**
+     * Copies the data to a file on an authenticated connection, which is left open.
+     */
+    public static void scpTo(Connection conn, String remoteTargetDirectory, byte[] data, String remoteFileName, String fileMode) throws IOException {
+        com.trilead.ssh2.SCPClient scpClient = conn.createSCPClient();
+        if (fileMode != null)
+            scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
+        else
+            scpClient.put(data, remoteFileName, remoteTargetDirectory);
+    }
 
-                    throwSshExceptionIfConditionsTimeout(conditions);
+    /**
+     * Executes the command in the session and waits for its exit status, the session is not closed.
+     *
+     * @return whether the command exited with status 0 and its output
+     */
+    public static Pair<Boolean, String> execute(Session sess, String command, int waitResultTimeoutInMs) throws Exception {
+        sess.execCommand(command);
 
-                    if ((conditions & ChannelCondition.EXIT_STATUS) != 0) {
-                        break;
-                    }
+        InputStream stdout = sess.getStdout();
+        InputStream stderr = sess.getStderr();
 
-                    if (canEndTheSshConnection(waitResultTimeoutInMs, sess, conditions)) {
-                        break;
-                    }
+        byte[] buffer = new byte[8192];
+        StringBuffer sbResult = new StringBuffer();
 
-                }
+        int currentReadBytes = 0;
+        while (true) {
+            throwSshExceptionIfStdoutOrStdeerIsNull(stdout, stderr);
+
+            if ((stdout.available() == 0) && (stderr.available() == 0)) {
+                int conditions = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF | ChannelCondition.EXIT_STATUS,
+                        waitResultTimeoutInMs);
 
-                while (stdout.available() > 0) {
-                    currentReadBytes = stdout.read(buffer);
-                    sbResult.append(new String(buffer, 0, currentReadBytes));
+                throwSshExceptionIfConditionsTimeout(conditions);
+
+                if ((conditions & ChannelCondition.EXIT_STATUS) != 0) {
+                    break;
                 }
 
-                while (stderr.available() > 0) {
-                    currentReadBytes = stderr.read(buffer);
-                    sbResult.append(new String(buffer, 0, currentReadBytes));
+                if (canEndTheSshConnection(waitResultTimeoutInMs, sess, conditions)) {
+                    break;
                 }
-            }
 
-            String result = sbResult.toString();
+            }
 
-            if (StringUtils.isBlank(result)) {
-                try {
-                    result = IOUtils.toString(stdout, StandardCharsets.UTF_8);
-                }
-                catch (IOException e) {
-                    s_logger.error("Couldn't get content of input stream due to: " + e.getMessage());
-                    return new Pair<Boolean, String>(false, result);
-                }
+            while (stdout.available() > 0) {
+                currentReadBytes = stdout.read(buffer);
+                sbResult.append(new String(buffer, 0, currentReadBytes));
             }
 
-            if (sess.getExitStatus() == null) {
-                //Exit status is NOT available. Returning failure result.
-                s_logger.error(String.format("SSH execution of command %s has no exit status set. Result output: %s", command, result));
-                return new Pair<Boolean, String>(false, result);
+            while (stderr.available() > 0) {
+                currentReadBytes = stderr.read(buffer);
+                sbResult.append(new String(buffer, 0, currentReadBytes));
             }
+        }
+
+        String result = sbResult.toString();
 
-            if (sess.getExitStatus() != null && sess.getExitStatus().intValue() != 0) {
-                s_logger.error(String.format("SSH execution of command %s has an error status code in return. Result output: %s", command, result));
+        if (StringUtils.isBlank(result)) {
+            try {
+                result = IOUtils.toString(stdout, StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                s_logger.error("Couldn't get content of input stream due to: " + e.getMessage());
                 return new Pair<Boolean, String>(false, result);
             }
+        }
 
-            return new Pair<Boolean, String>(true, result);
-        } finally {
-            if (sess != null)
-                sess.close();
+        if (sess.getExitStatus() == null) {
+            //Exit status is NOT available. Returning failure result.
+            s_logger.error(String.format("SSH execution of command %s has no exit status set. Result output: %s", command, result));
+            return new Pair<Boolean, String>(false, result);
+        }
 
-            if (conn != null)
-                conn.close();
+        if (sess.getExitStatus() != null && sess.getExitStatus().intValue() != 0) {
+            s_logger.error(String.format("SSH execution of command %s has an error status code in return. Result output: %s", command, result));
+            return new Pair<Boolean, String>(false, result);
         }
-    }
 
+        return new Pair<Boolean, String>(true, result);
+    }
 
     protected static Session openConnectionSession(Connection conn) throws IOException, InterruptedException {
         Session sess = conn.openSession();
@@ -19,18 +19,46 @@
 
 package org.apache.cloudstack.utils.graphite;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class GraphiteClient {
+/**
+ * Sends metrics to Graphite in its plaintext protocol, over UDP or TCP. The socket is kept open between sends and
+ * opened again on the next send after an error, so a client should be kept and closed when no longer used.
+ */
+public class GraphiteClient implements Closeable {
+
+    /**
+     * Lines sent over UDP are packed into datagrams of at most this many bytes, so they are not fragmented
+     */
+    private static final int MAX_DATAGRAM_SIZE = 1400;
+    private static final int CONNECT_TIMEOUT = 10000;
 
     private String graphiteHost;
     private int graphitePort;
+    private boolean tcp;
+
+    private DatagramSocket datagramSocket;
+    private Socket socket;
+    private OutputStream out;
+
+    static {
+        java.security.Security.setProperty("networkaddress.cache.ttl", "0");
+    }
 
     /**
      * Create a new Graphite client
@@ -39,8 +67,20 @@ public class GraphiteClient {
      * @param graphitePort UDP port of the Graphite host
      */
     public GraphiteClient(String graphiteHost, int graphitePort) {
+        this(graphiteHost, graphitePort, false);
+    }
+
+    /**
+     * Create a new Graphite client
+     *
+     * @param graphiteHost Hostname of the Graphite host
+     * @param graphitePort Port of the Graphite host
+     * @param tcp true to send over TCP, false to send over UDP
+     */
+    public GraphiteClient(String graphiteHost, int graphitePort, boolean tcp) {
         this.graphiteHost = graphiteHost;
         this.graphitePort = graphitePort;
+        this.tcp = tcp;
     }
 
     /**
@@ -49,8 +89,7 @@ public class GraphiteClient {
      * @param graphiteHost Hostname of the Graphite host. Will default to port 2003
      */
     public GraphiteClient(String graphiteHost) {
-        this.graphiteHost = graphiteHost;
-        graphitePort = 2003;
+        this(graphiteHost, 2003);
     }
 
     /**
@@ -62,6 +101,13 @@ public class GraphiteClient {
         return System.currentTimeMillis() / 1000;
     }
 
+    /**
+     * @return the line of a metric in the plaintext protocol
+     */
+    public static String formatMetric(Object key, Object value, long timeStamp) {
+        return key + " " + value + " " + timeStamp + "\n";
+    }
+
     /**
      * Send a array of metrics to graphite.
      *
@@ -78,22 +124,72 @@ public class GraphiteClient {
      * @param timeStamp the timestamp
      */
     public void sendMetrics(Map<Object, Object> metrics, long timeStamp) {
-        try (DatagramSocket sock = new DatagramSocket()){
-            java.security.Security.setProperty("networkaddress.cache.ttl", "0");
-            InetAddress addr = InetAddress.getByName(this.graphiteHost);
-
-            for (Map.Entry<Object, Object> metric : metrics.entrySet()) {
-                byte[] message = new String(metric.getKey() + " " + metric.getValue() + " " + timeStamp + "\n").getBytes();
-                DatagramPacket packet = new DatagramPacket(message, message.length, addr, graphitePort);
-                sock.send(packet);
+        List<String> lines = new ArrayList<String>(metrics.size());
+        for (Map.Entry<Object, Object> metric : metrics.entrySet()) {
+            lines.add(formatMetric(metric.getKey(), metric.getValue(), timeStamp));
+        }
+        sendLines(lines);
+    }
+
+    /**
+     * Send lines formatted by {@link #formatMetric(Object, Object, long)} to graphite, as few datagrams or writes as possible.
+     *
+     * @throws GraphiteException if sending data to graphite failed, the socket is opened again on the next send
+     */
+    public synchronized void sendLines(Collection<String> lines) {
+        try {
+            if (tcp) {
+                writeLines(lines);
+            } else {
+                sendDatagrams(lines);
             }
         } catch (UnknownHostException e) {
+            close();
             throw new GraphiteException("Unknown host: " + graphiteHost);
         } catch (IOException e) {
+            close();
             throw new GraphiteException("Error while writing to graphite: " + e.getMessage(), e);
         }
     }
 
+    private void writeLines(Collection<String> lines) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(InetAddress.getByName(graphiteHost), graphitePort), CONNECT_TIMEOUT);
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+        for (String line : lines) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    private void sendDatagrams(Collection<String> lines) throws IOException {
+        if (datagramSocket == null) {
+            datagramSocket = new DatagramSocket();
+        }
+        // resolved on every send as there is no connection to fail when the address of the host changes
+        InetAddress addr = InetAddress.getByName(graphiteHost);
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        int length = 0;
+        for (String line : lines) {
+            byte[] message = line.getBytes(StandardCharsets.UTF_8);
+            if (length > 0 && length + message.length > buffer.length) {
+                datagramSocket.send(new DatagramPacket(buffer, length, addr, graphitePort));
+                length = 0;
+            }
+            if (message.length > buffer.length) {
+                datagramSocket.send(new DatagramPacket(message, message.length, addr, graphitePort));
+                continue;
+            }
+            System.arraycopy(message, 0, buffer, length, message.length);
+            length += message.length;
+        }
+        if (length > 0) {
+            datagramSocket.send(new DatagramPacket(buffer, length, addr, graphitePort));
+        }
+    }
+
     /**
      * Send a single metric with the current time as timestamp to graphite.
      *
@@ -120,4 +216,24 @@ public class GraphiteClient {
         metrics.put(key, value);
         sendMetrics(metrics, timeStamp);
     }
+
+    /**
+     * Closes the socket, the next send opens it again.
+     */
+    @Override
+    public synchronized void close() {
+        if (datagramSocket != null) {
+            datagramSocket.close();
+            datagramSocket = null;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the socket is dropped anyway
+            }
+            socket = null;
+            out = null;
+        }
+    }
 }
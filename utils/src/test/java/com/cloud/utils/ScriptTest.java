@@ -20,7 +20,10 @@
 package com.cloud.utils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
@@ -33,6 +36,8 @@ import org.mockito.Mockito;
 
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptExecutor;
+import com.cloud.utils.script.ScriptStats;
 
 public class ScriptTest {
     @Test
@@ -132,4 +137,116 @@ public class ScriptTest {
         String script = Script.findScript("/bin", "pwd");
         Assert.assertNotNull("/bin/pwd shoud be there on linux", script);
     }
+
+    @Test
+    public void testTimeoutKillsScript() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        long timeouts = timeouts("sleep");
+        Script script = new Script("/bin/sleep", 500);
+        script.add("10");
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(Script.ERR_TIMEOUT, script.execute());
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(timeouts + 1, timeouts("sleep"));
+    }
+
+    private static long timeouts(String script) {
+        ScriptStats stats = ScriptExecutor.getInstance().getStatsByScript().get(script);
+        return stats != null ? stats.getTimeouts() : 0;
+    }
+
+    @Test
+    public void testOutputLargerThanPipe() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        Script script = new Script("/bin/bash", 10000);
+        script.add("-c");
+        script.add("head -c 1000000 /dev/zero | tr '\\0' 'a'; echo; echo failed; exit 3");
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        String error = script.execute(parser);
+        // the error is made of the tail of the output only
+        Assert.assertTrue(error.endsWith("afailed"));
+        Assert.assertTrue(error.length() < 1000000);
+        ScriptStats stats = ScriptExecutor.getInstance().getStatsByScript().get("head");
+        Assert.assertTrue(stats.getExitCodes().get(3) >= 1);
+    }
+
+    @Test
+    public void testOutputIsInterpretedAsTheScriptWritesIt() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        Script script = new Script("/bin/bash", 10000);
+        script.add("-c");
+        script.add("echo first; sleep 1; echo second");
+        final long start = System.currentTimeMillis();
+        final AtomicLong firstLineRead = new AtomicLong();
+        String result = script.execute(new OutputInterpreter() {
+            @Override
+            public String interpret(BufferedReader reader) throws IOException {
+                String line = reader.readLine();
+                firstLineRead.set(System.currentTimeMillis());
+                return line;
+            }
+        });
+        Assert.assertEquals("first", result);
+        Assert.assertTrue("Read before the script exits", firstLineRead.get() - start < 1000);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+    @Test
+    public void testTimeoutWithChildrenKeepingTheOutputOpen() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        Script script = new Script("/bin/bash", 1000);
+        script.add("-c");
+        script.add("sleep 30 & sleep 30");
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(Script.ERR_TIMEOUT, script.execute());
+        Assert.assertTrue("Returns once the script times out", System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testDefaultConcurrencyIsUnlimited() {
+        Assert.assertEquals(0, ScriptExecutor.getInstance().getConcurrencyLimit());
+    }
+
+    @Test
+    public void testConcurrencyLimitOfScript() throws InterruptedException {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        ScriptExecutor.getInstance().setConcurrencyLimit("usleep-test", 1);
+        final File running = new File(System.getProperty("java.io.tmpdir"), "usleep-test-" + System.nanoTime());
+        try {
+            final AtomicInteger overlaps = new AtomicInteger();
+            final Runnable sleep = new Runnable() {
+                @Override
+                public void run() {
+                    Script script = new Script("/bin/bash", 10000);
+                    script.add("-c");
+                    // mkdir fails when another execution of the script is running
+                    script.add("usleep-test 2>/dev/null; mkdir " + running + " || exit 1; sleep 0.2; rmdir " + running);
+                    if (script.execute() != null) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+            };
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(sleep);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals("The executions of the script never run at once", 0, overlaps.get());
+            Assert.assertEquals(threads.length, ScriptExecutor.getInstance().getStatsByScript().get("usleep-test").getExecutions());
+        } finally {
+            ScriptExecutor.getInstance().setConcurrencyLimit("usleep-test", 0);
+            running.delete();
+        }
+    }
+
+    @Test
+    public void testScriptName() {
+        Assert.assertEquals("qemu-img", ScriptExecutor.getScriptName(new String[] {"/usr/bin/qemu-img", "info", "/tmp/disk"}));
+        Assert.assertEquals("iptables", ScriptExecutor.getScriptName(new String[] {"sudo", "iptables", "-L"}));
+        Assert.assertEquals("ebtables", ScriptExecutor.getScriptName(new String[] {"/bin/bash", "-c", "ebtables -t nat -L | grep vnet0"}));
+        Assert.assertEquals("bash", ScriptExecutor.getScriptName(new String[] {"/bin/bash", "/usr/share/cloudstack-common/scripts/network.sh"}));
+    }
 }
@@ -0,0 +1,149 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.utils.Pair;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+
+public class SshConnectionPoolTest {
+
+    private static final String ROUTER = "169.254.3.10";
+
+    private final List<Connection> opened = new ArrayList<Connection>();
+    private SshConnectionPool pool;
+
+    private Connection mockConnection() throws IOException {
+        final Connection conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.openSession()).thenAnswer(new Answer<Session>() {
+            @Override
+            public Session answer(InvocationOnMock invocation) {
+                final Session sess = Mockito.mock(Session.class);
+                Mockito.when(sess.getStdout()).thenReturn(new ByteArrayInputStream("done".getBytes()));
+                Mockito.when(sess.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+                Mockito.when(sess.waitForCondition(Matchers.anyInt(), Matchers.anyLong())).thenReturn(ChannelCondition.EXIT_STATUS);
+                Mockito.when(sess.getExitStatus()).thenReturn(0);
+                return sess;
+            }
+        });
+        return conn;
+    }
+
+    @Before
+    public void setup() {
+        pool = new SshConnectionPool(3922, "root", null, null, 1000, 1000, 60000) {
+            @Override
+            protected Connection openConnection(String host) throws Exception {
+                final Connection conn = mockConnection();
+                opened.add(conn);
+                return conn;
+            }
+        };
+    }
+
+    @Test
+    public void testCommandsShareTheConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            final Pair<Boolean, String> result = pool.execute(ROUTER, "/opt/cloud/bin/update_config.py ip_associations.json", 1000);
+            Assert.assertTrue(result.first());
+            Assert.assertEquals("done", result.second());
+        }
+        Assert.assertEquals(1, opened.size());
+        Mockito.verify(opened.get(0), Mockito.times(5)).openSession();
+        Assert.assertEquals(1, pool.getConnectionCount());
+        Assert.assertEquals(5, pool.getLatencyByHost().get(ROUTER).getCount());
+        Assert.assertEquals(0, pool.getLatencyByHost().get(ROUTER).getFailures());
+    }
+
+    @Test
+    public void testFilesAreCopiedOnTheConnection() throws Exception {
+        pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000);
+        final SCPClient scpClient = Mockito.mock(SCPClient.class);
+        Mockito.when(opened.get(0).createSCPClient()).thenReturn(scpClient);
+
+        pool.scpTo(ROUTER, "/var/cache/cloud/", "{}".getBytes(), "ip_associations.json", null);
+        Assert.assertEquals(1, opened.size());
+        Mockito.verify(scpClient).put("{}".getBytes(), "ip_associations.json", "/var/cache/cloud/");
+    }
+
+    @Test
+    public void testLostConnectionIsOpenedAgain() throws Exception {
+        pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000);
+        Mockito.doThrow(new IOException("connection reset")).when(opened.get(0)).openSession();
+
+        Assert.assertTrue(pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000).first());
+        Assert.assertEquals(2, opened.size());
+        Mockito.verify(opened.get(0)).close();
+        Assert.assertEquals(1, pool.getConnectionCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureOnNewConnectionIsNotRetried() throws Exception {
+        pool = new SshConnectionPool(3922, "root", null, null, 1000, 1000, 60000) {
+            @Override
+            protected Connection openConnection(String host) throws Exception {
+                final Connection conn = Mockito.mock(Connection.class);
+                Mockito.when(conn.openSession()).thenThrow(new IOException("connection refused"));
+                opened.add(conn);
+                return conn;
+            }
+        };
+        try {
+            pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000);
+        } finally {
+            Assert.assertEquals(1, opened.size());
+            Assert.assertEquals(1, pool.getLatencyByHost().get(ROUTER).getFailures());
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws Exception {
+        pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000);
+        Assert.assertEquals("The connection is not idle for long enough", 0, pool.evictIdle());
+
+        pool = new SshConnectionPool(3922, "root", null, null, 1000, 1000, 0) {
+            @Override
+            protected Connection openConnection(String host) throws Exception {
+                final Connection conn = mockConnection();
+                opened.add(conn);
+                return conn;
+            }
+        };
+        pool.execute(ROUTER, "/opt/cloud/bin/checkrouter.sh", 1000);
+        Assert.assertEquals(1, pool.evictIdle());
+        Assert.assertEquals(0, pool.getConnectionCount());
+        Mockito.verify(opened.get(1)).close();
+    }
+}
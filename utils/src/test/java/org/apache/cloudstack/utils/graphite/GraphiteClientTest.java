@@ -0,0 +1,97 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.graphite;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GraphiteClientTest {
+
+    @Test
+    public void testTcpConnectionIsKept() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            GraphiteClient client = new GraphiteClient("127.0.0.1", server.getLocalPort(), true);
+            client.sendLines(Arrays.asList(GraphiteClient.formatMetric("a.b", 1, 100), GraphiteClient.formatMetric("a.c", 2, 100)));
+            client.sendMetric("a.d", 3, 101);
+
+            server.setSoTimeout(5000);
+            try (Socket connection = server.accept()) {
+                connection.setSoTimeout(5000);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                Assert.assertEquals("a.b 1 100", reader.readLine());
+                Assert.assertEquals("a.c 2 100", reader.readLine());
+                Assert.assertEquals("All sends go over the same connection", "a.d 3 101", reader.readLine());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUdpLinesArePackedIntoDatagrams() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            GraphiteClient client = new GraphiteClient("127.0.0.1", server.getLocalPort());
+            List<String> lines = new ArrayList<String>();
+            for (int i = 0; i < 100; i++) {
+                lines.add(GraphiteClient.formatMetric("cloudstack.stats.metric" + i, i, 100));
+            }
+            client.sendLines(lines);
+            client.close();
+
+            int received = 0;
+            int datagrams = 0;
+            byte[] buffer = new byte[65536];
+            while (received < lines.size()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                server.receive(packet);
+                Assert.assertTrue(packet.getLength() <= 1400);
+                String data = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                for (String line : data.split("\n")) {
+                    Assert.assertEquals(lines.get(received).trim(), line);
+                    received++;
+                }
+                datagrams++;
+            }
+            Assert.assertTrue("Lines are sent several to a datagram", datagrams < lines.size() / 10);
+        }
+    }
+
+    @Test(expected = GraphiteException.class)
+    public void testTcpConnectionRefused() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = server.getLocalPort();
+        }
+        new GraphiteClient("127.0.0.1", port, true).sendMetric("a.b", 1);
+    }
+}